@@ -0,0 +1,45 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+
+package com.google.gerrit.server.cache.h2;
+
+import com.google.common.cache.Cache;
+import com.google.gerrit.server.cache.h2.H2CacheImpl.DiskStats;
+import com.google.gerrit.server.cache.h2.H2CacheImpl.ValueHolder;
+
+import java.util.List;
+import java.util.Map;
+
+/** Storage on disk behind an {@link H2CacheImpl}. */
+interface DiskStore<K, V> {
+  /** Prepare the store for use; called once on a background thread. */
+  void open();
+
+  /** Release all resources held by the store. */
+  void close();
+
+  /** @return false if the key is definitely not stored. */
+  boolean mightContain(K key);
+
+  /** @return the stored value, marked clean; null if not stored. */
+  ValueHolder<V> getIfPresent(K key);
+
+  /**
+   * Store or delete several entries.
+   *
+   * @param entries entries to store; entries whose value is null are
+   *        deleted. Stored values are marked clean.
+   * @return false if the store could not write some entries; the caller
+   *         should offer them again later.
+   */
+  boolean putAll(List<Map.Entry<K, ValueHolder<V>>> entries);
+
+  void invalidateAll();
+
+  /**
+   * Remove least recently accessed entries until the store fits within its
+   * size limit. Entries still present in {@code mem} are kept.
+   */
+  void prune(Cache<K, ?> mem);
+
+  DiskStats diskStats();
+}
@@ -25,11 +25,11 @@ import com.google.gerrit.server.cache.CacheBinding;
 import com.google.gerrit.server.cache.PersistentCacheFactory;
 import com.google.gerrit.server.cache.h2.H2CacheImpl.SqlStore;
 import com.google.gerrit.server.cache.h2.H2CacheImpl.ValueHolder;
+import com.google.gerrit.server.cache.h2.H2CacheImpl.WriteBehind;
 import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.config.SitePaths;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
-import com.google.inject.TypeLiteral;
 
 import org.eclipse.jgit.lib.Config;
 import org.slf4j.Logger;
@@ -81,8 +81,11 @@ class H2CacheFactory implements PersistentCacheFactory, LifecycleListener {
     caches = Lists.newLinkedList();
 
     if (cacheDir != null) {
+      // Each cache has at most one batch being written at a time, but
+      // caches are separate databases and can be written in parallel.
+      int cores = Runtime.getRuntime().availableProcessors();
       executor = Executors.newFixedThreadPool(
-          1,
+          Math.max(1, Math.min(cores / 2, 4)),
           new ThreadFactoryBuilder()
             .setNameFormat("DiskCache-Store-%d")
             .build());
@@ -126,15 +129,10 @@ class H2CacheFactory implements PersistentCacheFactory, LifecycleListener {
       try {
         cleanup.shutdownNow();
 
-        List<Runnable> pending = executor.shutdownNow();
-        if (executor.awaitTermination(15, TimeUnit.MINUTES)) {
-          if (pending != null && !pending.isEmpty()) {
-            log.info(String.format("Finishing %d disk cache updates", pending.size()));
-            for (Runnable update : pending) {
-              update.run();
-            }
-          }
-        } else {
+        // Queued writes are not lost by discarding the pending tasks;
+        // each cache flushes its remaining writes when stopped below.
+        executor.shutdownNow();
+        if (!executor.awaitTermination(15, TimeUnit.MINUTES)) {
           log.info("Timeout waiting for disk cache to close");
         }
       } catch (InterruptedException e) {
@@ -156,9 +154,9 @@ class H2CacheFactory implements PersistentCacheFactory, LifecycleListener {
       return defaultFactory.build(def);
     }
 
-    SqlStore<K, V> store = newSqlStore(def.name(), def.keyType(), limit);
+    DiskStore<K, V> store = newStore(def, limit);
     H2CacheImpl<K, V> cache = new H2CacheImpl<K, V>(
-        executor, store, def.keyType(),
+        newWriteBehind(def.name(), store), store, def.keyType(),
         (Cache<K, ValueHolder<V>>) defaultFactory.create(def, true).build());
     caches.add(cache);
     return cache;
@@ -176,23 +174,51 @@ class H2CacheFactory implements PersistentCacheFactory, LifecycleListener {
       return defaultFactory.build(def, loader);
     }
 
-    SqlStore<K, V> store = newSqlStore(def.name(), def.keyType(), limit);
+    DiskStore<K, V> store = newStore(def, limit);
+    WriteBehind<K, V> writer = newWriteBehind(def.name(), store);
     Cache<K, ValueHolder<V>> mem = (Cache<K, ValueHolder<V>>)
         defaultFactory.create(def, true)
         .build((CacheLoader<K, V>) new H2CacheImpl.Loader<K, V>(
-              executor, store, loader));
+              writer, store, loader));
     H2CacheImpl<K, V> cache = new H2CacheImpl<K, V>(
-        executor, store, def.keyType(), mem);
+        writer, store, def.keyType(), mem);
     caches.add(cache);
     return cache;
   }
 
-  private <V, K> SqlStore<K, V> newSqlStore(
+  private <K, V> WriteBehind<K, V> newWriteBehind(
       String name,
-      TypeLiteral<K> keyType,
+      DiskStore<K, V> store) {
+    int max = config.getInt("cache", name, "diskBuffer", 1024);
+    return new WriteBehind<K, V>(executor, store, Math.max(1, max));
+  }
+
+  private <V, K> DiskStore<K, V> newStore(
+      CacheBinding<K, V> def,
       long maxSize) {
+    // Each version is stored in its own database, as the table layout
+    // depends on the serializers in use.
+    String name = def.name();
+    if (def.version() != 0) {
+      name += "-v" + def.version();
+    }
+
+    String type = config.getString("cache", def.name(), "diskType");
+    if (type == null) {
+      type = config.getString("cache", null, "diskType");
+    }
+    if ("log".equalsIgnoreCase(type)) {
+      File dir = new File(cacheDir, name + ".log").getAbsoluteFile();
+      return new LogStore<K, V>(dir, def.keyType(),
+          def.keySerializer(), def.valueSerializer(), maxSize);
+    } else if (type != null && !"h2".equalsIgnoreCase(type)) {
+      log.warn("Unknown cache." + def.name() + ".diskType " + type
+          + ", using h2");
+    }
+
     File db = new File(cacheDir, name).getAbsoluteFile();
     String url = "jdbc:h2:" + db.toURI().toString();
-    return new SqlStore<K, V>(url, keyType, maxSize);
+    return new SqlStore<K, V>(url, def.keyType(),
+        def.keySerializer(), def.valueSerializer(), maxSize);
   }
 }
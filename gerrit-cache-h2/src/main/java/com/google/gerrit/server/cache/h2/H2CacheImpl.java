@@ -7,15 +7,19 @@ import com.google.common.cache.Cache;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.CacheStats;
 import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.hash.BloomFilter;
 import com.google.common.hash.Funnel;
 import com.google.common.hash.Funnels;
 import com.google.common.hash.PrimitiveSink;
+import com.google.gerrit.server.cache.CacheSerializer;
 import com.google.inject.TypeLiteral;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
@@ -26,14 +30,23 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
 import java.util.Calendar;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.annotation.Nullable;
 
 /**
  * Hybrid in-memory and database backed cache built on H2.
@@ -47,7 +60,10 @@ import java.util.concurrent.atomic.AtomicLong;
  * <p>
  * Cache stores and invalidations are performed on a background thread, hiding
  * the latency associated with serializing the key and value pairs and writing
- * them to the database log.
+ * them to the database log. Pending writes are kept per key, so repeated
+ * writes of the same key are only stored once, and are committed in batches.
+ * If too many writes are pending the caller stores them itself, slowing down
+ * producers to the rate the disk can accept.
  * <p>
  * A BloomFilter is used around the database to reduce the number of SELECTs
  * issued against the database for new cache items that have not been seen
@@ -55,6 +71,9 @@ import java.util.concurrent.atomic.AtomicLong;
  * when the cache starts to be 64,000 entries or double the number of items
  * currently in the database table.
  * <p>
+ * The database may instead be a {@link LogStore} of memory-mapped files, see
+ * {@link H2CacheFactory}.
+ * <p>
  * This cache does not export its items as a ConcurrentMap.
  *
  * @see H2CacheFactory
@@ -62,16 +81,16 @@ import java.util.concurrent.atomic.AtomicLong;
 public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
   private static final Logger log = LoggerFactory.getLogger(H2CacheImpl.class);
 
-  private final Executor executor;
-  private final SqlStore<K, V> store;
+  private final WriteBehind<K, V> writer;
+  private final DiskStore<K, V> store;
   private final TypeLiteral<K> keyType;
   private final Cache<K, ValueHolder<V>> mem;
 
-  H2CacheImpl(Executor executor,
-      SqlStore<K, V> store,
+  H2CacheImpl(WriteBehind<K, V> writer,
+      DiskStore<K, V> store,
       TypeLiteral<K> keyType,
       Cache<K, ValueHolder<V>> mem) {
-    this.executor = executor;
+    this.writer = writer;
     this.store = store;
     this.keyType = keyType;
     this.mem = mem;
@@ -91,6 +110,15 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
       return h.value;
     }
 
+    h = writer.getIfPresent(key);
+    if (h != null) {
+      mem.put(key, h);
+      return h.value;
+    } else if (writer.isDeleted(key)) {
+      // The copy on disk is stale until the delete is flushed.
+      return null;
+    }
+
     if (store.mightContain(key)) {
       h = store.getIfPresent(key);
       if (h != null) {
@@ -114,30 +142,22 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
     final ValueHolder<V> h = new ValueHolder<V>(val);
     h.created = System.currentTimeMillis();
     mem.put(key, h);
-    executor.execute(new Runnable() {
-      @Override
-      public void run() {
-        store.put(key, h);
-      }
-    });
+    writer.put(key, h);
   }
 
   @SuppressWarnings("unchecked")
   @Override
   public void invalidate(final Object key) {
-    if (keyType.getRawType().isInstance(key) && store.mightContain((K) key)) {
-      executor.execute(new Runnable() {
-        @Override
-        public void run() {
-          store.invalidate((K) key);
-        }
-      });
+    if (keyType.getRawType().isInstance(key)
+        && (writer.contains((K) key) || store.mightContain((K) key))) {
+      writer.invalidate((K) key);
     }
     mem.invalidate(key);
   }
 
   @Override
   public void invalidateAll() {
+    writer.clear();
     store.invalidateAll();
     mem.invalidateAll();
   }
@@ -153,7 +173,9 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
   }
 
   public DiskStats diskStats() {
-    return store.diskStats();
+    DiskStats d = store.diskStats();
+    d.pendingWrites = writer.size();
+    return d;
   }
 
   void start() {
@@ -161,12 +183,19 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
   }
 
   void stop() {
+    if (!writer.flush()) {
+      // Pending deletes were not written; the stale copies on disk must
+      // not be served after restart.
+      store.invalidateAll();
+    }
+
+    List<Map.Entry<K, ValueHolder<V>>> dirty = Lists.newArrayList();
     for (Map.Entry<K, ValueHolder<V>> e : mem.asMap().entrySet()) {
-      ValueHolder<V> h = e.getValue();
-      if (!h.clean) {
-        store.put(e.getKey(), h);
+      if (!e.getValue().clean) {
+        dirty.add(e);
       }
     }
+    store.putAll(dirty);
     store.close();
   }
 
@@ -194,6 +223,7 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
     long space;
     long hitCount;
     long missCount;
+    int pendingWrites;
 
     public long size() {
       return size;
@@ -210,6 +240,11 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
     public long requestCount() {
       return hitCount + missCount;
     }
+
+    /** @return number of keys waiting to be written or deleted. */
+    public int pendingWrites() {
+      return pendingWrites;
+    }
   }
 
   static class ValueHolder<V> {
@@ -223,37 +258,149 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
   }
 
   static class Loader<K, V> extends CacheLoader<K, ValueHolder<V>> {
-    private final Executor executor;
-    private final SqlStore<K, V> store;
+    private final WriteBehind<K, V> writer;
+    private final DiskStore<K, V> store;
     private final CacheLoader<K, V> loader;
 
-    Loader(Executor executor, SqlStore<K, V> store, CacheLoader<K, V> loader) {
-      this.executor = executor;
+    Loader(WriteBehind<K, V> writer, DiskStore<K, V> store,
+        CacheLoader<K, V> loader) {
+      this.writer = writer;
       this.store = store;
       this.loader = loader;
     }
 
     @Override
     public ValueHolder<V> load(final K key) throws Exception {
-      if (store.mightContain(key)) {
-        ValueHolder<V> h = store.getIfPresent(key);
+      ValueHolder<V> h = writer.getIfPresent(key);
+      if (h != null) {
+        return h;
+      }
+
+      if (!writer.isDeleted(key) && store.mightContain(key)) {
+        h = store.getIfPresent(key);
         if (h != null) {
           return h;
         }
       }
 
-      final ValueHolder<V> h = new ValueHolder<V>(loader.load(key));
+      h = new ValueHolder<V>(loader.load(key));
       h.created = System.currentTimeMillis();
-      executor.execute(new Runnable() {
-        @Override
-        public void run() {
-          store.put(key, h);
-        }
-      });
+      writer.put(key, h);
       return h;
     }
   }
 
+  /**
+   * Queue of writes waiting to be stored in the database.
+   * <p>
+   * Only the most recent write of each key is kept. A holder with a null
+   * value records the key must be deleted. At most one flush runs at a
+   * time; writers that find the queue full wait for it, then flush the
+   * queue themselves.
+   */
+  static class WriteBehind<K, V> implements Runnable {
+    private static final int BATCH_SIZE = 256;
+
+    private final Executor executor;
+    private final DiskStore<K, V> store;
+    private final int maxPending;
+    private final ConcurrentMap<K, ValueHolder<V>> pending;
+    private final ValueHolder<V> deleted;
+    private final AtomicBoolean scheduled;
+
+    WriteBehind(Executor executor, DiskStore<K, V> store, int maxPending) {
+      this.executor = executor;
+      this.store = store;
+      this.maxPending = maxPending;
+      this.pending = new ConcurrentHashMap<K, ValueHolder<V>>();
+      this.deleted = new ValueHolder<V>(null);
+      this.scheduled = new AtomicBoolean();
+    }
+
+    /** @return value waiting to be written; null if none or deleted. */
+    ValueHolder<V> getIfPresent(K key) {
+      ValueHolder<V> h = pending.get(key);
+      return h != null && h != deleted ? h : null;
+    }
+
+    boolean contains(K key) {
+      return pending.containsKey(key);
+    }
+
+    /** @return true if the key was invalidated and not yet deleted on disk. */
+    boolean isDeleted(K key) {
+      return pending.get(key) == deleted;
+    }
+
+    int size() {
+      return pending.size();
+    }
+
+    void put(K key, ValueHolder<V> h) {
+      pending.put(key, h);
+      schedule();
+    }
+
+    void invalidate(K key) {
+      pending.put(key, deleted);
+      schedule();
+    }
+
+    void clear() {
+      pending.clear();
+    }
+
+    private void schedule() {
+      if (maxPending < pending.size()) {
+        flush();
+      } else if (scheduled.compareAndSet(false, true)) {
+        executor.execute(this);
+      }
+    }
+
+    @Override
+    public void run() {
+      scheduled.set(false);
+      flush();
+    }
+
+    /** @return false if the store failed; unwritten entries stay queued. */
+    synchronized boolean flush() {
+      List<Map.Entry<K, ValueHolder<V>>> batch = Lists.newArrayList();
+      for (Map.Entry<K, ValueHolder<V>> e : pending.entrySet()) {
+        batch.add(Maps.immutableEntry(e.getKey(), e.getValue()));
+        if (batch.size() == BATCH_SIZE && !write(batch)) {
+          return false;
+        }
+      }
+      return batch.isEmpty() || write(batch);
+    }
+
+    /**
+     * Store a batch, then drop it from the queue.
+     * <p>
+     * Entries stay visible to readers until they are on disk, so a pending
+     * delete always hides the stale copy in the store. An entry replaced
+     * while the batch was written is kept for the next flush, as is the
+     * whole batch if the store could not write it.
+     */
+    private boolean write(List<Map.Entry<K, ValueHolder<V>>> batch) {
+      if (!store.putAll(batch)) {
+        return false;
+      }
+      for (Map.Entry<K, ValueHolder<V>> e : batch) {
+        pending.remove(e.getKey(), e.getValue());
+      }
+      batch.clear();
+      return true;
+    }
+
+    @Override
+    public String toString() {
+      return "Write " + pending.size() + " entries to " + store;
+    }
+  }
+
   private static class KeyType<K> {
     String columnType() {
       return "OTHER";
@@ -285,8 +432,11 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
     }
 
     @SuppressWarnings("unchecked")
-    static <K> KeyType<K> create(TypeLiteral<K> type) {
-      if (type.getRawType() == String.class) {
+    static <K> KeyType<K> create(TypeLiteral<K> type,
+        @Nullable CacheSerializer<K> serializer) {
+      if (serializer != null) {
+        return new SerializedKeyType<K>(serializer);
+      } else if (type.getRawType() == String.class) {
         return (KeyType<K>) STRING;
       }
       return (KeyType<K>) OTHER;
@@ -319,9 +469,177 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
     };
   }
 
-  static class SqlStore<K, V> {
+  private static class SerializedKeyType<K> extends KeyType<K> {
+    private final CacheSerializer<K> serializer;
+
+    SerializedKeyType(CacheSerializer<K> serializer) {
+      this.serializer = serializer;
+    }
+
+    @Override
+    String columnType() {
+      return "VARBINARY(4096)";
+    }
+
+    @Override
+    K get(ResultSet rs, int col) throws SQLException {
+      return decode(serializer, rs.getBytes(col));
+    }
+
+    @Override
+    void set(PreparedStatement ps, int col, K value) throws SQLException {
+      ps.setBytes(col, serializer.serialize(value));
+    }
+
+    @Override
+    Funnel<K> funnel() {
+      return new Funnel<K>() {
+        @Override
+        public void funnel(K from, PrimitiveSink into) {
+          into.putBytes(serializer.serialize(from));
+        }
+      };
+    }
+  }
+
+  private static class ValueType<V> {
+    String columnType() {
+      return "OTHER";
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(ResultSet rs, int col) throws SQLException {
+      return (V) rs.getObject(col);
+    }
+
+    void set(PreparedStatement ps, int col, V value) throws SQLException {
+      ps.setObject(col, value);
+    }
+
+    static <V> ValueType<V> create(@Nullable CacheSerializer<V> serializer) {
+      if (serializer != null) {
+        return new SerializedValueType<V>(serializer);
+      }
+      return new ValueType<V>();
+    }
+  }
+
+  /**
+   * Stores values using a {@link CacheSerializer}.
+   * <p>
+   * Values are prefixed by one byte describing the encoding. Large values
+   * are compressed if doing so makes them smaller.
+   */
+  private static class SerializedValueType<V> extends ValueType<V> {
+    private static final int RAW = 0;
+    private static final int DEFLATED = 1;
+    private static final int COMPRESS_THRESHOLD = 4096;
+
+    private final CacheSerializer<V> serializer;
+
+    SerializedValueType(CacheSerializer<V> serializer) {
+      this.serializer = serializer;
+    }
+
+    @Override
+    String columnType() {
+      return "VARBINARY";
+    }
+
+    @Override
+    V get(ResultSet rs, int col) throws SQLException {
+      byte[] raw = rs.getBytes(col);
+      if (raw == null || raw.length == 0) {
+        throw new SQLException("Empty value");
+      }
+
+      byte[] data;
+      switch (raw[0]) {
+        case RAW:
+          data = new byte[raw.length - 1];
+          System.arraycopy(raw, 1, data, 0, data.length);
+          break;
+        case DEFLATED:
+          data = inflate(raw);
+          break;
+        default:
+          throw new SQLException("Unknown value encoding " + raw[0]);
+      }
+      return decode(serializer, data);
+    }
+
+    @Override
+    void set(PreparedStatement ps, int col, V value) throws SQLException {
+      byte[] data = serializer.serialize(value);
+      byte[] out = null;
+      if (COMPRESS_THRESHOLD <= data.length) {
+        out = deflate(data);
+      }
+      if (out == null) {
+        out = new byte[1 + data.length];
+        out[0] = RAW;
+        System.arraycopy(data, 0, out, 1, data.length);
+      }
+      ps.setBytes(col, out);
+    }
+
+    /** @return compressed data with header; null if not smaller. */
+    private static byte[] deflate(byte[] data) {
+      Deflater def = new Deflater(Deflater.BEST_SPEED);
+      try {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(data.length / 2);
+        buf.write(DEFLATED);
+        def.setInput(data);
+        def.finish();
+        byte[] tmp = new byte[8192];
+        while (!def.finished()) {
+          int n = def.deflate(tmp);
+          buf.write(tmp, 0, n);
+          if (data.length <= buf.size()) {
+            return null;
+          }
+        }
+        return buf.toByteArray();
+      } finally {
+        def.end();
+      }
+    }
+
+    private static byte[] inflate(byte[] raw) throws SQLException {
+      Inflater inf = new Inflater();
+      try {
+        inf.setInput(raw, 1, raw.length - 1);
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(raw.length * 3);
+        byte[] tmp = new byte[8192];
+        while (!inf.finished()) {
+          int n = inf.inflate(tmp);
+          if (n == 0 && (inf.needsInput() || inf.needsDictionary())) {
+            throw new SQLException("Truncated compressed value");
+          }
+          buf.write(tmp, 0, n);
+        }
+        return buf.toByteArray();
+      } catch (DataFormatException e) {
+        throw new SQLException("Corrupt compressed value", e);
+      } finally {
+        inf.end();
+      }
+    }
+  }
+
+  private static <T> T decode(CacheSerializer<T> serializer, byte[] data)
+      throws SQLException {
+    try {
+      return serializer.deserialize(data);
+    } catch (IllegalArgumentException e) {
+      throw new SQLException("Cannot decode cache entry", e);
+    }
+  }
+
+  static class SqlStore<K, V> implements DiskStore<K, V> {
     private final String url;
     private final KeyType<K> keyType;
+    private final ValueType<V> valueType;
     private final long maxSize;
     private final BlockingQueue<SqlHandle> handles;
     private final AtomicLong hitCount = new AtomicLong();
@@ -329,9 +647,13 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
     private volatile BloomFilter<K> bloomFilter;
     private int estimatedSize;
 
-    SqlStore(String jdbcUrl, TypeLiteral<K> keyType, long maxSize) {
+    SqlStore(String jdbcUrl, TypeLiteral<K> keyType,
+        @Nullable CacheSerializer<K> keySerializer,
+        @Nullable CacheSerializer<V> valueSerializer,
+        long maxSize) {
       this.url = jdbcUrl;
-      this.keyType = KeyType.create(keyType);
+      this.keyType = KeyType.create(keyType, keySerializer);
+      this.valueType = ValueType.create(valueSerializer);
       this.maxSize = maxSize;
 
       int cores = Runtime.getRuntime().availableProcessors();
@@ -339,20 +661,23 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
       this.handles = new ArrayBlockingQueue<SqlHandle>(keep);
     }
 
-    synchronized void open() {
+    @Override
+    public synchronized void open() {
       if (bloomFilter == null) {
         bloomFilter = buildBloomFilter();
       }
     }
 
-    void close() {
+    @Override
+    public void close() {
       SqlHandle h;
       while ((h = handles.poll()) != null) {
         h.close();
       }
     }
 
-    boolean mightContain(K key) {
+    @Override
+    public boolean mightContain(K key) {
       BloomFilter<K> b = bloomFilter;
       if (b == null) {
         synchronized (this) {
@@ -404,7 +729,8 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
       }
     }
 
-    ValueHolder<V> getIfPresent(K key) {
+    @Override
+    public ValueHolder<V> getIfPresent(K key) {
       SqlHandle c = null;
       try {
         c = acquire();
@@ -419,8 +745,7 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
             return null;
           }
 
-          @SuppressWarnings("unchecked")
-          V val = (V) r.getObject(1);
+          V val = valueType.get(r, 1);
           ValueHolder<V> h = new ValueHolder<V>(val);
           h.clean = true;
           hitCount.incrementAndGet();
@@ -452,14 +777,20 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
       }
     }
 
-    void put(K key, ValueHolder<V> holder) {
-      if (holder.clean) {
-        return;
+    /** Store or delete several entries in one transaction. */
+    @Override
+    public boolean putAll(List<Map.Entry<K, ValueHolder<V>>> entries) {
+      if (entries.isEmpty()) {
+        return true;
       }
 
       BloomFilter<K> b = bloomFilter;
       if (b != null) {
-        b.put(key);
+        for (Map.Entry<K, ValueHolder<V>> e : entries) {
+          if (e.getValue().value != null) {
+            b.put(e.getKey());
+          }
+        }
         bloomFilter = b;
       }
 
@@ -469,19 +800,56 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
         if (c.put == null) {
           c.put = c.conn.prepareStatement("MERGE INTO data VALUES(?,?,?,?)");
         }
+        if (c.invalidate == null) {
+          c.invalidate = c.conn.prepareStatement("DELETE FROM data WHERE k=?");
+        }
+
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        int puts = 0;
+        int deletes = 0;
+        c.conn.setAutoCommit(false);
         try {
-          keyType.set(c.put, 1, key);
-          c.put.setObject(2, holder.value);
-          c.put.setTimestamp(3, new Timestamp(holder.created));
-          c.put.setTimestamp(4, new Timestamp(System.currentTimeMillis()));
-          c.put.executeUpdate();
-          holder.clean = true;
+          for (Map.Entry<K, ValueHolder<V>> e : entries) {
+            ValueHolder<V> h = e.getValue();
+            if (h.value == null) {
+              keyType.set(c.invalidate, 1, e.getKey());
+              c.invalidate.addBatch();
+              deletes++;
+            } else if (!h.clean) {
+              keyType.set(c.put, 1, e.getKey());
+              valueType.set(c.put, 2, h.value);
+              c.put.setTimestamp(3, new Timestamp(h.created));
+              c.put.setTimestamp(4, now);
+              c.put.addBatch();
+              puts++;
+            }
+          }
+          if (0 < deletes) {
+            c.invalidate.executeBatch();
+          }
+          if (0 < puts) {
+            c.put.executeBatch();
+          }
+          c.conn.commit();
+        } catch (SQLException e) {
+          c.conn.rollback();
+          throw e;
         } finally {
-          c.put.clearParameters();
+          c.put.clearBatch();
+          c.invalidate.clearBatch();
+          c.conn.setAutoCommit(true);
         }
+
+        for (Map.Entry<K, ValueHolder<V>> e : entries) {
+          if (e.getValue().value != null) {
+            e.getValue().clean = true;
+          }
+        }
+        return true;
       } catch (SQLException e) {
         log.warn("Cannot put into cache " + url, e);
         c = close(c);
+        return false;
       } finally {
         release(c);
       }
@@ -512,7 +880,8 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
       }
     }
 
-    void invalidateAll() {
+    @Override
+    public void invalidateAll() {
       SqlHandle c = null;
       try {
         c = acquire();
@@ -531,7 +900,8 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
       }
     }
 
-    void prune(Cache<K, ?> mem) {
+    @Override
+    public void prune(Cache<K, ?> mem) {
       SqlHandle c = null;
       try {
         c = acquire();
@@ -579,7 +949,8 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
       }
     }
 
-    DiskStats diskStats() {
+    @Override
+    public DiskStats diskStats() {
       DiskStats d = new DiskStats();
       d.hitCount = hitCount.get();
       d.missCount = missCount.get();
@@ -612,9 +983,14 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
       return d;
     }
 
+    @Override
+    public String toString() {
+      return url;
+    }
+
     private SqlHandle acquire() throws SQLException {
       SqlHandle h = handles.poll();
-      return h != null ? h : new SqlHandle(url, keyType);
+      return h != null ? h : new SqlHandle(url, keyType, valueType);
     }
 
     private void release(SqlHandle h) {
@@ -644,14 +1020,15 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
     PreparedStatement touch;
     PreparedStatement invalidate;
 
-    SqlHandle(String url, KeyType<?> type) throws SQLException {
+    SqlHandle(String url, KeyType<?> type, ValueType<?> valueType)
+        throws SQLException {
       this.url = url;
       this.conn = org.h2.Driver.load().connect(url, null);
       Statement stmt = conn.createStatement();
       try {
         stmt.execute("CREATE TABLE IF NOT EXISTS data"
           + "(k " + type.columnType() + " NOT NULL PRIMARY KEY HASH"
-          + ",v OTHER NOT NULL"
+          + ",v " + valueType.columnType() + " NOT NULL"
           + ",created TIMESTAMP NOT NULL"
           + ",accessed TIMESTAMP NOT NULL"
           + ")");
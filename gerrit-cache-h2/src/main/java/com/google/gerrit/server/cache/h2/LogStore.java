@@ -0,0 +1,697 @@
+// Copyright 2012 Google Inc. All Rights Reserved.
+
+package com.google.gerrit.server.cache.h2;
+
+import com.google.common.cache.Cache;
+import com.google.common.collect.Lists;
+import com.google.gerrit.server.cache.CacheSerializer;
+import com.google.gerrit.server.cache.h2.H2CacheImpl.DiskStats;
+import com.google.gerrit.server.cache.h2.H2CacheImpl.ValueHolder;
+import com.google.inject.TypeLiteral;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.storage.file.LockFile;
+import org.eclipse.jgit.util.FS;
+import org.eclipse.jgit.util.IO;
+import org.eclipse.jgit.util.RawParseUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nullable;
+
+/**
+ * Disk store made of append-only, memory-mapped segment files.
+ * <p>
+ * Segments are preallocated files mapped into memory; new records are only
+ * ever appended to the last one. An in-memory index locates the most recent
+ * record of every key, so a read is a hash lookup followed by decoding the
+ * value straight out of the mapping, without taking any lock. Deletions
+ * append a small record so they survive a restart.
+ * <p>
+ * Access times are only kept in memory, and start out as the creation time
+ * of each entry when the store is opened. {@link #prune(Cache)} removes the
+ * least recently accessed entries until the live data fits within the size
+ * limit, then rewrites the segments if they hold mostly dead records.
+ * <p>
+ * Segments are only dropped as a whole, by atomically replacing the
+ * {@code base} file with the number of the first segment still in use.
+ * Older segments left behind by a crash are ignored and removed on open, so
+ * their records cannot reappear.
+ */
+class LogStore<K, V> implements DiskStore<K, V> {
+  private static final Logger log = LoggerFactory.getLogger(LogStore.class);
+
+  private static final int SEGMENT_SIZE = 16 << 20;
+  private static final String SUFFIX = ".seg";
+  private static final String BASE = "base";
+
+  private static final byte PUT = 1;
+  private static final byte DELETE = 2;
+
+  // Record: length, type, created, key length, key, value, CRC-32.
+  // The length includes every field, the CRC covers type to value.
+  private static final int HEADER = 4 + 1 + 8 + 4;
+  private static final int TRAILER = 4;
+
+  private final File dir;
+  private final Codec<K> keyCodec;
+  private final Codec<V> valueCodec;
+  private final long maxSize;
+  private final ConcurrentMap<K, Location> index;
+  private final AtomicLong liveBytes = new AtomicLong();
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+
+  // All segments, oldest first. The last one is appended to.
+  private final List<Segment> segments = new ArrayList<Segment>();
+  private int nextSegment;
+  private volatile boolean opened;
+
+  LogStore(File dir, TypeLiteral<K> keyType,
+      @Nullable CacheSerializer<K> keySerializer,
+      @Nullable CacheSerializer<V> valueSerializer,
+      long maxSize) {
+    this.dir = dir;
+    this.keyCodec = Codec.create(keyType.getRawType(), keySerializer);
+    this.valueCodec = Codec.create(null, valueSerializer);
+    this.maxSize = maxSize;
+    this.index = new ConcurrentHashMap<K, Location>();
+  }
+
+  @Override
+  public synchronized void open() {
+    if (opened) {
+      return;
+    }
+    opened = true;
+
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      log.warn("Cannot create disk cache " + dir);
+      return;
+    }
+
+    // Only this process writes the store; a lock left by a crash is stale.
+    File lock = new File(dir, BASE + ".lock");
+    if (lock.exists() && !lock.delete()) {
+      log.warn("Cannot delete " + lock);
+    }
+    int base = readBase();
+    nextSegment = base;
+
+    File[] files = dir.listFiles();
+    List<Integer> ids = new ArrayList<Integer>();
+    if (files != null) {
+      for (File f : files) {
+        String n = f.getName();
+        if (n.endsWith(SUFFIX)) {
+          try {
+            ids.add(Integer.parseInt(n.substring(0, n.length() - SUFFIX.length())));
+          } catch (NumberFormatException e) {
+            log.warn("Ignoring unknown file " + f);
+          }
+        }
+      }
+    }
+    Collections.sort(ids);
+
+    for (int id : ids) {
+      // Never reuse the number of an existing file, even an unreadable one.
+      nextSegment = Math.max(nextSegment, id + 1);
+      if (id < base) {
+        // Dropped by a compaction or invalidation interrupted before the
+        // file was removed.
+        if (!segmentFile(id).delete()) {
+          log.warn("Cannot delete " + segmentFile(id));
+        }
+        continue;
+      }
+      try {
+        Segment seg = Segment.open(segmentFile(id), id);
+        scan(seg);
+        segments.add(seg);
+      } catch (IOException e) {
+        log.warn("Cannot read disk cache segment " + segmentFile(id), e);
+      }
+    }
+  }
+
+  private void ensureOpen() {
+    if (!opened) {
+      open();
+    }
+  }
+
+  /** Load the index from a segment, stopping at the first bad record. */
+  private void scan(Segment seg) {
+    ByteBuffer b = seg.buf.duplicate();
+    int pos = 0;
+    while (pos + HEADER + TRAILER <= seg.capacity) {
+      int len = b.getInt(pos);
+      if (len < HEADER + TRAILER || seg.capacity < pos + len
+          || !checkCrc(b, pos, len)) {
+        break;
+      }
+
+      byte type = b.get(pos + 4);
+      long created = b.getLong(pos + 5);
+      int keyLen = b.getInt(pos + 13);
+      int keyStart = pos + HEADER;
+      if (keyLen < 0 || len - HEADER - TRAILER < keyLen) {
+        break;
+      }
+
+      K key;
+      try {
+        key = keyCodec.decode(slice(b, keyStart, keyLen));
+      } catch (Exception e) {
+        log.warn("Ignoring unreadable key in " + seg.file, e);
+        pos += len;
+        continue;
+      }
+
+      if (type == PUT) {
+        Location loc = new Location(seg, len,
+            keyStart + keyLen, len - HEADER - keyLen - TRAILER, created);
+        setLocation(key, loc);
+      } else {
+        removeLocation(key);
+      }
+      pos += len;
+    }
+    seg.end = pos;
+  }
+
+  @Override
+  public void close() {
+    synchronized (this) {
+      for (Segment seg : segments) {
+        seg.buf.force();
+      }
+    }
+  }
+
+  @Override
+  public boolean mightContain(K key) {
+    ensureOpen();
+    return index.containsKey(key);
+  }
+
+  @Override
+  public ValueHolder<V> getIfPresent(K key) {
+    ensureOpen();
+    Location loc = index.get(key);
+    if (loc == null) {
+      missCount.incrementAndGet();
+      return null;
+    }
+
+    V val;
+    try {
+      val = valueCodec.decode(slice(loc.seg.buf, loc.valueStart, loc.valueLen));
+    } catch (Exception e) {
+      log.warn("Cannot read " + key + " from " + loc.seg.file, e);
+      synchronized (this) {
+        if (index.get(key) == loc) {
+          removeLocation(key);
+        }
+      }
+      missCount.incrementAndGet();
+      return null;
+    }
+
+    loc.accessed = System.currentTimeMillis();
+    ValueHolder<V> h = new ValueHolder<V>(val);
+    h.created = loc.created;
+    h.clean = true;
+    hitCount.incrementAndGet();
+    return h;
+  }
+
+  @Override
+  public synchronized boolean putAll(
+      List<Map.Entry<K, ValueHolder<V>>> entries) {
+    ensureOpen();
+    boolean ok = true;
+    for (Map.Entry<K, ValueHolder<V>> e : entries) {
+      ValueHolder<V> h = e.getValue();
+      try {
+        if (h.value == null) {
+          delete(e.getKey());
+        } else {
+          byte[] key = keyCodec.encode(e.getKey());
+          byte[] val = valueCodec.encode(h.value);
+          setLocation(e.getKey(), append(PUT, h.created, key, val));
+          h.clean = true;
+        }
+      } catch (IOException err) {
+        log.warn("Cannot put into cache " + dir, err);
+        ok = false;
+      }
+    }
+    return ok;
+  }
+
+  private void delete(K key) throws IOException {
+    if (removeLocation(key) != null) {
+      append(DELETE, System.currentTimeMillis(), keyCodec.encode(key),
+          new byte[0]);
+    }
+  }
+
+  @Override
+  public synchronized void invalidateAll() {
+    ensureOpen();
+    index.clear();
+    liveBytes.set(0);
+    try {
+      writeBase(nextSegment);
+    } catch (IOException err) {
+      log.warn("Cannot invalidate cache " + dir, err);
+    }
+    for (Segment seg : segments) {
+      seg.delete();
+    }
+    segments.clear();
+  }
+
+  @Override
+  public void prune(Cache<K, ?> mem) {
+    ensureOpen();
+    if (maxSize < liveBytes.get()) {
+      evict(mem);
+    }
+
+    long used = 0;
+    synchronized (this) {
+      for (Segment seg : segments) {
+        used += seg.end;
+      }
+    }
+    long live = liveBytes.get();
+    if (maxSize < used || (SEGMENT_SIZE < used && 2 * live < used)) {
+      compact();
+    }
+  }
+
+  private void evict(Cache<K, ?> mem) {
+    List<Map.Entry<K, Location>> all = Lists.newArrayList(index.entrySet());
+    Collections.sort(all, new Comparator<Map.Entry<K, Location>>() {
+      @Override
+      public int compare(Map.Entry<K, Location> a, Map.Entry<K, Location> b) {
+        long x = a.getValue().accessed;
+        long y = b.getValue().accessed;
+        return x < y ? -1 : (x == y ? 0 : 1);
+      }
+    });
+
+    long now = System.currentTimeMillis();
+    for (Map.Entry<K, Location> e : all) {
+      if (liveBytes.get() <= maxSize) {
+        break;
+      }
+      if (mem.getIfPresent(e.getKey()) != null) {
+        e.getValue().accessed = now;
+        continue;
+      }
+      synchronized (this) {
+        if (index.get(e.getKey()) == e.getValue()) {
+          try {
+            delete(e.getKey());
+          } catch (IOException err) {
+            log.warn("Cannot prune cache " + dir, err);
+            return;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Copy all live records into new segments and delete the old ones.
+   * <p>
+   * The old segments are dropped together by moving the base past them,
+   * so deletion records in them can be discarded without older values of
+   * the same keys reappearing. If the base cannot be written the old
+   * segments are kept, and the copies only duplicate their live records.
+   */
+  void compact() {
+    List<Segment> old;
+    int first;
+    synchronized (this) {
+      old = new ArrayList<Segment>(segments);
+      try {
+        first = startSegment(SEGMENT_SIZE).id;
+      } catch (IOException err) {
+        log.warn("Cannot compact cache " + dir, err);
+        return;
+      }
+    }
+
+    for (Map.Entry<K, Location> e : index.entrySet()) {
+      Location loc = e.getValue();
+      if (!old.contains(loc.seg)) {
+        continue;
+      }
+
+      synchronized (this) {
+        if (index.get(e.getKey()) != loc) {
+          continue;
+        }
+        try {
+          byte[] key = keyCodec.encode(e.getKey());
+          byte[] val = new byte[loc.valueLen];
+          slice(loc.seg.buf, loc.valueStart, loc.valueLen).get(val);
+          Location moved = append(PUT, loc.created, key, val);
+          moved.accessed = loc.accessed;
+          setLocation(e.getKey(), moved);
+        } catch (IOException err) {
+          log.warn("Cannot compact cache " + dir, err);
+          return;
+        }
+      }
+    }
+
+    synchronized (this) {
+      try {
+        for (Segment seg : segments) {
+          if (!old.contains(seg)) {
+            seg.buf.force();
+          }
+        }
+        writeBase(first);
+      } catch (IOException err) {
+        log.warn("Cannot compact cache " + dir, err);
+        return;
+      }
+      for (Segment seg : old) {
+        segments.remove(seg);
+        seg.delete();
+      }
+    }
+  }
+
+  /** @return number of the first segment in use; 0 if never recorded. */
+  private int readBase() {
+    File f = new File(dir, BASE);
+    if (!f.exists()) {
+      return 0;
+    }
+    try {
+      byte[] raw = IO.readFully(f);
+      return Integer.parseInt(RawParseUtils.decode(raw).trim());
+    } catch (IOException e) {
+      log.warn("Cannot read " + f, e);
+    } catch (NumberFormatException e) {
+      log.warn("Invalid " + f, e);
+    }
+    return 0;
+  }
+
+  // Callers must hold the lock on this store.
+  private void writeBase(int id) throws IOException {
+    File f = new File(dir, BASE);
+    LockFile lf = new LockFile(f, FS.DETECTED);
+    if (!lf.lock()) {
+      throw new IOException("Cannot lock " + f);
+    }
+    try {
+      lf.setFSync(true);
+      lf.write(Constants.encode(id + "\n"));
+      if (!lf.commit()) {
+        throw new IOException("Cannot commit write to " + f);
+      }
+    } finally {
+      lf.unlock();
+    }
+  }
+
+  @Override
+  public DiskStats diskStats() {
+    ensureOpen();
+    DiskStats d = new DiskStats();
+    d.size = index.size();
+    d.space = liveBytes.get();
+    d.hitCount = hitCount.get();
+    d.missCount = missCount.get();
+    return d;
+  }
+
+  @Override
+  public String toString() {
+    return dir.getPath();
+  }
+
+  // Callers must hold the lock on this store.
+  private Location append(byte type, long created, byte[] key, byte[] val)
+      throws IOException {
+    int len = HEADER + key.length + val.length + TRAILER;
+    Segment seg = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+    if (seg == null || seg.capacity - seg.end < len) {
+      seg = startSegment(Math.max(SEGMENT_SIZE, len));
+    }
+
+    ByteBuffer rec = ByteBuffer.allocate(len);
+    rec.putInt(len);
+    rec.put(type);
+    rec.putLong(created);
+    rec.putInt(key.length);
+    rec.put(key);
+    rec.put(val);
+    CRC32 crc = new CRC32();
+    crc.update(rec.array(), 4, len - 4 - TRAILER);
+    rec.putInt((int) crc.getValue());
+    rec.flip();
+
+    int pos = seg.end;
+    ByteBuffer w = seg.buf.duplicate();
+    w.position(pos);
+    w.put(rec);
+    seg.end = pos + len;
+
+    int valueStart = pos + HEADER + key.length;
+    return new Location(seg, len, valueStart, val.length, created);
+  }
+
+  // Callers must hold the lock on this store.
+  private Segment startSegment(int size) throws IOException {
+    int id = nextSegment++;
+    Segment seg = Segment.create(segmentFile(id), id, size);
+    segments.add(seg);
+    return seg;
+  }
+
+  private void setLocation(K key, Location loc) {
+    Location old = index.put(key, loc);
+    liveBytes.addAndGet(loc.length - (old != null ? old.length : 0));
+  }
+
+  private Location removeLocation(K key) {
+    Location old = index.remove(key);
+    if (old != null) {
+      liveBytes.addAndGet(-old.length);
+    }
+    return old;
+  }
+
+  private File segmentFile(int id) {
+    return new File(dir, String.format("%08d%s", id, SUFFIX));
+  }
+
+  private static boolean checkCrc(ByteBuffer b, int pos, int len) {
+    byte[] data = new byte[len - 4 - TRAILER];
+    slice(b, pos + 4, data.length).get(data);
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    return b.getInt(pos + len - TRAILER) == (int) crc.getValue();
+  }
+
+  private static ByteBuffer slice(ByteBuffer b, int pos, int len) {
+    ByteBuffer r = b.duplicate();
+    r.limit(pos + len);
+    r.position(pos);
+    return r;
+  }
+
+  private static class Location {
+    final Segment seg;
+    final int length;
+    final int valueStart;
+    final int valueLen;
+    final long created;
+    volatile long accessed;
+
+    Location(Segment seg, int length, int valueStart,
+        int valueLen, long created) {
+      this.seg = seg;
+      this.length = length;
+      this.valueStart = valueStart;
+      this.valueLen = valueLen;
+      this.created = created;
+      this.accessed = created;
+    }
+  }
+
+  private static class Segment {
+    static Segment create(File file, int id, int size) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        // Discard anything left in the file, so no stale record follows
+        // the ones appended to the new segment.
+        raf.setLength(0);
+        raf.setLength(size);
+        return new Segment(file, id, map(raf, size));
+      } finally {
+        raf.close();
+      }
+    }
+
+    static Segment open(File file, int id) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        return new Segment(file, id, map(raf, (int) raf.length()));
+      } finally {
+        raf.close();
+      }
+    }
+
+    private static MappedByteBuffer map(RandomAccessFile raf, int size)
+        throws IOException {
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    final File file;
+    final int id;
+    final MappedByteBuffer buf;
+    final int capacity;
+    int end;
+
+    private Segment(File file, int id, MappedByteBuffer buf) {
+      this.file = file;
+      this.id = id;
+      this.buf = buf;
+      this.capacity = buf.capacity();
+    }
+
+    void delete() {
+      // Readers may still be decoding from the mapping, which remains
+      // valid after the file is removed.
+      if (!file.delete() && file.exists()) {
+        log.warn("Cannot delete " + file);
+      }
+    }
+  }
+
+  /** Converts keys or values to bytes. */
+  private abstract static class Codec<T> {
+    abstract byte[] encode(T obj) throws IOException;
+
+    abstract T decode(ByteBuffer buf) throws IOException;
+
+    @SuppressWarnings("unchecked")
+    static <T> Codec<T> create(@Nullable Class<?> type,
+        @Nullable final CacheSerializer<T> serializer) {
+      if (serializer != null) {
+        return new Codec<T>() {
+          @Override
+          byte[] encode(T obj) {
+            return serializer.serialize(obj);
+          }
+
+          @Override
+          T decode(ByteBuffer buf) {
+            byte[] data = new byte[buf.remaining()];
+            buf.get(data);
+            return serializer.deserialize(data);
+          }
+        };
+      } else if (type == String.class) {
+        return (Codec<T>) STRING;
+      }
+      return new Codec<T>() {
+        @Override
+        byte[] encode(T obj) throws IOException {
+          ByteArrayOutputStream buf = new ByteArrayOutputStream();
+          ObjectOutputStream out = new ObjectOutputStream(buf);
+          out.writeObject(obj);
+          out.close();
+          return buf.toByteArray();
+        }
+
+        @Override
+        T decode(ByteBuffer buf) throws IOException {
+          ObjectInputStream in =
+              new ObjectInputStream(new ByteBufferInputStream(buf));
+          try {
+            return (T) in.readObject();
+          } catch (ClassNotFoundException e) {
+            throw new IOException("Cannot read " + e.getMessage());
+          } finally {
+            in.close();
+          }
+        }
+      };
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Codec<String> STRING = new Codec<String>() {
+      @Override
+      byte[] encode(String obj) {
+        return obj.getBytes(UTF_8);
+      }
+
+      @Override
+      String decode(ByteBuffer buf) {
+        return UTF_8.decode(buf).toString();
+      }
+    };
+  }
+
+  private static class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buf;
+
+    ByteBufferInputStream(ByteBuffer buf) {
+      this.buf = buf;
+    }
+
+    @Override
+    public int read() {
+      return buf.hasRemaining() ? buf.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (!buf.hasRemaining()) {
+        return -1;
+      }
+      int n = Math.min(len, buf.remaining());
+      buf.get(b, off, n);
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return buf.remaining();
+    }
+  }
+}
@@ -0,0 +1,206 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.cache.h2;
+
+import com.google.common.collect.Maps;
+import com.google.gerrit.server.cache.h2.H2CacheImpl.ValueHolder;
+import com.google.inject.TypeLiteral;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+public class LogStoreTest extends TestCase {
+  private File dir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    dir = File.createTempFile("gerrit_", "_cache");
+    assertTrue(dir.delete());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    delete(dir);
+    super.tearDown();
+  }
+
+  public void testEntriesSurviveReopen() {
+    LogStore<String, String> store = open();
+    put(store, "a", "1");
+    put(store, "b", "2");
+    put(store, "a", "3");
+    store.close();
+
+    store = open();
+    assertEquals("3", get(store, "a"));
+    assertEquals("2", get(store, "b"));
+    assertNull(get(store, "c"));
+  }
+
+  public void testDeleteSurvivesReopen() {
+    LogStore<String, String> store = open();
+    put(store, "a", "1");
+    put(store, "b", "2");
+    put(store, "a", null);
+    store.close();
+
+    store = open();
+    assertNull(get(store, "a"));
+    assertFalse(store.mightContain("a"));
+    assertEquals("2", get(store, "b"));
+  }
+
+  public void testCompactionKeepsOnlyLiveEntries() {
+    LogStore<String, String> store = open();
+    put(store, "a", "1");
+    put(store, "b", "2");
+    put(store, "a", null);
+    put(store, "b", "3");
+    List<String> before = segments();
+
+    store.compact();
+    List<String> after = segments();
+    assertEquals(1, after.size());
+    assertFalse(before.contains(after.get(0)));
+    assertNull(get(store, "a"));
+    assertEquals("3", get(store, "b"));
+    store.close();
+
+    store = open();
+    assertNull(get(store, "a"));
+    assertEquals("3", get(store, "b"));
+  }
+
+  public void testInterruptedCompactionDoesNotResurrectDeletes()
+      throws IOException {
+    LogStore<String, String> store = open();
+    put(store, "a", "1");
+    store.close();
+    List<String> old = segments();
+    File saved = new File(dir.getParentFile(), dir.getName() + ".old");
+    copy(new File(dir, old.get(0)), saved);
+
+    put(store, "a", null);
+    put(store, "b", "2");
+    store.compact();
+    store.close();
+
+    // As if the process died while deleting old segments, leaving one that
+    // holds the value of "a" without the tombstone that followed it.
+    copy(saved, new File(dir, old.get(0)));
+    assertTrue(saved.delete());
+
+    store = open();
+    assertNull(get(store, "a"));
+    assertEquals("2", get(store, "b"));
+    assertFalse(segments().contains(old.get(0)));
+  }
+
+  public void testInvalidateAllIsNotUndoneByLeftoverSegment()
+      throws IOException {
+    LogStore<String, String> store = open();
+    put(store, "a", "1");
+    store.close();
+    List<String> old = segments();
+    File saved = new File(dir.getParentFile(), dir.getName() + ".old");
+    copy(new File(dir, old.get(0)), saved);
+
+    store.invalidateAll();
+    put(store, "b", "2");
+    store.close();
+
+    copy(saved, new File(dir, old.get(0)));
+    assertTrue(saved.delete());
+
+    store = open();
+    assertNull(get(store, "a"));
+    assertEquals("2", get(store, "b"));
+  }
+
+  private LogStore<String, String> open() {
+    LogStore<String, String> store = new LogStore<String, String>(dir,
+        TypeLiteral.get(String.class), null, null, 1 << 20);
+    store.open();
+    return store;
+  }
+
+  private static void put(LogStore<String, String> store, String key,
+      String value) {
+    ValueHolder<String> h = new ValueHolder<String>(value);
+    h.created = System.currentTimeMillis();
+    List<Map.Entry<String, ValueHolder<String>>> entries =
+        new ArrayList<Map.Entry<String, ValueHolder<String>>>();
+    entries.add(Maps.immutableEntry(key, h));
+    store.putAll(entries);
+  }
+
+  private static String get(LogStore<String, String> store, String key) {
+    ValueHolder<String> h = store.getIfPresent(key);
+    return h != null ? h.value : null;
+  }
+
+  private List<String> segments() {
+    List<String> r = new ArrayList<String>();
+    String[] names = dir.list();
+    if (names != null) {
+      for (String n : names) {
+        if (n.endsWith(".seg")) {
+          r.add(n);
+        }
+      }
+    }
+    Collections.sort(r);
+    return r;
+  }
+
+  private static void copy(File src, File dst) throws IOException {
+    InputStream in = new FileInputStream(src);
+    try {
+      OutputStream out = new FileOutputStream(dst);
+      try {
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+          out.write(buf, 0, n);
+        }
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void delete(File f) {
+    File[] children = f.listFiles();
+    if (children != null) {
+      for (File c : children) {
+        delete(c);
+      }
+    }
+    f.delete();
+  }
+}
@@ -0,0 +1,129 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.cache.h2;
+
+import com.google.common.cache.Cache;
+import com.google.gerrit.server.cache.h2.H2CacheImpl.DiskStats;
+import com.google.gerrit.server.cache.h2.H2CacheImpl.ValueHolder;
+import com.google.gerrit.server.cache.h2.H2CacheImpl.WriteBehind;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+public class WriteBehindTest extends TestCase {
+  private FailingStore store;
+  private WriteBehind<String, String> writer;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    store = new FailingStore();
+    writer = new WriteBehind<String, String>(new Executor() {
+      @Override
+      public void execute(Runnable task) {
+        // Flushed explicitly by each test.
+      }
+    }, store, 1024);
+  }
+
+  public void testFailedBatchStaysQueued() {
+    store.data.put("a", "1");
+    writer.invalidate("a");
+    writer.put("b", new ValueHolder<String>("2"));
+
+    store.failing = true;
+    assertFalse(writer.flush());
+    assertEquals(2, writer.size());
+    assertTrue(writer.isDeleted("a"));
+    assertEquals("2", writer.getIfPresent("b").value);
+    assertEquals("1", store.data.get("a"));
+
+    store.failing = false;
+    assertTrue(writer.flush());
+    assertEquals(0, writer.size());
+    assertFalse(store.data.containsKey("a"));
+    assertEquals("2", store.data.get("b"));
+  }
+
+  public void testNewerWriteIsKeptAfterFailure() {
+    writer.put("a", new ValueHolder<String>("1"));
+    store.failing = true;
+    assertFalse(writer.flush());
+
+    writer.invalidate("a");
+    store.failing = false;
+    assertTrue(writer.flush());
+    assertEquals(0, writer.size());
+    assertFalse(store.data.containsKey("a"));
+  }
+
+  /** Map backed store that rejects every write while {@link #failing}. */
+  private static class FailingStore implements DiskStore<String, String> {
+    final Map<String, String> data = new HashMap<String, String>();
+    boolean failing;
+
+    @Override
+    public boolean putAll(List<Map.Entry<String, ValueHolder<String>>> e) {
+      if (failing) {
+        return false;
+      }
+      for (Map.Entry<String, ValueHolder<String>> ent : e) {
+        if (ent.getValue().value != null) {
+          data.put(ent.getKey(), ent.getValue().value);
+        } else {
+          data.remove(ent.getKey());
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public void open() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public boolean mightContain(String key) {
+      return data.containsKey(key);
+    }
+
+    @Override
+    public ValueHolder<String> getIfPresent(String key) {
+      String v = data.get(key);
+      return v != null ? new ValueHolder<String>(v) : null;
+    }
+
+    @Override
+    public void invalidateAll() {
+      data.clear();
+    }
+
+    @Override
+    public void prune(Cache<String, ?> mem) {
+    }
+
+    @Override
+    public DiskStats diskStats() {
+      return new DiskStats();
+    }
+  }
+}
@@ -22,7 +22,9 @@ import com.google.gerrit.server.AccessPath;
 import com.google.gerrit.server.AnonymousUser;
 import com.google.gerrit.server.IdentifiedUser;
 import com.google.gerrit.server.cache.CacheModule;
+import com.google.gerrit.server.git.AdvertisedRefsCache;
 import com.google.gerrit.server.git.AsyncReceiveCommits;
+import com.google.gerrit.server.git.ChangeBranchCache;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.git.ReceiveCommits;
 import com.google.gerrit.server.git.TagCache;
@@ -198,11 +200,17 @@ public class GitOverHttpServlet extends GitServlet {
   static class UploadFilter implements Filter {
     private final Provider<ReviewDb> db;
     private final TagCache tagCache;
+    private final ChangeBranchCache changeBranchCache;
+    private final AdvertisedRefsCache advertisedRefsCache;
 
     @Inject
-    UploadFilter(Provider<ReviewDb> db, TagCache tagCache) {
+    UploadFilter(Provider<ReviewDb> db, TagCache tagCache,
+        ChangeBranchCache changeBranchCache,
+        AdvertisedRefsCache advertisedRefsCache) {
       this.db = db;
       this.tagCache = tagCache;
+      this.changeBranchCache = changeBranchCache;
+      this.advertisedRefsCache = advertisedRefsCache;
     }
 
     @Override
@@ -221,7 +229,8 @@ public class GitOverHttpServlet extends GitServlet {
       }
 
       if (!pc.allRefsAreVisible()) {
-        up.setAdvertiseRefsHook(new VisibleRefFilter(tagCache, repo, pc, db.get(), true));
+        up.setAdvertiseRefsHook(new VisibleRefFilter(tagCache, changeBranchCache,
+            advertisedRefsCache, repo, pc, db.get(), true));
       }
 
       next.doFilter(request, response);
@@ -29,6 +29,7 @@ public class GitWebConfig {
   private static final Logger log = LoggerFactory.getLogger(GitWebConfig.class);
 
   private final String url;
+  private final boolean builtin;
   private final File gitweb_cgi;
   private final File gitweb_css;
   private final File gitweb_js;
@@ -39,8 +40,18 @@ public class GitWebConfig {
   GitWebConfig(final SitePaths sitePaths, @GerritServerConfig final Config cfg) {
     final String cfgUrl = cfg.getString("gitweb", null, "url");
     final String cfgCgi = cfg.getString("gitweb", null, "cgi");
+    final String cfgType = cfg.getString("gitweb", null, "type");
+    builtin = cfg.getBoolean("gitweb", null, "builtin", false);
 
-    type = GitWebType.fromName(cfg.getString("gitweb", null, "type"));
+    if (builtin && cfgType != null && !cfgType.equalsIgnoreCase("gitweb")) {
+      // The built-in browser only understands gitweb style links.
+      //
+      log.warn("gitweb.builtin requires gitweb.type = gitweb, ignoring "
+          + cfgType);
+      type = GitWebType.fromName(null);
+    } else {
+      type = GitWebType.fromName(cfgType);
+    }
     if (type == null) {
       url = null;
       gitweb_cgi = null;
@@ -96,6 +107,17 @@ public class GitWebConfig {
       return;
     }
 
+    if (builtin) {
+      // Pages are rendered by Gerrit itself, no CGI or static files needed.
+      //
+      url = "gitweb";
+      gitweb_cgi = null;
+      gitweb_css = null;
+      gitweb_js = null;
+      git_logo_png = null;
+      return;
+    }
+
     if ((cfgUrl != null) && (cfgCgi == null || cfgCgi.isEmpty())) {
       // Use an externally managed gitweb instance, and not an internal one.
       //
@@ -185,6 +207,11 @@ public class GitWebConfig {
     return gitweb_cgi;
   }
 
+  /** @return true if repositories are browsed without {@code gitweb.cgi}. */
+  public boolean isBuiltin() {
+    return builtin;
+  }
+
   /** @return local path of the {@code gitweb.css} matching the CGI. */
   public File getGitwebCSS() {
     return gitweb_css;
@@ -23,6 +23,7 @@ import com.google.gerrit.httpd.auth.container.HttpAuthModule;
 import com.google.gerrit.httpd.auth.container.HttpsClientSslCertModule;
 import com.google.gerrit.httpd.auth.ldap.LdapAuthModule;
 import com.google.gerrit.httpd.gitweb.GitWebModule;
+import com.google.gerrit.httpd.gitweb.RepositoryBrowserModule;
 import com.google.gerrit.httpd.rpc.UiRpcModule;
 import com.google.gerrit.lifecycle.LifecycleModule;
 import com.google.gerrit.server.CmdLineParserModule;
@@ -121,7 +122,9 @@ public class WebModule extends FactoryModule {
     install(new GitOverHttpServlet.Module());
 
     bind(GitWebConfig.class).toInstance(gitWebConfig);
-    if (gitWebConfig.getGitwebCGI() != null) {
+    if (gitWebConfig.isBuiltin()) {
+      install(new RepositoryBrowserModule());
+    } else if (gitWebConfig.getGitwebCGI() != null) {
       install(new GitWebModule());
     }
 
@@ -0,0 +1,38 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.httpd.gitweb;
+
+import static com.google.gerrit.httpd.gitweb.RepositoryBrowserServlet.CACHE_NAME;
+
+import com.google.gerrit.httpd.gitweb.RepositoryBrowserServlet.Page;
+import com.google.gerrit.httpd.gitweb.RepositoryBrowserServlet.PageWeigher;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.inject.servlet.ServletModule;
+
+/** Serves {@code /gitweb} from {@link RepositoryBrowserServlet}. */
+public class RepositoryBrowserModule extends ServletModule {
+  @Override
+  protected void configureServlets() {
+    serve("/gitweb").with(RepositoryBrowserServlet.class);
+    install(new CacheModule() {
+      @Override
+      protected void configure() {
+        cache(CACHE_NAME, String.class, Page.class)
+          .maximumWeight(8 << 20)
+          .weigher(PageWeigher.class);
+      }
+    });
+  }
+}
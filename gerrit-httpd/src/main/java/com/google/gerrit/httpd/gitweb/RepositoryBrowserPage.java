@@ -0,0 +1,796 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.httpd.gitweb;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.gerrit.httpd.gitweb.RepositoryBrowserServlet.Page;
+import com.google.gerrit.reviewdb.client.Project;
+
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.DiffFormatter;
+import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.LargeObjectException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.eclipse.jgit.util.RawParseUtils;
+import org.eclipse.jgit.util.io.NullOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * One page of the built-in repository browser.
+ * <p>
+ * Revisions named by the request are resolved once, by {@link #getETag()},
+ * and the page is then rendered only from the objects they resolved to. Two
+ * requests with the same entity tag therefore always produce the same page.
+ */
+class RepositoryBrowserPage {
+  /** Changed whenever the rendering changes, to invalidate entity tags. */
+  private static final String VERSION = "1";
+
+  private static final Set<String> ACTIONS = ImmutableSet.of(
+      "summary", "shortlog", "log", "history",
+      "commit", "commitdiff", "tree", "blob", "blob_plain");
+
+  /** Commits listed on one page of a log. */
+  private static final int LOG_PAGE = 100;
+
+  /** Commits listed on the summary page. */
+  private static final int SUMMARY_LOG = 16;
+
+  /** Tags listed on the summary page. */
+  private static final int SUMMARY_TAGS = 50;
+
+  /** Largest blob shown inline in a page. */
+  private static final int MAX_BLOB = 1 << 20;
+
+  /** Largest blob sent by {@code blob_plain}. */
+  private static final int MAX_BLOB_PLAIN = 16 << 20;
+
+  /** Largest patch shown by {@code commitdiff}. */
+  private static final int MAX_DIFF = 1 << 20;
+
+  /** Thrown when the request names something that does not exist. */
+  @SuppressWarnings("serial")
+  static class NotFoundException extends Exception {
+  }
+
+  /**
+   * @param action value of the {@code a} parameter, may be null.
+   * @return true if the action can be rendered by this class.
+   */
+  static boolean isSupported(String action) {
+    return action == null || ACTIONS.contains(action);
+  }
+
+  private final Repository repo;
+  private final Project project;
+  private final Map<String, String> params;
+  private final String action;
+  private final RevWalk rw;
+
+  private List<Ref> heads;
+  private List<Ref> tags;
+  private RevCommit commit;
+  private ObjectId object;
+
+  private StringBuilder html;
+
+  RepositoryBrowserPage(Repository repo, Project project,
+      Map<String, String> params) {
+    this.repo = repo;
+    this.project = project;
+    this.params = params;
+    this.action = params.get("a") != null ? params.get("a") : "summary";
+    this.rw = new RevWalk(repo);
+  }
+
+  /**
+   * Resolve the revisions named by the request.
+   *
+   * @return entity tag of the page; the same tag is returned for as long as
+   *         the named revisions do not move.
+   * @throws NotFoundException a named revision or path does not exist.
+   */
+  String getETag() throws IOException, NotFoundException {
+    resolve();
+
+    MessageDigest md = Constants.newMessageDigest();
+    md.update(Constants.encode(VERSION));
+    md.update((byte) 0);
+    md.update(Constants.encode(project.getName()));
+    md.update((byte) 0);
+    md.update(Constants.encode(project.getDescription() != null
+        ? project.getDescription()
+        : ""));
+    md.update((byte) 0);
+    for (Map.Entry<String, String> e
+        : new TreeMap<String, String>(params).entrySet()) {
+      md.update(Constants.encode(e.getKey()));
+      md.update((byte) '=');
+      md.update(Constants.encode(e.getValue()));
+      md.update((byte) 0);
+    }
+
+    byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+    if (heads != null) {
+      for (Ref ref : heads) {
+        digest(md, ref, id);
+      }
+      for (Ref ref : tags) {
+        digest(md, ref, id);
+      }
+    }
+    if (commit != null) {
+      commit.copyRawTo(id, 0);
+      md.update(id);
+    }
+    if (object != null) {
+      object.copyRawTo(id, 0);
+      md.update(id);
+    }
+    return "\"" + ObjectId.fromRaw(md.digest()).name() + "\"";
+  }
+
+  private static void digest(MessageDigest md, Ref ref, byte[] id) {
+    md.update(Constants.encode(ref.getName()));
+    md.update((byte) 0);
+    if (ref.getObjectId() != null) {
+      ref.getObjectId().copyRawTo(id, 0);
+      md.update(id);
+    }
+  }
+
+  private void resolve() throws IOException, NotFoundException {
+    if ("summary".equals(action)) {
+      heads = sorted(repo.getRefDatabase().getRefs(Constants.R_HEADS));
+      tags = sorted(repo.getRefDatabase().getRefs(Constants.R_TAGS));
+      Collections.reverse(tags);
+      if (tags.size() > SUMMARY_TAGS) {
+        tags = tags.subList(0, SUMMARY_TAGS);
+      }
+      ObjectId head = repo.resolve(Constants.HEAD);
+      if (head != null) {
+        commit = parseCommit(head);
+      }
+
+    } else if ("tree".equals(action) && params.get("hb") == null) {
+      object = parseTree(repo.resolve(revision("h")));
+
+    } else if (("blob".equals(action) || "blob_plain".equals(action))
+        && params.get("hb") == null) {
+      object = repo.resolve(revision("h"));
+      if (object == null) {
+        throw new NotFoundException();
+      }
+
+    } else {
+      String rev = params.get("hb");
+      if (rev == null) {
+        rev = revision("h");
+      }
+      commit = parseCommit(repo.resolve(rev));
+
+      if ("history".equals(action) && path().isEmpty()) {
+        throw new NotFoundException();
+      } else if ("tree".equals(action)) {
+        lookup(path(), FileMode.TYPE_TREE);
+      } else if ("blob".equals(action) || "blob_plain".equals(action)) {
+        lookup(path(), FileMode.TYPE_FILE);
+      }
+    }
+  }
+
+  private String revision(String name) {
+    String rev = params.get(name);
+    return rev != null ? rev : Constants.HEAD;
+  }
+
+  private String path() {
+    String path = params.get("f");
+    if (path == null) {
+      return "";
+    }
+    while (path.startsWith("/")) {
+      path = path.substring(1);
+    }
+    while (path.endsWith("/")) {
+      path = path.substring(0, path.length() - 1);
+    }
+    return path;
+  }
+
+  private RevCommit parseCommit(ObjectId id) throws IOException,
+      NotFoundException {
+    if (id == null) {
+      throw new NotFoundException();
+    }
+    try {
+      return rw.parseCommit(id);
+    } catch (MissingObjectException e) {
+      throw new NotFoundException();
+    } catch (IncorrectObjectTypeException e) {
+      throw new NotFoundException();
+    }
+  }
+
+  private RevTree parseTree(ObjectId id) throws IOException,
+      NotFoundException {
+    if (id == null) {
+      throw new NotFoundException();
+    }
+    try {
+      return rw.parseTree(id);
+    } catch (MissingObjectException e) {
+      throw new NotFoundException();
+    } catch (IncorrectObjectTypeException e) {
+      throw new NotFoundException();
+    }
+  }
+
+  private void lookup(String path, int type) throws IOException,
+      NotFoundException {
+    if (path.isEmpty()) {
+      if (type != FileMode.TYPE_TREE) {
+        throw new NotFoundException();
+      }
+      object = commit.getTree();
+      return;
+    }
+
+    TreeWalk tw = TreeWalk.forPath(repo, path, commit.getTree());
+    if (tw == null) {
+      throw new NotFoundException();
+    }
+    try {
+      if ((tw.getFileMode(0).getBits() & FileMode.TYPE_MASK) != type) {
+        throw new NotFoundException();
+      }
+      object = tw.getObjectId(0);
+    } finally {
+      tw.release();
+    }
+  }
+
+  private static List<Ref> sorted(Map<String, Ref> refs) {
+    return new ArrayList<Ref>(new TreeMap<String, Ref>(refs).values());
+  }
+
+  /**
+   * Render the page resolved by {@link #getETag()}.
+   *
+   * @return the response body and its content type.
+   */
+  Page render() throws IOException, NotFoundException {
+    if ("blob_plain".equals(action)) {
+      return blobPlain();
+    }
+
+    html = new StringBuilder();
+    header();
+    if ("summary".equals(action)) {
+      summary();
+    } else if ("shortlog".equals(action) || "log".equals(action)) {
+      log(null);
+    } else if ("history".equals(action)) {
+      log(path());
+    } else if ("commit".equals(action)) {
+      commit();
+    } else if ("commitdiff".equals(action)) {
+      commitdiff();
+    } else if ("tree".equals(action)) {
+      tree();
+    } else if ("blob".equals(action)) {
+      blob();
+    }
+    html.append("</body></html>\n");
+    return new Page("text/html; charset=UTF-8",
+        html.toString().getBytes("UTF-8"));
+  }
+
+  /** Release the resources held while resolving and rendering. */
+  void release() {
+    rw.release();
+  }
+
+  private Page blobPlain() throws IOException, NotFoundException {
+    byte[] raw;
+    try {
+      raw = repo.open(object, Constants.OBJ_BLOB)
+          .getCachedBytes(MAX_BLOB_PLAIN);
+    } catch (MissingObjectException e) {
+      throw new NotFoundException();
+    } catch (IncorrectObjectTypeException e) {
+      throw new NotFoundException();
+    } catch (LargeObjectException e) {
+      throw new NotFoundException();
+    }
+    if (RawText.isBinary(raw)) {
+      return new Page("application/octet-stream", raw);
+    }
+    return new Page("text/plain; charset=UTF-8", raw);
+  }
+
+  private void header() {
+    html.append("<!DOCTYPE html>\n<html><head><title>");
+    text(project.getName());
+    html.append(" - ");
+    text(action);
+    html.append("</title>\n<style type=\"text/css\">\n"
+        + "body { font-family: sans-serif; font-size: small; }\n"
+        + "table { border-collapse: collapse; }\n"
+        + "td, th { padding: 1px 8px; text-align: left;"
+        + " vertical-align: top; }\n"
+        + "pre, .sha1, .mode { font-family: monospace; }\n"
+        + ".nav { border-bottom: 1px solid #ccc; padding-bottom: 4px; }\n"
+        + ".add { color: #008000; }\n"
+        + ".del { color: #c00000; }\n"
+        + ".hunk { color: #990099; }\n"
+        + "</style></head><body>\n");
+
+    html.append("<div class=\"nav\"><b>");
+    text(project.getName());
+    html.append("</b> | ");
+    link(url("summary"), "summary");
+    html.append(" | ");
+    link(url("shortlog"), "shortlog");
+    html.append(" | ");
+    link(url("tree"), "tree");
+    if (commit != null && !"summary".equals(action)) {
+      String h = commit.name();
+      html.append(" | ");
+      link(url("commit", "h", h), "commit");
+      html.append(" | ");
+      link(url("commitdiff", "h", h), "commitdiff");
+      html.append(" | ");
+      link(url("tree", "hb", h), "tree at " + h.substring(0, 7));
+    }
+    html.append("</div>\n");
+  }
+
+  private void summary() throws IOException {
+    if (project.getDescription() != null) {
+      html.append("<p>");
+      text(project.getDescription());
+      html.append("</p>\n");
+    }
+
+    if (commit != null) {
+      html.append("<h3>Recent commits</h3>\n");
+      rw.markStart(commit);
+      commits(SUMMARY_LOG, null);
+      rw.reset();
+    }
+
+    html.append("<h3>Branches</h3>\n<table>\n");
+    for (Ref ref : heads) {
+      refRow(ref, ref.getName().substring(Constants.R_HEADS.length()));
+    }
+    html.append("</table>\n");
+
+    if (!tags.isEmpty()) {
+      html.append("<h3>Tags</h3>\n<table>\n");
+      for (Ref ref : tags) {
+        refRow(ref, ref.getName().substring(Constants.R_TAGS.length()));
+      }
+      html.append("</table>\n");
+    }
+  }
+
+  private void refRow(Ref ref, String name) {
+    if (ref.getObjectId() == null) {
+      return;
+    }
+    html.append("<tr><td>");
+    link(url("shortlog", "h", ref.getName()), name);
+    html.append("</td><td class=\"sha1\">");
+    link(url("commit", "h", ref.getName()),
+        ref.getObjectId().abbreviate(7).name());
+    html.append("</td></tr>\n");
+  }
+
+  private void log(String path) throws IOException {
+    int page = 0;
+    try {
+      if (params.get("pg") != null) {
+        page = Math.max(0, Integer.parseInt(params.get("pg")));
+      }
+    } catch (NumberFormatException e) {
+      page = 0;
+    }
+
+    if (path != null) {
+      html.append("<h3>History of ");
+      text(path);
+      html.append("</h3>\n");
+      rw.setTreeFilter(AndTreeFilter.create(
+          PathFilterGroup.createFromStrings(Collections.singleton(path)),
+          TreeFilter.ANY_DIFF));
+    }
+    rw.sort(RevSort.COMMIT_TIME_DESC);
+    rw.markStart(commit);
+    for (int skip = page * LOG_PAGE; 0 < skip; skip--) {
+      if (rw.next() == null) {
+        break;
+      }
+    }
+
+    if (commits(LOG_PAGE, path)) {
+      Map<String, String> next = new TreeMap<String, String>(params);
+      next.put("pg", String.valueOf(page + 1));
+      html.append("<p>");
+      link(url(next), "next");
+      html.append("</p>\n");
+    }
+  }
+
+  /** @return true if more commits follow the ones listed. */
+  private boolean commits(int limit, String path) throws IOException {
+    html.append("<table>\n");
+    RevCommit c;
+    for (int n = 0; n < limit && (c = rw.next()) != null; n++) {
+      PersonIdent author = c.getAuthorIdent();
+      html.append("<tr><td>");
+      text(date(author));
+      html.append("</td><td>");
+      text(author.getName());
+      html.append("</td><td class=\"sha1\">");
+      link(url("commit", "h", c.name()), c.abbreviate(7).name());
+      html.append("</td><td>");
+      text(c.getShortMessage());
+      html.append("</td><td>");
+      if (path != null) {
+        link(url("blob", "hb", c.name(), "f", path), "blob");
+        html.append(" | ");
+      }
+      link(url("tree", "hb", c.name()), "tree");
+      html.append("</td></tr>\n");
+    }
+    html.append("</table>\n");
+    return rw.next() != null;
+  }
+
+  private void commit() throws IOException {
+    commitHeader();
+
+    html.append("<pre>");
+    text(commit.getFullMessage());
+    html.append("</pre>\n");
+
+    DiffFormatter df = new DiffFormatter(NullOutputStream.INSTANCE);
+    try {
+      df.setRepository(repo);
+      df.setDetectRenames(true);
+      html.append("<table>\n");
+      for (DiffEntry e : df.scan(parentTree(), commit.getTree())) {
+        html.append("<tr><td>");
+        text(e.getChangeType().name().toLowerCase());
+        html.append("</td><td>");
+        if (e.getChangeType() == DiffEntry.ChangeType.DELETE) {
+          text(e.getOldPath());
+        } else {
+          if (e.getChangeType() == DiffEntry.ChangeType.RENAME
+              || e.getChangeType() == DiffEntry.ChangeType.COPY) {
+            text(e.getOldPath());
+            html.append(" &rarr; ");
+          }
+          if (e.getNewMode().getObjectType() == Constants.OBJ_BLOB) {
+            link(url("blob", "hb", commit.name(), "f", e.getNewPath()),
+                e.getNewPath());
+          } else {
+            text(e.getNewPath());
+          }
+        }
+        html.append("</td></tr>\n");
+      }
+      html.append("</table>\n");
+    } finally {
+      df.release();
+    }
+  }
+
+  private void commitdiff() throws IOException {
+    commitHeader();
+
+    html.append("<pre>");
+    text(commit.getShortMessage());
+    html.append("</pre>\n");
+
+    LimitedOutputStream buf = new LimitedOutputStream(MAX_DIFF);
+    DiffFormatter df = new DiffFormatter(buf);
+    try {
+      df.setRepository(repo);
+      df.setDetectRenames(true);
+      df.format(parentTree(), commit.getTree());
+      df.flush();
+    } catch (LimitedOutputStream.LimitException e) {
+      // Show the part of the patch that fit.
+    } finally {
+      df.release();
+    }
+
+    html.append("<pre>");
+    String patch = RawParseUtils.decode(buf.toByteArray());
+    for (String line : patch.split("\n", -1)) {
+      String style = null;
+      if (line.startsWith("@@")) {
+        style = "hunk";
+      } else if (line.startsWith("+") && !line.startsWith("+++")) {
+        style = "add";
+      } else if (line.startsWith("-") && !line.startsWith("---")) {
+        style = "del";
+      }
+      if (style != null) {
+        html.append("<span class=\"").append(style).append("\">");
+        text(line);
+        html.append("</span>\n");
+      } else {
+        text(line);
+        html.append('\n');
+      }
+    }
+    html.append("</pre>\n");
+    if (buf.isTruncated()) {
+      html.append("<p><i>Patch truncated.</i></p>\n");
+    }
+  }
+
+  private RevTree parentTree() throws IOException {
+    if (commit.getParentCount() == 0) {
+      return null;
+    }
+    return rw.parseCommit(commit.getParent(0)).getTree();
+  }
+
+  private void commitHeader() {
+    html.append("<table>\n");
+    html.append("<tr><th>commit</th><td class=\"sha1\">")
+        .append(commit.name()).append("</td></tr>\n");
+    html.append("<tr><th>tree</th><td class=\"sha1\">");
+    link(url("tree", "hb", commit.name()), commit.getTree().name());
+    html.append("</td></tr>\n");
+    for (RevCommit p : commit.getParents()) {
+      html.append("<tr><th>parent</th><td class=\"sha1\">");
+      link(url("commit", "h", p.name()), p.name());
+      html.append("</td></tr>\n");
+    }
+    person("author", commit.getAuthorIdent());
+    person("committer", commit.getCommitterIdent());
+    html.append("</table>\n");
+  }
+
+  private void person(String role, PersonIdent who) {
+    html.append("<tr><th>").append(role).append("</th><td>");
+    text(who.getName() + " <" + who.getEmailAddress() + ">");
+    html.append("</td><td>");
+    text(date(who));
+    html.append("</td></tr>\n");
+  }
+
+  private void tree() throws IOException {
+    String base = path();
+    if (!base.isEmpty()) {
+      html.append("<h3>");
+      text(base);
+      html.append("</h3>\n");
+    }
+
+    TreeWalk tw = new TreeWalk(repo);
+    try {
+      tw.addTree(object);
+      html.append("<table>\n");
+      while (tw.next()) {
+        FileMode m = tw.getFileMode(0);
+        String name = tw.getNameString();
+        String path = base.isEmpty() ? name : base + "/" + name;
+
+        html.append("<tr><td class=\"mode\">");
+        text(m.toString());
+        html.append("</td><td>");
+        if (m == FileMode.TREE) {
+          if (commit != null) {
+            link(url("tree", "hb", commit.name(), "f", path), name + "/");
+          } else {
+            link(url("tree", "h", tw.getObjectId(0).name()), name + "/");
+          }
+        } else if (m.getObjectType() == Constants.OBJ_BLOB) {
+          if (commit != null) {
+            link(url("blob", "hb", commit.name(), "f", path), name);
+          } else {
+            link(url("blob", "h", tw.getObjectId(0).name()), name);
+          }
+        } else {
+          text(name);
+        }
+        html.append("</td></tr>\n");
+      }
+      html.append("</table>\n");
+    } finally {
+      tw.release();
+    }
+  }
+
+  private void blob() throws IOException, NotFoundException {
+    String path = path();
+    if (!path.isEmpty()) {
+      html.append("<h3>");
+      text(path);
+      html.append("</h3>\n");
+    }
+
+    Map<String, String> raw = new TreeMap<String, String>(params);
+    raw.put("a", "blob_plain");
+
+    ObjectLoader ldr;
+    try {
+      ldr = repo.open(object, Constants.OBJ_BLOB);
+    } catch (MissingObjectException e) {
+      throw new NotFoundException();
+    } catch (IncorrectObjectTypeException e) {
+      throw new NotFoundException();
+    }
+    if (ldr.getSize() > MAX_BLOB) {
+      html.append("<p>File is too large to display; ");
+      link(url(raw), "download it");
+      html.append(".</p>\n");
+      return;
+    }
+
+    byte[] content = ldr.getCachedBytes(MAX_BLOB);
+    if (RawText.isBinary(content)) {
+      html.append("<p>Binary file; ");
+      link(url(raw), "download it");
+      html.append(".</p>\n");
+      return;
+    }
+
+    html.append("<p>");
+    link(url(raw), "raw");
+    html.append("</p>\n<pre>");
+    text(RawParseUtils.decode(content));
+    html.append("</pre>\n");
+  }
+
+  private String url(String a, String... keyValues) {
+    Map<String, String> p = new TreeMap<String, String>();
+    p.put("a", a);
+    for (int i = 0; i + 1 < keyValues.length; i += 2) {
+      p.put(keyValues[i], keyValues[i + 1]);
+    }
+    return url(p);
+  }
+
+  private String url(Map<String, String> p) {
+    StringBuilder r = new StringBuilder();
+    r.append("?p=").append(encode(project.getName() + ".git"));
+    for (Map.Entry<String, String> e : p.entrySet()) {
+      if (!"p".equals(e.getKey())) {
+        r.append(';').append(encode(e.getKey()));
+        r.append('=').append(encode(e.getValue()));
+      }
+    }
+    return r.toString();
+  }
+
+  private static String encode(String str) {
+    try {
+      return URLEncoder.encode(str, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void link(String href, String label) {
+    html.append("<a href=\"");
+    text(href);
+    html.append("\">");
+    text(label);
+    html.append("</a>");
+  }
+
+  private void text(String str) {
+    for (int i = 0; i < str.length(); i++) {
+      char c = str.charAt(i);
+      switch (c) {
+        case '<':
+          html.append("&lt;");
+          break;
+        case '>':
+          html.append("&gt;");
+          break;
+        case '&':
+          html.append("&amp;");
+          break;
+        case '"':
+          html.append("&quot;");
+          break;
+        default:
+          html.append(c);
+      }
+    }
+  }
+
+  private static String date(PersonIdent who) {
+    SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+    fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return fmt.format(who.getWhen());
+  }
+
+  /** Buffers output up to a limit, then refuses further writes. */
+  private static class LimitedOutputStream extends OutputStream {
+    @SuppressWarnings("serial")
+    static class LimitException extends IOException {
+    }
+
+    private final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    private final int limit;
+    private boolean truncated;
+
+    LimitedOutputStream(int limit) {
+      this.limit = limit;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      int n = Math.min(len, limit - buf.size());
+      buf.write(b, off, n);
+      if (n < len) {
+        truncated = true;
+        throw new LimitException();
+      }
+    }
+
+    boolean isTruncated() {
+      return truncated;
+    }
+
+    byte[] toByteArray() {
+      return buf.toByteArray();
+    }
+  }
+}
@@ -0,0 +1,193 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.httpd.gitweb;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.Weigher;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.project.NoSuchProjectException;
+import com.google.gerrit.server.project.ProjectControl;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import org.eclipse.jgit.errors.RepositoryNotFoundException;
+import org.eclipse.jgit.lib.Repository;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Browses repositories in-process, in place of {@code gitweb.cgi}.
+ * <p>
+ * Requests use the query parameters of gitweb, so links built for
+ * {@code gitweb.type = gitweb} keep working. Pages are rendered with JGit
+ * from the same repositories and with the same visibility checks as
+ * {@link GitWebServlet}, but without starting a process for each request.
+ * <p>
+ * A page only depends on the objects its references resolve to, so each
+ * response carries an entity tag derived from them. Clients revalidating a
+ * page get a 304 reply, and rendered pages are kept in the
+ * {@code gitweb_pages} cache, shared by all users allowed to see the
+ * project.
+ */
+@SuppressWarnings("serial")
+@Singleton
+class RepositoryBrowserServlet extends HttpServlet {
+  static final String CACHE_NAME = "gitweb_pages";
+
+  /** Largest rendered page kept in the cache. */
+  private static final int MAX_CACHED_PAGE = 256 * 1024;
+
+  private final GitRepositoryManager repoManager;
+  private final ProjectControl.Factory projectControl;
+  private final Cache<String, Page> cache;
+
+  @Inject
+  RepositoryBrowserServlet(final GitRepositoryManager repoManager,
+      final ProjectControl.Factory projectControl,
+      @Named(CACHE_NAME) final Cache<String, Page> cache) {
+    this.repoManager = repoManager;
+    this.projectControl = projectControl;
+    this.cache = cache;
+  }
+
+  @Override
+  protected void doGet(final HttpServletRequest req,
+      final HttpServletResponse rsp) throws IOException {
+    if (req.getQueryString() == null || req.getQueryString().isEmpty()) {
+      // No query string? They want the project list, which we don't
+      // currently support. Return to Gerrit's own web UI.
+      //
+      rsp.sendRedirect(req.getContextPath() + "/");
+      return;
+    }
+
+    final Map<String, String> params = getParameters(req);
+    if (!RepositoryBrowserPage.isSupported(params.get("a"))) {
+      rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+
+    String name = params.get("p");
+    if (name == null) {
+      rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    if (name.endsWith(".git")) {
+      name = name.substring(0, name.length() - 4);
+    }
+
+    final Project.NameKey nameKey = new Project.NameKey(name);
+    final ProjectControl project;
+    try {
+      project = projectControl.validateFor(nameKey);
+      if (!project.allRefsAreVisible()) {
+        // Pretend the project doesn't exist
+        throw new NoSuchProjectException(nameKey);
+      }
+    } catch (NoSuchProjectException e) {
+      rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+
+    final Repository repo;
+    try {
+      repo = repoManager.openRepository(nameKey);
+    } catch (RepositoryNotFoundException e) {
+      rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    final RepositoryBrowserPage view =
+        new RepositoryBrowserPage(repo, project.getProject(), params);
+    try {
+      final String etag = view.getETag();
+
+      rsp.setHeader("ETag", etag);
+      rsp.setHeader("Cache-Control", "private, max-age=0, must-revalidate");
+      if (etag.equals(req.getHeader("If-None-Match"))) {
+        rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return;
+      }
+
+      Page page = cache.getIfPresent(etag);
+      if (page == null) {
+        page = view.render();
+        if (page.body.length <= MAX_CACHED_PAGE) {
+          cache.put(etag, page);
+        }
+      }
+
+      rsp.setContentType(page.contentType);
+      rsp.setContentLength(page.body.length);
+      rsp.setHeader("X-Content-Type-Options", "nosniff");
+      final OutputStream out = rsp.getOutputStream();
+      try {
+        out.write(page.body);
+      } finally {
+        out.close();
+      }
+    } catch (RepositoryBrowserPage.NotFoundException e) {
+      rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+    } finally {
+      view.release();
+      repo.close();
+    }
+  }
+
+  private static Map<String, String> getParameters(final HttpServletRequest req)
+      throws UnsupportedEncodingException {
+    final Map<String, String> params = new HashMap<String, String>();
+    for (final String pair : req.getQueryString().split("[&;]")) {
+      final int eq = pair.indexOf('=');
+      if (0 < eq) {
+        String name = pair.substring(0, eq);
+        String value = pair.substring(eq + 1);
+
+        name = URLDecoder.decode(name, "UTF-8");
+        value = URLDecoder.decode(value, "UTF-8");
+        params.put(name, value);
+      }
+    }
+    return params;
+  }
+
+  /** A rendered response. */
+  static class Page {
+    final String contentType;
+    final byte[] body;
+
+    Page(String contentType, byte[] body) {
+      this.contentType = contentType;
+      this.body = body;
+    }
+  }
+
+  static class PageWeigher implements Weigher<String, Page> {
+    @Override
+    public int weigh(String key, Page value) {
+      return key.length() + value.body.length;
+    }
+  }
+}
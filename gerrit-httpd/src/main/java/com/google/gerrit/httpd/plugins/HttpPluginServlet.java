@@ -34,6 +34,8 @@ import com.google.inject.name.Named;
 import com.google.inject.servlet.GuiceFilter;
 
 import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.util.IO;
 import org.eclipse.jgit.util.RawParseUtils;
 import org.slf4j.Logger;
@@ -44,6 +46,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
+import java.security.MessageDigest;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Enumeration;
@@ -70,6 +73,7 @@ import javax.servlet.http.HttpServletResponse;
 class HttpPluginServlet extends HttpServlet
     implements StartPluginListener, ReloadPluginListener {
   private static final int SMALL_RESOURCE = 128 * 1024;
+  private static final int PRELOAD_LIMIT = 256 * 1024;
   private static final long serialVersionUID = 1L;
   private static final Logger log
       = LoggerFactory.getLogger(HttpPluginServlet.class);
@@ -149,6 +153,54 @@ class HttpPluginServlet extends HttpServlet
       }
     });
     plugins.put(name, holder);
+    preload(holder);
+  }
+
+  /**
+   * Prepare the static resources and documentation of a plugin.
+   * <p>
+   * Small resources are read, compressed and, for Markdown, rendered when
+   * the plugin starts, so first requests are served from the cache.
+   */
+  private void preload(PluginHolder holder) {
+    JarFile jar = holder.plugin.getJarFile();
+
+    // Without a canonical URL, documentation must be rendered for the URL
+    // of the request reading it.
+    boolean markdown = !Strings.isNullOrEmpty(webUrl.get());
+    int total = 0;
+    Enumeration<JarEntry> entries = jar.entries();
+    while (entries.hasMoreElements() && total < PRELOAD_LIMIT) {
+      JarEntry entry = entries.nextElement();
+      String name = entry.getName();
+      if (!exists(entry) || SMALL_RESOURCE < entry.getSize()
+          || !(name.startsWith("static/")
+              || name.startsWith("Documentation/"))) {
+        continue;
+      }
+
+      try {
+        SmallResource rsc;
+        if (name.startsWith("Documentation/") && name.endsWith(".md")) {
+          if (!markdown) {
+            continue;
+          }
+          name = name.substring(0, name.length() - 3) + ".html";
+          if (jar.getJarEntry(name) != null) {
+            continue;
+          }
+          rsc = markdownResource(jar, entry, holder.plugin,
+              etag(holder.plugin, name));
+        } else {
+          rsc = smallResource(jar, entry, etag(holder.plugin, name));
+        }
+        resourceCache.put(new ResourceKey(holder.plugin, name), rsc);
+        total += rsc.weigh();
+      } catch (IOException e) {
+        log.warn(String.format("Plugin %s cannot preload %s",
+            holder.plugin.getName(), name), e);
+      }
+    }
   }
 
   private GuiceFilter load(Plugin plugin) {
@@ -224,6 +276,13 @@ class HttpPluginServlet extends HttpServlet
     }
 
     String file = uri.substring(ctx.length() + 1);
+    String etag = etag(holder.plugin, file);
+    if (notModified(req, etag)) {
+      res.setHeader("ETag", etag);
+      res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
     ResourceKey key = new ResourceKey(holder.plugin, file);
     Resource rsc = resourceCache.getIfPresent(key);
     if (rsc != null) {
@@ -237,7 +296,7 @@ class HttpPluginServlet extends HttpServlet
       JarFile jar = holder.plugin.getJarFile();
       JarEntry entry = jar.getJarEntry(file);
       if (exists(entry)) {
-        sendResource(jar, entry, key, res);
+        sendResource(jar, entry, key, etag, req, res);
       } else {
         resourceCache.put(key, Resource.NOT_FOUND);
         Resource.NOT_FOUND.send(req, res);
@@ -254,11 +313,13 @@ class HttpPluginServlet extends HttpServlet
       }
       if (!exists(entry) && file.endsWith("/index.html")) {
         String pfx = file.substring(0, file.length() - "index.html".length());
-        sendAutoIndex(jar, pfx, holder.plugin.getName(), key, res);
+        sendAutoIndex(jar, pfx, holder.plugin.getName(), key, etag, req, res);
       } else if (exists(entry) && entry.getName().endsWith(".md")) {
-        sendMarkdownAsHtml(jar, entry, holder.plugin.getName(), key, res);
+        SmallResource rsc = markdownResource(jar, entry, holder.plugin, etag);
+        resourceCache.put(key, rsc);
+        rsc.send(req, res);
       } else if (exists(entry)) {
-        sendResource(jar, entry, key, res);
+        sendResource(jar, entry, key, etag, req, res);
       } else {
         resourceCache.put(key, Resource.NOT_FOUND);
         Resource.NOT_FOUND.send(req, res);
@@ -270,8 +331,8 @@ class HttpPluginServlet extends HttpServlet
   }
 
   private void sendAutoIndex(JarFile jar,
-      String prefix, String pluginName,
-      ResourceKey cacheKey, HttpServletResponse res) throws IOException {
+      String prefix, String pluginName, ResourceKey cacheKey, String etag,
+      HttpServletRequest req, HttpServletResponse res) throws IOException {
     List<JarEntry> cmds = Lists.newArrayList();
     List<JarEntry> docs = Lists.newArrayList();
     Enumeration<JarEntry> entries = jar.entries();
@@ -350,12 +411,13 @@ class HttpPluginServlet extends HttpServlet
       md.append("\n");
     }
 
-    sendMarkdownAsHtml(md.toString(), pluginName, cacheKey, res);
+    SmallResource rsc = markdownResource(md.toString(), pluginName, etag);
+    resourceCache.put(cacheKey, rsc);
+    rsc.send(req, res);
   }
 
-  private void sendMarkdownAsHtml(String md, String pluginName,
-      ResourceKey cacheKey, HttpServletResponse res)
-      throws UnsupportedEncodingException, IOException {
+  private SmallResource markdownResource(String md, String pluginName,
+      String etag) throws UnsupportedEncodingException, IOException {
     Map<String, String> macros = Maps.newHashMap();
     macros.put("PLUGIN", pluginName);
     macros.put("SSH_HOST", sshHost);
@@ -383,13 +445,11 @@ class HttpPluginServlet extends HttpServlet
 
     byte[] html = new MarkdownFormatter()
       .markdownToDocHtml(sb.toString(), "UTF-8");
-    resourceCache.put(cacheKey, new SmallResource(html)
+    return new SmallResource(html)
         .setContentType("text/html")
-        .setCharacterEncoding("UTF-8"));
-    res.setContentType("text/html");
-    res.setCharacterEncoding("UTF-8");
-    res.setContentLength(html.length);
-    res.getOutputStream().write(html);
+        .setCharacterEncoding("UTF-8")
+        .setETag(etag)
+        .compress();
   }
 
   private static void appendPluginInfoTable(StringBuilder html, Attributes main) {
@@ -457,9 +517,8 @@ class HttpPluginServlet extends HttpServlet
     return entry != null && entry.getSize() > 0;
   }
 
-  private void sendMarkdownAsHtml(JarFile jar, JarEntry entry,
-      String pluginName, ResourceKey key, HttpServletResponse res)
-      throws IOException {
+  private SmallResource markdownResource(JarFile jar, JarEntry entry,
+      Plugin plugin, String etag) throws IOException {
     byte[] rawmd = readWholeEntry(jar, entry);
     String encoding = null;
     Attributes atts = entry.getAttributes();
@@ -470,21 +529,45 @@ class HttpPluginServlet extends HttpServlet
     String txtmd = RawParseUtils.decode(
         Charset.forName(encoding != null ? encoding : "UTF-8"),
         rawmd);
-    long time = entry.getTime();
-    if (0 < time) {
-      res.setDateHeader("Last-Modified", time);
+    return markdownResource(txtmd, plugin.getName(), etag)
+        .setLastModified(entry.getTime());
+  }
+
+  private SmallResource smallResource(JarFile jar, JarEntry entry,
+      String etag) throws IOException {
+    byte[] data = readWholeEntry(jar, entry);
+    String contentType = null;
+    String charEnc = null;
+    Attributes atts = entry.getAttributes();
+    if (atts != null) {
+      contentType = Strings.emptyToNull(atts.getValue("Content-Type"));
+      charEnc = Strings.emptyToNull(atts.getValue("Character-Encoding"));
     }
-    sendMarkdownAsHtml(txtmd, pluginName, key, res);
+    if (contentType == null) {
+      contentType = mimeUtil.getMimeType(entry.getName(), data).toString();
+    }
+
+    return new SmallResource(data)
+        .setContentType(contentType)
+        .setCharacterEncoding(charEnc)
+        .setLastModified(entry.getTime())
+        .setETag(etag)
+        .compress();
   }
 
   private void sendResource(JarFile jar, JarEntry entry,
-      ResourceKey key, HttpServletResponse res)
+      ResourceKey key, String etag,
+      HttpServletRequest req, HttpServletResponse res)
       throws IOException {
-    byte[] data = null;
     if (entry.getSize() <= SMALL_RESOURCE) {
-      data = readWholeEntry(jar, entry);
+      SmallResource rsc = smallResource(jar, entry, etag);
+      resourceCache.put(key, rsc);
+      rsc.send(req, res);
+      return;
     }
 
+    // Large entries are streamed from the JAR and never held in memory.
+    //
     String contentType = null;
     String charEnc = null;
     Attributes atts = entry.getAttributes();
@@ -493,41 +576,89 @@ class HttpPluginServlet extends HttpServlet
       charEnc = Strings.emptyToNull(atts.getValue("Character-Encoding"));
     }
     if (contentType == null) {
-      contentType = mimeUtil.getMimeType(entry.getName(), data).toString();
+      contentType = mimeUtil.getMimeType(entry.getName(), null).toString();
     }
 
     long time = entry.getTime();
     if (0 < time) {
       res.setDateHeader("Last-Modified", time);
     }
+    if (etag != null) {
+      res.setHeader("ETag", etag);
+    }
     res.setHeader("Content-Length", Long.toString(entry.getSize()));
     res.setContentType(contentType);
     if (charEnc != null) {
       res.setCharacterEncoding(charEnc);
     }
-    if (data != null) {
-      resourceCache.put(key, new SmallResource(data)
-          .setContentType(contentType)
-          .setCharacterEncoding(charEnc)
-          .setLastModified(time));
-      res.getOutputStream().write(data);
-    } else {
-      InputStream in = jar.getInputStream(entry);
+    InputStream in = jar.getInputStream(entry);
+    try {
+      OutputStream out = res.getOutputStream();
       try {
-        OutputStream out = res.getOutputStream();
-        try {
-          byte[] tmp = new byte[1024];
-          int n;
-          while ((n = in.read(tmp)) > 0) {
-            out.write(tmp, 0, n);
-          }
-        } finally {
-          out.close();
+        byte[] tmp = new byte[64 * 1024];
+        int n;
+        while ((n = in.read(tmp)) > 0) {
+          out.write(tmp, 0, n);
         }
       } finally {
-        in.close();
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Compute the entity tag of a resource.
+   * <p>
+   * Resources never change while the same JAR is loaded, so the tag only
+   * depends on the JAR's SHA-1 and the resource name. Server settings
+   * substituted into documentation are included as well.
+   *
+   * @return strong entity tag; null if the JAR's SHA-1 is not known.
+   */
+  private String etag(Plugin plugin, String file) {
+    ObjectId jarId = plugin.getJarId();
+    if (jarId == null) {
+      return null;
+    }
+
+    MessageDigest md = Constants.newMessageDigest();
+    byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+    jarId.copyRawTo(id, 0);
+    md.update(id);
+    md.update(Constants.encode(file));
+    if (file.startsWith("Documentation/")) {
+      md.update((byte) 0);
+      md.update(Constants.encode(sshHost + ":" + sshPort));
+      md.update((byte) 0);
+      md.update(Constants.encode(Strings.nullToEmpty(webUrl.get())));
+    }
+    return "\"" + ObjectId.fromRaw(md.digest()).name() + "\"";
+  }
+
+  /** @return entity tag of the gzip encoded form of a resource. */
+  static String gzipETag(String etag) {
+    if (etag == null) {
+      return null;
+    }
+    return etag.substring(0, etag.length() - 1) + "-gzip\"";
+  }
+
+  private static boolean notModified(HttpServletRequest req, String etag) {
+    String match = req.getHeader("If-None-Match");
+    if (etag == null || match == null) {
+      return false;
+    }
+
+    String gzip = gzipETag(etag);
+    for (String tag : match.split(",")) {
+      tag = tag.trim();
+      if (tag.equals(etag) || tag.equals(gzip)) {
+        return true;
       }
     }
+    return false;
   }
 
   private static byte[] readWholeEntry(JarFile jar, JarEntry entry)
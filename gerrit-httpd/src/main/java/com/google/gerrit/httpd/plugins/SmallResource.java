@@ -14,6 +14,9 @@
 
 package com.google.gerrit.httpd.plugins;
 
+import com.google.gerrit.httpd.HtmlDomUtil;
+import com.google.gwtjsonrpc.server.RPCServletUtils;
+
 import java.io.IOException;
 
 import javax.annotation.Nullable;
@@ -22,9 +25,11 @@ import javax.servlet.http.HttpServletResponse;
 
 final class SmallResource extends Resource {
   private final byte[] data;
+  private byte[] gzip;
   private String contentType;
   private String characterEncoding;
   private long lastModified;
+  private String etag;
 
   SmallResource(byte[] data) {
     this.data = data;
@@ -45,14 +50,56 @@ final class SmallResource extends Resource {
     return this;
   }
 
+  SmallResource setETag(@Nullable String etag) {
+    this.etag = etag;
+    return this;
+  }
+
+  /**
+   * Compress the content once, so it can be sent to clients accepting gzip
+   * without compressing it again for each request.
+   */
+  SmallResource compress() throws IOException {
+    if (256 < data.length && isCompressible(contentType)) {
+      byte[] gz = HtmlDomUtil.compress(data);
+      if (gz.length < data.length) {
+        gzip = gz;
+      }
+    }
+    return this;
+  }
+
+  private static boolean isCompressible(String type) {
+    return type.startsWith("text/")
+        || type.equals("application/javascript")
+        || type.equals("application/x-javascript")
+        || type.equals("application/json")
+        || type.equals("application/xml")
+        || type.equals("image/svg+xml");
+  }
+
   @Override
   int weigh() {
-    return contentType.length() * 2 + data.length;
+    return contentType.length() * 2 + data.length
+        + (gzip != null ? gzip.length : 0);
   }
 
   @Override
   void send(HttpServletRequest req, HttpServletResponse res)
       throws IOException {
+    byte[] body = data;
+    String tag = etag;
+    if (gzip != null) {
+      res.setHeader("Vary", "Accept-Encoding");
+      if (RPCServletUtils.acceptsGzipEncoding(req)) {
+        res.setHeader("Content-Encoding", "gzip");
+        body = gzip;
+        tag = HttpPluginServlet.gzipETag(etag);
+      }
+    }
+    if (tag != null) {
+      res.setHeader("ETag", tag);
+    }
     if (0 < lastModified) {
       res.setDateHeader("Last-Modified", lastModified);
     }
@@ -60,7 +107,7 @@ final class SmallResource extends Resource {
     if (characterEncoding != null) {
      res.setCharacterEncoding(characterEncoding);
     }
-    res.setContentLength(data.length);
-    res.getOutputStream().write(data);
+    res.setContentLength(body.length);
+    res.getOutputStream().write(body);
   }
 }
@@ -23,6 +23,7 @@ import com.google.gerrit.server.extensions.events.GitReferenceUpdated;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.project.ChangeControl;
 import com.google.gerrit.server.project.NoSuchChangeException;
+import com.google.gerrit.server.query.change.ChangeStatistics;
 import com.google.gwtjsonrpc.common.VoidResult;
 import com.google.gwtorm.server.OrmException;
 import com.google.inject.Inject;
@@ -39,6 +40,7 @@ class DeleteDraftChange extends Handler<VoidResult> {
   private final ReviewDb db;
   private final GitRepositoryManager gitManager;
   private final GitReferenceUpdated replication;
+  private final ChangeStatistics statistics;
 
   private final PatchSet.Id patchSetId;
 
@@ -47,11 +49,13 @@ class DeleteDraftChange extends Handler<VoidResult> {
       final ChangeControl.Factory changeControlFactory,
       final GitRepositoryManager gitManager,
       final GitReferenceUpdated replication,
+      final ChangeStatistics statistics,
       @Assisted final PatchSet.Id patchSetId) {
     this.changeControlFactory = changeControlFactory;
     this.db = db;
     this.gitManager = gitManager;
     this.replication = replication;
+    this.statistics = statistics;
 
     this.patchSetId = patchSetId;
   }
@@ -65,7 +69,8 @@ class DeleteDraftChange extends Handler<VoidResult> {
       throw new NoSuchChangeException(changeId);
     }
 
-    ChangeUtil.deleteDraftChange(patchSetId, gitManager, replication, db);
+    ChangeUtil.deleteDraftChange(patchSetId, gitManager, replication,
+        statistics, db);
     return VoidResult.INSTANCE;
   }
 }
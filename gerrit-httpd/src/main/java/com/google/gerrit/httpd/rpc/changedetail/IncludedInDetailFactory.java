@@ -21,6 +21,7 @@ import com.google.gerrit.reviewdb.client.Change;
 import com.google.gerrit.reviewdb.client.PatchSet;
 import com.google.gerrit.reviewdb.server.ReviewDb;
 import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.git.ReachabilityCache;
 import com.google.gerrit.server.project.ChangeControl;
 import com.google.gerrit.server.project.NoSuchChangeException;
 import com.google.gwtorm.server.OrmException;
@@ -40,6 +41,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 
 /** Creates a {@link IncludedInDetail} of a {@link Change}. */
@@ -54,6 +56,7 @@ class IncludedInDetailFactory extends Handler<IncludedInDetail> {
   private final ReviewDb db;
   private final ChangeControl.Factory changeControlFactory;
   private final GitRepositoryManager repoManager;
+  private final ReachabilityCache reachabilityCache;
   private final Change.Id changeId;
 
   private IncludedInDetail detail;
@@ -62,9 +65,12 @@ class IncludedInDetailFactory extends Handler<IncludedInDetail> {
   @Inject
   IncludedInDetailFactory(final ReviewDb db,
       final ChangeControl.Factory changeControlFactory,
-      final GitRepositoryManager repoManager, @Assisted final Change.Id changeId) {
+      final GitRepositoryManager repoManager,
+      final ReachabilityCache reachabilityCache,
+      @Assisted final Change.Id changeId) {
     this.changeControlFactory = changeControlFactory;
     this.repoManager = repoManager;
+    this.reachabilityCache = reachabilityCache;
     this.changeId = changeId;
     this.db = db;
   }
@@ -108,7 +114,8 @@ class IncludedInDetailFactory extends Handler<IncludedInDetail> {
   private List<String> includedIn(final Repository repo, final RevWalk rw,
       final RevCommit rev, final String namespace) throws IOException,
       MissingObjectException, IncorrectObjectTypeException {
-    final List<String> result = new ArrayList<String>();
+    final List<String> names = new ArrayList<String>();
+    final List<RevCommit> tips = new ArrayList<RevCommit>();
     for (final Ref ref : repo.getRefDatabase().getRefs(namespace).values()) {
       final RevCommit tip;
       try {
@@ -126,9 +133,15 @@ class IncludedInDetailFactory extends Handler<IncludedInDetail> {
         continue;
       }
 
-      if (rw.isMergedInto(rev, tip)) {
-        result.add(ref.getName().substring(namespace.length()));
-      }
+      names.add(ref.getName().substring(namespace.length()));
+      tips.add(tip);
+    }
+
+    final BitSet merged = reachabilityCache.reachableFrom(
+        control.getProject().getNameKey(), rw, rev, tips);
+    final List<String> result = new ArrayList<String>(merged.cardinality());
+    for (int i = merged.nextSetBit(0); 0 <= i; i = merged.nextSetBit(i + 1)) {
+      result.add(names.get(i));
     }
     return result;
   }
@@ -32,12 +32,15 @@ import java.net.URLClassLoader;
 import java.security.CodeSource;
 import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.jar.Attributes;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -197,10 +200,13 @@ public final class GerritLauncher {
       throw e;
     }
 
+    final long start = System.currentTimeMillis();
     final SortedMap<String, URL> jars = new TreeMap<String, URL>();
     try {
       final ZipFile zf = new ZipFile(path);
       try {
+        final File cache = libCacheDirectory();
+        final Set<String> used = new HashSet<String>();
         final Enumeration<? extends ZipEntry> e = zf.entries();
         while (e.hasMoreElements()) {
           final ZipEntry ze = e.nextElement();
@@ -210,31 +216,29 @@ public final class GerritLauncher {
 
           if (ze.getName().startsWith("WEB-INF/lib/")) {
             String name = ze.getName().substring("WEB-INF/lib/".length());
-            final File tmp = createTempFile(safeName(ze), ".jar");
-            final FileOutputStream out = new FileOutputStream(tmp);
-            try {
-              final InputStream in = zf.getInputStream(ze);
-              try {
-                final byte[] buf = new byte[4096];
-                int n;
-                while ((n = in.read(buf, 0, buf.length)) > 0) {
-                  out.write(buf, 0, n);
-                }
-              } finally {
-                in.close();
-              }
-            } finally {
-              out.close();
+            File jar = null;
+            if (cache != null) {
+              jar = extractCached(cache, zf, ze);
             }
-            jars.put(name, tmp.toURI().toURL());
+            if (jar != null) {
+              used.add(jar.getName());
+            } else {
+              jar = createTempFile(safeName(ze), ".jar");
+              extract(zf, ze, jar);
+            }
+            jars.put(name, jar.toURI().toURL());
           }
         }
+        if (cache != null) {
+          pruneLibCache(cache, used);
+        }
       } finally {
         zf.close();
       }
     } catch (IOException e) {
       throw new IOException("Cannot obtain libraries from " + path, e);
     }
+    libraryLoadTime = System.currentTimeMillis() - start;
 
     if (jars.isEmpty()) {
       return GerritLauncher.class.getClassLoader();
@@ -261,6 +265,122 @@ public final class GerritLauncher {
         parent);
   }
 
+  /**
+   * Find a library in the extraction cache, extracting it if necessary.
+   * <p>
+   * Cached copies are named by the size and CRC-32 recorded in the
+   * directory of the archive, so an unchanged library is reused without
+   * reading it again, and a different library never matches a stale copy.
+   *
+   * @return the cached copy; null if the library could not be cached.
+   */
+  private static File extractCached(File cache, ZipFile zf, ZipEntry ze)
+      throws IOException {
+    if (ze.getSize() < 0 || ze.getCrc() < 0) {
+      return null;
+    }
+
+    final File dst = new File(cache, safeName(ze)
+        + "-" + Long.toHexString(ze.getCrc())
+        + "-" + ze.getSize() + ".jar");
+    if (dst.isFile() && dst.length() == ze.getSize()) {
+      dst.setLastModified(System.currentTimeMillis());
+      return dst;
+    }
+
+    // Extract under a unique name and rename into place, so concurrent
+    // launchers sharing the cache never see a partially written copy.
+    //
+    final File tmp = File.createTempFile(safeName(ze) + "_", ".tmp", cache);
+    try {
+      if (extract(zf, ze, tmp) != ze.getCrc()) {
+        return null;
+      }
+      if (tmp.renameTo(dst)) {
+        return dst;
+      }
+      return dst.isFile() && dst.length() == ze.getSize() ? dst : null;
+    } finally {
+      tmp.delete();
+    }
+  }
+
+  /** @return CRC-32 of the extracted content. */
+  private static long extract(ZipFile zf, ZipEntry ze, File dst)
+      throws IOException {
+    final CRC32 crc = new CRC32();
+    final FileOutputStream out = new FileOutputStream(dst);
+    try {
+      final InputStream in = zf.getInputStream(ze);
+      try {
+        final byte[] buf = new byte[65536];
+        int n;
+        while ((n = in.read(buf, 0, buf.length)) > 0) {
+          crc.update(buf, 0, n);
+          out.write(buf, 0, n);
+        }
+      } finally {
+        in.close();
+      }
+    } finally {
+      out.close();
+    }
+    return crc.getValue();
+  }
+
+  private static File libCacheDirectory() {
+    final File root = tmproot();
+    if (root == null) {
+      return null;
+    }
+
+    final File d = new File(root, "gerrit_lib_cache");
+    if (!d.isDirectory()) {
+      if (!d.mkdir() && !d.isDirectory()) {
+        return null;
+      }
+
+      // Others must not be able to place libraries we will load.
+      //
+      d.setWritable(false, false /* all */);
+      d.setReadable(false, false /* all */);
+      d.setExecutable(false, false /* all */);
+
+      d.setWritable(true, true /* owner only */);
+      d.setReadable(true, true /* owner only */);
+      d.setExecutable(true, true /* owner only */);
+    }
+    return d.canWrite() ? d : null;
+  }
+
+  private static void pruneLibCache(File cache, Set<String> used) {
+    // Copies of libraries not part of this archive, and not used by
+    // any launch in the last 7 days, are likely left over from an
+    // older version. Remove them.
+    //
+    final File[] entries = cache.listFiles();
+    if (entries != null) {
+      final long expired =
+          System.currentTimeMillis() - MILLISECONDS.convert(7, DAYS);
+      for (final File entry : entries) {
+        if (!used.contains(entry.getName())
+            && entry.lastModified() < expired) {
+          entry.delete();
+        }
+      }
+    }
+  }
+
+  private static long libraryLoadTime;
+
+  /**
+   * @return milliseconds spent locating or extracting the libraries of the
+   *         archive during startup; 0 if they were not extracted.
+   */
+  public static long getLibraryLoadTime() {
+    return libraryLoadTime;
+  }
+
   private static void move(SortedMap<String, URL> jars,
       String prefix,
       List<URL> extapi) {
@@ -25,6 +25,7 @@ import com.google.gerrit.httpd.WebModule;
 import com.google.gerrit.httpd.WebSshGlueModule;
 import com.google.gerrit.httpd.auth.openid.OpenIdModule;
 import com.google.gerrit.httpd.plugins.HttpPluginModule;
+import com.google.gerrit.launcher.GerritLauncher;
 import com.google.gerrit.lifecycle.LifecycleManager;
 import com.google.gerrit.pgm.http.jetty.GetUserFilter;
 import com.google.gerrit.pgm.http.jetty.JettyEnv;
@@ -77,6 +78,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -179,7 +181,9 @@ public class Daemon extends SiteProgram {
         }
       });
 
-      log.info("Gerrit Code Review " + myVersion() + " ready");
+      log.info("Gerrit Code Review " + myVersion() + " ready"
+          + " (started in " + startupTime() + " ms, libraries loaded in "
+          + GerritLauncher.getLibraryLoadTime() + " ms)");
       if (runId != null) {
         try {
           runFile.createNewFile();
@@ -276,6 +280,12 @@ public class Daemon extends SiteProgram {
     return com.google.gerrit.common.Version.getVersion();
   }
 
+  /** @return milliseconds since the JVM started. */
+  private static long startupTime() {
+    return System.currentTimeMillis()
+        - ManagementFactory.getRuntimeMXBean().getStartTime();
+  }
+
   private Injector createCfgInjector() {
     final List<Module> modules = new ArrayList<Module>();
     modules.add(new AuthConfigModule());
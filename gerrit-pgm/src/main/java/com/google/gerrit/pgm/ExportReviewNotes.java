@@ -24,6 +24,7 @@ import com.google.gerrit.reviewdb.client.Change;
 import com.google.gerrit.reviewdb.client.PatchSet;
 import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.GerritPersonIdent;
 import com.google.gerrit.server.account.AccountCacheImpl;
 import com.google.gerrit.server.account.GroupCacheImpl;
 import com.google.gerrit.server.cache.h2.DefaultCacheFactory;
@@ -45,6 +46,7 @@ import com.google.inject.Scopes;
 
 import org.eclipse.jgit.errors.RepositoryNotFoundException;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.TextProgressMonitor;
 import org.eclipse.jgit.lib.ThreadSafeProgressMonitor;
@@ -53,6 +55,7 @@ import org.kohsuke.args4j.Option;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -60,7 +63,7 @@ import java.util.Map.Entry;
 /** Export review notes for all submitted changes in all projects. */
 public class ExportReviewNotes extends SiteProgram {
   @Option(name = "--threads", usage = "Number of concurrent threads to run")
-  private int threads = 2;
+  private int threads = Runtime.getRuntime().availableProcessors();
 
   private final LifecycleManager manager = new LifecycleManager();
   private final TextProgressMonitor textMonitor = new TextProgressMonitor();
@@ -79,6 +82,10 @@ public class ExportReviewNotes extends SiteProgram {
   @Inject
   private CreateCodeReviewNotes.Factory codeReviewNotesFactory;
 
+  @Inject
+  @GerritPersonIdent
+  private PersonIdent gerritIdent;
+
   private Map<Project.NameKey, List<Change>> changes;
 
   @Override
@@ -162,8 +169,7 @@ public class ExportReviewNotes extends SiteProgram {
   }
 
   private void export(ReviewDb db, Project.NameKey project, List<Change> changes)
-      throws IOException, OrmException, CodeReviewNoteCreationException,
-      InterruptedException {
+      throws IOException, OrmException, CodeReviewNoteCreationException {
     final Repository git;
     try {
       git = gitManager.openRepository(project);
@@ -171,22 +177,17 @@ public class ExportReviewNotes extends SiteProgram {
       return;
     }
     try {
-      CreateCodeReviewNotes notes = codeReviewNotesFactory.create(db, git);
-      try {
-        notes.loadBase();
-        for (Change change : changes) {
-          monitor.update(1);
-          PatchSet ps = db.patchSets().get(change.currentPatchSetId());
-          if (ps == null) {
-            continue;
-          }
-          notes.add(change, ObjectId.fromString(ps.getRevision().get()));
+      Map<ObjectId, Change> notes = new LinkedHashMap<ObjectId, Change>();
+      for (Change change : changes) {
+        monitor.update(1);
+        PatchSet ps = db.patchSets().get(change.currentPatchSetId());
+        if (ps == null) {
+          continue;
         }
-        notes.commit("Exported prior reviews from Gerrit Code Review\n");
-        notes.updateRef();
-      } finally {
-        notes.release();
+        notes.put(ObjectId.fromString(ps.getRevision().get()), change);
       }
+      codeReviewNotesFactory.create(db, git).create(notes, gerritIdent,
+          "Exported prior reviews from Gerrit Code Review\n");
     } finally {
       git.close();
     }
@@ -241,8 +242,6 @@ public class ExportReviewNotes extends SiteProgram {
               e.printStackTrace();
             } catch (CodeReviewNoteCreationException e) {
               e.printStackTrace();
-            } catch (InterruptedException e) {
-              e.printStackTrace();
             }
           } else {
             break;
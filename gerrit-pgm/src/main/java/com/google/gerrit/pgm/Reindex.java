@@ -0,0 +1,183 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.pgm;
+
+import static com.google.gerrit.server.schema.DataSourceProvider.Context.MULTI_USER;
+
+import com.google.gerrit.lifecycle.LifecycleManager;
+import com.google.gerrit.lifecycle.LifecycleModule;
+import com.google.gerrit.pgm.util.SiteProgram;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.cache.h2.DefaultCacheFactory;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.git.LocalDiskRepositoryManager;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.index.ChangeIndex;
+import com.google.gerrit.server.index.ChangeIndexer;
+import com.google.gerrit.server.index.IndexModule;
+import com.google.gerrit.server.patch.PatchListCacheImpl;
+import com.google.gerrit.server.schema.SchemaVersionCheck;
+import com.google.gwtorm.server.OrmException;
+import com.google.gwtorm.server.SchemaFactory;
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.lib.TextProgressMonitor;
+import org.eclipse.jgit.lib.ThreadSafeProgressMonitor;
+import org.kohsuke.args4j.Option;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Rebuild the secondary index of changes from the database. */
+public class Reindex extends SiteProgram {
+  @Option(name = "--threads", usage = "Number of concurrent threads to run")
+  private int threads = Runtime.getRuntime().availableProcessors();
+
+  private final LifecycleManager manager = new LifecycleManager();
+  private final TextProgressMonitor textMonitor = new TextProgressMonitor();
+  private final ThreadSafeProgressMonitor monitor =
+      new ThreadSafeProgressMonitor(textMonitor);
+
+  private Injector dbInjector;
+  private Injector sysInjector;
+
+  @Inject
+  private SchemaFactory<ReviewDb> database;
+
+  @Inject
+  private ChangeIndex index;
+
+  @Inject
+  private ChangeIndexer indexer;
+
+  private Iterator<Change> todo;
+  private final AtomicInteger failures = new AtomicInteger();
+
+  @Override
+  public int run() throws Exception {
+    if (threads <= 0) {
+      threads = 1;
+    }
+
+    dbInjector = createDbInjector(MULTI_USER);
+    Config cfg = dbInjector.getInstance(
+        Key.get(Config.class, GerritServerConfig.class));
+    final IndexModule.Type type = IndexModule.getType(cfg);
+    if (type == IndexModule.Type.NONE) {
+      throw die("index.type is not set in gerrit.config");
+    }
+
+    sysInjector = dbInjector.createChildInjector(new AbstractModule() {
+      @Override
+      protected void configure() {
+        install(SchemaVersionCheck.module());
+        install(new WorkQueue.Module());
+        install(new DefaultCacheFactory.Module());
+        install(PatchListCacheImpl.module());
+        install(new IndexModule(type));
+        install(new LifecycleModule() {
+          @Override
+          protected void configure() {
+            listener().to(LocalDiskRepositoryManager.Lifecycle.class);
+          }
+        });
+      }
+    });
+
+    manager.add(dbInjector, sysInjector);
+    manager.start();
+    sysInjector.injectMembers(this);
+
+    // Changes deleted from the database since the index was last built
+    // would otherwise never be removed from it.
+    index.deleteAll();
+
+    final ReviewDb db = database.open();
+    try {
+      todo = db.changes().all().iterator();
+      monitor.beginTask("Indexing changes", ProgressMonitor.UNKNOWN);
+      monitor.startWorkers(threads);
+      for (int tid = 0; tid < threads; tid++) {
+        new Worker().start();
+      }
+      monitor.waitForCompletion();
+      monitor.endTask();
+    } finally {
+      db.close();
+    }
+    manager.stop();
+
+    if (failures.get() != 0) {
+      System.err.println("error: reindex failed with "
+          + failures.get() + " errors");
+      return 1;
+    }
+    return 0;
+  }
+
+  private Change next() {
+    synchronized (todo) {
+      return todo.hasNext() ? todo.next() : null;
+    }
+  }
+
+  private void error(String msg, Exception e) {
+    System.err.println("error: " + msg + ": " + e.getMessage());
+    System.err.flush();
+  }
+
+  private class Worker extends Thread {
+    @Override
+    public void run() {
+      ReviewDb db;
+      try {
+        db = database.open();
+      } catch (OrmException e) {
+        error("cannot open database", e);
+        failures.incrementAndGet();
+        monitor.endWorker();
+        return;
+      }
+      try {
+        for (;;) {
+          Change change = next();
+          if (change == null) {
+            break;
+          }
+          try {
+            indexer.index(db, change);
+          } catch (IOException e) {
+            error("cannot index change " + change.getId(), e);
+            failures.incrementAndGet();
+          } catch (OrmException e) {
+            error("cannot index change " + change.getId(), e);
+            failures.incrementAndGet();
+          }
+          monitor.update(1);
+        }
+      } finally {
+        monitor.endWorker();
+        db.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,370 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.common;
+
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.AccountGroup;
+import com.google.gerrit.reviewdb.client.Branch;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.IdentifiedUser;
+import com.google.gerrit.server.account.GroupMembership;
+import com.google.gerrit.server.events.ChangeEvent;
+import com.google.gerrit.server.events.DroppedOutputEvent;
+import com.google.gerrit.server.events.EventJournal;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.gerrit.server.project.ProjectState;
+import com.google.gwtorm.server.OrmException;
+import com.google.gwtorm.server.SchemaFactory;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers events to {@link ChangeListener}s in the background.
+ * <p>
+ * Events are queued once by the thread firing them. A single dispatcher
+ * thread records them in the {@link EventJournal}, which numbers them, and
+ * hands them to listeners in that order. Listeners whose
+ * users are members of the same groups see the same events, so visibility
+ * is checked once per set of groups rather than once per listener. Draft
+ * changes, projects whose permissions refer to the user name, and users
+ * whose known groups omit a group the project refers to are still checked
+ * for each user.
+ * <p>
+ * Every listener has its own bounded queue, drained by a small pool of
+ * threads. A listener that cannot keep up loses events instead of delaying
+ * the others, and is then sent a {@link DroppedOutputEvent}.
+ */
+@Singleton
+public class ChangeEventDispatcher {
+  private static final Logger log =
+      LoggerFactory.getLogger(ChangeEventDispatcher.class);
+
+  /** Maximum number of events waiting for each listener. */
+  private static final int MAX_PENDING = 1024;
+
+  /** Number of events delivered to a listener before yielding the thread. */
+  private static final int BATCH_SIZE = 32;
+
+  private final ProjectCache projectCache;
+  private final EventJournal journal;
+  private final SchemaFactory<ReviewDb> schema;
+  private final WorkQueue.Executor dispatcher;
+  private final WorkQueue.Executor delivery;
+
+  private final Map<ChangeListener, Holder> listeners =
+      new ConcurrentHashMap<ChangeListener, Holder>();
+
+  private final AtomicLong dispatched = new AtomicLong();
+  private final AtomicLong totalDelay = new AtomicLong();
+  private final AtomicLong maxDelay = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+
+  @Inject
+  ChangeEventDispatcher(WorkQueue queue, ProjectCache projectCache,
+      EventJournal journal, SchemaFactory<ReviewDb> schema) {
+    this.projectCache = projectCache;
+    this.journal = journal;
+    this.schema = schema;
+    this.dispatcher = queue.createQueue(1, "EventDispatcher");
+    this.delivery = queue.createQueue(2, "EventDelivery");
+  }
+
+  public void addChangeListener(ChangeListener listener, IdentifiedUser user) {
+    listeners.put(listener, new Holder(listener, user));
+  }
+
+  public void removeChangeListener(ChangeListener listener) {
+    listeners.remove(listener);
+  }
+
+  /** Deliver an event about a change to listeners that can see the change. */
+  public void dispatch(Change change, ChangeEvent event) {
+    if (journal.isEnabled() || !listeners.isEmpty()) {
+      dispatcher.execute(new ChangeTask(change, event));
+    }
+  }
+
+  /** Deliver an event about a branch to listeners that can see the branch. */
+  public void dispatch(Branch.NameKey branch, ChangeEvent event) {
+    if (journal.isEnabled() || !listeners.isEmpty()) {
+      dispatcher.execute(new BranchTask(branch, event));
+    }
+  }
+
+  /** @return number of events handed to listener queues. */
+  public long getDispatchedCount() {
+    return dispatched.get();
+  }
+
+  /** @return average milliseconds between firing and dispatching events. */
+  public long getAverageDelay() {
+    long n = dispatched.get();
+    return 0 < n ? totalDelay.get() / n : 0;
+  }
+
+  /** @return largest milliseconds between firing and dispatching an event. */
+  public long getMaximumDelay() {
+    return maxDelay.get();
+  }
+
+  /** @return number of events discarded because a listener fell behind. */
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  private void recordDelay(long queued) {
+    long delay = System.currentTimeMillis() - queued;
+    dispatched.incrementAndGet();
+    totalDelay.addAndGet(delay);
+    for (;;) {
+      long max = maxDelay.get();
+      if (delay <= max || maxDelay.compareAndSet(max, delay)) {
+        break;
+      }
+    }
+  }
+
+  private static String name(ChangeEvent event) {
+    return event.getClass().getSimpleName();
+  }
+
+  private abstract class DispatchTask implements Runnable {
+    final ChangeEvent event;
+    final long queued;
+
+    DispatchTask(ChangeEvent event) {
+      this.event = event;
+      this.queued = System.currentTimeMillis();
+    }
+
+    @Override
+    public void run() {
+      recordDelay(queued);
+      try {
+        record();
+        deliver();
+      } catch (OrmException e) {
+        log.error("Cannot dispatch " + name(event), e);
+      } catch (RuntimeException e) {
+        log.error("Cannot dispatch " + name(event), e);
+      }
+    }
+
+    abstract void record();
+
+    abstract void deliver() throws OrmException;
+
+    @Override
+    public String toString() {
+      return "dispatch " + name(event);
+    }
+  }
+
+  private class ChangeTask extends DispatchTask {
+    private final Change change;
+
+    ChangeTask(Change change, ChangeEvent event) {
+      super(event);
+      this.change = change;
+    }
+
+    @Override
+    void record() {
+      Account.Id draftOwner = change.getStatus() == Change.Status.DRAFT
+          ? change.getOwner()
+          : null;
+      journal.append(change.getDest(), draftOwner, event);
+    }
+
+    @Override
+    void deliver() throws OrmException {
+      ProjectState pe = projectCache.get(change.getProject());
+      if (pe == null) {
+        return;
+      }
+
+      // Drafts are visible to their owner and reviewers, so their
+      // visibility cannot be shared between members of the same groups.
+      boolean perUser = change.getStatus() == Change.Status.DRAFT
+          || pe.hasUserParameters();
+      Set<AccountGroup.UUID> referenced =
+          perUser ? null : pe.getReferencedGroups();
+      Map<Object, Boolean> visible = new HashMap<Object, Boolean>();
+      ReviewDb db = null;
+      try {
+        for (Holder h : listeners.values()) {
+          Object key = h.visibilityKey(referenced);
+          Boolean v = visible.get(key);
+          if (v == null) {
+            if (db == null) {
+              db = schema.open();
+            }
+            v = pe.controlFor(h.user).controlFor(change).isVisible(db);
+            visible.put(key, v);
+          }
+          if (v) {
+            h.offer(event);
+          }
+        }
+      } finally {
+        if (db != null) {
+          db.close();
+        }
+      }
+    }
+
+    @Override
+    public String toString() {
+      return super.toString() + " " + change.getId();
+    }
+  }
+
+  private class BranchTask extends DispatchTask {
+    private final Branch.NameKey branch;
+
+    BranchTask(Branch.NameKey branch, ChangeEvent event) {
+      super(event);
+      this.branch = branch;
+    }
+
+    @Override
+    void record() {
+      journal.append(branch, null, event);
+    }
+
+    @Override
+    void deliver() {
+      ProjectState pe = projectCache.get(branch.getParentKey());
+      if (pe == null) {
+        return;
+      }
+
+      Set<AccountGroup.UUID> referenced =
+          pe.hasUserParameters() ? null : pe.getReferencedGroups();
+      Map<Object, Boolean> visible = new HashMap<Object, Boolean>();
+      for (Holder h : listeners.values()) {
+        Object key = h.visibilityKey(referenced);
+        Boolean v = visible.get(key);
+        if (v == null) {
+          v = pe.controlFor(h.user).controlForRef(branch).isVisible();
+          visible.put(key, v);
+        }
+        if (v) {
+          h.offer(event);
+        }
+      }
+    }
+
+    @Override
+    public String toString() {
+      return super.toString() + " " + branch.get();
+    }
+  }
+
+  private class Holder implements Runnable {
+    final ChangeListener listener;
+    final IdentifiedUser user;
+    final Set<AccountGroup.UUID> groups;
+    final BlockingQueue<ChangeEvent> queue;
+    final AtomicBoolean scheduled;
+    final AtomicBoolean overflowed;
+
+    Holder(ChangeListener listener, IdentifiedUser user) {
+      this.listener = listener;
+      this.user = user;
+      this.groups = user.getEffectiveGroups().getKnownGroups();
+      this.queue = new ArrayBlockingQueue<ChangeEvent>(MAX_PENDING);
+      this.scheduled = new AtomicBoolean();
+      this.overflowed = new AtomicBoolean();
+    }
+
+    /**
+     * @param referenced groups the access rules of the project refer to;
+     *        null if visibility must be checked for each user.
+     * @return key shared by listeners seeing the same events of the project.
+     *         This is the account of the user if its known groups miss one
+     *         of the referenced groups it is a member of.
+     */
+    Object visibilityKey(Set<AccountGroup.UUID> referenced) {
+      if (referenced == null) {
+        return user.getAccountId();
+      }
+      GroupMembership membership = user.getEffectiveGroups();
+      for (AccountGroup.UUID uuid : referenced) {
+        if (!groups.contains(uuid) && membership.contains(uuid)) {
+          return user.getAccountId();
+        }
+      }
+      return groups;
+    }
+
+    void offer(ChangeEvent event) {
+      if (!queue.offer(event)) {
+        dropped.incrementAndGet();
+        overflowed.set(true);
+      }
+      if (scheduled.compareAndSet(false, true)) {
+        delivery.execute(this);
+      }
+    }
+
+    @Override
+    public void run() {
+      if (overflowed.getAndSet(false)) {
+        try {
+          listener.onChangeEvent(new DroppedOutputEvent());
+        } catch (RuntimeException e) {
+          log.error("Listener failed on dropped events", e);
+        }
+      }
+      for (int n = 0; n < BATCH_SIZE; n++) {
+        ChangeEvent event = queue.poll();
+        if (event == null) {
+          break;
+        }
+        try {
+          listener.onChangeEvent(event);
+        } catch (RuntimeException e) {
+          log.error("Listener failed on " + name(event), e);
+        }
+      }
+
+      scheduled.set(false);
+      if (!queue.isEmpty() && listeners.get(listener) == this
+          && scheduled.compareAndSet(false, true)) {
+        delivery.execute(this);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "deliver " + queue.size() + " events to " + user.getUserName();
+    }
+  }
+}
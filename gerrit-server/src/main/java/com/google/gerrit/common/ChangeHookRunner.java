@@ -43,9 +43,9 @@ import com.google.gerrit.server.events.PatchSetCreatedEvent;
 import com.google.gerrit.server.events.RefUpdatedEvent;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.git.WorkQueue;
-import com.google.gerrit.server.project.ProjectCache;
-import com.google.gerrit.server.project.ProjectControl;
-import com.google.gerrit.server.project.ProjectState;
+import com.google.gerrit.server.index.ChangeIndexer;
+import com.google.gerrit.server.query.change.ChangeStatistics;
+import com.google.gerrit.server.query.change.ChangeStatistics.State;
 import com.google.gwtorm.server.OrmException;
 import com.google.inject.AbstractModule;
 import com.google.inject.Inject;
@@ -66,7 +66,6 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
 
 /** Spawns local executables when a hook action occurs. */
 @Singleton
@@ -82,20 +81,6 @@ public class ChangeHookRunner implements ChangeHooks {
       }
     }
 
-    private static class ChangeListenerHolder {
-        final ChangeListener listener;
-        final IdentifiedUser user;
-
-        ChangeListenerHolder(ChangeListener l, IdentifiedUser u) {
-            listener = l;
-            user = u;
-        }
-    }
-
-    /** Listeners to receive changes as they happen. */
-    private final Map<ChangeListener, ChangeListenerHolder> listeners =
-      new ConcurrentHashMap<ChangeListener, ChangeListenerHolder>();
-
     /** Filename of the new patchset hook. */
     private final File patchsetCreatedHook;
 
@@ -128,8 +113,6 @@ public class ChangeHookRunner implements ChangeHooks {
     /** Queue of hooks that need to run. */
     private final WorkQueue.Executor hookQueue;
 
-    private final ProjectCache projectCache;
-
     private final AccountCache accountCache;
 
     private final ApprovalTypes approvalTypes;
@@ -138,6 +121,12 @@ public class ChangeHookRunner implements ChangeHooks {
 
     private final SitePaths sitePaths;
 
+    private final ChangeIndexer indexer;
+
+    private final ChangeStatistics statistics;
+
+    private final ChangeEventDispatcher dispatcher;
+
     /**
      * Create a new ChangeHookRunner.
      *
@@ -145,24 +134,30 @@ public class ChangeHookRunner implements ChangeHooks {
      * @param repoManager The repository manager.
      * @param config Config file to use.
      * @param sitePath The sitepath of this gerrit install.
-     * @param projectCache the project cache instance for the server.
+     * @param indexer updates the change index as events occur.
+     * @param statistics change counts used to plan queries.
+     * @param dispatcher delivers events to listeners in the background.
      */
     @Inject
     public ChangeHookRunner(final WorkQueue queue,
       final GitRepositoryManager repoManager,
       final @GerritServerConfig Config config,
       final @AnonymousCowardName String anonymousCowardName,
-      final SitePaths sitePath, final ProjectCache projectCache,
+      final SitePaths sitePath,
       final AccountCache accountCache, final ApprovalTypes approvalTypes,
-      final EventFactory eventFactory, final SitePaths sitePaths) {
+      final EventFactory eventFactory, final SitePaths sitePaths,
+      final ChangeIndexer indexer, final ChangeStatistics statistics,
+      final ChangeEventDispatcher dispatcher) {
         this.anonymousCowardName = anonymousCowardName;
         this.repoManager = repoManager;
         this.hookQueue = queue.createQueue(1, "hook");
-        this.projectCache = projectCache;
         this.accountCache = accountCache;
         this.approvalTypes = approvalTypes;
         this.eventFactory = eventFactory;
         this.sitePaths = sitePath;
+        this.indexer = indexer;
+        this.statistics = statistics;
+        this.dispatcher = dispatcher;
 
         final File hooksPath = sitePath.resolve(getValue(config, "hooks", "path", sitePath.hooks_dir.getAbsolutePath()));
 
@@ -177,11 +172,11 @@ public class ChangeHookRunner implements ChangeHooks {
     }
 
     public void addChangeListener(ChangeListener listener, IdentifiedUser user) {
-        listeners.put(listener, new ChangeListenerHolder(listener, user));
+        dispatcher.addChangeListener(listener, user);
     }
 
     public void removeChangeListener(ChangeListener listener) {
-        listeners.remove(listener);
+        dispatcher.removeChangeListener(listener);
     }
 
     /**
@@ -228,6 +223,9 @@ public class ChangeHookRunner implements ChangeHooks {
         event.change = eventFactory.asChangeAttribute(change);
         event.patchSet = eventFactory.asPatchSetAttribute(patchSet);
         event.uploader = eventFactory.asAccountAttribute(uploader.getAccount());
+        if (patchSet.getPatchSetId() == 1) {
+            statistics.created(change);
+        }
         fireEvent(change, event, db);
 
         final List<String> args = new ArrayList<String>();
@@ -250,6 +248,8 @@ public class ChangeHookRunner implements ChangeHooks {
         event.change = eventFactory.asChangeAttribute(change);
         event.patchSet = eventFactory.asPatchSetAttribute(patchSet);
         event.uploader = eventFactory.asAccountAttribute(uploader.getAccount());
+        statistics.moved(change, State.of(Change.Status.DRAFT),
+            State.of(change.getStatus()));
         fireEvent(change, event, db);
 
         final List<String> args = new ArrayList<String>();
@@ -306,6 +306,7 @@ public class ChangeHookRunner implements ChangeHooks {
         event.change = eventFactory.asChangeAttribute(change);
         event.submitter = eventFactory.asAccountAttribute(account);
         event.patchSet = eventFactory.asPatchSetAttribute(patchSet);
+        statistics.moved(change, State.OPEN, State.MERGED);
         fireEvent(change, event, db);
 
         final List<String> args = new ArrayList<String>();
@@ -326,6 +327,7 @@ public class ChangeHookRunner implements ChangeHooks {
         event.change = eventFactory.asChangeAttribute(change);
         event.abandoner = eventFactory.asAccountAttribute(account);
         event.reason = reason;
+        statistics.moved(change, State.OPEN, State.ABANDONED);
         fireEvent(change, event, db);
 
         final List<String> args = new ArrayList<String>();
@@ -346,6 +348,7 @@ public class ChangeHookRunner implements ChangeHooks {
         event.change = eventFactory.asChangeAttribute(change);
         event.restorer = eventFactory.asAccountAttribute(account);
         event.reason = reason;
+        statistics.moved(change, State.ABANDONED, State.OPEN);
         fireEvent(change, event, db);
 
         final List<String> args = new ArrayList<String>();
@@ -396,37 +399,12 @@ public class ChangeHookRunner implements ChangeHooks {
     }
 
     private void fireEvent(final Change change, final ChangeEvent event, final ReviewDb db) throws OrmException {
-      for (ChangeListenerHolder holder : listeners.values()) {
-          if (isVisibleTo(change, holder.user, db)) {
-              holder.listener.onChangeEvent(event);
-          }
-      }
+      indexer.indexAsync(change.getId());
+      dispatcher.dispatch(change, event);
     }
 
     private void fireEvent(Branch.NameKey branchName, final ChangeEvent event) {
-      for (ChangeListenerHolder holder : listeners.values()) {
-          if (isVisibleTo(branchName, holder.user)) {
-              holder.listener.onChangeEvent(event);
-          }
-      }
-    }
-
-    private boolean isVisibleTo(Change change, IdentifiedUser user, ReviewDb db) throws OrmException {
-        final ProjectState pe = projectCache.get(change.getProject());
-        if (pe == null) {
-          return false;
-        }
-        final ProjectControl pc = pe.controlFor(user);
-        return pc.controlFor(change).isVisible(db);
-    }
-
-    private boolean isVisibleTo(Branch.NameKey branchName, IdentifiedUser user) {
-        final ProjectState pe = projectCache.get(branchName.getParentKey());
-        if (pe == null) {
-          return false;
-        }
-        final ProjectControl pc = pe.controlFor(user);
-        return pc.controlForRef(branchName).isVisible();
+      dispatcher.dispatch(branchName, event);
     }
 
     /**
@@ -18,5 +18,11 @@ import com.google.gerrit.server.events.ChangeEvent;
 
 
 public interface ChangeListener {
+    /**
+     * Receive an event.
+     * <p>
+     * A {@link com.google.gerrit.server.events.DroppedOutputEvent} is
+     * delivered after events were discarded because the listener fell behind.
+     */
     public void onChangeEvent(ChangeEvent event);
 }
@@ -16,12 +16,18 @@ package com.google.gerrit.rules;
 
 import static com.googlecode.prolog_cafe.lang.PrologMachineCopy.save;
 
+import com.google.common.cache.Cache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.cache.CacheModule;
 import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.config.SitePaths;
 import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.git.WorkQueue;
 import com.google.inject.Inject;
+import com.google.inject.Module;
 import com.google.inject.Singleton;
+import com.google.inject.name.Named;
 
 import com.googlecode.prolog_cafe.compiler.CompileException;
 import com.googlecode.prolog_cafe.lang.BufferingPrologControl;
@@ -39,20 +45,24 @@ import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectLoader;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.util.RawParseUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.PushbackReader;
 import java.io.StringReader;
-import java.lang.ref.Reference;
-import java.lang.ref.ReferenceQueue;
-import java.lang.ref.WeakReference;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.Collections;
 import java.util.EnumSet;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Manages a cache of compiled Prolog rules.
@@ -60,9 +70,56 @@ import java.util.Map;
  * Rules are loaded from the {@code site_path/cache/rules/rules-SHA1.jar}, where
  * {@code SHA1} is the SHA1 of the Prolog {@code rules.pl} in a project's
  * {@link GitRepositoryManager#REF_CONFIG} branch.
+ * <p>
+ * Machines are kept in the {@code "prolog_rules"} cache, keyed by that SHA1.
+ * Different rules are loaded concurrently, and callers needing rules that
+ * are being loaded wait only for those. Rules of a project are loaded in the
+ * background as soon as a new configuration of the project is read.
  */
 @Singleton
 public class RulesCache {
+  private static final Logger log = LoggerFactory.getLogger(RulesCache.class);
+
+  private static final String CACHE_NAME = "prolog_rules";
+
+  public static Module module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        cache(CACHE_NAME, ObjectId.class, PrologMachineCopy.class)
+          .maximumWeight(64);
+        bind(RulesCache.class);
+      }
+    };
+  }
+
+  /** Time spent loading and running the rules of a project. */
+  public static class Stats {
+    private final AtomicLong loadCount = new AtomicLong();
+    private final AtomicLong loadTime = new AtomicLong();
+    private final AtomicLong evalCount = new AtomicLong();
+    private final AtomicLong evalTime = new AtomicLong();
+
+    /** @return number of times the rules were compiled or consulted. */
+    public long getLoadCount() {
+      return loadCount.get();
+    }
+
+    /** @return total nanoseconds spent compiling or consulting the rules. */
+    public long getLoadTime() {
+      return loadTime.get();
+    }
+
+    /** @return number of submit rule evaluations. */
+    public long getEvaluationCount() {
+      return evalCount.get();
+    }
+
+    /** @return total nanoseconds spent evaluating submit rules. */
+    public long getEvaluationTime() {
+      return evalTime.get();
+    }
+  }
   /** Maximum size of a dynamic Prolog script, in bytes. */
   private static final int SRC_LIMIT = 128 * 1024;
 
@@ -74,21 +131,9 @@ public class RulesCache {
       "gerrit",
     };
 
-  private final Map<ObjectId, MachineRef> machineCache =
-      new HashMap<ObjectId, MachineRef>();
-
-  private final ReferenceQueue<PrologMachineCopy> dead =
-      new ReferenceQueue<PrologMachineCopy>();
-
-  private static final class MachineRef extends WeakReference<PrologMachineCopy> {
-    final ObjectId key;
-
-    MachineRef(ObjectId key, PrologMachineCopy pcm,
-        ReferenceQueue<PrologMachineCopy> queue) {
-      super(pcm, queue);
-      this.key = key;
-    }
-  }
+  private final Cache<ObjectId, PrologMachineCopy> machineCache;
+  private final ConcurrentMap<Project.NameKey, Stats> stats =
+      new ConcurrentHashMap<Project.NameKey, Stats>();
 
   private final boolean enableProjectRules;
   private final File cacheDir;
@@ -96,14 +141,18 @@ public class RulesCache {
   private final GitRepositoryManager gitMgr;
   private final ClassLoader systemLoader;
   private final PrologMachineCopy defaultMachine;
+  private final WorkQueue.Executor preloader;
 
   @Inject
   protected RulesCache(@GerritServerConfig Config config, SitePaths site,
-      GitRepositoryManager gm) {
+      GitRepositoryManager gm, WorkQueue queue,
+      @Named(CACHE_NAME) Cache<ObjectId, PrologMachineCopy> machineCache) {
     enableProjectRules = config.getBoolean("rules", null, "enable", true);
     cacheDir = site.resolve(config.getString("cache", null, "directory"));
     rulesDir = cacheDir != null ? new File(cacheDir, "rules") : null;
     gitMgr = gm;
+    preloader = enableProjectRules ? queue.createQueue(1, "RulesPreload") : null;
+    this.machineCache = machineCache;
 
     systemLoader = getClass().getClassLoader();
     defaultMachine = save(newEmptyMachine(systemLoader));
@@ -115,41 +164,98 @@ public class RulesCache {
    * @return a Prolog machine, after loading the specified rules.
    * @throws CompileException the machine cannot be created.
    */
-  public synchronized PrologMachineCopy loadMachine(
-      Project.NameKey project,
-      ObjectId rulesId)
+  public PrologMachineCopy loadMachine(
+      final Project.NameKey project,
+      final ObjectId rulesId)
       throws CompileException {
     if (!enableProjectRules || project == null || rulesId == null) {
       return defaultMachine;
     }
 
-    Reference<? extends PrologMachineCopy> ref = machineCache.get(rulesId);
-    if (ref != null) {
-      PrologMachineCopy pmc = ref.get();
-      if (pmc != null) {
-        return pmc;
+    PrologMachineCopy pmc = machineCache.getIfPresent(rulesId);
+    if (pmc != null) {
+      return pmc;
+    }
+
+    try {
+      return machineCache.get(rulesId, new Callable<PrologMachineCopy>() {
+        @Override
+        public PrologMachineCopy call() throws CompileException {
+          long start = System.nanoTime();
+          try {
+            return createMachine(project, rulesId);
+          } finally {
+            Stats s = getStats(project);
+            s.loadCount.incrementAndGet();
+            s.loadTime.addAndGet(System.nanoTime() - start);
+          }
+        }
+      });
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof CompileException) {
+        throw (CompileException) e.getCause();
       }
+      throw new CompileException("Cannot load rules of " + project, e);
+    } catch (UncheckedExecutionException e) {
+      throw new CompileException("Cannot load rules of " + project, e);
+    }
+  }
 
-      machineCache.remove(rulesId);
-      ref.enqueue();
+  /**
+   * Load rules in the background, if they are not already cached.
+   *
+   * @param project project the rules belong to.
+   * @param rulesId SHA1 of the rules, may be null if the project has none.
+   */
+  public void preload(final Project.NameKey project, final ObjectId rulesId) {
+    if (preloader == null || rulesId == null
+        || machineCache.getIfPresent(rulesId) != null) {
+      return;
     }
+    preloader.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          loadMachine(project, rulesId);
+        } catch (CompileException e) {
+          log.warn("Cannot load rules of " + project, e);
+        }
+      }
+
+      @Override
+      public String toString() {
+        return "preload rules of " + project.get();
+      }
+    });
+  }
 
-    gc();
+  /**
+   * Record the time taken to evaluate the submit rules of a change.
+   *
+   * @param project project of the change.
+   * @param elapsed nanoseconds spent evaluating the rules.
+   */
+  public void recordEvaluation(Project.NameKey project, long elapsed) {
+    Stats s = getStats(project);
+    s.evalCount.incrementAndGet();
+    s.evalTime.addAndGet(elapsed);
+  }
 
-    PrologMachineCopy pcm = createMachine(project, rulesId);
-    MachineRef newRef = new MachineRef(rulesId, pcm, dead);
-    machineCache.put(rulesId, newRef);
-    return pcm;
+  /** @return timings of each project whose rules were loaded or evaluated. */
+  public Map<Project.NameKey, Stats> getStats() {
+    return Collections.unmodifiableMap(stats);
   }
 
-  private void gc() {
-    Reference<?> ref;
-    while ((ref = dead.poll()) != null) {
-      ObjectId key = ((MachineRef) ref).key;
-      if (machineCache.get(key) == ref) {
-        machineCache.remove(key);
+  private Stats getStats(Project.NameKey project) {
+    Stats s = stats.get(project);
+    if (s == null) {
+      s = new Stats();
+      Stats old = stats.putIfAbsent(project, s);
+      if (old != null) {
+        s = old;
       }
     }
+    return s;
   }
 
   private PrologMachineCopy createMachine(Project.NameKey project,
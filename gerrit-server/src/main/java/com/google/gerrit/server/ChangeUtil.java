@@ -42,6 +42,7 @@ import com.google.gerrit.server.patch.PatchSetInfoNotAvailableException;
 import com.google.gerrit.server.project.ChangeControl;
 import com.google.gerrit.server.project.InvalidChangeOperationException;
 import com.google.gerrit.server.project.NoSuchChangeException;
+import com.google.gerrit.server.query.change.ChangeStatistics;
 import com.google.gwtorm.server.AtomicUpdate;
 import com.google.gwtorm.server.OrmConcurrencyException;
 import com.google.gwtorm.server.OrmException;
@@ -530,7 +531,8 @@ public class ChangeUtil {
 
   public static void deleteDraftChange(final PatchSet.Id patchSetId,
       GitRepositoryManager gitManager,
-      final GitReferenceUpdated replication, final ReviewDb db)
+      final GitReferenceUpdated replication,
+      final ChangeStatistics statistics, final ReviewDb db)
       throws NoSuchChangeException, OrmException, IOException {
     final Change.Id changeId = patchSetId.getParentKey();
     final Change change = db.changes().get(changeId);
@@ -547,6 +549,7 @@ public class ChangeUtil {
     db.starredChanges().delete(db.starredChanges().byChange(changeId));
     db.trackingIds().delete(db.trackingIds().byChange(changeId));
     db.changes().delete(Collections.singleton(change));
+    statistics.deleted(change, ChangeStatistics.State.of(change.getStatus()));
   }
 
   public static void deleteOnlyDraftPatchSet(final PatchSet patch,
@@ -36,6 +36,18 @@ public interface CacheBinding<K, V> {
   /** Algorithm to weigh an object with a method other than the unit weight 1. */
   CacheBinding<K, V> weigher(Class<? extends Weigher<K, V>> clazz);
 
+  /**
+   * Version of the data stored on disk. Increase to discard data written
+   * in an older format; it will not be read.
+   */
+  CacheBinding<K, V> version(int version);
+
+  /** Encode keys stored on disk with this serializer. */
+  CacheBinding<K, V> keySerializer(CacheSerializer<K> serializer);
+
+  /** Encode values stored on disk with this serializer. */
+  CacheBinding<K, V> valueSerializer(CacheSerializer<V> serializer);
+
   String name();
   TypeLiteral<K> keyType();
   TypeLiteral<V> valueType();
@@ -43,4 +55,7 @@ public interface CacheBinding<K, V> {
   @Nullable Long expireAfterWrite(TimeUnit unit);
   @Nullable Weigher<K, V> weigher();
   @Nullable CacheLoader<K, V> loader();
+  int version();
+  @Nullable CacheSerializer<K> keySerializer();
+  @Nullable CacheSerializer<V> valueSerializer();
 }
@@ -42,6 +42,9 @@ class CacheProvider<K, V>
   private Long expireAfterWrite;
   private Provider<CacheLoader<K, V>> loader;
   private Provider<Weigher<K, V>> weigher;
+  private int version;
+  private CacheSerializer<K> keySerializer;
+  private CacheSerializer<V> valueSerializer;
 
   private String plugin;
   private MemoryCacheFactory memoryCacheFactory;
@@ -107,6 +110,27 @@ class CacheProvider<K, V>
     return this;
   }
 
+  @Override
+  public CacheBinding<K, V> version(int v) {
+    Preconditions.checkState(!frozen, "binding frozen, cannot be modified");
+    version = v;
+    return this;
+  }
+
+  @Override
+  public CacheBinding<K, V> keySerializer(CacheSerializer<K> serializer) {
+    Preconditions.checkState(!frozen, "binding frozen, cannot be modified");
+    keySerializer = serializer;
+    return this;
+  }
+
+  @Override
+  public CacheBinding<K, V> valueSerializer(CacheSerializer<V> serializer) {
+    Preconditions.checkState(!frozen, "binding frozen, cannot be modified");
+    valueSerializer = serializer;
+    return this;
+  }
+
   @Override
   public String name() {
     if (!Strings.isNullOrEmpty(plugin)) {
@@ -150,6 +174,23 @@ class CacheProvider<K, V>
     return loader != null ? loader.get() : null;
   }
 
+  @Override
+  public int version() {
+    return version;
+  }
+
+  @Override
+  @Nullable
+  public CacheSerializer<K> keySerializer() {
+    return keySerializer;
+  }
+
+  @Override
+  @Nullable
+  public CacheSerializer<V> valueSerializer() {
+    return valueSerializer;
+  }
+
   @Override
   public Cache<K, V> get() {
     frozen = true;
@@ -0,0 +1,39 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.cache;
+
+/**
+ * Converts cache keys or values to bytes for storage on disk.
+ * <p>
+ * The encoding must be stable across server restarts. If it changes, the
+ * {@link CacheBinding#version(int)} of the cache must be increased so old
+ * data is not read with the new serializer.
+ *
+ * @param <T> type of object converted.
+ */
+public interface CacheSerializer<T> {
+  /**
+   * @param object the object to convert; never null.
+   * @return encoded form of the object.
+   */
+  byte[] serialize(T object);
+
+  /**
+   * @param in bytes previously returned by {@link #serialize(Object)}.
+   * @return the decoded object.
+   * @throws IllegalArgumentException the bytes cannot be decoded.
+   */
+  T deserialize(byte[] in);
+}
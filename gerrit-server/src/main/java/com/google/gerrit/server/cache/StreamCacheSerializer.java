@@ -0,0 +1,53 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/** Serializer written in terms of streams, as used by the ioutil helpers. */
+public abstract class StreamCacheSerializer<T> implements CacheSerializer<T> {
+  protected abstract void write(OutputStream out, T object) throws IOException;
+
+  protected abstract T read(InputStream in) throws IOException;
+
+  @Override
+  public byte[] serialize(T object) {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    try {
+      write(buf, object);
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot serialize " + object, e);
+    }
+    return buf.toByteArray();
+  }
+
+  @Override
+  public T deserialize(byte[] in) {
+    ByteArrayInputStream buf = new ByteArrayInputStream(in);
+    try {
+      T object = read(buf);
+      if (buf.available() != 0) {
+        throw new IllegalArgumentException(buf.available() + " extra bytes");
+      }
+      return object;
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Cannot deserialize", e);
+    }
+  }
+}
@@ -23,6 +23,7 @@ import com.google.gerrit.reviewdb.client.PatchSet;
 import com.google.gerrit.reviewdb.server.ReviewDb;
 import com.google.gerrit.server.ChangeUtil;
 import com.google.gerrit.server.IdentifiedUser;
+import com.google.gerrit.server.git.ChangeBranchCache;
 import com.google.gerrit.server.mail.AbandonedSender;
 import com.google.gerrit.server.mail.EmailException;
 import com.google.gerrit.server.project.ChangeControl;
@@ -44,6 +45,7 @@ public class AbandonChange implements Callable<ReviewResult> {
   private final ReviewDb db;
   private final IdentifiedUser currentUser;
   private final ChangeHooks hooks;
+  private final ChangeBranchCache changeBranchCache;
 
   @Argument(index = 0, required = true, multiValued = false, usage = "change to abandon")
   private Change.Id changeId;
@@ -63,12 +65,14 @@ public class AbandonChange implements Callable<ReviewResult> {
   @Inject
   AbandonChange(final AbandonedSender.Factory abandonedSenderFactory,
       final ChangeControl.Factory changeControlFactory, final ReviewDb db,
-      final IdentifiedUser currentUser, final ChangeHooks hooks) {
+      final IdentifiedUser currentUser, final ChangeHooks hooks,
+      final ChangeBranchCache changeBranchCache) {
     this.abandonedSenderFactory = abandonedSenderFactory;
     this.changeControlFactory = changeControlFactory;
     this.db = db;
     this.currentUser = currentUser;
     this.hooks = hooks;
+    this.changeBranchCache = changeBranchCache;
 
     changeId = null;
     message = null;
@@ -128,6 +132,7 @@ public class AbandonChange implements Callable<ReviewResult> {
         return result;
       }
 
+      changeBranchCache.update(updatedChange);
       ChangeUtil.updatedChange(db, currentUser, updatedChange, cmsg,
                                abandonedSenderFactory);
       hooks.doChangeAbandonedHook(updatedChange, currentUser.getAccount(),
@@ -26,6 +26,7 @@ import com.google.gerrit.server.patch.PatchSetInfoFactory;
 import com.google.gerrit.server.patch.PatchSetInfoNotAvailableException;
 import com.google.gerrit.server.project.ChangeControl;
 import com.google.gerrit.server.project.NoSuchChangeException;
+import com.google.gerrit.server.query.change.ChangeStatistics;
 import com.google.gwtorm.server.OrmException;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
@@ -46,6 +47,7 @@ public class DeleteDraftPatchSet implements Callable<ReviewResult> {
   private final GitRepositoryManager gitManager;
   private final GitReferenceUpdated replication;
   private final PatchSetInfoFactory patchSetInfoFactory;
+  private final ChangeStatistics statistics;
 
   private final PatchSet.Id patchSetId;
 
@@ -53,12 +55,13 @@ public class DeleteDraftPatchSet implements Callable<ReviewResult> {
   DeleteDraftPatchSet(ChangeControl.Factory changeControlFactory,
       ReviewDb db, GitRepositoryManager gitManager,
       GitReferenceUpdated replication, PatchSetInfoFactory patchSetInfoFactory,
-      @Assisted final PatchSet.Id patchSetId) {
+      ChangeStatistics statistics, @Assisted final PatchSet.Id patchSetId) {
     this.changeControlFactory = changeControlFactory;
     this.db = db;
     this.gitManager = gitManager;
     this.replication = replication;
     this.patchSetInfoFactory = patchSetInfoFactory;
+    this.statistics = statistics;
 
     this.patchSetId = patchSetId;
   }
@@ -97,7 +100,8 @@ public class DeleteDraftPatchSet implements Callable<ReviewResult> {
     List<PatchSet> restOfPatches = db.patchSets().byChange(changeId).toList();
     if (restOfPatches.size() == 0) {
       try {
-        ChangeUtil.deleteDraftChange(patchSetId, gitManager, replication, db);
+        ChangeUtil.deleteDraftChange(patchSetId, gitManager, replication,
+            statistics, db);
         result.setChangeId(null);
       } catch (IOException e) {
         result.addError(new ReviewResult.Error(
@@ -25,6 +25,7 @@ import com.google.gerrit.reviewdb.server.ReviewDb;
 import com.google.gerrit.server.ChangeUtil;
 import com.google.gerrit.server.IdentifiedUser;
 import com.google.gerrit.server.ProjectUtil;
+import com.google.gerrit.server.git.ChangeBranchCache;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.mail.EmailException;
 import com.google.gerrit.server.mail.RestoredSender;
@@ -51,6 +52,7 @@ public class RestoreChange implements Callable<ReviewResult> {
   private final GitRepositoryManager repoManager;
   private final IdentifiedUser currentUser;
   private final ChangeHooks hooks;
+  private final ChangeBranchCache changeBranchCache;
 
   @Argument(index = 0, required = true, multiValued = false,
             usage = "change to restore", metaVar = "CHANGE")
@@ -70,13 +72,14 @@ public class RestoreChange implements Callable<ReviewResult> {
   RestoreChange(final RestoredSender.Factory restoredSenderFactory,
       final ChangeControl.Factory changeControlFactory, final ReviewDb db,
       final GitRepositoryManager repoManager, final IdentifiedUser currentUser,
-      final ChangeHooks hooks) {
+      final ChangeHooks hooks, final ChangeBranchCache changeBranchCache) {
     this.restoredSenderFactory = restoredSenderFactory;
     this.changeControlFactory = changeControlFactory;
     this.db = db;
     this.repoManager = repoManager;
     this.currentUser = currentUser;
     this.hooks = hooks;
+    this.changeBranchCache = changeBranchCache;
 
     changeId = null;
     message = null;
@@ -147,6 +150,7 @@ public class RestoreChange implements Callable<ReviewResult> {
       return result;
     }
 
+    changeBranchCache.update(updatedChange);
     ChangeUtil.updatedChange(db, currentUser, updatedChange, cmsg,
                              restoredSenderFactory);
     hooks.doChangeRestoreHook(updatedChange, currentUser.getAccount(),
@@ -28,6 +28,7 @@ import com.google.gerrit.server.ProjectUtil;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.git.MergeOp;
 import com.google.gerrit.server.git.MergeQueue;
+import com.google.gerrit.server.index.ChangeIndexer;
 import com.google.gerrit.server.project.ChangeControl;
 import com.google.gerrit.server.project.InvalidChangeOperationException;
 import com.google.gerrit.server.project.NoSuchChangeException;
@@ -54,6 +55,7 @@ public class Submit implements Callable<ReviewResult> {
   private final ReviewDb db;
   private final GitRepositoryManager repoManager;
   private final IdentifiedUser currentUser;
+  private final ChangeIndexer indexer;
 
   private final PatchSet.Id patchSetId;
 
@@ -61,13 +63,15 @@ public class Submit implements Callable<ReviewResult> {
   Submit(final ChangeControl.Factory changeControlFactory,
       final MergeOp.Factory opFactory, final MergeQueue merger,
       final ReviewDb db, final GitRepositoryManager repoManager,
-      final IdentifiedUser currentUser, @Assisted final PatchSet.Id patchSetId) {
+      final IdentifiedUser currentUser, final ChangeIndexer indexer,
+      @Assisted final PatchSet.Id patchSetId) {
     this.changeControlFactory = changeControlFactory;
     this.opFactory = opFactory;
     this.merger = merger;
     this.db = db;
     this.repoManager = repoManager;
     this.currentUser = currentUser;
+    this.indexer = indexer;
 
     this.patchSetId = patchSetId;
   }
@@ -197,6 +201,7 @@ public class Submit implements Callable<ReviewResult> {
           return change;
         }
       });
+      indexer.indexAsync(changeId);
 
       if (updatedChange.getStatus() == Change.Status.SUBMITTED) {
         merger.merge(opFactory, updatedChange.getDest());
@@ -50,12 +50,19 @@ import com.google.gerrit.server.account.UniversalGroupBackend;
 import com.google.gerrit.server.auth.ldap.LdapModule;
 import com.google.gerrit.server.events.EventFactory;
 import com.google.gerrit.server.extensions.events.GitReferenceUpdated;
+import com.google.gerrit.server.git.AdvertisedRefsCache;
+import com.google.gerrit.server.git.ChangeBranchCache;
 import com.google.gerrit.server.git.ChangeMergeQueue;
+import com.google.gerrit.server.git.CreateCodeReviewNotes;
 import com.google.gerrit.server.git.GitModule;
 import com.google.gerrit.server.git.MergeQueue;
+import com.google.gerrit.server.git.ReachabilityCache;
 import com.google.gerrit.server.git.ReloadSubmitQueueOp;
+import com.google.gerrit.server.git.ReviewNoteWriter;
+import com.google.gerrit.server.git.SuperprojectUpdateQueue;
 import com.google.gerrit.server.git.TagCache;
 import com.google.gerrit.server.git.TransferConfig;
+import com.google.gerrit.server.index.IndexModule;
 import com.google.gerrit.server.mail.FromAddressGenerator;
 import com.google.gerrit.server.mail.FromAddressGeneratorProvider;
 import com.google.gerrit.server.mail.VelocityRuntimeProvider;
@@ -69,6 +76,8 @@ import com.google.gerrit.server.project.ProjectControl;
 import com.google.gerrit.server.project.ProjectNode;
 import com.google.gerrit.server.project.ProjectState;
 import com.google.gerrit.server.project.SectionSortCache;
+import com.google.gerrit.server.project.SubmitRecordCache;
+import com.google.gerrit.server.query.change.ChangeStatistics;
 import com.google.gerrit.server.tools.ToolsCatalog;
 import com.google.gerrit.server.util.IdGenerator;
 import com.google.gerrit.server.util.ThreadLocalRequestContext;
@@ -83,11 +92,13 @@ import org.eclipse.jgit.lib.Config;
 /** Starts global state with standard dependencies. */
 public class GerritGlobalModule extends FactoryModule {
   private final AuthType loginType;
+  private final IndexModule.Type indexType;
 
   @Inject
   GerritGlobalModule(final AuthConfig authConfig,
       @GerritServerConfig final Config config) {
     loginType = authConfig.getAuthType();
+    indexType = IndexModule.getType(config);
   }
 
   @Override
@@ -114,17 +125,25 @@ public class GerritGlobalModule extends FactoryModule {
         SINGLETON);
 
     bind(IdGenerator.class);
-    bind(RulesCache.class);
     install(AccountByEmailCacheImpl.module());
     install(AccountCacheImpl.module());
+    install(AdvertisedRefsCache.module());
+    install(ChangeBranchCache.module());
     install(GroupCacheImpl.module());
     install(GroupIncludeCacheImpl.module());
     install(PatchListCacheImpl.module());
     install(ProjectCacheImpl.module());
+    install(ReachabilityCache.module());
+    install(RulesCache.module());
     install(SectionSortCache.module());
+    install(SubmitRecordCache.module());
     install(TagCache.module());
     install(new AccessControlModule());
     install(new GitModule());
+    install(new IndexModule(indexType));
+    install(new ChangeStatistics.Module());
+    install(new ReviewNoteWriter.Module());
+    install(new SuperprojectUpdateQueue.Module());
     install(new PrologModule());
     install(ThreadLocalRequestContext.module());
 
@@ -154,6 +173,7 @@ public class GerritGlobalModule extends FactoryModule {
     bind(ChangeMergeQueue.class).in(SINGLETON);
     bind(MergeQueue.class).to(ChangeMergeQueue.class).in(SINGLETON);
     factory(ReloadSubmitQueueOp.Factory.class);
+    factory(CreateCodeReviewNotes.Factory.class);
 
     bind(RuntimeInstance.class)
         .toProvider(VelocityRuntimeProvider.class)
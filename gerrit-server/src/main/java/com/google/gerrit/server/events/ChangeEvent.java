@@ -15,4 +15,6 @@
 package com.google.gerrit.server.events;
 
 public abstract class ChangeEvent {
+  /** Position of the event in the {@link EventJournal}. */
+  public long seq;
 }
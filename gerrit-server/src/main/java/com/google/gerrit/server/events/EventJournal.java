@@ -0,0 +1,346 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.events;
+
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.Branch;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.IdentifiedUser;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.config.SitePaths;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.gerrit.server.project.ProjectState;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.eclipse.jgit.lib.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only record of the events delivered to stream-events clients.
+ * <p>
+ * Every event is given a sequence number, and written as one line of JSON to
+ * a segment file named after the first sequence number it contains. The
+ * oldest segments are deleted once the journal exceeds its size limit.
+ * <p>
+ * Along with the event, each line holds the project and branch it concerns,
+ * and the owner of draft changes, so {@link #replay(long, IdentifiedUser,
+ * Receiver)} can check visibility from the project cache alone.
+ */
+@Singleton
+public class EventJournal {
+  private static final Logger log = LoggerFactory.getLogger(EventJournal.class);
+
+  private static final String PREFIX = "events-";
+  private static final String SUFFIX = ".json";
+
+  /** Receives the events found by {@link EventJournal#replay}. */
+  public interface Receiver {
+    /**
+     * @param json event in the format sent to stream-events clients.
+     * @return false to stop the replay.
+     */
+    boolean onEvent(String json);
+  }
+
+  private static class Record {
+    long seq;
+    String project;
+    String ref;
+    Integer draftOwner;
+    JsonElement event;
+  }
+
+  private final File dir;
+  private final long maxSize;
+  private final long segmentSize;
+  private final ProjectCache projectCache;
+  private final Gson gson = new Gson();
+
+  private boolean opened;
+  private long lastSeq;
+  private File current;
+  private Writer writer;
+  private long written;
+
+  @Inject
+  EventJournal(@GerritServerConfig Config cfg, SitePaths site,
+      ProjectCache projectCache) {
+    this.projectCache = projectCache;
+    if (cfg.getBoolean("events", "journal", true)) {
+      this.dir = new File(site.data_dir, "events");
+    } else {
+      this.dir = null;
+    }
+    this.maxSize = cfg.getLong("events", null, "journalLimit", 64 << 20);
+    this.segmentSize = Math.max(maxSize / 8, 1 << 20);
+  }
+
+  /** @return true if events are written to disk. */
+  public boolean isEnabled() {
+    return dir != null;
+  }
+
+  /**
+   * Assign the next sequence number to an event and record it.
+   *
+   * @param branch project and branch the event is about.
+   * @param draftOwner owner of the change if it is a draft, otherwise null.
+   * @param event event to record; its sequence number is set.
+   */
+  public synchronized void append(Branch.NameKey branch,
+      Account.Id draftOwner, ChangeEvent event) {
+    open();
+    event.seq = ++lastSeq;
+    if (dir == null) {
+      return;
+    }
+
+    Record r = new Record();
+    r.seq = event.seq;
+    r.project = branch.getParentKey().get();
+    r.ref = branch.get();
+    r.draftOwner = draftOwner != null ? draftOwner.get() : null;
+    r.event = gson.toJsonTree(event);
+
+    try {
+      if (writer == null || segmentSize <= written) {
+        startSegment(r.seq);
+      }
+      String line = gson.toJson(r) + "\n";
+      writer.write(line);
+      writer.flush();
+      written += line.length();
+    } catch (IOException e) {
+      log.error("Cannot write event " + r.seq + " to " + current, e);
+      closeWriter();
+    }
+  }
+
+  /** @return sequence number of the most recent event. */
+  public synchronized long getLastSequence() {
+    open();
+    return lastSeq;
+  }
+
+  /**
+   * @return sequence number of the oldest event still recorded; one more
+   *         than {@link #getLastSequence()} if no events are recorded.
+   */
+  public synchronized long getFirstSequence() {
+    open();
+    List<File> files = segments();
+    return files.isEmpty() ? lastSeq + 1 : firstSeq(files.get(0));
+  }
+
+  /**
+   * Send recorded events visible to a user.
+   * <p>
+   * Only events recorded before the replay started are sent.
+   *
+   * @param from sequence number of the first event to send.
+   * @param user user the events are filtered for.
+   * @param out receiver of the visible events.
+   * @return sequence number of the last event considered; events after it
+   *         are yet to be sent.
+   */
+  public long replay(long from, IdentifiedUser user, Receiver out) {
+    long last;
+    List<File> files;
+    synchronized (this) {
+      open();
+      last = lastSeq;
+      files = segments();
+    }
+
+    long seq = Math.max(from - 1, 0);
+    Map<String, Boolean> visible = new HashMap<String, Boolean>();
+    for (int i = 0; i < files.size(); i++) {
+      if (i + 1 < files.size() && firstSeq(files.get(i + 1)) <= from) {
+        continue;
+      }
+
+      try {
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+            new FileInputStream(files.get(i)), "UTF-8"));
+        try {
+          String line;
+          while ((line = in.readLine()) != null) {
+            Record r = parse(line);
+            if (r == null || r.seq < from) {
+              continue;
+            } else if (last < r.seq) {
+              return last;
+            }
+            seq = r.seq;
+            if (isVisible(r, user, visible)
+                && !out.onEvent(gson.toJson(r.event))) {
+              return seq;
+            }
+          }
+        } finally {
+          in.close();
+        }
+      } catch (IOException e) {
+        // The segment may have been deleted to make room for new events.
+        log.warn("Cannot read " + files.get(i), e);
+      }
+    }
+    return Math.max(seq, last);
+  }
+
+  private Record parse(String line) {
+    try {
+      return gson.fromJson(line, Record.class);
+    } catch (JsonParseException e) {
+      return null;
+    }
+  }
+
+  private boolean isVisible(Record r, IdentifiedUser user,
+      Map<String, Boolean> cache) {
+    if (r.draftOwner != null && r.draftOwner != user.getAccountId().get()) {
+      // Reviewers of drafts are only known to the database.
+      return false;
+    }
+
+    String key = r.project + "\0" + r.ref;
+    Boolean v = cache.get(key);
+    if (v == null) {
+      Project.NameKey p = new Project.NameKey(r.project);
+      ProjectState pe = projectCache.get(p);
+      v = pe != null
+          && pe.controlFor(user).controlForRef(r.ref).isVisible();
+      cache.put(key, v);
+    }
+    return v;
+  }
+
+  private void open() {
+    if (opened) {
+      return;
+    }
+    opened = true;
+    if (dir == null) {
+      return;
+    }
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      log.error("Cannot create event journal " + dir);
+      return;
+    }
+
+    List<File> files = segments();
+    if (!files.isEmpty()) {
+      File last = files.get(files.size() - 1);
+      lastSeq = firstSeq(last) - 1;
+      try {
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+            new FileInputStream(last), "UTF-8"));
+        try {
+          String line;
+          while ((line = in.readLine()) != null) {
+            Record r = parse(line);
+            if (r != null) {
+              lastSeq = Math.max(lastSeq, r.seq);
+            }
+          }
+        } finally {
+          in.close();
+        }
+      } catch (IOException e) {
+        log.warn("Cannot read " + last, e);
+      }
+    }
+  }
+
+  private void startSegment(long seq) throws IOException {
+    closeWriter();
+    current = new File(dir, String.format("%s%016d%s", PREFIX, seq, SUFFIX));
+    writer = new OutputStreamWriter(new FileOutputStream(current), "UTF-8");
+    written = 0;
+
+    List<File> files = segments();
+    long total = 0;
+    for (File f : files) {
+      total += f.length();
+    }
+    for (File f : files) {
+      if (total <= maxSize || f.equals(current)) {
+        break;
+      }
+      total -= f.length();
+      if (!f.delete()) {
+        log.warn("Cannot delete " + f);
+      }
+    }
+  }
+
+  private void closeWriter() {
+    if (writer != null) {
+      try {
+        writer.close();
+      } catch (IOException e) {
+        log.warn("Cannot close " + current, e);
+      }
+      writer = null;
+    }
+  }
+
+  /** @return all segments, oldest first. */
+  private List<File> segments() {
+    List<File> r = new ArrayList<File>();
+    File[] files = dir != null ? dir.listFiles() : null;
+    if (files != null) {
+      for (File f : files) {
+        if (0 <= firstSeq(f)) {
+          r.add(f);
+        }
+      }
+    }
+    Collections.sort(r);
+    return r;
+  }
+
+  private static long firstSeq(File f) {
+    String n = f.getName();
+    if (n.startsWith(PREFIX) && n.endsWith(SUFFIX)) {
+      try {
+        return Long.parseLong(
+            n.substring(PREFIX.length(), n.length() - SUFFIX.length()));
+      } catch (NumberFormatException e) {
+        return -1;
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,225 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.git;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
+import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.AccountGroup;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.IdentifiedUser;
+import com.google.gerrit.server.account.GroupMembership;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.gerrit.server.project.ProjectControl;
+import com.google.gerrit.server.project.ProjectState;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the references advertised to users with equivalent access.
+ * <p>
+ * Many clients sharing the same group membership (e.g. build robots) fetch
+ * the same projects over and over. The result of {@link VisibleRefFilter}
+ * only depends on the access rules of the project, on which of the groups
+ * named by those rules the user is a member of, and on the current
+ * references, so it can be shared between them. Draft changes are visible
+ * to specific users and are never part of the shared result.
+ * <p>
+ * References are not read to build the key. Instead each project has a
+ * generation, advanced whenever Gerrit reports a reference update, so
+ * entries are only valid as long as references are modified through
+ * Gerrit.
+ */
+@Singleton
+public class AdvertisedRefsCache implements GitReferenceUpdatedListener {
+  private static final String CACHE_NAME = "advertised_refs";
+
+  public static Module module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        cache(CACHE_NAME, Key.class, Entry.class)
+          .maximumWeight(1 << 20)
+          .weigher(EntryWeigher.class);
+        bind(AdvertisedRefsCache.class);
+        DynamicSet.bind(binder(), GitReferenceUpdatedListener.class)
+          .to(AdvertisedRefsCache.class);
+      }
+    };
+  }
+
+  private final Cache<Key, Entry> cache;
+  private final ConcurrentMap<Project.NameKey, AtomicLong> generations;
+
+  @Inject
+  AdvertisedRefsCache(@Named(CACHE_NAME) Cache<Key, Entry> cache) {
+    this.cache = cache;
+    this.generations = new ConcurrentHashMap<Project.NameKey, AtomicLong>();
+  }
+
+  Entry get(Key key) {
+    return cache.getIfPresent(key);
+  }
+
+  void put(Key key, Entry entry) {
+    cache.put(key, entry);
+  }
+
+  @Override
+  public void onGitReferenceUpdated(Event event) {
+    generation(new Project.NameKey(event.getProjectName())).incrementAndGet();
+  }
+
+  private AtomicLong generation(Project.NameKey project) {
+    AtomicLong g = generations.get(project);
+    if (g == null) {
+      g = new AtomicLong();
+      AtomicLong prior = generations.putIfAbsent(project, g);
+      if (prior != null) {
+        g = prior;
+      }
+    }
+    return g;
+  }
+
+  /**
+   * Create the key describing an advertisement.
+   * <p>
+   * The key must be created before the references are read, so that an
+   * entry filled from references read while they are being updated is
+   * stored under an outdated generation.
+   *
+   * @param ctl project and user the references are filtered for.
+   * @param showChanges true if patch set references may be advertised.
+   * @return key identifying equivalent advertisements.
+   */
+  Key key(ProjectControl ctl, boolean showChanges) {
+    ProjectState state = ctl.getProjectState();
+    Project.NameKey project = state.getProject().getNameKey();
+    return new Key(
+        project,
+        state.getConfigRevisions(),
+        generation(project).get(),
+        membershipKey(state, ctl.getCurrentUser()),
+        showChanges);
+  }
+
+  /**
+   * @return the groups named by the project's access rules the user is a
+   *         member of. This is the account of the user if the rules refer
+   *         to the user name, or if its known groups miss one of the
+   *         referenced groups it is a member of.
+   */
+  private static Object membershipKey(ProjectState state, CurrentUser user) {
+    Account.Id account = user instanceof IdentifiedUser
+        ? ((IdentifiedUser) user).getAccountId()
+        : null;
+    if (account != null && state.hasUserParameters()) {
+      return account;
+    }
+
+    GroupMembership membership = user.getEffectiveGroups();
+    Set<AccountGroup.UUID> known = membership.getKnownGroups();
+    Set<AccountGroup.UUID> groups = new HashSet<AccountGroup.UUID>();
+    for (AccountGroup.UUID uuid : state.getReferencedGroups()) {
+      if (known.contains(uuid)) {
+        groups.add(uuid);
+      } else if (membership.contains(uuid)) {
+        if (account != null) {
+          return account;
+        }
+        groups.add(uuid);
+      }
+    }
+    return ImmutableSet.copyOf(groups);
+  }
+
+  static class Key {
+    private final Project.NameKey project;
+    private final List<ObjectId> config;
+    private final long generation;
+    private final Object members;
+    private final boolean showChanges;
+    private final int hashCode;
+
+    Key(Project.NameKey project, List<ObjectId> config, long generation,
+        Object members, boolean showChanges) {
+      this.project = project;
+      this.config = config;
+      this.generation = generation;
+      this.members = members;
+      this.showChanges = showChanges;
+      this.hashCode = Arrays.hashCode(new Object[] {
+          project, config, generation, members, showChanges});
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (o instanceof Key) {
+        Key k = (Key) o;
+        return hashCode == k.hashCode
+            && generation == k.generation
+            && showChanges == k.showChanges
+            && project.equals(k.project)
+            && config.equals(k.config)
+            && members.equals(k.members);
+      }
+      return false;
+    }
+  }
+
+  /** Filtered references, plus draft references still to be checked. */
+  static class Entry {
+    final Map<String, Ref> refs;
+    final List<Ref> drafts;
+
+    Entry(Map<String, Ref> refs, List<Ref> drafts) {
+      this.refs = ImmutableMap.copyOf(refs);
+      this.drafts = ImmutableList.copyOf(drafts);
+    }
+  }
+
+  static class EntryWeigher implements Weigher<Key, Entry> {
+    @Override
+    public int weigh(Key key, Entry value) {
+      return 1 + value.refs.size() + value.drafts.size();
+    }
+  }
+}
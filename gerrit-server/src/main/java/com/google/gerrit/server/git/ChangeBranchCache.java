@@ -0,0 +1,156 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.git;
+
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.gerrit.reviewdb.client.Branch;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.gwtorm.server.SchemaFactory;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Caches the destination branch of every change in a project.
+ * <p>
+ * A change's branch never changes after it is created, so the visibility
+ * of most changes can be derived from the visibility of their branch
+ * without reading the change from the database. Entries are loaded once
+ * per project and then updated as changes are created or modified.
+ */
+@Singleton
+public class ChangeBranchCache {
+  private static final Logger log =
+      LoggerFactory.getLogger(ChangeBranchCache.class);
+
+  private static final String CACHE_NAME = "change_branches";
+
+  public static Module module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        cache(CACHE_NAME, String.class, Changes.class)
+          .loader(Loader.class);
+        bind(ChangeBranchCache.class);
+      }
+    };
+  }
+
+  private final LoadingCache<String, Changes> cache;
+
+  @Inject
+  ChangeBranchCache(@Named(CACHE_NAME) LoadingCache<String, Changes> cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Get the changes of a project, loading them if necessary.
+   *
+   * @param name the project.
+   * @return changes of the project; null if they cannot be loaded.
+   */
+  Changes get(Project.NameKey name) {
+    try {
+      return cache.get(name.get());
+    } catch (ExecutionException e) {
+      log.warn(String.format("Cannot load changes of %s", name.get()), e);
+      return null;
+    }
+  }
+
+  /**
+   * Record the current state of a change.
+   * <p>
+   * Projects that are not cached are ignored, they will read the change
+   * from the database when next loaded.
+   *
+   * @param change the change, after it was created or updated.
+   */
+  public void update(Change change) {
+    Changes c = cache.getIfPresent(change.getProject().get());
+    if (c != null) {
+      c.put(change);
+    }
+  }
+
+  /** Destination branch and draft status of each change in one project. */
+  static class Changes {
+    private final ConcurrentMap<Change.Id, Branch.NameKey> dest =
+        new ConcurrentHashMap<Change.Id, Branch.NameKey>();
+    private final ConcurrentMap<Branch.NameKey, Branch.NameKey> branches =
+        new ConcurrentHashMap<Branch.NameKey, Branch.NameKey>();
+    private final Set<Change.Id> drafts = Collections.newSetFromMap(
+        new ConcurrentHashMap<Change.Id, Boolean>());
+
+    /** @return destination of the change; null if the change is unknown. */
+    Branch.NameKey getBranch(Change.Id id) {
+      return dest.get(id);
+    }
+
+    /** @return true if the change was a draft when last recorded. */
+    boolean isDraft(Change.Id id) {
+      return drafts.contains(id);
+    }
+
+    void put(Change change) {
+      Branch.NameKey b = change.getDest();
+      Branch.NameKey old = branches.putIfAbsent(b, b);
+      dest.put(change.getId(), old != null ? old : b);
+      if (change.getStatus() == Change.Status.DRAFT) {
+        drafts.add(change.getId());
+      } else {
+        drafts.remove(change.getId());
+      }
+    }
+  }
+
+  static class Loader extends CacheLoader<String, Changes> {
+    private final SchemaFactory<ReviewDb> schema;
+
+    @Inject
+    Loader(SchemaFactory<ReviewDb> schema) {
+      this.schema = schema;
+    }
+
+    @Override
+    public Changes load(String projectName) throws Exception {
+      Changes changes = new Changes();
+      ReviewDb db = schema.open();
+      try {
+        Project.NameKey p = new Project.NameKey(projectName);
+        for (Change change : db.changes().byProject(p)) {
+          changes.put(change);
+        }
+      } finally {
+        db.close();
+      }
+      return changes;
+    }
+  }
+}
@@ -53,15 +53,17 @@ import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevWalk;
 
 import java.io.IOException;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.annotation.Nullable;
 
 /**
  * This class create code review notes for given {@link CodeReviewCommit}s.
  * <p>
- * After the {@link #create(List, PersonIdent)} method is invoked once this
- * instance must not be reused. Create a new instance of this class if needed.
+ * After one of the {@code create} methods is invoked once this instance must
+ * not be reused. Create a new instance of this class if needed.
  */
 public class CreateCodeReviewNotes {
   public interface Factory {
@@ -76,7 +78,6 @@ public class CreateCodeReviewNotes {
   private final PersonIdent gerritIdent;
   private final AccountCache accountCache;
   private final ApprovalTypes approvalTypes;
-  private final String canonicalWebUrl;
   private final String anonymousCowardName;
   private final Repository db;
   private final RevWalk revWalk;
@@ -89,8 +90,8 @@ public class CreateCodeReviewNotes {
   private RevCommit oursCommit;
   private NoteMap ours;
 
-  private List<CodeReviewCommit> commits;
   private PersonIdent author;
+  private String canonicalWebUrl;
 
   @Inject
   CreateCodeReviewNotes(
@@ -115,13 +116,50 @@ public class CreateCodeReviewNotes {
     reader = db.newObjectReader();
   }
 
+  /**
+   * Set the URL of the {@code Reviewed-on} lines of the notes.
+   * <p>
+   * Needed outside of a request, where the URL injected from the server
+   * configuration may be missing.
+   *
+   * @param url URL of the server.
+   */
+  public void setCanonicalWebUrl(String url) {
+    canonicalWebUrl = url;
+  }
+
   public void create(List<CodeReviewCommit> commits, PersonIdent author)
       throws CodeReviewNoteCreationException {
+    StringBuilder message =
+        new StringBuilder("Update notes for submitted changes\n\n");
+    Map<ObjectId, Change> notes = new LinkedHashMap<ObjectId, Change>();
+    for (CodeReviewCommit c : commits) {
+      notes.put(c, c.change);
+      message.append("* ").append(c.getShortMessage()).append("\n");
+    }
+    create(notes, author, message.toString());
+  }
+
+  /**
+   * Add the notes of many changes in a single commit.
+   * <p>
+   * The notes tree is loaded lazily, so only the fan-out buckets holding the
+   * annotated commits are read and rewritten.
+   *
+   * @param notes change of each commit to annotate.
+   * @param author author of the notes commit.
+   * @param message message of the notes commit.
+   * @throws CodeReviewNoteCreationException the notes cannot be written.
+   */
+  public void create(Map<ObjectId, Change> notes, PersonIdent author,
+      String message) throws CodeReviewNoteCreationException {
     try {
-      this.commits = commits;
       this.author = author;
       loadBase();
-      applyNotes();
+      for (Map.Entry<ObjectId, Change> e : notes.entrySet()) {
+        add(e.getValue(), e.getKey());
+      }
+      commit(message);
       updateRef();
     } catch (IOException e) {
       throw new CodeReviewNoteCreationException(e);
@@ -139,22 +177,12 @@ public class CreateCodeReviewNotes {
       base = NoteMap.read(revWalk.getObjectReader(), baseCommit);
     }
     if (baseCommit != null) {
-      ours = NoteMap.read(db.newObjectReader(), baseCommit);
+      ours = NoteMap.read(reader, baseCommit);
     } else {
       ours = NoteMap.newEmptyMap();
     }
   }
 
-  private void applyNotes() throws IOException, CodeReviewNoteCreationException {
-    StringBuilder message =
-        new StringBuilder("Update notes for submitted changes\n\n");
-    for (CodeReviewCommit c : commits) {
-      add(c.change, c);
-      message.append("* ").append(c.getShortMessage()).append("\n");
-    }
-    commit(message.toString());
-  }
-
   public void commit(String message) throws IOException {
     if (baseCommit != null) {
       oursCommit = createCommit(ours, author, message, baseCommit);
@@ -164,7 +164,9 @@ public class MergeOp {
   private final ChangeHooks hooks;
   private final AccountCache accountCache;
   private final TagCache tagCache;
-  private final CreateCodeReviewNotes.Factory codeReviewNotesFactory;
+  private final ReachabilityCache reachabilityCache;
+  private final ChangeBranchCache changeBranchCache;
+  private final ReviewNoteWriter reviewNoteWriter;
   private final SubmoduleOp.Factory subOpFactory;
   private final WorkQueue workQueue;
   private final RequestScopePropagator requestScopePropagator;
@@ -181,7 +183,9 @@ public class MergeOp {
       @GerritPersonIdent final PersonIdent myIdent,
       final MergeQueue mergeQueue, @Assisted final Branch.NameKey branch,
       final ChangeHooks hooks, final AccountCache accountCache,
-      final TagCache tagCache, final CreateCodeReviewNotes.Factory crnf,
+      final TagCache tagCache, final ChangeBranchCache changeBranchCache,
+      final ReachabilityCache reachabilityCache,
+      final ReviewNoteWriter rnw,
       final SubmoduleOp.Factory subOpFactory,
       final WorkQueue workQueue,
       final RequestScopePropagator requestScopePropagator) {
@@ -201,7 +205,9 @@ public class MergeOp {
     this.hooks = hooks;
     this.accountCache = accountCache;
     this.tagCache = tagCache;
-    codeReviewNotesFactory = crnf;
+    this.reachabilityCache = reachabilityCache;
+    this.changeBranchCache = changeBranchCache;
+    reviewNoteWriter = rnw;
     this.subOpFactory = subOpFactory;
     this.workQueue = workQueue;
     this.requestScopePropagator = requestScopePropagator;
@@ -462,7 +468,7 @@ public class MergeOp {
         // merged and that is all that mattered to the requestor.
         //
         try {
-          if (rw.isMergedInto(commit, branchTip)) {
+          if (isMergedInto(commit, branchTip)) {
             commit.statusCode = CommitMergeStatus.ALREADY_MERGED;
             continue;
           }
@@ -476,6 +482,12 @@ public class MergeOp {
     }
   }
 
+  private boolean isMergedInto(RevCommit base, RevCommit tip)
+      throws IOException {
+    return reachabilityCache.isMergedInto(destBranch.getParentKey(), rw,
+        base, tip);
+  }
+
   private void reduceToMinimalMerge() throws MergeException {
     final Collection<CodeReviewCommit> heads;
     try {
@@ -500,7 +512,7 @@ public class MergeOp {
       for (final Iterator<CodeReviewCommit> i = toMerge.iterator(); i.hasNext();) {
         try {
           final CodeReviewCommit n = i.next();
-          if (mergeTip == null || rw.isMergedInto(mergeTip, n)) {
+          if (mergeTip == null || isMergedInto(mergeTip, n)) {
             mergeTip = n;
             i.remove();
             break;
@@ -769,7 +781,7 @@ public class MergeOp {
           // instead behave as though MERGE_IF_NECESSARY was configured.
           //
           if (hasDependenciesMet(n)) {
-            if (rw.isMergedInto(mergeTip, n)) {
+            if (isMergedInto(mergeTip, n)) {
               mergeTip = n;
             } else {
               mergeOneCommit(n);
@@ -1147,15 +1159,8 @@ public class MergeOp {
       }
     }
 
-    CreateCodeReviewNotes codeReviewNotes =
-        codeReviewNotesFactory.create(db, repo);
-    try {
-      codeReviewNotes.create(merged, computeAuthor(merged));
-    } catch (CodeReviewNoteCreationException e) {
-      log.error(e.getMessage());
-    }
-    replication.fire(destBranch.getParentKey(),
-        GitRepositoryManager.REFS_NOTES_REVIEW);
+    reviewNoteWriter.add(destBranch.getParentKey(), merged,
+        computeAuthor(merged));
   }
 
   private void updateSubscriptions() {
@@ -1464,7 +1469,7 @@ public class MergeOp {
       }
     }));
 
-
+    changeBranchCache.update(c);
     try {
       hooks.doChangeMergedHook(c, //
           accountCache.get(submitter.getAccountId()).getAccount(), //
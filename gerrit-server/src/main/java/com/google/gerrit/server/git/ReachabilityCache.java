@@ -0,0 +1,148 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.git;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.Weigher;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Answers which references contain a commit, using per-project commit
+ * generation numbers.
+ * <p>
+ * {@link RevWalk#isMergedInto(RevCommit, RevCommit)} walks the history of
+ * the tip until it runs out of commits, once per tip. With generation
+ * numbers a walk stops at the generation of the commit looked for, tips
+ * below it are skipped without reading anything, and all tips are checked
+ * by a single walk that carries the set of tips reaching each commit.
+ */
+@Singleton
+public class ReachabilityCache {
+  private static final String CACHE_NAME = "git_reachability";
+
+  public static Module module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        persist(CACHE_NAME, String.class, EntryVal.class)
+          .maximumWeight(8 << 20)
+          .weigher(EntryWeigher.class);
+        bind(ReachabilityCache.class);
+      }
+    };
+  }
+
+  private final Cache<String, EntryVal> cache;
+  private final Object createLock = new Object();
+
+  @Inject
+  ReachabilityCache(@Named(CACHE_NAME) Cache<String, EntryVal> cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Determine if a commit is reachable from another.
+   *
+   * @param project project the commits belong to.
+   * @param rw walk to parse commits with. Only commits are parsed; the
+   *        traversal state of the walk is left untouched.
+   * @param base commit that may be merged.
+   * @param tip commit that may contain {@code base}.
+   * @return true if {@code base} is {@code tip} or one of its ancestors.
+   * @throws IOException commits cannot be read from the repository.
+   */
+  public boolean isMergedInto(Project.NameKey project, RevWalk rw,
+      RevCommit base, RevCommit tip) throws IOException {
+    return reachableFrom(project, rw, base, Collections.singletonList(tip))
+        .get(0);
+  }
+
+  /**
+   * Find which of several tips contain a commit.
+   *
+   * @param project project the commits belong to.
+   * @param rw walk to parse commits with. Only commits are parsed; the
+   *        traversal state of the walk is left untouched.
+   * @param commit commit to look for.
+   * @param tips candidate tips, usually the commits of references.
+   * @return indexes in {@code tips} of the tips containing {@code commit}.
+   * @throws IOException commits cannot be read from the repository.
+   */
+  public BitSet reachableFrom(Project.NameKey project, RevWalk rw,
+      RevCommit commit, List<RevCommit> tips) throws IOException {
+    EntryVal val = get(project);
+    try {
+      return val.index.reachableFrom(rw, commit, tips);
+    } finally {
+      if (val.index.needsSave()) {
+        cache.put(project.get(), val);
+      }
+    }
+  }
+
+  private EntryVal get(Project.NameKey name) {
+    EntryVal val = cache.getIfPresent(name.get());
+    if (val == null) {
+      synchronized (createLock) {
+        val = cache.getIfPresent(name.get());
+        if (val == null) {
+          val = new EntryVal();
+          val.index = new ReachabilityIndex();
+          cache.put(name.get(), val);
+        }
+      }
+    }
+    return val;
+  }
+
+  static class EntryVal implements Serializable {
+    static final long serialVersionUID = 1L;
+
+    transient ReachabilityIndex index;
+
+    private void readObject(ObjectInputStream in) throws IOException,
+        ClassNotFoundException {
+      index = new ReachabilityIndex();
+      index.readObject(in);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+      index.writeObject(out);
+    }
+  }
+
+  static class EntryWeigher implements Weigher<String, EntryVal> {
+    @Override
+    public int weigh(String key, EntryVal value) {
+      return 1 + value.index.size();
+    }
+  }
+}
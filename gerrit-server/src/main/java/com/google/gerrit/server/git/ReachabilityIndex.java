@@ -0,0 +1,270 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.git;
+
+import static org.eclipse.jgit.lib.ObjectIdSerialization.readNotNull;
+import static org.eclipse.jgit.lib.ObjectIdSerialization.writeNotNull;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectIdOwnerMap;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Generation numbers of the commits of one repository.
+ * <p>
+ * The generation of a commit is one more than the highest generation of its
+ * parents, root commits having generation 1. A commit can only be reached
+ * from commits of a strictly higher generation, so a walk looking for a
+ * commit never has to go below its generation. Generations depend only on
+ * the content of a commit and never change, so the index only grows as new
+ * commits are looked up; moving or deleting references cannot make it
+ * stale.
+ */
+class ReachabilityIndex {
+  private final ObjectIdOwnerMap<Generation> generations;
+  private final ReadWriteLock lock;
+
+  /** Number of commits when the index was last written to the cache. */
+  private volatile int savedSize;
+
+  ReachabilityIndex() {
+    generations = new ObjectIdOwnerMap<Generation>();
+    lock = new ReentrantReadWriteLock();
+  }
+
+  /** @return number of commits in the index. */
+  int size() {
+    lock.readLock().lock();
+    try {
+      return generations.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return true if the index grew by a quarter since it was last saved;
+   *         saving marks the current size as saved.
+   */
+  boolean needsSave() {
+    int n = size();
+    if (n - savedSize > savedSize / 4) {
+      savedSize = n;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Find which tips reach a commit.
+   *
+   * @param rw walk used to parse commits; its traversal state is not used.
+   * @param commit commit to look for.
+   * @param tips candidate tips.
+   * @return indexes in {@code tips} of the commits {@code commit} is merged
+   *         into, including tips equal to it.
+   * @throws IOException commits cannot be read from the repository.
+   */
+  BitSet reachableFrom(RevWalk rw, RevCommit commit, List<RevCommit> tips)
+      throws IOException {
+    BitSet result = new BitSet(tips.size());
+    final Map<RevCommit, Integer> gen = new HashMap<RevCommit, Integer>();
+    Map<RevCommit, BitSet> flags = new HashMap<RevCommit, BitSet>();
+    PriorityQueue<RevCommit> queue = new PriorityQueue<RevCommit>(
+        Math.max(tips.size(), 1), new Comparator<RevCommit>() {
+          @Override
+          public int compare(RevCommit a, RevCommit b) {
+            return gen.get(b) - gen.get(a);
+          }
+        });
+
+    int target = generation(rw, commit);
+    for (int i = 0; i < tips.size(); i++) {
+      RevCommit tip = tips.get(i);
+      if (tip.equals(commit)) {
+        result.set(i);
+        continue;
+      }
+      int g = generation(rw, tip);
+      if (g <= target) {
+        continue;
+      }
+      BitSet b = flags.get(tip);
+      if (b == null) {
+        b = new BitSet();
+        flags.put(tip, b);
+        gen.put(tip, g);
+        queue.add(tip);
+      }
+      b.set(i);
+    }
+
+    // Visit commits from the highest generation down, so every child of a
+    // commit has passed its flags on before the commit itself is visited.
+    RevCommit c;
+    while ((c = queue.poll()) != null) {
+      BitSet b = flags.remove(c);
+      b.andNot(result);
+      if (b.isEmpty()) {
+        continue;
+      }
+
+      rw.parseHeaders(c);
+      boolean owned = true;
+      for (RevCommit p : c.getParents()) {
+        if (p.equals(commit)) {
+          result.or(b);
+          continue;
+        }
+        int g = generation(rw, p);
+        if (g <= target) {
+          continue;
+        }
+        BitSet pb = flags.get(p);
+        if (pb != null) {
+          pb.or(b);
+        } else {
+          if (owned) {
+            pb = b;
+            owned = false;
+          } else {
+            pb = new BitSet();
+            pb.or(b);
+          }
+          flags.put(p, pb);
+          gen.put(p, g);
+          queue.add(p);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Get the generation of a commit, indexing it and its ancestors if needed.
+   *
+   * @param rw walk used to parse commits.
+   * @param commit the commit.
+   * @return generation of the commit, at least 1.
+   * @throws IOException the commit or an ancestor cannot be read.
+   */
+  int generation(RevWalk rw, RevCommit commit) throws IOException {
+    int g = lookup(commit);
+    if (0 < g) {
+      return g;
+    }
+
+    // Number the missing ancestors without recursion, as histories can be
+    // far deeper than the stack. New numbers are published all at once.
+    ObjectIdOwnerMap<Generation> added = new ObjectIdOwnerMap<Generation>();
+    List<RevCommit> stack = new ArrayList<RevCommit>();
+    stack.add(commit);
+    while (!stack.isEmpty()) {
+      RevCommit c = stack.get(stack.size() - 1);
+      if (0 < lookup(added, c)) {
+        stack.remove(stack.size() - 1);
+        continue;
+      }
+
+      rw.parseHeaders(c);
+      int max = 0;
+      boolean ready = true;
+      for (RevCommit p : c.getParents()) {
+        int pg = lookup(added, p);
+        if (pg <= 0) {
+          stack.add(p);
+          ready = false;
+        } else {
+          max = Math.max(max, pg);
+        }
+      }
+      if (ready) {
+        added.add(new Generation(c, max + 1));
+        stack.remove(stack.size() - 1);
+      }
+    }
+
+    lock.writeLock().lock();
+    try {
+      for (Generation e : added) {
+        if (!generations.contains(e)) {
+          generations.add(e);
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+    return lookup(added, commit);
+  }
+
+  private int lookup(AnyObjectId id) {
+    lock.readLock().lock();
+    try {
+      Generation e = generations.get(id);
+      return e != null ? e.value : 0;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private int lookup(ObjectIdOwnerMap<Generation> added, AnyObjectId id) {
+    Generation e = added.get(id);
+    return e != null ? e.value : lookup(id);
+  }
+
+  void readObject(ObjectInputStream in) throws IOException {
+    int cnt = in.readInt();
+    for (int i = 0; i < cnt; i++) {
+      generations.add(new Generation(readNotNull(in), in.readInt()));
+    }
+    savedSize = cnt;
+  }
+
+  void writeObject(ObjectOutputStream out) throws IOException {
+    lock.readLock().lock();
+    try {
+      out.writeInt(generations.size());
+      for (Generation e : generations) {
+        writeNotNull(out, e);
+        out.writeInt(e.value);
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private static final class Generation extends ObjectIdOwnerMap.Entry {
+    final int value;
+
+    Generation(AnyObjectId id, int value) {
+      super(id);
+      this.value = value;
+    }
+  }
+}
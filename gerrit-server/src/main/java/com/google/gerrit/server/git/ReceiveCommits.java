@@ -51,6 +51,7 @@ import com.google.gerrit.server.git.MultiProgressMonitor.Task;
 import com.google.gerrit.server.mail.CreateChangeSender;
 import com.google.gerrit.server.mail.MergedSender;
 import com.google.gerrit.server.mail.ReplacePatchSetSender;
+import com.google.gerrit.server.patch.DiffPrecomputer;
 import com.google.gerrit.server.patch.PatchSetInfoFactory;
 import com.google.gerrit.server.project.ChangeControl;
 import com.google.gerrit.server.project.ProjectCache;
@@ -92,6 +93,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -220,6 +222,10 @@ public class ReceiveCommits {
   private final PersonIdent gerritIdent;
   private final TrackingFooters trackingFooters;
   private final TagCache tagCache;
+  private final ReachabilityCache reachabilityCache;
+  private final DiffPrecomputer diffPrecomputer;
+  private final ChangeBranchCache changeBranchCache;
+  private final AdvertisedRefsCache advertisedRefsCache;
   private final WorkQueue workQueue;
   private final RequestScopePropagator requestScopePropagator;
 
@@ -266,6 +272,10 @@ public class ReceiveCommits {
       final ProjectCache projectCache,
       final GitRepositoryManager repoManager,
       final TagCache tagCache,
+      final ReachabilityCache reachabilityCache,
+      final DiffPrecomputer diffPrecomputer,
+      final ChangeBranchCache changeBranchCache,
+      final AdvertisedRefsCache advertisedRefsCache,
       @CanonicalWebUrl @Nullable final String canonicalWebUrl,
       @GerritPersonIdent final PersonIdent gerritIdent,
       final TrackingFooters trackingFooters,
@@ -291,6 +301,10 @@ public class ReceiveCommits {
     this.gerritIdent = gerritIdent;
     this.trackingFooters = trackingFooters;
     this.tagCache = tagCache;
+    this.reachabilityCache = reachabilityCache;
+    this.diffPrecomputer = diffPrecomputer;
+    this.changeBranchCache = changeBranchCache;
+    this.advertisedRefsCache = advertisedRefsCache;
     this.workQueue = workQueue;
     this.requestScopePropagator = requestScopePropagator;
 
@@ -311,7 +325,8 @@ public class ReceiveCommits {
 
     if (!projectControl.allRefsAreVisible()) {
       rp.setCheckReferencedObjectsAreReachable(true);
-      rp.setAdvertiseRefsHook(new VisibleRefFilter(tagCache, repo, projectControl, db, false));
+      rp.setAdvertiseRefsHook(new VisibleRefFilter(tagCache, changeBranchCache,
+          advertisedRefsCache, repo, projectControl, db, false));
     }
     List<AdvertiseRefsHook> advHooks = new ArrayList<AdvertiseRefsHook>(2);
     advHooks.add(rp.getAdvertiseRefsHook());
@@ -1159,6 +1174,7 @@ public class ReceiveCommits {
     } finally {
       db.rollback();
     }
+    changeBranchCache.update(change);
 
     final RefUpdate ru = repo.updateRef(ps.getRefName());
     ru.setNewObjectId(c);
@@ -1195,6 +1211,7 @@ public class ReceiveCommits {
     }));
 
     hooks.doPatchsetCreatedHook(change, ps, db);
+    diffPrecomputer.precompute(change, ps);
   }
 
   private static boolean isReviewer(final FooterLine candidateFooterLine) {
@@ -1300,7 +1317,8 @@ public class ReceiveCommits {
         // very common error due to users making a new commit rather than
         // amending when trying to address review comments.
         //
-        if (rp.getRevWalk().isMergedInto(prior, c)) {
+        if (reachabilityCache.isMergedInto(project.getNameKey(),
+            rp.getRevWalk(), prior, c)) {
           reject(request.cmd, "squash commits first");
           return null;
         }
@@ -1470,7 +1488,9 @@ public class ReceiveCommits {
           + repo.getDirectory() + ": " + ru.getResult());
     }
     replication.fire(project.getNameKey(), ru.getName());
+    changeBranchCache.update(result.change);
     hooks.doPatchsetCreatedHook(result.change, ps, db);
+    diffPrecomputer.precompute(result.change, ps);
     request.cmd.setResult(OK);
 
     workQueue.getDefaultQueue()
@@ -1542,30 +1562,33 @@ public class ReceiveCommits {
   private Ref findMergedInto(final String first, final RevCommit commit) {
     try {
       final Map<String, Ref> all = repo.getAllRefs();
+      final RevWalk rw = rp.getRevWalk();
+      final List<Ref> refs = new ArrayList<Ref>();
+      final List<RevCommit> tips = new ArrayList<RevCommit>();
       Ref firstRef = all.get(first);
-      if (firstRef != null && isMergedInto(commit, firstRef)) {
-        return firstRef;
+      if (firstRef != null) {
+        refs.add(firstRef);
+        tips.add(rw.parseCommit(firstRef.getObjectId()));
       }
       for (Ref ref : all.values()) {
-        if (isHead(ref)) {
-          if (isMergedInto(commit, ref)) {
-            return ref;
-          }
+        if (isHead(ref) && ref != firstRef) {
+          refs.add(ref);
+          tips.add(rw.parseCommit(ref.getObjectId()));
         }
       }
-      return null;
+
+      // All branches are checked by one walk; the first match wins, so
+      // the preferred branch is listed first.
+      BitSet merged = reachabilityCache.reachableFrom(project.getNameKey(),
+          rw, commit, tips);
+      int i = merged.nextSetBit(0);
+      return 0 <= i ? refs.get(i) : null;
     } catch (IOException e) {
       log.warn("Can't check for already submitted change", e);
       return null;
     }
   }
 
-  private boolean isMergedInto(final RevCommit commit, final Ref ref)
-      throws IOException {
-    final RevWalk rw = rp.getRevWalk();
-    return rw.isMergedInto(commit, rw.parseCommit(ref.getObjectId()));
-  }
-
   private static class ReplaceRequest {
     final Change.Id ontoChange;
     final RevCommit newCommit;
@@ -2022,6 +2045,7 @@ public class ReceiveCommits {
         }
       }));
 
+      changeBranchCache.update(result.change);
       try {
         hooks.doChangeMergedHook(result.change, currentUser.getAccount(),
             result.patchSet, db);
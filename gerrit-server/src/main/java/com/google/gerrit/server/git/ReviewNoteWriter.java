@@ -0,0 +1,284 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.git;
+
+import static com.google.gerrit.server.git.GitRepositoryManager.REFS_NOTES_REVIEW;
+
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.lifecycle.LifecycleModule;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.GerritPersonIdent;
+import com.google.gerrit.server.config.CanonicalWebUrl;
+import com.google.gerrit.server.config.ConfigUtil;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.extensions.events.GitReferenceUpdated;
+import com.google.gwtorm.server.OrmException;
+import com.google.gwtorm.server.SchemaFactory;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * Writes {@code refs/notes/review} in the background.
+ * <p>
+ * Merges only queue their notes here. The notes of all merges made into a
+ * project during {@code reviewnotes.batchDelay} are written by a single
+ * thread as one notes commit, so submits never wait on the notes branch and
+ * concurrent merges do not race each other to update it.
+ * <p>
+ * Queued notes are only held in memory. A failed write is retried a few
+ * times, and all queued notes are written when the server stops, before the
+ * work queues are shut down.
+ */
+@Singleton
+public class ReviewNoteWriter implements LifecycleListener {
+  private static final Logger log =
+      LoggerFactory.getLogger(ReviewNoteWriter.class);
+
+  public static class Module extends LifecycleModule {
+    @Override
+    protected void configure() {
+      listener().to(ReviewNoteWriter.class);
+    }
+  }
+
+  /** Number of times the notes of a batch are tried before giving up. */
+  private static final int MAX_ATTEMPTS = 3;
+
+  /** Milliseconds to wait before writing a failed batch again. */
+  private static final long RETRY_DELAY = TimeUnit.SECONDS.toMillis(30);
+
+  private final long delay;
+  private final WorkQueue.Executor executor;
+  private final GitRepositoryManager repoManager;
+  private final SchemaFactory<ReviewDb> schemaFactory;
+  private final CreateCodeReviewNotes.Factory notesFactory;
+  private final GitReferenceUpdated replication;
+  private final PersonIdent gerritIdent;
+  private final Provider<String> urlProvider;
+  private final Map<Project.NameKey, Batch> pending;
+  private boolean stopped;
+
+  @Inject
+  ReviewNoteWriter(@GerritServerConfig Config cfg, WorkQueue queue,
+      GitRepositoryManager repoManager, SchemaFactory<ReviewDb> schemaFactory,
+      CreateCodeReviewNotes.Factory notesFactory,
+      GitReferenceUpdated replication,
+      @GerritPersonIdent PersonIdent gerritIdent,
+      @CanonicalWebUrl @Nullable Provider<String> urlProvider) {
+    this.delay = ConfigUtil.getTimeUnit(cfg, "reviewnotes", null,
+        "batchDelay", 0, TimeUnit.MILLISECONDS);
+    this.executor = queue.createQueue(1, "ReviewNotes");
+    this.repoManager = repoManager;
+    this.schemaFactory = schemaFactory;
+    this.notesFactory = notesFactory;
+    this.replication = replication;
+    this.gerritIdent = gerritIdent;
+    this.urlProvider = urlProvider;
+    this.pending = new HashMap<Project.NameKey, Batch>();
+  }
+
+  /**
+   * Schedule the review notes of merged commits.
+   * <p>
+   * Must be called by the thread that merged the commits, as the
+   * {@code Reviewed-on} URL of the notes may depend on its request.
+   *
+   * @param project project the commits were merged into.
+   * @param commits merged commits, with their change.
+   * @param author author of the notes.
+   */
+  public void add(Project.NameKey project, List<CodeReviewCommit> commits,
+      PersonIdent author) {
+    if (commits.isEmpty()) {
+      return;
+    }
+    Batch n = new Batch();
+    for (CodeReviewCommit c : commits) {
+      n.notes.put(c.copy(), c.change);
+      n.message.append("* ").append(c.getShortMessage()).append("\n");
+    }
+    n.author = author;
+    n.canonicalWebUrl = urlProvider != null ? urlProvider.get() : null;
+    enqueue(project, n, delay);
+  }
+
+  @Override
+  public void start() {
+  }
+
+  /** Write all queued notes, without waiting for their delay. */
+  @Override
+  public void stop() {
+    List<Project.NameKey> projects;
+    synchronized (pending) {
+      stopped = true;
+      projects = new ArrayList<Project.NameKey>(pending.keySet());
+    }
+    for (Project.NameKey project : projects) {
+      write(project);
+    }
+  }
+
+  private void enqueue(Project.NameKey project, Batch n, long wait) {
+    boolean now;
+    synchronized (pending) {
+      Batch b = pending.get(project);
+      if (b == null) {
+        pending.put(project, n);
+        if (!stopped) {
+          executor.schedule(new WriteTask(project), wait,
+              TimeUnit.MILLISECONDS);
+        }
+      } else if (0 < n.attempts) {
+        // A batch being retried holds older notes than the queued one.
+        n.add(b, gerritIdent);
+        pending.put(project, n);
+      } else {
+        b.add(n, gerritIdent);
+      }
+      now = stopped;
+    }
+    if (now) {
+      write(project);
+    }
+  }
+
+  private void write(Project.NameKey project) {
+    Batch b;
+    synchronized (pending) {
+      b = pending.remove(project);
+    }
+    if (b == null) {
+      return;
+    }
+
+    b.attempts++;
+    try {
+      Repository repo = repoManager.openRepository(project);
+      try {
+        ReviewDb db = schemaFactory.open();
+        try {
+          CreateCodeReviewNotes notes = notesFactory.create(db, repo);
+          if (b.canonicalWebUrl != null) {
+            notes.setCanonicalWebUrl(b.canonicalWebUrl);
+          }
+          notes.create(b.notes, b.author,
+              "Update notes for submitted changes\n\n" + b.message);
+        } finally {
+          db.close();
+        }
+      } finally {
+        repo.close();
+      }
+    } catch (CodeReviewNoteCreationException e) {
+      log.error(e.getMessage());
+      retry(project, b);
+      return;
+    } catch (OrmException e) {
+      log.error("Cannot open database to write review notes of " + project, e);
+      retry(project, b);
+      return;
+    } catch (IOException e) {
+      log.error("Cannot open repository to write review notes of " + project,
+          e);
+      retry(project, b);
+      return;
+    }
+    replication.fire(project, REFS_NOTES_REVIEW);
+  }
+
+  private void retry(Project.NameKey project, Batch b) {
+    if (MAX_ATTEMPTS <= b.attempts) {
+      log.error("Giving up writing review notes of " + b.notes.size()
+          + " commits of " + project + " after " + b.attempts + " attempts");
+      return;
+    }
+    enqueue(project, b, RETRY_DELAY);
+  }
+
+  private static class Batch {
+    final Map<ObjectId, Change> notes = new LinkedHashMap<ObjectId, Change>();
+    final StringBuilder message = new StringBuilder();
+    PersonIdent author;
+    String canonicalWebUrl;
+    int attempts;
+
+    /** Append the notes of a later batch. */
+    void add(Batch n, PersonIdent gerritIdent) {
+      notes.putAll(n.notes);
+      message.append(n.message);
+      if (!author.equals(n.author)) {
+        author = new PersonIdent(gerritIdent);
+      }
+      if (canonicalWebUrl == null) {
+        canonicalWebUrl = n.canonicalWebUrl;
+      }
+      attempts = Math.max(attempts, n.attempts);
+    }
+  }
+
+  private class WriteTask implements ProjectRunnable {
+    private final Project.NameKey project;
+
+    WriteTask(Project.NameKey project) {
+      this.project = project;
+    }
+
+    @Override
+    public void run() {
+      write(project);
+    }
+
+    @Override
+    public Project.NameKey getProjectNameKey() {
+      return project;
+    }
+
+    @Override
+    public String getRemoteName() {
+      return null;
+    }
+
+    @Override
+    public boolean hasCustomizedPrint() {
+      return false;
+    }
+
+    @Override
+    public String toString() {
+      return "write-review-notes " + project.get();
+    }
+  }
+}
@@ -29,26 +29,23 @@ import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.assistedinject.Assisted;
 
-import org.eclipse.jgit.dircache.DirCache;
-import org.eclipse.jgit.dircache.DirCacheBuilder;
-import org.eclipse.jgit.dircache.DirCacheEditor;
-import org.eclipse.jgit.dircache.DirCacheEditor.PathEdit;
-import org.eclipse.jgit.dircache.DirCacheEntry;
 import org.eclipse.jgit.errors.ConfigInvalidException;
-import org.eclipse.jgit.errors.IncorrectObjectTypeException;
-import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.AnyObjectId;
 import org.eclipse.jgit.lib.BlobBasedConfig;
 import org.eclipse.jgit.lib.CommitBuilder;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.FileMode;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
 import org.eclipse.jgit.treewalk.TreeWalk;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -56,6 +53,8 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -73,6 +72,7 @@ public class SubmoduleOp {
 
   private static final Logger log = LoggerFactory.getLogger(SubmoduleOp.class);
   private static final String GIT_MODULES = ".gitmodules";
+  private static final int MAX_UPDATE_ATTEMPTS = 3;
 
   private final Branch.NameKey destBranch;
   private RevCommit mergeTip;
@@ -87,6 +87,7 @@ public class SubmoduleOp {
   private final GitRepositoryManager repoManager;
   private final GitReferenceUpdated replication;
   private final SchemaFactory<ReviewDb> schemaFactory;
+  private final SuperprojectUpdateQueue updateQueue;
   private final Set<Branch.NameKey> updatedSubscribers;
 
   @Inject
@@ -97,7 +98,8 @@ public class SubmoduleOp {
       @Assisted Project destProject, @Assisted List<Change> submitted,
       @Assisted final Map<Change.Id, CodeReviewCommit> commits,
       @GerritPersonIdent final PersonIdent myIdent,
-      GitRepositoryManager repoManager, GitReferenceUpdated replication) {
+      GitRepositoryManager repoManager, GitReferenceUpdated replication,
+      SuperprojectUpdateQueue updateQueue) {
     this.destBranch = destBranch;
     this.mergeTip = mergeTip;
     this.rw = rw;
@@ -110,6 +112,7 @@ public class SubmoduleOp {
     this.myIdent = myIdent;
     this.repoManager = repoManager;
     this.replication = replication;
+    this.updateQueue = updateQueue;
 
     updatedSubscribers = new HashSet<Branch.NameKey>();
   }
@@ -224,6 +227,11 @@ public class SubmoduleOp {
           }
         }
 
+        if (updateQueue.isEnabled()) {
+          enqueueGitlinks(updatedBranch, mergedCommit, msgbuf, subscribers);
+          return;
+        }
+
         // update subscribers of this module
         for (final SubmoduleSubscription s : subscribers) {
           if (!updatedSubscribers.add(s.getSuperProject())) {
@@ -252,6 +260,29 @@ public class SubmoduleOp {
     }
   }
 
+  private void enqueueGitlinks(final Branch.NameKey updatedBranch,
+      final ObjectId mergedCommit, final String msg,
+      final List<SubmoduleSubscription> subscribers)
+      throws SubmoduleException {
+    final RevCommit c;
+    try {
+      c = rw.parseCommit(mergedCommit);
+    } catch (IOException e) {
+      logAndThrowSubmoduleException("Cannot read " + mergedCommit.name(), e);
+      return;
+    }
+
+    for (final SubmoduleSubscription s : subscribers) {
+      if (updatedSubscribers.contains(s.getSuperProject())) {
+        log.error("Possible circular subscription involving " + s.toString());
+      } else {
+        updateQueue.add(s.getSuperProject(), s.getPath(), updatedBranch,
+            mergedCommit, c.getAuthorIdent(), c.getShortMessage(), msg,
+            updatedSubscribers);
+      }
+    }
+  }
+
   private void updateGitlinks(final Branch.NameKey subscriber,
       final Map<Branch.NameKey, ObjectId> modules,
       final Map<Branch.NameKey, String> paths, final String msg)
@@ -291,38 +322,75 @@ public class SubmoduleOp {
       }
 
       pdb = repoManager.openRepository(subscriber.getParentKey());
-      if (pdb.getRef(subscriber.get()) == null) {
-        throw new SubmoduleException(
-            "The branch was probably deleted from the subscriber repository");
-      }
-
-      final ObjectId currentCommitId =
-          pdb.getRef(subscriber.get()).getObjectId();
-
-      DirCache dc = readTree(pdb, pdb.getRef(subscriber.get()));
-      DirCacheEditor ed = dc.editor();
+      Map<String, ObjectId> gitlinks = new HashMap<String, ObjectId>();
       for (final Map.Entry<Branch.NameKey, ObjectId> me : modules.entrySet()) {
-        ed.add(new PathEdit(paths.get(me.getKey())) {
-          public void apply(DirCacheEntry ent) {
-            ent.setFileMode(FileMode.GITLINK);
-            ent.setObjectId(me.getValue().copy());
-          }
-        });
+        gitlinks.put(paths.get(me.getKey()), me.getValue());
       }
-      ed.finish();
-
-      ObjectInserter oi = pdb.newObjectInserter();
-      ObjectId tree = dc.writeTree(oi);
+      ObjectId commitId = writeGitlinks(pdb, subscriber, gitlinks, author,
+          myIdent, msgbuf.toString(), replication);
 
-      final CommitBuilder commit = new CommitBuilder();
-      commit.setTreeId(tree);
-      commit.setParentIds(new ObjectId[] {currentCommitId});
-      commit.setAuthor(author);
-      commit.setCommitter(myIdent);
-      commit.setMessage(msgbuf.toString());
-      oi.insert(commit);
+      // Recursive call: update subscribers of the subscriber
+      updateSuperProjects(subscriber, commitId, msgbuf.toString());
+    } catch (IOException e) {
+      logAndThrowSubmoduleException("Cannot update gitlinks for "
+          + subscriber.get(), e);
+    } finally {
+      if (pdb != null) {
+        pdb.close();
+      }
+    }
+  }
 
-      ObjectId commitId = oi.idFor(Constants.OBJ_COMMIT, commit.build());
+  /**
+   * Commit new gitlinks to a branch of a superproject.
+   * <p>
+   * Only the trees containing the updated paths are read and rewritten, so
+   * the cost does not depend on the size of the superproject.
+   *
+   * @param pdb repository of the superproject.
+   * @param subscriber branch to update.
+   * @param gitlinks new commit of each submodule, by path.
+   * @param author author of the new commit.
+   * @param committer committer of the new commit.
+   * @param message message of the new commit.
+   * @param replication notified of the updated branch.
+   * @return the new commit.
+   * @throws SubmoduleException the branch does not exist.
+   * @throws IOException the commit cannot be written, or the branch kept
+   *         moving while it was updated.
+   */
+  static ObjectId writeGitlinks(Repository pdb, Branch.NameKey subscriber,
+      Map<String, ObjectId> gitlinks, PersonIdent author,
+      PersonIdent committer, String message, GitReferenceUpdated replication)
+      throws SubmoduleException, IOException {
+    for (int attempt = 1;; attempt++) {
+      final Ref ref = pdb.getRef(subscriber.get());
+      if (ref == null) {
+        throw new SubmoduleException(
+            "The branch was probably deleted from the subscriber repository");
+      }
+      final ObjectId currentCommitId = ref.getObjectId();
+
+      final ObjectId commitId;
+      final ObjectReader reader = pdb.newObjectReader();
+      final ObjectInserter oi = pdb.newObjectInserter();
+      try {
+        final RevWalk rw = new RevWalk(reader);
+        final ObjectId tree = editTree(reader, oi,
+            rw.parseCommit(currentCommitId).getTree(), gitlinks);
+
+        final CommitBuilder commit = new CommitBuilder();
+        commit.setTreeId(tree);
+        commit.setParentIds(new ObjectId[] {currentCommitId});
+        commit.setAuthor(author);
+        commit.setCommitter(committer);
+        commit.setMessage(message);
+        commitId = oi.insert(commit);
+        oi.flush();
+      } finally {
+        oi.release();
+        reader.release();
+      }
 
       final RefUpdate rfu = pdb.updateRef(subscriber.get());
       rfu.setForceUpdate(false);
@@ -338,35 +406,111 @@ public class SubmoduleOp {
           replication.fire(subscriber.getParentKey(), rfu.getName());
           // TODO since this is performed "in the background" no mail will be
           // sent to inform users about the updated branch
-          break;
+          return commitId;
+
+        case LOCK_FAILURE:
+        case REJECTED:
+          // The branch moved since it was read. The gitlinks do not depend
+          // on its previous content, so apply them again on its new tip.
+          if (attempt < MAX_UPDATE_ATTEMPTS) {
+            continue;
+          }
+          throw new IOException(rfu.getResult().name());
 
         default:
           throw new IOException(rfu.getResult().name());
       }
+    }
+  }
 
-      // Recursive call: update subscribers of the subscriber
-      updateSuperProjects(subscriber, commitId, msgbuf.toString());
-    } catch (IOException e) {
-      logAndThrowSubmoduleException("Cannot update gitlinks for "
-          + subscriber.get(), e);
-    } finally {
-      if (pdb != null) {
-        pdb.close();
+  /**
+   * Replace entries of a tree by gitlinks.
+   *
+   * @param tree tree to edit; null to create a new tree.
+   * @param edits new gitlinks, by path relative to {@code tree}.
+   * @return the edited tree.
+   */
+  private static ObjectId editTree(ObjectReader reader, ObjectInserter oi,
+      AnyObjectId tree, Map<String, ObjectId> edits) throws IOException {
+    final Map<String, TreeEntry> entries = new HashMap<String, TreeEntry>();
+    if (tree != null) {
+      final CanonicalTreeParser p = new CanonicalTreeParser();
+      p.reset(reader, tree);
+      for (; !p.eof(); p.next()) {
+        final TreeEntry e = new TreeEntry(p.getEntryPathString(),
+            p.getEntryFileMode(), p.getEntryObjectId());
+        entries.put(e.name, e);
+      }
+    }
+
+    final Map<String, Map<String, ObjectId>> subtrees =
+        new HashMap<String, Map<String, ObjectId>>();
+    for (final Map.Entry<String, ObjectId> me : edits.entrySet()) {
+      final String path = me.getKey();
+      final int s = path.indexOf('/');
+      if (s < 0) {
+        entries.put(path, new TreeEntry(path, FileMode.GITLINK,
+            me.getValue().copy()));
+      } else {
+        final String name = path.substring(0, s);
+        Map<String, ObjectId> sub = subtrees.get(name);
+        if (sub == null) {
+          sub = new HashMap<String, ObjectId>();
+          subtrees.put(name, sub);
+        }
+        sub.put(path.substring(s + 1), me.getValue());
       }
     }
+    for (final Map.Entry<String, Map<String, ObjectId>> me
+        : subtrees.entrySet()) {
+      final TreeEntry old = entries.get(me.getKey());
+      final AnyObjectId base =
+          old != null && old.mode == FileMode.TREE ? old.id : null;
+      entries.put(me.getKey(), new TreeEntry(me.getKey(), FileMode.TREE,
+          editTree(reader, oi, base, me.getValue())));
+    }
+
+    final List<TreeEntry> sorted = new ArrayList<TreeEntry>(entries.values());
+    Collections.sort(sorted);
+    final TreeFormatter fmt = new TreeFormatter();
+    for (final TreeEntry e : sorted) {
+      fmt.append(e.name, e.mode, e.id);
+    }
+    return oi.insert(fmt);
   }
 
-  private static DirCache readTree(final Repository pdb, final Ref branch)
-      throws MissingObjectException, IncorrectObjectTypeException, IOException {
-    final RevWalk rw = new RevWalk(pdb);
-
-    final DirCache dc = DirCache.newInCore();
-    final DirCacheBuilder b = dc.builder();
-    b.addTree(new byte[0], // no prefix path
-        DirCacheEntry.STAGE_0, // standard stage
-        pdb.newObjectReader(), rw.parseTree(branch.getObjectId()));
-    b.finish();
-    return dc;
+  private static class TreeEntry implements Comparable<TreeEntry> {
+    final String name;
+    final FileMode mode;
+    final ObjectId id;
+
+    TreeEntry(String name, FileMode mode, ObjectId id) {
+      this.name = name;
+      this.mode = mode;
+      this.id = id;
+    }
+
+    /** Git sorts trees as if their name ended with '/'. */
+    @Override
+    public int compareTo(TreeEntry o) {
+      final byte[] a = Constants.encode(name);
+      final byte[] b = Constants.encode(o.name);
+      final int n = Math.min(a.length, b.length);
+      for (int i = 0; i < n; i++) {
+        final int c = (a[i] & 0xff) - (b[i] & 0xff);
+        if (c != 0) {
+          return c;
+        }
+      }
+      return lastChar(a, n, mode) - lastChar(b, n, o.mode);
+    }
+
+    private static int lastChar(byte[] name, int n, FileMode mode) {
+      if (n < name.length) {
+        return name[n] & 0xff;
+      }
+      return mode == FileMode.TREE ? '/' : 0;
+    }
   }
 
   private static void logAndThrowSubmoduleException(final String errorMsg,
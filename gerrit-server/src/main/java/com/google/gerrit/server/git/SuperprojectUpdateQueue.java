@@ -0,0 +1,339 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.git;
+
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.lifecycle.LifecycleModule;
+import com.google.gerrit.reviewdb.client.Branch;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.reviewdb.client.SubmoduleSubscription;
+import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.GerritPersonIdent;
+import com.google.gerrit.server.config.ConfigUtil;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.extensions.events.GitReferenceUpdated;
+import com.google.gwtorm.server.OrmException;
+import com.google.gwtorm.server.SchemaFactory;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces gitlink updates of superprojects.
+ * <p>
+ * When {@code submodule.batchDelay} is set, submodule merges do not commit to
+ * their superprojects directly. Updates are collected per superproject branch
+ * for the configured delay and written as a single commit, so a burst of
+ * merges in several submodules produces one superproject commit instead of
+ * one commit (and one replication event) per merge.
+ * <p>
+ * Pending updates are only held in memory. They are written when the server
+ * stops, before the work queues are shut down. A batch that cannot be written
+ * is tried again later, up to a few times.
+ */
+@Singleton
+public class SuperprojectUpdateQueue implements LifecycleListener {
+  private static final Logger log =
+      LoggerFactory.getLogger(SuperprojectUpdateQueue.class);
+
+  public static class Module extends LifecycleModule {
+    @Override
+    protected void configure() {
+      listener().to(SuperprojectUpdateQueue.class);
+    }
+  }
+
+  /** Number of times the updates of a batch are tried before giving up. */
+  private static final int MAX_ATTEMPTS = 3;
+
+  /** Milliseconds to wait before writing a failed batch again. */
+  private static final long RETRY_DELAY = TimeUnit.SECONDS.toMillis(30);
+
+  private final long delay;
+  private final WorkQueue.Executor executor;
+  private final GitRepositoryManager repoManager;
+  private final SchemaFactory<ReviewDb> schemaFactory;
+  private final PersonIdent myIdent;
+  private final GitReferenceUpdated replication;
+  private final Map<Branch.NameKey, Batch> pending;
+  private boolean stopped;
+
+  @Inject
+  SuperprojectUpdateQueue(@GerritServerConfig Config cfg, WorkQueue queue,
+      GitRepositoryManager repoManager, SchemaFactory<ReviewDb> schemaFactory,
+      @GerritPersonIdent PersonIdent myIdent,
+      GitReferenceUpdated replication) {
+    this.delay = ConfigUtil.getTimeUnit(cfg, "submodule", null, "batchDelay",
+        0, TimeUnit.MILLISECONDS);
+    this.executor = 0 < delay
+        ? queue.createQueue(1, "SuperprojectUpdate")
+        : null;
+    this.repoManager = repoManager;
+    this.schemaFactory = schemaFactory;
+    this.myIdent = myIdent;
+    this.replication = replication;
+    this.pending = new HashMap<Branch.NameKey, Batch>();
+  }
+
+  /** @return true if superproject updates are batched. */
+  public boolean isEnabled() {
+    return executor != null;
+  }
+
+  /**
+   * Schedule a gitlink update of a superproject branch.
+   *
+   * @param superProject branch of the superproject to update.
+   * @param path location of the submodule in the superproject.
+   * @param module branch of the submodule that was updated.
+   * @param commit new commit of the submodule.
+   * @param author author of the submodule commit.
+   * @param shortMessage first line of the submodule commit message.
+   * @param fullMessage message describing the update when it is the only one
+   *        of its batch; null to use {@code shortMessage}.
+   * @param chain branches already updated by this cascade, used to detect
+   *        circular subscriptions.
+   */
+  public void add(Branch.NameKey superProject, String path,
+      Branch.NameKey module, ObjectId commit, PersonIdent author,
+      String shortMessage, String fullMessage, Set<Branch.NameKey> chain) {
+    Batch n = new Batch();
+    n.updates.put(path, new Update(module, commit.copy(), author,
+        shortMessage, fullMessage));
+    n.chain.addAll(chain);
+    enqueue(superProject, n, delay);
+  }
+
+  @Override
+  public void start() {
+  }
+
+  /** Write all pending updates, without waiting for their delay. */
+  @Override
+  public void stop() {
+    List<Branch.NameKey> branches;
+    synchronized (pending) {
+      stopped = true;
+      branches = new ArrayList<Branch.NameKey>(pending.keySet());
+    }
+    for (Branch.NameKey superProject : branches) {
+      flush(superProject);
+    }
+  }
+
+  private void enqueue(Branch.NameKey superProject, Batch n, long wait) {
+    boolean now;
+    synchronized (pending) {
+      Batch b = pending.get(superProject);
+      if (b == null) {
+        pending.put(superProject, n);
+        if (!stopped) {
+          executor.schedule(new FlushTask(superProject), wait,
+              TimeUnit.MILLISECONDS);
+        }
+      } else if (0 < n.attempts) {
+        // A batch being retried holds older updates than the queued one.
+        n.add(b);
+        pending.put(superProject, n);
+      } else {
+        b.add(n);
+      }
+      now = stopped;
+    }
+    if (now) {
+      flush(superProject);
+    }
+  }
+
+  private void flush(Branch.NameKey superProject) {
+    Batch b;
+    synchronized (pending) {
+      b = pending.remove(superProject);
+    }
+    if (b == null || b.updates.isEmpty()) {
+      return;
+    }
+
+    PersonIdent committer = new PersonIdent(myIdent);
+    StringBuilder msgbuf = new StringBuilder();
+    msgbuf.append("Updated " + superProject.getParentKey().get());
+    Map<String, ObjectId> gitlinks = new HashMap<String, ObjectId>();
+    PersonIdent author = null;
+    boolean sameAuthorForAll = true;
+    for (Map.Entry<String, Update> me : b.updates.entrySet()) {
+      Update u = me.getValue();
+      gitlinks.put(me.getKey(), u.commit);
+
+      msgbuf.append("\nProject: ");
+      msgbuf.append(u.module.getParentKey().get());
+      msgbuf.append("  " + u.commit.getName());
+      msgbuf.append("\n");
+      if (b.updates.size() == 1 && u.fullMessage != null) {
+        msgbuf.append(u.fullMessage);
+      } else {
+        msgbuf.append(u.shortMessage);
+      }
+      msgbuf.append("\n");
+
+      if (author == null) {
+        author = u.author;
+      } else if (!author.equals(u.author)) {
+        sameAuthorForAll = false;
+      }
+    }
+    if (!sameAuthorForAll || author == null) {
+      author = committer;
+    }
+    String message = msgbuf.toString();
+
+    b.attempts++;
+    ObjectId commitId;
+    try {
+      Repository pdb = repoManager.openRepository(superProject.getParentKey());
+      try {
+        commitId = SubmoduleOp.writeGitlinks(pdb, superProject, gitlinks,
+            author, committer, message, replication);
+      } finally {
+        pdb.close();
+      }
+    } catch (SubmoduleException e) {
+      log.error("Cannot update gitlinks for " + superProject.get(), e);
+      retry(superProject, b);
+      return;
+    } catch (IOException e) {
+      log.error("Cannot update gitlinks for " + superProject.get(), e);
+      retry(superProject, b);
+      return;
+    }
+
+    // Cascade to subscribers of the superproject itself.
+    Set<Branch.NameKey> chain = new HashSet<Branch.NameKey>(b.chain);
+    chain.add(superProject);
+    try {
+      ReviewDb db = schemaFactory.open();
+      try {
+        for (SubmoduleSubscription s : db.submoduleSubscriptions()
+            .bySubmodule(superProject)) {
+          if (chain.contains(s.getSuperProject())) {
+            log.error("Possible circular subscription involving "
+                + s.toString());
+          } else {
+            add(s.getSuperProject(), s.getPath(), superProject, commitId,
+                author, "Updated " + superProject.getParentKey().get(),
+                message, chain);
+          }
+        }
+      } finally {
+        db.close();
+      }
+    } catch (OrmException e) {
+      log.error("Cannot read subscription records of " + superProject.get(),
+          e);
+    }
+  }
+
+  private void retry(Branch.NameKey superProject, Batch b) {
+    if (MAX_ATTEMPTS <= b.attempts) {
+      log.error("Giving up updating " + b.updates.size() + " gitlinks of "
+          + superProject.get() + " in " + superProject.getParentKey().get()
+          + " after " + b.attempts + " attempts");
+      return;
+    }
+    enqueue(superProject, b, RETRY_DELAY);
+  }
+
+  private static class Batch {
+    final Map<String, Update> updates = new LinkedHashMap<String, Update>();
+    final Set<Branch.NameKey> chain = new HashSet<Branch.NameKey>();
+    int attempts;
+
+    /** Append the updates of a later batch. */
+    void add(Batch n) {
+      for (Map.Entry<String, Update> e : n.updates.entrySet()) {
+        updates.remove(e.getKey());
+        updates.put(e.getKey(), e.getValue());
+      }
+      chain.addAll(n.chain);
+      attempts = Math.max(attempts, n.attempts);
+    }
+  }
+
+  private static class Update {
+    final Branch.NameKey module;
+    final ObjectId commit;
+    final PersonIdent author;
+    final String shortMessage;
+    final String fullMessage;
+
+    Update(Branch.NameKey module, ObjectId commit, PersonIdent author,
+        String shortMessage, String fullMessage) {
+      this.module = module;
+      this.commit = commit;
+      this.author = author;
+      this.shortMessage = shortMessage;
+      this.fullMessage = fullMessage;
+    }
+  }
+
+  private class FlushTask implements ProjectRunnable {
+    private final Branch.NameKey superProject;
+
+    FlushTask(Branch.NameKey superProject) {
+      this.superProject = superProject;
+    }
+
+    @Override
+    public void run() {
+      flush(superProject);
+    }
+
+    @Override
+    public Project.NameKey getProjectNameKey() {
+      return superProject.getParentKey();
+    }
+
+    @Override
+    public String getRemoteName() {
+      return null;
+    }
+
+    @Override
+    public boolean hasCustomizedPrint() {
+      return false;
+    }
+
+    @Override
+    public String toString() {
+      return "update-superproject " + superProject.getParentKey().get()
+          + " " + superProject.get();
+    }
+  }
+}
@@ -35,6 +35,7 @@ class TagMatcher {
   final Collection<Ref> include;
   TagSet tags;
   final boolean updated;
+  boolean updatedRefs;
   private boolean rebuiltForNewTags;
 
   TagMatcher(
@@ -53,13 +54,16 @@ class TagMatcher {
   }
 
   boolean isReachable(Ref tagRef) {
-    tagRef = db.peel(tagRef);
-
-    ObjectId tagObj = tagRef.getPeeledObjectId();
+    ObjectId tagObj = tags.lookupPeeled(tagRef);
     if (tagObj == null) {
-      tagObj = tagRef.getObjectId();
+      tagRef = db.peel(tagRef);
+
+      tagObj = tagRef.getPeeledObjectId();
       if (tagObj == null) {
-        return false;
+        tagObj = tagRef.getObjectId();
+        if (tagObj == null) {
+          return false;
+        }
       }
     }
 
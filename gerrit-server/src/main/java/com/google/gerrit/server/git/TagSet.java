@@ -36,28 +36,62 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicReference;
 
 class TagSet {
   private static final Logger log = LoggerFactory.getLogger(TagSet.class);
 
+  /**
+   * Version of the serialized form, written as a negative number in place
+   * of the reference count so sets stored before the version existed can
+   * still be read.
+   */
+  private static final int FORMAT_VERSION = 2;
+
   private final Project.NameKey projectName;
   private final Map<String, CachedRef> refs;
   private final ObjectIdOwnerMap<Tag> tags;
 
+  /** Tag references seen when the set was built, by name. */
+  private final Map<String, TagRef> tagRefs;
+
   TagSet(Project.NameKey projectName) {
     this.projectName = projectName;
     this.refs = new HashMap<String, CachedRef>();
     this.tags = new ObjectIdOwnerMap<Tag>();
+    this.tagRefs = new HashMap<String, TagRef>();
   }
 
   Tag lookupTag(AnyObjectId id) {
     return tags.get(id);
   }
 
+  /**
+   * Get the object a tag reference points to, after peeling.
+   * <p>
+   * Tags known to the set are peeled using the stored result, so the
+   * annotated tag object does not have to be read from the repository.
+   *
+   * @param ref the tag reference.
+   * @return the peeled object; null if the set does not know the tag in
+   *         its current state.
+   */
+  ObjectId lookupPeeled(Ref ref) {
+    if (ref.getPeeledObjectId() != null) {
+      return ref.getPeeledObjectId();
+    }
+    TagRef t = tagRefs.get(ref.getName());
+    if (t != null && t.id.equals(ref.getObjectId())) {
+      return t.peeled;
+    }
+    return null;
+  }
+
   boolean updateFastForward(String refName, ObjectId oldValue,
       ObjectId newValue) {
     CachedRef ref = refs.get(refName);
@@ -112,7 +146,9 @@ class TagSet {
           RevCommit currentCommit = rw.parseCommit(currentRef.getObjectId());
           if (rw.isMergedInto(savedCommit, currentCommit)) {
             // Fast-forward. Safely update the reference in-place.
-            savedRef.compareAndSet(savedObjectId, currentRef.getObjectId());
+            if (savedRef.compareAndSet(savedObjectId, currentRef.getObjectId())) {
+              m.updatedRefs = true;
+            }
             m.mask.set(savedRef.flag);
             continue;
           }
@@ -134,7 +170,9 @@ class TagSet {
           }
           if (!err) {
             // All of the tags are still reachable. Update in-place.
-            savedRef.compareAndSet(savedObjectId, currentRef.getObjectId());
+            if (savedRef.compareAndSet(savedObjectId, currentRef.getObjectId())) {
+              m.updatedRefs = true;
+            }
             m.mask.set(savedRef.flag);
           }
 
@@ -165,7 +203,9 @@ class TagSet {
 
         } else if (isTag(ref)) {
           // For a tag, remember where it points to.
-          addTag(rw, git.peel(ref));
+          Ref peeled = git.peel(ref);
+          addTag(rw, peeled);
+          addTagRef(peeled);
 
         } else {
           // New reference to include in the set.
@@ -185,6 +225,7 @@ class TagSet {
           ((TagCommit) c.getParent(pIdx)).refFlags.or(mine);
         }
       }
+      shareFlags();
     } catch (IOException e) {
       log.warn("Repository " + projectName + " has corruption", e);
     } finally {
@@ -195,6 +236,46 @@ class TagSet {
   void readObject(ObjectInputStream in) throws IOException,
       ClassNotFoundException {
     int refCnt = in.readInt();
+    if (0 <= refCnt) {
+      readObjectVersion1(in, refCnt);
+      return;
+    } else if (refCnt != -FORMAT_VERSION) {
+      throw new IOException("Unsupported tag set format " + (-refCnt));
+    }
+
+    refCnt = in.readInt();
+    for (int i = 0; i < refCnt; i++) {
+      String name = in.readUTF();
+      int flag = in.readInt();
+      ObjectId id = readNotNull(in);
+      refs.put(name, new CachedRef(flag, id));
+    }
+
+    // Many tags are reachable from exactly the same references. Each
+    // distinct set of flags is stored once, and shared in memory.
+    int flagCnt = in.readInt();
+    BitSet[] flags = new BitSet[flagCnt];
+    for (int i = 0; i < flagCnt; i++) {
+      flags[i] = readFlags(in);
+    }
+
+    int tagCnt = in.readInt();
+    for (int i = 0; i < tagCnt; i++) {
+      ObjectId id = readNotNull(in);
+      tags.add(new Tag(id, flags[in.readInt()]));
+    }
+
+    int tagRefCnt = in.readInt();
+    for (int i = 0; i < tagRefCnt; i++) {
+      String name = in.readUTF();
+      ObjectId id = readNotNull(in);
+      ObjectId peeled = readNotNull(in);
+      tagRefs.put(name, new TagRef(id, peeled));
+    }
+  }
+
+  private void readObjectVersion1(ObjectInputStream in, int refCnt)
+      throws IOException, ClassNotFoundException {
     for (int i = 0; i < refCnt; i++) {
       String name = in.readUTF();
       int flag = in.readInt();
@@ -208,9 +289,11 @@ class TagSet {
       BitSet flags = (BitSet) in.readObject();
       tags.add(new Tag(id, flags));
     }
+    shareFlags();
   }
 
   void writeObject(ObjectOutputStream out) throws IOException {
+    out.writeInt(-FORMAT_VERSION);
     out.writeInt(refs.size());
     for (Map.Entry<String, CachedRef> e : refs.entrySet()) {
       out.writeUTF(e.getKey());
@@ -218,10 +301,91 @@ class TagSet {
       writeNotNull(out, e.getValue().get());
     }
 
+    Map<BitSet, Integer> flagIndex = new HashMap<BitSet, Integer>();
+    List<BitSet> flags = new ArrayList<BitSet>();
+    for (Tag tag : tags) {
+      if (!flagIndex.containsKey(tag.refFlags)) {
+        flagIndex.put(tag.refFlags, flags.size());
+        flags.add(tag.refFlags);
+      }
+    }
+    out.writeInt(flags.size());
+    for (BitSet f : flags) {
+      writeFlags(out, f);
+    }
+
     out.writeInt(tags.size());
     for (Tag tag : tags) {
       writeNotNull(out, tag);
-      out.writeObject(tag.refFlags);
+      out.writeInt(flagIndex.get(tag.refFlags));
+    }
+
+    out.writeInt(tagRefs.size());
+    for (Map.Entry<String, TagRef> e : tagRefs.entrySet()) {
+      out.writeUTF(e.getKey());
+      writeNotNull(out, e.getValue().id);
+      writeNotNull(out, e.getValue().peeled);
+    }
+  }
+
+  /**
+   * Write flags as runs of set bits.
+   * <p>
+   * Reference flags are allocated in the order references are listed, so
+   * branches sharing history tend to have adjacent flags and the runs are
+   * usually long. Each run is stored as the gap from the end of the
+   * previous run, and its length.
+   */
+  private static void writeFlags(ObjectOutputStream out, BitSet flags)
+      throws IOException {
+    int runs = 0;
+    for (int i = flags.nextSetBit(0); 0 <= i;) {
+      int end = flags.nextClearBit(i);
+      runs++;
+      i = flags.nextSetBit(end);
+    }
+
+    writeVarInt(out, runs);
+    int prev = 0;
+    for (int i = flags.nextSetBit(0); 0 <= i;) {
+      int end = flags.nextClearBit(i);
+      writeVarInt(out, i - prev);
+      writeVarInt(out, end - i);
+      prev = end;
+      i = flags.nextSetBit(end);
+    }
+  }
+
+  private static BitSet readFlags(ObjectInputStream in) throws IOException {
+    BitSet flags = new BitSet();
+    int runs = readVarInt(in);
+    int prev = 0;
+    for (int i = 0; i < runs; i++) {
+      int start = prev + readVarInt(in);
+      int end = start + readVarInt(in);
+      flags.set(start, end);
+      prev = end;
+    }
+    return flags;
+  }
+
+  private static void writeVarInt(ObjectOutputStream out, int v)
+      throws IOException {
+    while ((v & ~0x7f) != 0) {
+      out.writeByte((v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+    out.writeByte(v);
+  }
+
+  private static int readVarInt(ObjectInputStream in) throws IOException {
+    int v = 0;
+    for (int shift = 0;; shift += 7) {
+      int b = in.readUnsignedByte();
+      v |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return v;
+      }
     }
   }
 
@@ -278,17 +442,42 @@ class TagSet {
 
   private void copy(TagSet old, TagMatcher m) {
     refs.putAll(old.refs);
+    tagRefs.putAll(old.tagRefs);
 
+    // Flags are shared between tags, so copy each distinct set once.
+    Map<BitSet, BitSet> copies = new HashMap<BitSet, BitSet>();
     for (Tag srcTag : old.tags) {
-      BitSet mine = new BitSet();
-      mine.or(srcTag.refFlags);
+      BitSet mine = copies.get(srcTag.refFlags);
+      if (mine == null) {
+        mine = new BitSet();
+        mine.or(srcTag.refFlags);
+        copies.put(mine, mine);
+      }
       tags.add(new Tag(srcTag, mine));
     }
 
     for (TagMatcher.LostRef lost : m.lostRefs) {
       Tag mine = tags.get(lost.tag);
-      if (mine != null) {
-        mine.refFlags.clear(lost.flag);
+      if (mine != null && mine.refFlags.get(lost.flag)) {
+        // Other tags may share the flags, only update this one.
+        BitSet flags = new BitSet();
+        flags.or(mine.refFlags);
+        flags.clear(lost.flag);
+        mine.refFlags = flags;
+      }
+    }
+    shareFlags();
+  }
+
+  /** Make tags with equal flags share the same instance. */
+  private void shareFlags() {
+    Map<BitSet, BitSet> unique = new HashMap<BitSet, BitSet>();
+    for (Tag tag : tags) {
+      BitSet flags = unique.get(tag.refFlags);
+      if (flags == null) {
+        unique.put(tag.refFlags, tag.refFlags);
+      } else {
+        tag.refFlags = flags;
       }
     }
   }
@@ -313,6 +502,14 @@ class TagSet {
     }
   }
 
+  private void addTagRef(Ref ref) {
+    ObjectId peeled = ref.getPeeledObjectId();
+    if (peeled == null) {
+      peeled = ref.getObjectId();
+    }
+    tagRefs.put(ref.getName(), new TagRef(ref.getObjectId(), peeled));
+  }
+
   private void addRef(TagWalk rw, Ref ref) {
     try {
       TagCommit commit = (TagCommit) rw.parseCommit(ref.getObjectId());
@@ -341,7 +538,10 @@ class TagSet {
   }
 
   static final class Tag extends ObjectIdOwnerMap.Entry {
-    private final BitSet refFlags;
+    // Shared by all tags with equal flags. Changes made while a set is
+    // being built apply to all of them, which is only correct if they
+    // must all change; otherwise replace the instance.
+    private BitSet refFlags;
 
     Tag(AnyObjectId id, BitSet flags) {
       super(id);
@@ -353,6 +553,16 @@ class TagSet {
     }
   }
 
+  private static final class TagRef {
+    final ObjectId id;
+    final ObjectId peeled;
+
+    TagRef(ObjectId id, ObjectId peeled) {
+      this.id = id;
+      this.peeled = peeled;
+    }
+  }
+
   private static final class CachedRef extends AtomicReference<ObjectId> {
     private static final long serialVersionUID = 1L;
 
@@ -55,6 +55,10 @@ class TagSetHolder {
 
       m = new TagMatcher(this, cache, db, include, tags, true);
       tags.prepare(m);
+    } else if (m.updatedRefs) {
+      // References moved in-place; store them so the next server
+      // start does not have to check them again.
+      cache.put(projectName, this);
     }
     return m;
   }
@@ -16,6 +16,7 @@ package com.google.gerrit.server.git;
 
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
+import com.google.gerrit.reviewdb.client.Branch;
 import com.google.gerrit.reviewdb.client.Change;
 import com.google.gerrit.reviewdb.client.PatchSet;
 import com.google.gerrit.reviewdb.client.Project;
@@ -32,6 +33,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -44,16 +46,25 @@ public class VisibleRefFilter extends AbstractAdvertiseRefsHook {
       LoggerFactory.getLogger(VisibleRefFilter.class);
 
   private final TagCache tagCache;
+  private final ChangeBranchCache changeCache;
+  private final AdvertisedRefsCache advertisedRefsCache;
   private final Repository db;
   private final Project.NameKey projectName;
   private final ProjectControl projectCtl;
   private final ReviewDb reviewDb;
   private final boolean showChanges;
 
-  public VisibleRefFilter(final TagCache tagCache, final Repository db,
+  /** False if the result of the last filter must not be cached. */
+  private boolean cacheable;
+
+  public VisibleRefFilter(final TagCache tagCache,
+      final ChangeBranchCache changeCache,
+      final AdvertisedRefsCache advertisedRefsCache, final Repository db,
       final ProjectControl projectControl, final ReviewDb reviewDb,
       final boolean showChanges) {
     this.tagCache = tagCache;
+    this.changeCache = changeCache;
+    this.advertisedRefsCache = advertisedRefsCache;
     this.db = db;
     this.projectName = projectControl.getProject().getNameKey();
     this.projectCtl = projectControl;
@@ -62,6 +73,21 @@ public class VisibleRefFilter extends AbstractAdvertiseRefsHook {
   }
 
   public Map<String, Ref> filter(Map<String, Ref> refs, boolean filterTagsSeperately) {
+    return filter(refs, filterTagsSeperately, null);
+  }
+
+  /**
+   * Filter the references.
+   *
+   * @param refs all references of the repository.
+   * @param filterTagsSeperately true to check tags against all visible
+   *        references, instead of only those in {@code refs}.
+   * @param drafts if not null, draft changes are not checked and their ids
+   *        are added to this set instead.
+   * @return the visible references.
+   */
+  private Map<String, Ref> filter(Map<String, Ref> refs,
+      boolean filterTagsSeperately, Set<Change.Id> drafts) {
     if (projectCtl.allRefsAreVisibleExcept(
         ImmutableSet.of(GitRepositoryManager.REF_CONFIG))) {
       Map<String, Ref> r = Maps.newHashMap(refs);
@@ -69,7 +95,7 @@ public class VisibleRefFilter extends AbstractAdvertiseRefsHook {
       return r;
     }
 
-    final Set<Change.Id> visibleChanges = visibleChanges();
+    final Set<Change.Id> visibleChanges = visibleChanges(refs.values(), drafts);
     final Map<String, Ref> result = new HashMap<String, Ref>();
     final List<Ref> deferredTags = new ArrayList<Ref>();
 
@@ -118,32 +144,152 @@ public class VisibleRefFilter extends AbstractAdvertiseRefsHook {
   @Override
   protected Map<String, Ref> getAdvertisedRefs(
       Repository repository, RevWalk revWalk) {
-    return filter(repository.getAllRefs());
+    if (projectCtl.allRefsAreVisibleExcept(
+        ImmutableSet.of(GitRepositoryManager.REF_CONFIG))) {
+      return filter(repository.getAllRefs());
+    }
+
+    final AdvertisedRefsCache.Key key =
+        advertisedRefsCache.key(projectCtl, showChanges);
+    AdvertisedRefsCache.Entry entry = advertisedRefsCache.get(key);
+    if (entry == null) {
+      final Map<String, Ref> refs = repository.getAllRefs();
+      final Set<Change.Id> drafts = new HashSet<Change.Id>();
+      cacheable = true;
+      final Map<String, Ref> result = filter(refs, false, drafts);
+      final List<Ref> draftRefs = new ArrayList<Ref>();
+      if (!drafts.isEmpty()) {
+        for (Ref ref : refs.values()) {
+          if (PatchSet.isRef(ref.getName())
+              && drafts.contains(Change.Id.fromRef(ref.getName()))) {
+            draftRefs.add(ref);
+          }
+        }
+      }
+      entry = new AdvertisedRefsCache.Entry(result, draftRefs);
+      if (cacheable) {
+        advertisedRefsCache.put(key, entry);
+      }
+    }
+
+    final Map<String, Ref> result = new HashMap<String, Ref>(entry.refs);
+    if (entry.drafts.isEmpty()) {
+      return result;
+    }
+    final Set<Change.Id> visibleDrafts = visibleDrafts(entry.drafts);
+    for (Ref ref : entry.drafts) {
+      if (visibleDrafts.contains(Change.Id.fromRef(ref.getName()))) {
+        result.put(ref.getName(), ref);
+      }
+    }
+    return result;
   }
 
   private Map<String, Ref> filter(Map<String, Ref> refs) {
     return filter(refs, false);
   }
 
-  private Set<Change.Id> visibleChanges() {
+  private Set<Change.Id> visibleChanges(Collection<Ref> refs,
+      Set<Change.Id> drafts) {
     if (!showChanges) {
       return Collections.emptySet();
     }
 
+    final Set<Change.Id> ids = new HashSet<Change.Id>();
+    for (Ref ref : refs) {
+      if (PatchSet.isRef(ref.getName())) {
+        ids.add(Change.Id.fromRef(ref.getName()));
+      }
+    }
+    if (ids.isEmpty()) {
+      return Collections.emptySet();
+    }
+
     final Project project = projectCtl.getProject();
+    final ChangeBranchCache.Changes changes = changeCache.get(projectName);
+    if (changes == null) {
+      log.error("Cannot load changes for project " + project.getName()
+          + ", assuming no changes are visible");
+      cacheable = false;
+      return Collections.emptySet();
+    }
+
+    // A change is visible if its destination branch is visible, so
+    // only check each branch once. Drafts need the full change to
+    // check ownership, as do changes the cache has not seen yet.
+    //
+    final Set<Change.Id> visibleChanges = new HashSet<Change.Id>();
+    final Map<Branch.NameKey, Boolean> visibleBranches =
+        new HashMap<Branch.NameKey, Boolean>();
+    final List<Change.Id> check = new ArrayList<Change.Id>();
+    for (Change.Id id : ids) {
+      Branch.NameKey dest = changes.getBranch(id);
+      if (dest == null) {
+        check.add(id);
+        continue;
+      } else if (changes.isDraft(id)) {
+        if (drafts != null) {
+          drafts.add(id);
+        } else {
+          check.add(id);
+        }
+        continue;
+      }
+
+      Boolean visible = visibleBranches.get(dest);
+      if (visible == null) {
+        visible = projectCtl.controlForRef(dest).isVisible();
+        visibleBranches.put(dest, visible);
+      }
+      if (visible) {
+        visibleChanges.add(id);
+      }
+    }
+
+    if (!check.isEmpty()) {
+      try {
+        int found = 0;
+        for (Change change : reviewDb.changes().get(check)) {
+          found++;
+          changes.put(change);
+          if (drafts != null && change.getStatus() == Change.Status.DRAFT) {
+            drafts.add(change.getId());
+          } else if (projectCtl.controlFor(change).isVisible(reviewDb)) {
+            visibleChanges.add(change.getId());
+          }
+        }
+        if (found < check.size()) {
+          // The reference may have been created before the change was
+          // committed to the database; do not remember it as invisible.
+          cacheable = false;
+        }
+      } catch (OrmException e) {
+        log.error("Cannot load changes for project " + project.getName()
+            + ", assuming no new changes are visible", e);
+        cacheable = false;
+      }
+    }
+    return visibleChanges;
+  }
+
+  private Set<Change.Id> visibleDrafts(List<Ref> refs) {
+    final Set<Change.Id> ids = new HashSet<Change.Id>();
+    for (Ref ref : refs) {
+      ids.add(Change.Id.fromRef(ref.getName()));
+    }
+
+    final Set<Change.Id> visible = new HashSet<Change.Id>();
     try {
-      final Set<Change.Id> visibleChanges = new HashSet<Change.Id>();
-      for (Change change : reviewDb.changes().byProject(project.getNameKey())) {
+      for (Change change : reviewDb.changes().get(ids)) {
         if (projectCtl.controlFor(change).isVisible(reviewDb)) {
-          visibleChanges.add(change.getId());
+          visible.add(change.getId());
         }
       }
-      return visibleChanges;
     } catch (OrmException e) {
-      log.error("Cannot load changes for project " + project.getName()
-          + ", assuming no changes are visible", e);
-      return Collections.emptySet();
+      log.error("Cannot load draft changes for project " + projectName.get()
+          + ", assuming no drafts are visible", e);
     }
+    return visible;
   }
 
   private static boolean isTag(Ref ref) {
@@ -0,0 +1,84 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.index;
+
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.server.query.Predicate;
+import com.google.gerrit.server.query.QueryParseException;
+import com.google.gerrit.server.query.change.ChangeData;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Secondary index of changes, answering queries without scanning ReviewDb.
+ * <p>
+ * An index stores a denormalized {@link IndexedChange} for every change and
+ * evaluates a subset of the {@code ChangeQueryBuilder} predicates against it.
+ * Predicates the index cannot evaluate are left to the regular ReviewDb query
+ * path, so an implementation may support as few operators as it likes.
+ */
+public interface ChangeIndex {
+  /**
+   * @param p predicate to test.
+   * @return true if {@link #query(Predicate, int)} can evaluate the predicate,
+   *         including all of its children.
+   */
+  public boolean canQuery(Predicate<ChangeData> p);
+
+  /**
+   * @param p predicate; {@link #canQuery(Predicate)} must be true for it.
+   * @return true if every change {@link #query(Predicate, int)} returns for
+   *         the predicate matches it, so the results need not be checked
+   *         again with {@link Predicate#match(Object)}.
+   */
+  public boolean isExact(Predicate<ChangeData> p);
+
+  /**
+   * Insert or replace the document describing a change.
+   *
+   * @param doc the current state of the change.
+   * @throws IOException the index could not be updated.
+   */
+  public void replace(IndexedChange doc) throws IOException;
+
+  /**
+   * Remove a change from the index.
+   *
+   * @param id the change to remove.
+   * @throws IOException the index could not be updated.
+   */
+  public void delete(Change.Id id) throws IOException;
+
+  /**
+   * Remove all changes from the index.
+   *
+   * @throws IOException the index could not be updated.
+   */
+  public void deleteAll() throws IOException;
+
+  /**
+   * Find changes matching a predicate.
+   *
+   * @param p predicate; {@link #canQuery(Predicate)} must be true for it.
+   * @param limit maximum number of results to return.
+   * @return identities of the matching changes, in the same sort key order
+   *         the ReviewDb query path would return them.
+   * @throws QueryParseException the predicate is not supported.
+   * @throws IOException the index could not be read.
+   */
+  public List<Change.Id> query(Predicate<ChangeData> p, int limit)
+      throws QueryParseException, IOException;
+}
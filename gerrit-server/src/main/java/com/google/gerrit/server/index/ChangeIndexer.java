@@ -0,0 +1,141 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.index;
+
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.PatchSetApproval;
+import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.patch.PatchListCache;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gwtorm.server.OrmException;
+import com.google.gwtorm.server.SchemaFactory;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.google.inject.util.Providers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/** Keeps the {@link ChangeIndex} up to date as changes are modified. */
+@Singleton
+public class ChangeIndexer {
+  private static final Logger log = LoggerFactory.getLogger(ChangeIndexer.class);
+
+  private final ChangeIndex index;
+  private final SchemaFactory<ReviewDb> schema;
+  private final PatchListCache patchListCache;
+  private final WorkQueue.Executor executor;
+
+  @Inject
+  ChangeIndexer(ChangeIndex index, SchemaFactory<ReviewDb> schema,
+      PatchListCache patchListCache, WorkQueue queue) {
+    this.index = index;
+    this.schema = schema;
+    this.patchListCache = patchListCache;
+    this.executor = isEnabled()
+        ? queue.createQueue(1, "ChangeIndexer")
+        : null;
+  }
+
+  /** @return true if a real index is configured for this server. */
+  public boolean isEnabled() {
+    return !(index instanceof DisabledChangeIndex);
+  }
+
+  /**
+   * Schedule a change to be reindexed in the background.
+   * <p>
+   * The change is reloaded from the database when the task runs, so callers
+   * may invoke this before their own transaction is visible to others.
+   *
+   * @param id change to reindex.
+   */
+  public void indexAsync(Change.Id id) {
+    if (isEnabled()) {
+      executor.execute(new IndexTask(id));
+    }
+  }
+
+  /**
+   * Reindex a change immediately.
+   *
+   * @param db open database handle.
+   * @param change current state of the change.
+   */
+  public void index(ReviewDb db, Change change) throws OrmException,
+      IOException {
+    index.replace(create(db, change));
+  }
+
+  private IndexedChange create(ReviewDb db, Change change)
+      throws OrmException, IOException {
+    Provider<ReviewDb> dbProvider = Providers.of(db);
+    ChangeData cd = new ChangeData(change);
+
+    Set<Account.Id> reviewers = new HashSet<Account.Id>();
+    for (PatchSetApproval psa : cd.approvals(dbProvider)) {
+      reviewers.add(psa.getAccountId());
+    }
+
+    String[] files = cd.currentFilePaths(dbProvider, patchListCache);
+    if (files == null) {
+      files = new String[0];
+    }
+
+    return new IndexedChange(change, reviewers,
+        cd.currentApprovals(dbProvider), files);
+  }
+
+  private class IndexTask implements Runnable {
+    private final Change.Id id;
+
+    IndexTask(Change.Id id) {
+      this.id = id;
+    }
+
+    @Override
+    public void run() {
+      try {
+        ReviewDb db = schema.open();
+        try {
+          Change change = db.changes().get(id);
+          if (change != null) {
+            index(db, change);
+          } else {
+            index.delete(id);
+          }
+        } finally {
+          db.close();
+        }
+      } catch (OrmException e) {
+        log.error("Cannot load change " + id + " for index", e);
+      } catch (IOException e) {
+        log.error("Cannot index change " + id, e);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "index-change " + id;
+    }
+  }
+}
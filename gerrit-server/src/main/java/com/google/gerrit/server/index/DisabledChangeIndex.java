@@ -0,0 +1,53 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.index;
+
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.server.query.Predicate;
+import com.google.gerrit.server.query.QueryParseException;
+import com.google.gerrit.server.query.change.ChangeData;
+
+import java.util.List;
+
+/** Does not index changes; all queries use ReviewDb. */
+public final class DisabledChangeIndex implements ChangeIndex {
+  @Override
+  public boolean canQuery(Predicate<ChangeData> p) {
+    return false;
+  }
+
+  @Override
+  public boolean isExact(Predicate<ChangeData> p) {
+    return false;
+  }
+
+  @Override
+  public void replace(IndexedChange doc) {
+  }
+
+  @Override
+  public void delete(Change.Id id) {
+  }
+
+  @Override
+  public void deleteAll() {
+  }
+
+  @Override
+  public List<Change.Id> query(Predicate<ChangeData> p, int limit)
+      throws QueryParseException {
+    throw new QueryParseException("change index is disabled");
+  }
+}
@@ -0,0 +1,608 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.index;
+
+import static com.google.gerrit.server.query.change.ChangeQueryBuilder.FIELD_BRANCH;
+import static com.google.gerrit.server.query.change.ChangeQueryBuilder.FIELD_FILE;
+import static com.google.gerrit.server.query.change.ChangeQueryBuilder.FIELD_OWNER;
+import static com.google.gerrit.server.query.change.ChangeQueryBuilder.FIELD_PROJECT;
+import static com.google.gerrit.server.query.change.ChangeQueryBuilder.FIELD_REVIEWER;
+import static com.google.gerrit.server.query.change.ChangeQueryBuilder.FIELD_STATUS;
+import static com.google.gerrit.server.query.change.ChangeQueryBuilder.FIELD_TOPIC;
+
+import com.google.common.collect.Lists;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.PatchSetApproval;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.config.SitePaths;
+import com.google.gerrit.server.query.AndPredicate;
+import com.google.gerrit.server.query.NotPredicate;
+import com.google.gerrit.server.query.OperatorPredicate;
+import com.google.gerrit.server.query.OrPredicate;
+import com.google.gerrit.server.query.Predicate;
+import com.google.gerrit.server.query.QueryParseException;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import dk.brics.automaton.RegExp;
+
+import org.eclipse.jgit.lib.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Change index stored in an embedded H2 database under the site directory.
+ * <p>
+ * Each change is one row of {@code changes}, with its reviewers, current
+ * votes and current file paths in side tables. Queries are compiled into a
+ * single SELECT ordered by sort key, so the database only touches the rows
+ * of the index relevant to the query.
+ * <p>
+ * Some predicates are only approximated: {@code label:} ignores permission
+ * squashing and {@code file:} only uses the literal prefix of its
+ * expression. Their SQL selects a superset of the matching changes, which
+ * callers narrow with {@link Predicate#match(Object)}, so they are never
+ * accepted under a negation. Queries using neither are exact. {@code message:} matches any substring of the
+ * commit message, which the index cannot select, so it is left to ReviewDb.
+ */
+@Singleton
+public class H2ChangeIndex implements ChangeIndex, LifecycleListener {
+  private static final Logger log = LoggerFactory.getLogger(H2ChangeIndex.class);
+
+  private static final String SORTKEY_BEFORE = "sortkey_before";
+  private static final String SORTKEY_AFTER = "sortkey_after";
+
+  private static final String[] SCHEMA = {
+    "CREATE TABLE IF NOT EXISTS changes"
+        + "(change_id INT NOT NULL PRIMARY KEY"
+        + ",project VARCHAR(255) NOT NULL"
+        + ",dest VARCHAR(255) NOT NULL"
+        + ",status CHAR(1) NOT NULL"
+        + ",owner INT NOT NULL"
+        + ",topic VARCHAR(255)"
+        + ",sort_key VARCHAR(16) NOT NULL)",
+    "CREATE INDEX IF NOT EXISTS changes_sort ON changes(status, sort_key)",
+    "CREATE INDEX IF NOT EXISTS changes_project ON changes(project, status)",
+    "CREATE INDEX IF NOT EXISTS changes_owner ON changes(owner)",
+    "CREATE INDEX IF NOT EXISTS changes_topic ON changes(topic)",
+
+    "CREATE TABLE IF NOT EXISTS change_reviewers"
+        + "(change_id INT NOT NULL"
+        + ",account_id INT NOT NULL)",
+    "CREATE INDEX IF NOT EXISTS change_reviewers_account"
+        + " ON change_reviewers(account_id)",
+    "CREATE INDEX IF NOT EXISTS change_reviewers_change"
+        + " ON change_reviewers(change_id)",
+
+    "CREATE TABLE IF NOT EXISTS change_labels"
+        + "(change_id INT NOT NULL"
+        + ",category_id VARCHAR(4) NOT NULL"
+        + ",value SMALLINT NOT NULL)",
+    "CREATE INDEX IF NOT EXISTS change_labels_vote"
+        + " ON change_labels(category_id, value)",
+    "CREATE INDEX IF NOT EXISTS change_labels_change"
+        + " ON change_labels(change_id)",
+
+    "CREATE TABLE IF NOT EXISTS change_files"
+        + "(change_id INT NOT NULL"
+        + ",path VARCHAR(4096) NOT NULL)",
+    "CREATE INDEX IF NOT EXISTS change_files_path ON change_files(path)",
+    "CREATE INDEX IF NOT EXISTS change_files_change ON change_files(change_id)",
+
+    // Commit message terms were stored by earlier versions.
+    "DROP TABLE IF EXISTS change_terms",
+  };
+
+  private static final String[] TABLES = {
+    "changes", "change_reviewers", "change_labels", "change_files"};
+
+  private final String url;
+  private final BlockingQueue<Connection> handles;
+
+  @Inject
+  H2ChangeIndex(SitePaths site, @GerritServerConfig Config cfg) {
+    File dir = site.resolve(cfg.getString("index", null, "directory"));
+    if (dir == null) {
+      dir = new File(site.site_path, "index");
+    }
+    url = "jdbc:h2:" + new File(dir, "changes").getAbsoluteFile().toURI();
+
+    int cores = Runtime.getRuntime().availableProcessors();
+    handles = new ArrayBlockingQueue<Connection>(Math.min(cores, 16));
+  }
+
+  @Override
+  public void start() {
+    Connection c = null;
+    try {
+      c = acquire();
+    } catch (SQLException e) {
+      log.error("Cannot open change index " + url, e);
+      c = close(c);
+    } finally {
+      release(c);
+    }
+  }
+
+  @Override
+  public void stop() {
+    Connection c;
+    while ((c = handles.poll()) != null) {
+      close(c);
+    }
+  }
+
+  @Override
+  public boolean canQuery(Predicate<ChangeData> p) {
+    return canQuery(p, false);
+  }
+
+  private static boolean canQuery(Predicate<ChangeData> p, boolean negated) {
+    if (p instanceof AndPredicate || p instanceof OrPredicate) {
+      for (Predicate<ChangeData> c : p.getChildren()) {
+        if (!canQuery(c, negated)) {
+          return false;
+        }
+      }
+      return true;
+
+    } else if (p instanceof NotPredicate) {
+      return canQuery(p.getChild(0), !negated);
+
+    } else if (p instanceof LabelVotePredicate) {
+      LabelVotePredicate l = (LabelVotePredicate) p;
+      return !negated && (0 < l.getMinValue() || l.getMaxValue() < 0);
+
+    } else if (p instanceof OperatorPredicate) {
+      String op = ((OperatorPredicate<ChangeData>) p).getOperator();
+      String value = ((OperatorPredicate<ChangeData>) p).getValue();
+      if (FIELD_STATUS.equals(op)
+          || FIELD_OWNER.equals(op)
+          || FIELD_REVIEWER.equals(op)) {
+        return true;
+      } else if (FIELD_PROJECT.equals(op)
+          || FIELD_BRANCH.equals(op)
+          || FIELD_TOPIC.equals(op)) {
+        // Regular expressions use brics syntax, which H2 does not support.
+        return !value.startsWith("^");
+      } else if (SORTKEY_BEFORE.equals(op) || SORTKEY_AFTER.equals(op)) {
+        return !negated;
+      } else if (FIELD_FILE.equals(op)) {
+        return !negated && !filePrefix(value).isEmpty();
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public boolean isExact(Predicate<ChangeData> p) {
+    if (p instanceof AndPredicate
+        || p instanceof OrPredicate
+        || p instanceof NotPredicate) {
+      for (Predicate<ChangeData> c : p.getChildren()) {
+        if (!isExact(c)) {
+          return false;
+        }
+      }
+      return true;
+
+    } else if (p instanceof LabelVotePredicate) {
+      return false;
+
+    } else if (p instanceof OperatorPredicate) {
+      String op = ((OperatorPredicate<ChangeData>) p).getOperator();
+      return !FIELD_FILE.equals(op);
+    }
+    return false;
+  }
+
+  @Override
+  public void replace(IndexedChange doc) throws IOException {
+    Connection c = null;
+    try {
+      c = acquire();
+      c.setAutoCommit(false);
+      try {
+        delete(c, doc.getId());
+        insert(c, doc);
+        c.commit();
+      } catch (SQLException e) {
+        c.rollback();
+        throw e;
+      } finally {
+        c.setAutoCommit(true);
+      }
+    } catch (SQLException e) {
+      c = close(c);
+      throw new IOException("Cannot index change " + doc.getId(), e);
+    } finally {
+      release(c);
+    }
+  }
+
+  @Override
+  public void delete(Change.Id id) throws IOException {
+    Connection c = null;
+    try {
+      c = acquire();
+      c.setAutoCommit(false);
+      try {
+        delete(c, id);
+        c.commit();
+      } catch (SQLException e) {
+        c.rollback();
+        throw e;
+      } finally {
+        c.setAutoCommit(true);
+      }
+    } catch (SQLException e) {
+      c = close(c);
+      throw new IOException("Cannot delete change " + id + " from index", e);
+    } finally {
+      release(c);
+    }
+  }
+
+  @Override
+  public void deleteAll() throws IOException {
+    Connection c = null;
+    try {
+      c = acquire();
+      c.setAutoCommit(false);
+      try {
+        Statement s = c.createStatement();
+        try {
+          for (String table : TABLES) {
+            s.executeUpdate("DELETE FROM " + table);
+          }
+        } finally {
+          s.close();
+        }
+        c.commit();
+      } catch (SQLException e) {
+        c.rollback();
+        throw e;
+      } finally {
+        c.setAutoCommit(true);
+      }
+    } catch (SQLException e) {
+      c = close(c);
+      throw new IOException("Cannot clear index", e);
+    } finally {
+      release(c);
+    }
+  }
+
+  @Override
+  public List<Change.Id> query(Predicate<ChangeData> p, int limit)
+      throws QueryParseException, IOException {
+    if (!canQuery(p)) {
+      throw new QueryParseException("cannot query index: " + p);
+    }
+
+    StringBuilder sql = new StringBuilder();
+    List<Object> args = new ArrayList<Object>();
+    sql.append("SELECT c.change_id FROM changes c WHERE ");
+    compile(p, sql, args);
+    sql.append(" ORDER BY c.sort_key");
+    sql.append(isAscending(p) ? " ASC" : " DESC");
+    if (0 < limit) {
+      sql.append(" LIMIT ?");
+      args.add(limit);
+    }
+
+    Connection c = null;
+    try {
+      c = acquire();
+      PreparedStatement ps = c.prepareStatement(sql.toString());
+      try {
+        for (int i = 0; i < args.size(); i++) {
+          ps.setObject(i + 1, args.get(i));
+        }
+        ResultSet rs = ps.executeQuery();
+        try {
+          List<Change.Id> r = Lists.newArrayList();
+          while (rs.next()) {
+            r.add(new Change.Id(rs.getInt(1)));
+          }
+          return r;
+        } finally {
+          rs.close();
+        }
+      } finally {
+        ps.close();
+      }
+    } catch (SQLException e) {
+      c = close(c);
+      throw new IOException("Cannot query index: " + p, e);
+    } finally {
+      release(c);
+    }
+  }
+
+  private static boolean isAscending(Predicate<ChangeData> p) {
+    if (p instanceof OperatorPredicate) {
+      return SORTKEY_AFTER.equals(
+          ((OperatorPredicate<ChangeData>) p).getOperator());
+    } else if (p instanceof AndPredicate) {
+      for (Predicate<ChangeData> c : p.getChildren()) {
+        if (isAscending(c)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static void compile(Predicate<ChangeData> p, StringBuilder sql,
+      List<Object> args) throws QueryParseException {
+    if (p instanceof AndPredicate) {
+      join(p, " AND ", sql, args);
+
+    } else if (p instanceof OrPredicate) {
+      join(p, " OR ", sql, args);
+
+    } else if (p instanceof NotPredicate) {
+      // A NULL topic makes "c.topic = ?" unknown rather than false; count
+      // unknown as false so the negation still selects the change.
+      sql.append("NOT COALESCE(");
+      compile(p.getChild(0), sql, args);
+      sql.append(", FALSE)");
+
+    } else if (p instanceof LabelVotePredicate) {
+      // Squashing only moves a vote towards 0, so every vote matching a
+      // range on one side of 0 is at least as far from 0 in the database.
+      LabelVotePredicate l = (LabelVotePredicate) p;
+      sql.append("c.change_id IN (SELECT l.change_id FROM change_labels l");
+      sql.append(" WHERE l.category_id = ? AND l.value ");
+      args.add(l.getCategoryId().get());
+      if (0 < l.getMinValue()) {
+        sql.append(">= ?)");
+        args.add(l.getMinValue());
+      } else {
+        sql.append("<= ?)");
+        args.add(l.getMaxValue());
+      }
+
+    } else if (p instanceof OperatorPredicate) {
+      compileOperator((OperatorPredicate<ChangeData>) p, sql, args);
+
+    } else {
+      throw new QueryParseException("cannot query index: " + p);
+    }
+  }
+
+  private static void join(Predicate<ChangeData> p, String op,
+      StringBuilder sql, List<Object> args) throws QueryParseException {
+    sql.append('(');
+    for (int i = 0; i < p.getChildCount(); i++) {
+      if (i != 0) {
+        sql.append(op);
+      }
+      compile(p.getChild(i), sql, args);
+    }
+    sql.append(')');
+  }
+
+  private static void compileOperator(OperatorPredicate<ChangeData> p,
+      StringBuilder sql, List<Object> args) throws QueryParseException {
+    String op = p.getOperator();
+    String value = p.getValue();
+
+    if (FIELD_STATUS.equals(op)) {
+      sql.append("c.status = ?");
+      args.add(String.valueOf(status(value).getCode()));
+
+    } else if (FIELD_PROJECT.equals(op)) {
+      sql.append("c.project = ?");
+      args.add(value);
+
+    } else if (FIELD_BRANCH.equals(op)) {
+      sql.append("c.dest = ?");
+      args.add(value);
+
+    } else if (FIELD_TOPIC.equals(op)) {
+      sql.append("c.topic = ?");
+      args.add(value);
+
+    } else if (FIELD_OWNER.equals(op)) {
+      sql.append("c.owner = ?");
+      args.add(account(value).get());
+
+    } else if (FIELD_REVIEWER.equals(op)) {
+      sql.append("c.change_id IN (SELECT r.change_id FROM change_reviewers r");
+      sql.append(" WHERE r.account_id = ?)");
+      args.add(account(value).get());
+
+    } else if (FIELD_FILE.equals(op)) {
+      String prefix = filePrefix(value);
+      int n = prefix.length();
+      sql.append("c.change_id IN (SELECT f.change_id FROM change_files f");
+      sql.append(" WHERE f.path >= ? AND f.path < ?)");
+      args.add(prefix);
+      args.add(prefix.substring(0, n - 1) + (char) (prefix.charAt(n - 1) + 1));
+
+    } else if (SORTKEY_BEFORE.equals(op)) {
+      sql.append("c.sort_key < ?");
+      args.add(value);
+
+    } else if (SORTKEY_AFTER.equals(op)) {
+      sql.append("c.sort_key > ?");
+      args.add(value);
+
+    } else {
+      throw new QueryParseException("cannot query index: " + p);
+    }
+  }
+
+  /**
+   * @return literal prefix of every path matched by a {@code file:} value.
+   *         Regular expressions start with {@code ^} and are read with the
+   *         brics syntax the predicate uses; other values are plain paths
+   *         and are their own prefix. Empty if there is no prefix or the
+   *         expression cannot be parsed.
+   */
+  private static String filePrefix(String value) {
+    if (!value.startsWith("^")) {
+      return value;
+    }
+
+    String re = value.substring(1);
+    if (re.endsWith("$") && !re.endsWith("\\$")) {
+      re = re.substring(0, re.length() - 1);
+    }
+    try {
+      return new RegExp(re).toAutomaton().getCommonPrefix();
+    } catch (IllegalArgumentException e) {
+      return "";
+    }
+  }
+
+  private static Change.Status status(String value)
+      throws QueryParseException {
+    try {
+      return Change.Status.valueOf(value.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new QueryParseException("unknown status: " + value);
+    }
+  }
+
+  private static Account.Id account(String value) throws QueryParseException {
+    try {
+      return Account.Id.parse(value);
+    } catch (NumberFormatException e) {
+      throw new QueryParseException("invalid account: " + value);
+    }
+  }
+
+  private static void delete(Connection c, Change.Id id) throws SQLException {
+    for (String table : TABLES) {
+      PreparedStatement ps =
+          c.prepareStatement("DELETE FROM " + table + " WHERE change_id = ?");
+      try {
+        ps.setInt(1, id.get());
+        ps.executeUpdate();
+      } finally {
+        ps.close();
+      }
+    }
+  }
+
+  private static void insert(Connection c, IndexedChange doc)
+      throws SQLException {
+    Change change = doc.getChange();
+    int id = doc.getId().get();
+
+    PreparedStatement ps = c.prepareStatement(
+        "INSERT INTO changes VALUES(?,?,?,?,?,?,?)");
+    try {
+      ps.setInt(1, id);
+      ps.setString(2, change.getProject().get());
+      ps.setString(3, change.getDest().get());
+      ps.setString(4, String.valueOf(change.getStatus().getCode()));
+      ps.setInt(5, change.getOwner().get());
+      ps.setString(6, change.getTopic());
+      ps.setString(7, change.getSortKey());
+      ps.executeUpdate();
+    } finally {
+      ps.close();
+    }
+
+    ps = c.prepareStatement("INSERT INTO change_reviewers VALUES(?,?)");
+    try {
+      for (Account.Id who : doc.getReviewers()) {
+        ps.setInt(1, id);
+        ps.setInt(2, who.get());
+        ps.addBatch();
+      }
+      ps.executeBatch();
+    } finally {
+      ps.close();
+    }
+
+    ps = c.prepareStatement("INSERT INTO change_labels VALUES(?,?,?)");
+    try {
+      for (PatchSetApproval psa : doc.getCurrentApprovals()) {
+        ps.setInt(1, id);
+        ps.setString(2, psa.getCategoryId().get());
+        ps.setShort(3, psa.getValue());
+        ps.addBatch();
+      }
+      ps.executeBatch();
+    } finally {
+      ps.close();
+    }
+
+    ps = c.prepareStatement("INSERT INTO change_files VALUES(?,?)");
+    try {
+      for (String path : doc.getCurrentFiles()) {
+        ps.setInt(1, id);
+        ps.setString(2, path);
+        ps.addBatch();
+      }
+      ps.executeBatch();
+    } finally {
+      ps.close();
+    }
+  }
+
+  private Connection acquire() throws SQLException {
+    Connection c = handles.poll();
+    if (c == null) {
+      c = org.h2.Driver.load().connect(url, null);
+      Statement s = c.createStatement();
+      try {
+        for (String sql : SCHEMA) {
+          s.execute(sql);
+        }
+      } finally {
+        s.close();
+      }
+    }
+    return c;
+  }
+
+  private void release(Connection c) {
+    if (c != null && !handles.offer(c)) {
+      close(c);
+    }
+  }
+
+  private Connection close(Connection c) {
+    if (c != null) {
+      try {
+        c.close();
+      } catch (SQLException e) {
+        log.warn("Cannot close connection to " + url, e);
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,52 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.index;
+
+import com.google.gerrit.lifecycle.LifecycleModule;
+
+import org.eclipse.jgit.lib.Config;
+
+/** Binds the {@link ChangeIndex} selected by {@code index.type}. */
+public class IndexModule extends LifecycleModule {
+  public static enum Type {
+    NONE, H2
+  }
+
+  public static Type getType(Config cfg) {
+    return cfg.getEnum("index", null, "type", Type.NONE);
+  }
+
+  private final Type type;
+
+  public IndexModule(Type type) {
+    this.type = type;
+  }
+
+  @Override
+  protected void configure() {
+    switch (type) {
+      case H2:
+        bind(ChangeIndex.class).to(H2ChangeIndex.class);
+        listener().to(H2ChangeIndex.class);
+        break;
+
+      case NONE:
+      default:
+        bind(ChangeIndex.class).to(DisabledChangeIndex.class);
+        break;
+    }
+    bind(ChangeIndexer.class);
+  }
+}
@@ -0,0 +1,62 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.index;
+
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.PatchSetApproval;
+
+import java.util.Collection;
+import java.util.Set;
+
+/** Denormalized copy of the searchable fields of one change. */
+public class IndexedChange {
+  private final Change change;
+  private final Set<Account.Id> reviewers;
+  private final Collection<PatchSetApproval> currentApprovals;
+  private final String[] currentFiles;
+
+  public IndexedChange(Change change, Set<Account.Id> reviewers,
+      Collection<PatchSetApproval> currentApprovals, String[] currentFiles) {
+    this.change = change;
+    this.reviewers = reviewers;
+    this.currentApprovals = currentApprovals;
+    this.currentFiles = currentFiles;
+  }
+
+  public Change.Id getId() {
+    return change.getId();
+  }
+
+  /** @return the change row; project, branch, status, owner and topic. */
+  public Change getChange() {
+    return change;
+  }
+
+  /** @return every account that has voted on any patch set. */
+  public Set<Account.Id> getReviewers() {
+    return reviewers;
+  }
+
+  /** @return votes on the current patch set. */
+  public Collection<PatchSetApproval> getCurrentApprovals() {
+    return currentApprovals;
+  }
+
+  /** @return file paths touched by the current patch set, sorted. */
+  public String[] getCurrentFiles() {
+    return currentFiles;
+  }
+}
@@ -0,0 +1,32 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.index;
+
+import com.google.gerrit.reviewdb.client.ApprovalCategory;
+
+/**
+ * Predicate matching a range of votes in one category on the current patch
+ * set, in a form a {@link ChangeIndex} can evaluate.
+ */
+public interface LabelVotePredicate {
+  /** @return category the vote must be in. */
+  public ApprovalCategory.Id getCategoryId();
+
+  /** @return smallest matching vote value, inclusive. */
+  public int getMinValue();
+
+  /** @return largest matching vote value, inclusive. */
+  public int getMaxValue();
+}
@@ -31,6 +31,9 @@ public interface EmailSender {
 
   /**
    * Sends an email message.
+   * <p>
+   * Implementations may queue the message and send it later, in which case
+   * only failures to accept the message are reported to the caller.
    *
    * @param from who the message is from.
    * @param rcpt one or more address where the message will be delivered to.
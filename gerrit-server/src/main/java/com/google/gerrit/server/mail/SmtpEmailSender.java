@@ -15,9 +15,12 @@
 package com.google.gerrit.server.mail;
 
 import com.google.gerrit.common.Version;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.lifecycle.LifecycleModule;
 import com.google.gerrit.server.config.ConfigUtil;
 import com.google.gerrit.server.config.GerritServerConfig;
-import com.google.inject.AbstractModule;
+import com.google.gerrit.server.config.SitePaths;
+import com.google.gerrit.server.git.WorkQueue;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
@@ -25,26 +28,60 @@ import org.apache.commons.net.smtp.AuthSMTPClient;
 import org.apache.commons.net.smtp.SMTPClient;
 import org.apache.commons.net.smtp.SMTPReply;
 import org.eclipse.jgit.lib.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StringWriter;
 import java.io.Writer;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-
-/** Sends email via a nearby SMTP server. */
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends email via a nearby SMTP server.
+ * <p>
+ * Unless {@code sendemail.async} is false, messages are written to a spool
+ * directory and sent in the background by a small pool of threads, each
+ * reusing its connection to the server for the following messages.
+ * Temporary failures are retried with an increasing delay, and spooled
+ * messages not yet sent when the server stops are sent after it restarts.
+ */
 @Singleton
-public class SmtpEmailSender implements EmailSender {
-  public static class Module extends AbstractModule {
+public class SmtpEmailSender implements EmailSender, LifecycleListener {
+  private static final Logger log =
+      LoggerFactory.getLogger(SmtpEmailSender.class);
+
+  private static final long MAX_RETRY_DELAY = TimeUnit.HOURS.toMillis(1);
+
+  public static class Module extends LifecycleModule {
     @Override
     protected void configure() {
       bind(EmailSender.class).to(SmtpEmailSender.class);
+      listener().to(SmtpEmailSender.class);
     }
   }
 
@@ -64,8 +101,18 @@ public class SmtpEmailSender implements EmailSender {
   private String importance;
   private int expiryDays;
 
+  private final WorkQueue.Executor executor;
+  private final File spoolDir;
+  private final Set<String> queued;
+  private final AtomicInteger spoolSeq;
+  private final BlockingQueue<Session> idle;
+  private final long idleTimeout;
+  private final long retryDelay;
+  private final int maxRetries;
+
   @Inject
-  SmtpEmailSender(@GerritServerConfig final Config cfg) {
+  SmtpEmailSender(@GerritServerConfig final Config cfg, final SitePaths site,
+      final WorkQueue workQueue) {
     enabled = cfg.getBoolean("sendemail", null, "enable", true);
 
     smtpHost = cfg.getString("sendemail", null, "smtpserver");
@@ -102,6 +149,24 @@ public class SmtpEmailSender implements EmailSender {
     allowrcpt = Collections.unmodifiableSet(rcpt);
     importance = cfg.getString("sendemail", null, "importance");
     expiryDays = cfg.getInt("sendemail", null, "expiryDays", 0);
+
+    int threads = Math.max(1,
+        cfg.getInt("sendemail", null, "threadPoolSize", 2));
+    if (enabled && cfg.getBoolean("sendemail", null, "async", true)) {
+      executor = workQueue.createQueue(threads, "SendEmail");
+    } else {
+      executor = null;
+    }
+    spoolDir = new File(site.data_dir, "mail-queue");
+    queued = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    spoolSeq = new AtomicInteger();
+    idle = new ArrayBlockingQueue<Session>(threads);
+    idleTimeout = ConfigUtil.getTimeUnit(cfg, "sendemail", null,
+        "connectionIdleTimeout", TimeUnit.SECONDS.toMillis(30),
+        TimeUnit.MILLISECONDS);
+    retryDelay = Math.max(1000, ConfigUtil.getTimeUnit(cfg, "sendemail", null,
+        "retryDelay", TimeUnit.MINUTES.toMillis(1), TimeUnit.MILLISECONDS));
+    maxRetries = cfg.getInt("sendemail", null, "maxRetries", 8);
   }
 
   @Override
@@ -156,63 +221,264 @@ public class SmtpEmailSender implements EmailSender {
         new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss Z").format(expiry));
     }
 
-    StringBuffer rejected = new StringBuffer();
+    final Message msg = new Message(from.email, rcpt, format(hdrs), body);
+    if (executor == null) {
+      deliver(msg);
+      return;
+    }
+
     try {
-      final SMTPClient client = open();
-      try {
-        if (!client.setSender(from.email)) {
-          throw new EmailException("Server " + smtpHost
-              + " rejected from address " + from.email);
+      spool(msg);
+    } catch (IOException e) {
+      log.warn("Cannot spool outgoing email to " + spoolDir, e);
+      deliver(msg);
+      return;
+    }
+    executor.execute(new DeliverTask(msg));
+  }
+
+  private static String format(Map<String, EmailHeader> hdrs)
+      throws EmailException {
+    try {
+      StringWriter w = new StringWriter();
+      for (Map.Entry<String, EmailHeader> h : hdrs.entrySet()) {
+        if (!h.getValue().isEmpty()) {
+          w.write(h.getKey());
+          w.write(": ");
+          h.getValue().write(w);
+          w.write("\r\n");
         }
+      }
+      w.write("\r\n");
+      return w.toString();
+    } catch (IOException e) {
+      throw new EmailException("Cannot format email headers", e);
+    }
+  }
 
-        /* Do not prevent the email from being sent to "good" users simply
-         * because some users get rejected.  If not, a single rejected
-         * project watcher could prevent email for most actions on a project
-         * from being sent to any user!  Instead, queue up the errors, and
-         * throw an exception after sending the email to get the rejected
-         * error(s) logged.
-         */
-        for (Address addr : rcpt) {
-          if (!client.addRecipient(addr.email)) {
-            String error = client.getReplyString();
-            rejected.append("Server " + smtpHost + " rejected recipient "
-                + addr + ": " + error);
-          }
+  /**
+   * Send a message over a pooled connection.
+   * <p>
+   * Recipients the server only temporarily refuses (a 4xx reply to RCPT,
+   * such as a full mailbox or greylisting) do not hold back the others.
+   * The message is sent to the accepted recipients, the recipient list of
+   * {@code msg} is reduced to the refused ones, and a
+   * {@link TemporaryFailure} is thrown so they are tried again later.
+   *
+   * @param msg the message.
+   * @throws EmailException the message could not be sent to at least one
+   *         recipient. A {@link TemporaryFailure} may succeed if retried.
+   */
+  private void deliver(Message msg) throws EmailException {
+    StringBuilder rejected = new StringBuilder();
+    List<String> deferred = new ArrayList<String>();
+    Session session = borrow();
+    boolean reuse = false;
+    try {
+      final SMTPClient client = session.client;
+      if (!client.setSender(msg.from)) {
+        throw failure(client, "rejected from address " + msg.from);
+      }
+
+      /* Do not prevent the email from being sent to "good" users simply
+       * because some users get rejected.  If not, a single rejected
+       * project watcher could prevent email for most actions on a project
+       * from being sent to any user!  Instead, queue up the errors, and
+       * throw an exception after sending the email to get the rejected
+       * error(s) logged.
+       */
+      int accepted = 0;
+      for (String addr : msg.rcpt) {
+        if (client.addRecipient(addr)) {
+          accepted++;
+        } else if (SMTPReply.isNegativeTransient(client.getReplyCode())) {
+          deferred.add(addr);
+        } else {
+          String error = client.getReplyString();
+          rejected.append("Server " + smtpHost + " rejected recipient "
+              + addr + ": " + error);
         }
+      }
 
+      if (0 < accepted) {
         Writer w = client.sendMessageData();
         if (w == null) {
-          throw new EmailException("Server " + smtpHost + " rejected body");
+          throw failure(client, "rejected body");
         }
         w = new BufferedWriter(w);
-
-        for (Map.Entry<String, EmailHeader> h : hdrs.entrySet()) {
-          if (!h.getValue().isEmpty()) {
-            w.write(h.getKey());
-            w.write(": ");
-            h.getValue().write(w);
-            w.write("\r\n");
-          }
-        }
-
-        w.write("\r\n");
-        w.write(body);
+        w.write(msg.headers);
+        w.write(msg.body);
         w.flush();
         w.close();
 
         if (!client.completePendingCommand()) {
-          throw new EmailException("Server " + smtpHost + " rejected body");
+          throw failure(client, "rejected body");
         }
+      }
+      reuse = true;
 
-        client.logout();
+      if (deferred.isEmpty()) {
         if (rejected.length() > 0) {
           throw new EmailException(rejected.toString());
         }
-      } finally {
-        client.disconnect();
+      } else {
+        if (rejected.length() > 0) {
+          log.error(rejected.toString());
+        }
+        msg.rcpt.retainAll(deferred);
+        throw new TemporaryFailure("Server " + smtpHost
+            + " deferred recipients " + deferred, null);
+      }
+    } catch (IOException e) {
+      throw new TemporaryFailure("Cannot send outgoing email", e);
+    } finally {
+      release(session, reuse);
+    }
+  }
+
+  private EmailException failure(SMTPClient client, String what) {
+    String msg = "Server " + smtpHost + " " + what + ": "
+        + client.getReplyString();
+    if (SMTPReply.isNegativeTransient(client.getReplyCode())) {
+      return new TemporaryFailure(msg, null);
+    }
+    return new EmailException(msg);
+  }
+
+  /** @return an idle connection that still answers, or a new one. */
+  private Session borrow() throws EmailException {
+    Session s;
+    while ((s = idle.poll()) != null) {
+      if (System.currentTimeMillis() - s.lastUsed < idleTimeout) {
+        try {
+          if (s.client.reset()) {
+            return s;
+          }
+        } catch (IOException e) {
+          // Server closed the connection; open a new one.
+        }
+      }
+      close(s);
+    }
+    return new Session(open());
+  }
+
+  private void release(Session s, boolean reuse) {
+    if (reuse && 0 < idleTimeout) {
+      s.lastUsed = System.currentTimeMillis();
+      if (idle.offer(s)) {
+        return;
       }
+    }
+    close(s);
+  }
+
+  private static void close(Session s) {
+    try {
+      s.client.logout();
     } catch (IOException e) {
-      throw new EmailException("Cannot send outgoing email", e);
+      // Ignore, the connection is dropped anyway.
+    } finally {
+      try {
+        s.client.disconnect();
+      } catch (IOException e) {
+      }
+    }
+  }
+
+  private void spool(Message msg) throws IOException {
+    if (!spoolDir.isDirectory() && !spoolDir.mkdirs()) {
+      throw new IOException("Cannot create " + spoolDir);
+    }
+    File tmp = File.createTempFile("mail_", ".tmp", spoolDir);
+    try {
+      write(tmp, msg);
+      File dst = new File(spoolDir, String.format("%013d-%06d.msg",
+          System.currentTimeMillis(), spoolSeq.incrementAndGet() % 1000000));
+      if (!tmp.renameTo(dst)) {
+        throw new IOException("Cannot rename " + tmp + " to " + dst);
+      }
+      msg.file = dst;
+      queued.add(dst.getName());
+    } finally {
+      if (tmp.exists()) {
+        tmp.delete();
+      }
+    }
+  }
+
+  private void unspool(Message msg) {
+    if (msg.file != null) {
+      if (!msg.file.delete() && msg.file.exists()) {
+        log.warn("Cannot delete spooled email " + msg.file);
+      }
+      queued.remove(msg.file.getName());
+    }
+  }
+
+  private static void write(File file, Message msg) throws IOException {
+    ObjectOutputStream out =
+        new ObjectOutputStream(new BufferedOutputStream(
+            new FileOutputStream(file)));
+    try {
+      out.writeObject(msg);
+    } finally {
+      out.close();
+    }
+  }
+
+  private static Message read(File file) throws IOException {
+    ObjectInputStream in =
+        new ObjectInputStream(new BufferedInputStream(
+            new FileInputStream(file)));
+    try {
+      return (Message) in.readObject();
+    } catch (ClassNotFoundException e) {
+      throw new IOException("Cannot read " + file + ": " + e.getMessage());
+    } finally {
+      in.close();
+    }
+  }
+
+  @Override
+  public void start() {
+    if (executor == null) {
+      return;
+    }
+    if (!spoolDir.isDirectory() && !spoolDir.mkdirs()) {
+      log.error("Cannot create " + spoolDir);
+      return;
+    }
+
+    // Messages spooled before the last shutdown are sent again; those
+    // queued since this server started are already scheduled.
+    File[] files = spoolDir.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files);
+    for (File f : files) {
+      String name = f.getName();
+      if (name.endsWith(".tmp")) {
+        f.delete();
+      } else if (name.endsWith(".msg") && queued.add(name)) {
+        try {
+          Message msg = read(f);
+          msg.file = f;
+          executor.execute(new DeliverTask(msg));
+        } catch (IOException e) {
+          log.error("Cannot read spooled email " + f, e);
+          queued.remove(name);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void stop() {
+    Session s;
+    while ((s = idle.poll()) != null) {
+      close(s);
     }
   }
 
@@ -261,7 +527,7 @@ public class SmtpEmailSender implements EmailSender {
         } catch (IOException e2) {
         }
       }
-      throw new EmailException(e.getMessage(), e);
+      throw new TemporaryFailure(e.getMessage(), e);
     } catch (EmailException e) {
       if (client.isConnected()) {
         try {
@@ -273,4 +539,93 @@ public class SmtpEmailSender implements EmailSender {
     }
     return client;
   }
+
+  private class DeliverTask implements Runnable {
+    private final Message msg;
+
+    DeliverTask(Message msg) {
+      this.msg = msg;
+    }
+
+    @Override
+    public void run() {
+      try {
+        deliver(msg);
+        unspool(msg);
+      } catch (TemporaryFailure e) {
+        if (msg.attempts < maxRetries) {
+          long delay = Math.min(
+              retryDelay << Math.min(msg.attempts, 16), MAX_RETRY_DELAY);
+          msg.attempts++;
+          log.warn("Cannot send email to " + msg.rcpt + ", retrying in "
+              + (delay / 1000) + " seconds: " + e.getMessage());
+          if (msg.file != null) {
+            try {
+              write(msg.file, msg);
+            } catch (IOException err) {
+              log.warn("Cannot update spooled email " + msg.file, err);
+            }
+          }
+          try {
+            executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+          } catch (RejectedExecutionException err) {
+            // Shutting down; the spooled message is sent after restart.
+          }
+        } else {
+          log.error("Giving up sending email to " + msg.rcpt, e);
+          unspool(msg);
+        }
+      } catch (EmailException e) {
+        log.error("Cannot send email to " + msg.rcpt, e);
+        unspool(msg);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "send-email to " + msg.rcpt.size() + " recipients";
+    }
+  }
+
+  /** A formatted message, as stored in the spool directory. */
+  private static class Message implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final String from;
+    final ArrayList<String> rcpt;
+    final String headers;
+    final String body;
+    int attempts;
+    transient File file;
+
+    Message(String from, Collection<Address> rcpt, String headers,
+        String body) {
+      this.from = from;
+      this.rcpt = new ArrayList<String>(rcpt.size());
+      for (Address addr : rcpt) {
+        this.rcpt.add(addr.email);
+      }
+      this.headers = headers;
+      this.body = body;
+    }
+  }
+
+  /** Connection to the SMTP server, kept open between messages. */
+  private static class Session {
+    final SMTPClient client;
+    long lastUsed;
+
+    Session(SMTPClient client) {
+      this.client = client;
+    }
+  }
+
+  /** Failure that may not happen again if the message is sent later. */
+  private static class TemporaryFailure extends EmailException {
+    private static final long serialVersionUID = 1L;
+
+    TemporaryFailure(String msg, Throwable why) {
+      super(msg, why);
+    }
+  }
 }
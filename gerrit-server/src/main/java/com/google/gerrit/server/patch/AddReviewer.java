@@ -30,6 +30,7 @@ import com.google.gerrit.server.account.AccountResolver;
 import com.google.gerrit.server.account.GroupCache;
 import com.google.gerrit.server.account.GroupMembers;
 import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.index.ChangeIndexer;
 import com.google.gerrit.server.mail.AddReviewerSender;
 import com.google.gerrit.server.project.ChangeControl;
 import com.google.gwtorm.server.OrmException;
@@ -64,6 +65,7 @@ public class AddReviewer implements Callable<ReviewerResult> {
   private final IdentifiedUser.GenericFactory identifiedUserFactory;
   private final ApprovalCategory.Id addReviewerCategoryId;
   private final Config cfg;
+  private final ChangeIndexer indexer;
 
   private final Change.Id changeId;
   private final Collection<String> reviewers;
@@ -76,7 +78,8 @@ public class AddReviewer implements Callable<ReviewerResult> {
       final ChangeControl.Factory changeControlFactory, final ReviewDb db,
       final IdentifiedUser.GenericFactory identifiedUserFactory,
       final IdentifiedUser currentUser, final ApprovalTypes approvalTypes,
-      final @GerritServerConfig Config cfg, @Assisted final Change.Id changeId,
+      final @GerritServerConfig Config cfg, final ChangeIndexer indexer,
+      @Assisted final Change.Id changeId,
       @Assisted final Collection<String> reviewers,
       @Assisted final boolean confirmed) {
     this.addReviewerSenderFactory = addReviewerSenderFactory;
@@ -88,6 +91,7 @@ public class AddReviewer implements Callable<ReviewerResult> {
     this.identifiedUserFactory = identifiedUserFactory;
     this.currentUser = currentUser;
     this.cfg = cfg;
+    this.indexer = indexer;
 
     final List<ApprovalType> allTypes = approvalTypes.getApprovalTypes();
     addReviewerCategoryId =
@@ -209,6 +213,9 @@ public class AddReviewer implements Callable<ReviewerResult> {
       }
     }
     db.patchSetApprovals().insert(toInsert);
+    if (!toInsert.isEmpty()) {
+      indexer.indexAsync(changeId);
+    }
 
     // Email the reviewers
     //
@@ -0,0 +1,261 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.patch;
+
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.Patch;
+import com.google.gerrit.reviewdb.client.PatchSet;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.git.ProjectRunnable;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.eclipse.jgit.errors.LargeObjectException;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Computes the differences of new patch sets in the background.
+ * <p>
+ * Without this, the first reviewer opening a large patch set waits for
+ * rename detection, the automatic merge of merge commits and the intraline
+ * differences of every file. When {@code cache.diff.precompute} is set,
+ * the patch list and the intraline difference of each modified file are
+ * loaded into their caches as soon as the patch set is uploaded, by a
+ * dedicated low priority queue.
+ */
+@Singleton
+public class DiffPrecomputer {
+  private static final Logger log =
+      LoggerFactory.getLogger(DiffPrecomputer.class);
+
+  private final PatchListCache patchListCache;
+  private final GitRepositoryManager repoManager;
+  private final WorkQueue.Executor executor;
+  private final int projectLimit;
+
+  private final ConcurrentMap<Project.NameKey, AtomicInteger> pending;
+  private final AtomicInteger queued;
+  private final AtomicLong completed;
+  private final AtomicLong skipped;
+
+  @Inject
+  DiffPrecomputer(@GerritServerConfig Config cfg,
+      PatchListCache patchListCache, GitRepositoryManager repoManager,
+      WorkQueue queue) {
+    this.patchListCache = patchListCache;
+    this.repoManager = repoManager;
+    if (cfg.getBoolean("cache", "diff", "precompute", false)) {
+      int threads = cfg.getInt("cache", "diff", "precomputeThreads", 1);
+      executor = queue.createQueue(Math.max(1, threads), "DiffPrecompute");
+    } else {
+      executor = null;
+    }
+    projectLimit = cfg.getInt("cache", "diff", "precomputeProjectLimit", 8);
+
+    pending = new ConcurrentHashMap<Project.NameKey, AtomicInteger>();
+    queued = new AtomicInteger();
+    completed = new AtomicLong();
+    skipped = new AtomicLong();
+  }
+
+  /** @return true if patch sets are precomputed. */
+  public boolean isEnabled() {
+    return executor != null;
+  }
+
+  /** @return number of patch sets waiting to be computed. */
+  public int getQueued() {
+    return queued.get();
+  }
+
+  /** @return number of patch sets computed since the server started. */
+  public long getCompleted() {
+    return completed.get();
+  }
+
+  /** @return number of patch sets skipped because a project had too many. */
+  public long getSkipped() {
+    return skipped.get();
+  }
+
+  /**
+   * Schedule a new patch set to be computed in the background.
+   * <p>
+   * Projects receiving many patch sets at once (e.g. an imported branch)
+   * have at most {@code cache.diff.precomputeProjectLimit} patch sets
+   * waiting; others are left to be computed on first view.
+   *
+   * @param change change the patch set belongs to.
+   * @param ps the new patch set.
+   */
+  public void precompute(Change change, PatchSet ps) {
+    if (executor == null) {
+      return;
+    }
+
+    Project.NameKey project = change.getProject();
+    AtomicInteger n = pending.get(project);
+    if (n == null) {
+      AtomicInteger c = pending.putIfAbsent(project, n = new AtomicInteger());
+      if (c != null) {
+        n = c;
+      }
+    }
+    if (projectLimit < n.incrementAndGet()) {
+      n.decrementAndGet();
+      skipped.incrementAndGet();
+      return;
+    }
+
+    queued.incrementAndGet();
+    executor.execute(new PrecomputeTask(change, ps, n));
+  }
+
+  private void computeIntraLine(Project.NameKey project, PatchList list)
+      throws IOException {
+    if (list.getOldId() == null) {
+      return;
+    }
+
+    Repository repo = repoManager.openRepository(project);
+    try {
+      ObjectReader reader = repo.newObjectReader();
+      try {
+        RevWalk rw = new RevWalk(reader);
+        RevTree aTree = rw.parseTree(list.getOldId());
+        RevTree bTree = rw.parseTree(list.getNewId());
+
+        for (PatchListEntry e : list.getPatches()) {
+          if (!isModify(e) || e.getEdits().isEmpty()
+              || Patch.COMMIT_MSG.equals(e.getNewName())) {
+            continue;
+          }
+          String aPath = e.getOldName() != null ? e.getOldName() : e.getNewName();
+          ObjectId aId = blob(reader, aPath, aTree);
+          ObjectId bId = blob(reader, e.getNewName(), bTree);
+          if (aId == null || bId == null) {
+            continue;
+          }
+
+          try {
+            Text aText = new Text(Text.asByteArray(reader.open(aId)));
+            Text bText = new Text(Text.asByteArray(reader.open(bId)));
+            patchListCache.getIntraLineDiff(new IntraLineDiffKey(
+                aId, aText, bId, bText, e.getEdits(), project,
+                list.getNewId(), e.getNewName()));
+          } catch (LargeObjectException tooBig) {
+            // Not displayed with intraline differences either.
+          }
+        }
+      } finally {
+        reader.release();
+      }
+    } finally {
+      repo.close();
+    }
+  }
+
+  private static ObjectId blob(ObjectReader reader, String path, RevTree tree)
+      throws IOException {
+    TreeWalk tw = TreeWalk.forPath(reader, path, tree);
+    if (tw != null
+        && tw.getFileMode(0).getObjectType() == Constants.OBJ_BLOB) {
+      return tw.getObjectId(0);
+    }
+    return null;
+  }
+
+  private static boolean isModify(PatchListEntry e) {
+    switch (e.getChangeType()) {
+      case MODIFIED:
+      case COPIED:
+      case RENAMED:
+        return e.getPatchType() == Patch.PatchType.UNIFIED;
+
+      case ADDED:
+      case DELETED:
+      default:
+        return false;
+    }
+  }
+
+  private class PrecomputeTask implements ProjectRunnable {
+    private final Change change;
+    private final PatchSet ps;
+    private final AtomicInteger projectPending;
+
+    PrecomputeTask(Change change, PatchSet ps, AtomicInteger projectPending) {
+      this.change = change;
+      this.ps = ps;
+      this.projectPending = projectPending;
+    }
+
+    @Override
+    public void run() {
+      // The queue is dedicated to this work; leave the CPU to requests.
+      Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+      try {
+        PatchList list = patchListCache.get(change, ps);
+        computeIntraLine(change.getProject(), list);
+        completed.incrementAndGet();
+      } catch (PatchListNotAvailableException e) {
+        log.warn("Cannot compute differences of " + ps.getId(), e);
+      } catch (IOException e) {
+        log.warn("Cannot compute intraline differences of " + ps.getId(), e);
+      } finally {
+        projectPending.decrementAndGet();
+        queued.decrementAndGet();
+      }
+    }
+
+    @Override
+    public Project.NameKey getProjectNameKey() {
+      return change.getProject();
+    }
+
+    @Override
+    public String getRemoteName() {
+      return null;
+    }
+
+    @Override
+    public boolean hasCustomizedPrint() {
+      return false;
+    }
+
+    @Override
+    public String toString() {
+      return "precompute-diff " + ps.getId();
+    }
+  }
+}
@@ -20,6 +20,7 @@ import static com.google.gerrit.server.ioutil.BasicSerialization.writeEnum;
 import static com.google.gerrit.server.ioutil.BasicSerialization.writeVarInt32;
 
 import com.google.gerrit.reviewdb.client.CodedEnum;
+import com.google.gerrit.server.cache.StreamCacheSerializer;
 
 import org.eclipse.jgit.diff.Edit;
 import org.eclipse.jgit.diff.ReplaceEdit;
@@ -74,6 +75,14 @@ public class IntraLineDiff implements Serializable {
   }
 
   private void writeObject(final ObjectOutputStream out) throws IOException {
+    writeTo(out);
+  }
+
+  private void readObject(final ObjectInputStream in) throws IOException {
+    readFrom(in);
+  }
+
+  private void writeTo(OutputStream out) throws IOException {
     writeEnum(out, status);
     writeVarInt32(out, edits.size());
     for (Edit e : edits) {
@@ -91,7 +100,7 @@ public class IntraLineDiff implements Serializable {
     }
   }
 
-  private void readObject(final ObjectInputStream in) throws IOException {
+  private void readFrom(InputStream in) throws IOException {
     status = readEnum(in, Status.values());
     int editCount = readVarInt32(in);
     Edit[] editArray = new Edit[editCount];
@@ -110,6 +119,21 @@ public class IntraLineDiff implements Serializable {
     edits = toList(editArray);
   }
 
+  static class Serializer extends StreamCacheSerializer<IntraLineDiff> {
+    @Override
+    protected void write(OutputStream out, IntraLineDiff diff)
+        throws IOException {
+      diff.writeTo(out);
+    }
+
+    @Override
+    protected IntraLineDiff read(InputStream in) throws IOException {
+      IntraLineDiff diff = new IntraLineDiff(Status.ERROR);
+      diff.readFrom(in);
+      return diff;
+    }
+  }
+
   private static void writeEdit(OutputStream out, Edit e) throws IOException {
     writeVarInt32(out, e.getBeginA());
     writeVarInt32(out, e.getEndA());
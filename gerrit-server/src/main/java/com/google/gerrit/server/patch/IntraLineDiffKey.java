@@ -18,13 +18,16 @@ import static org.eclipse.jgit.lib.ObjectIdSerialization.readNotNull;
 import static org.eclipse.jgit.lib.ObjectIdSerialization.writeNotNull;
 
 import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.cache.StreamCacheSerializer;
 
 import org.eclipse.jgit.diff.Edit;
 import org.eclipse.jgit.lib.ObjectId;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.List;
 
@@ -125,12 +128,36 @@ public class IntraLineDiffKey implements Serializable {
   }
 
   private void writeObject(final ObjectOutputStream out) throws IOException {
+    writeTo(out);
+  }
+
+  private void readObject(final ObjectInputStream in) throws IOException {
+    readFrom(in);
+  }
+
+  private void writeTo(OutputStream out) throws IOException {
     writeNotNull(out, aId);
     writeNotNull(out, bId);
   }
 
-  private void readObject(final ObjectInputStream in) throws IOException {
+  private void readFrom(InputStream in) throws IOException {
     aId = readNotNull(in);
     bId = readNotNull(in);
   }
+
+  static class Serializer extends StreamCacheSerializer<IntraLineDiffKey> {
+    @Override
+    protected void write(OutputStream out, IntraLineDiffKey key)
+        throws IOException {
+      key.writeTo(out);
+    }
+
+    @Override
+    protected IntraLineDiffKey read(InputStream in) throws IOException {
+      IntraLineDiffKey key =
+          new IntraLineDiffKey(null, null, null, null, null, null, null, null);
+      key.readFrom(in);
+      return key;
+    }
+  }
 }
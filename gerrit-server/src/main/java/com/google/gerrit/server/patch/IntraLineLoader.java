@@ -18,7 +18,9 @@ package com.google.gerrit.server.patch;
 import com.google.common.cache.CacheLoader;
 import com.google.gerrit.server.config.ConfigUtil;
 import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.git.WorkQueue;
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 
 import org.eclipse.jgit.diff.Edit;
 import org.eclipse.jgit.diff.MyersDiff;
@@ -29,12 +31,14 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Pattern;
 
+@Singleton
 class IntraLineLoader extends CacheLoader<IntraLineDiffKey, IntraLineDiff> {
   static final Logger log = LoggerFactory.getLogger(IntraLineLoader.class);
 
@@ -44,188 +48,204 @@ class IntraLineLoader extends CacheLoader<IntraLineDiffKey, IntraLineDiff> {
   private static final Pattern CONTROL_BLOCK_START_RE = Pattern
       .compile("[{:][ \\t]*$");
 
-  private final BlockingQueue<Worker> workerPool;
+  private final WorkQueue.Executor executor;
   private final long timeoutMillis;
+  private final IntraLineStats stats;
 
   @Inject
-  IntraLineLoader(final @GerritServerConfig Config cfg) {
+  IntraLineLoader(final @GerritServerConfig Config cfg, final WorkQueue queue,
+      final IntraLineStats stats) {
     final int workers =
         cfg.getInt("cache", PatchListCacheImpl.INTRA_NAME, "maxIdleWorkers",
             Runtime.getRuntime().availableProcessors() * 3 / 2);
-    workerPool = new ArrayBlockingQueue<Worker>(workers, true /* fair */);
+    executor = queue.createQueue(Math.max(1, workers), "IntraLineDiff");
 
     timeoutMillis =
         ConfigUtil.getTimeUnit(cfg, "cache", PatchListCacheImpl.INTRA_NAME,
             "timeout", TimeUnit.MILLISECONDS.convert(5, TimeUnit.SECONDS),
             TimeUnit.MILLISECONDS);
+    this.stats = stats;
   }
 
   @Override
-  public IntraLineDiff load(IntraLineDiffKey key) throws Exception {
-    Worker w = workerPool.poll();
-    if (w == null) {
-      w = new Worker();
-    }
-
-    Worker.Result r = w.computeWithTimeout(key, timeoutMillis);
-
-    if (r == Worker.Result.TIMEOUT) {
-      // Don't keep this thread. We have to murder it unsafely, which
-      // means its unable to be reused in the future. Return back a
-      // null result, indicating the cache cannot load this key.
-      //
-      return new IntraLineDiff(IntraLineDiff.Status.TIMEOUT);
-    }
+  public IntraLineDiff load(final IntraLineDiffKey key) throws Exception {
+    final Budget budget = new Budget(timeoutMillis);
+    Future<IntraLineDiff> result = executor.submit(new Callable<IntraLineDiff>() {
+      @Override
+      public IntraLineDiff call() throws Exception {
+        if (!budget.start()) {
+          throw new BudgetExceededException();
+        }
+        long start = System.currentTimeMillis();
+        IntraLineDiff d = compute(key, budget);
+        stats.record(System.currentTimeMillis() - start);
+        return d;
+      }
 
-    if (!workerPool.offer(w)) {
-      // If the idle worker pool is full, terminate this thread.
-      //
-      w.end();
-    }
+      @Override
+      public String toString() {
+        return "intraline-diff " + key.getPath();
+      }
+    });
 
-    if (r.error != null) {
-      // If there was an error computing the result, carry it
-      // up to the caller so the cache knows this key is invalid.
-      //
-      throw r.error;
+    try {
+      try {
+        return result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        if (!budget.abandon()) {
+          // The diff waited for a worker; its budget only started then.
+          return result.get(budget.remaining(), TimeUnit.MILLISECONDS);
+        }
+      }
+    } catch (TimeoutException e) {
+      budget.cancel();
+      result.cancel(false);
+      return timeout(key);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof BudgetExceededException) {
+        return timeout(key);
+      } else if (e.getCause() instanceof Exception) {
+        // If there was an error computing the result, carry it
+        // up to the caller so the cache knows this key is invalid.
+        //
+        throw (Exception) e.getCause();
+      }
+      throw e;
     }
 
-    return r.diff;
+    // No worker picked the diff up in time; it was never computed.
+    result.cancel(false);
+    throw queued(key);
   }
 
-  private static class Worker {
-    private static final AtomicInteger count = new AtomicInteger(1);
-
-    private final ArrayBlockingQueue<Input> input;
-    private final ArrayBlockingQueue<Result> result;
-    private final Thread thread;
+  /**
+   * Record a diff that took too long. The result is stored in the cache
+   * like any other, so the same pair of files is not computed again.
+   */
+  private IntraLineDiff timeout(IntraLineDiffKey key) {
+    stats.recordTimeout();
+    log.warn(timeoutMillis + " ms timeout reached for IntraLineDiff"
+        + " in project " + key.getProject().get() //
+        + " on commit " + key.getCommit().name() //
+        + " for path " + key.getPath() //
+        + " comparing " + key.getBlobA().name() //
+        + ".." + key.getBlobB().name());
+    return new IntraLineDiff(IntraLineDiff.Status.TIMEOUT);
+  }
 
-    Worker() {
-      input = new ArrayBlockingQueue<Input>(1);
-      result = new ArrayBlockingQueue<Result>(1);
+  /**
+   * Report a diff that never got a worker. It is thrown rather than returned
+   * so the cache does not store it; the pair of files is computed again the
+   * next time it is viewed.
+   */
+  private TimeoutException queued(IntraLineDiffKey key) {
+    return new TimeoutException("No worker free within " + timeoutMillis
+        + " ms for IntraLineDiff in project " + key.getProject().get()
+        + " on commit " + key.getCommit().name()
+        + " for path " + key.getPath());
+  }
 
-      thread = new Thread(new Runnable() {
-        public void run() {
-          workerLoop();
-        }
-      });
-      thread.setName("IntraLineDiff-" + count.getAndIncrement());
-      thread.setDaemon(true);
-      thread.start();
+  /**
+   * Time left to compute one diff.
+   * <p>
+   * The computation checks its budget as it goes and gives up by throwing
+   * {@link BudgetExceededException}, leaving its thread free for the next
+   * diff instead of having to be stopped.
+   */
+  static class Budget {
+    /** Number of checks between two reads of the clock. */
+    private static final int CLOCK_INTERVAL = 1 << 12;
+
+    private final long timeoutMillis;
+    private volatile long deadline;
+    private volatile boolean cancelled;
+    private boolean started;
+    private boolean abandoned;
+    private int checks;
+
+    Budget(long timeoutMillis) {
+      this.timeoutMillis = timeoutMillis;
+      this.deadline = Long.MAX_VALUE;
     }
 
-    Result computeWithTimeout(IntraLineDiffKey key, long timeoutMillis)
-        throws Exception {
-      if (!input.offer(new Input(key))) {
-        log.error("Cannot enqueue task to thread " + thread.getName());
-        return Result.TIMEOUT;
-      }
-
-      Result r = result.poll(timeoutMillis, TimeUnit.MILLISECONDS);
-      if (r != null) {
-        return r;
-      } else {
-        log.warn(timeoutMillis + " ms timeout reached for IntraLineDiff"
-            + " in project " + key.getProject().get() //
-            + " on commit " + key.getCommit().name() //
-            + " for path " + key.getPath() //
-            + " comparing " + key.getBlobA().name() //
-            + ".." + key.getBlobB().name() //
-            + ".  Killing " + thread.getName());
-        forcefullyKillThreadInAnUglyWay();
-        return Result.TIMEOUT;
+    /**
+     * Start counting, once a worker picked up the diff.
+     *
+     * @return false if the caller already gave up waiting for a worker.
+     */
+    synchronized boolean start() {
+      if (abandoned) {
+        return false;
       }
+      started = true;
+      deadline = System.currentTimeMillis() + timeoutMillis;
+      return true;
     }
 
-    @SuppressWarnings("deprecation")
-    private void forcefullyKillThreadInAnUglyWay() {
-      try {
-        thread.stop();
-      } catch (Throwable error) {
-        // Ignore any reason the thread won't stop.
-        log.error("Cannot stop runaway thread " + thread.getName(), error);
+    /** @return true if no worker started, and none ever will. */
+    synchronized boolean abandon() {
+      if (started) {
+        return false;
       }
+      abandoned = true;
+      return true;
     }
 
-    void end() {
-      if (!input.offer(Input.END_THREAD)) {
-        log.error("Cannot gracefully stop thread " + thread.getName());
-      }
+    /** @return milliseconds left before the deadline, once started. */
+    long remaining() {
+      return Math.max(0, deadline - System.currentTimeMillis());
     }
 
-    private void workerLoop() {
-      try {
-        for (;;) {
-          Input in;
-          try {
-            in = input.take();
-          } catch (InterruptedException e) {
-            log.error("Unexpected interrupt on " + thread.getName());
-            continue;
-          }
-
-          if (in == Input.END_THREAD) {
-            return;
-          }
-
-          Result r;
-          try {
-            r = new Result(IntraLineLoader.compute(in.key));
-          } catch (Exception error) {
-            r = new Result(error);
-          }
-
-          if (!result.offer(r)) {
-            log.error("Cannot return result from " + thread.getName());
-          }
-        }
-      } catch (ThreadDeath iHaveBeenShot) {
-        // Handle thread death by gracefully returning to the caller,
-        // allowing the thread to be destroyed.
-      }
+    void cancel() {
+      cancelled = true;
     }
 
-    private static class Input {
-      static final Input END_THREAD = new Input(null);
-
-      final IntraLineDiffKey key;
-
-      Input(IntraLineDiffKey key) {
-        this.key = key;
+    void check() {
+      if (cancelled) {
+        throw new BudgetExceededException();
+      }
+      if ((++checks & (CLOCK_INTERVAL - 1)) == 0
+          && deadline < System.currentTimeMillis()) {
+        cancelled = true;
+        throw new BudgetExceededException();
       }
     }
+  }
 
-    static class Result {
-      static final Result TIMEOUT = new Result((IntraLineDiff) null);
+  private static class BudgetExceededException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+  }
 
-      final IntraLineDiff diff;
-      final Exception error;
+  /** Checks the budget on each character comparison made by MyersDiff. */
+  private static class BudgetComparator extends CharTextComparator {
+    private final Budget budget;
 
-      Result(IntraLineDiff diff) {
-        this.diff = diff;
-        this.error = null;
-      }
+    BudgetComparator(Budget budget) {
+      this.budget = budget;
+    }
 
-      Result(Exception error) {
-        this.diff = null;
-        this.error = error;
-      }
+    @Override
+    public boolean equals(CharText a, int ai, CharText b, int bi) {
+      budget.check();
+      return super.equals(a, ai, b, bi);
     }
   }
 
-  private static IntraLineDiff compute(IntraLineDiffKey key) throws Exception {
+  private static IntraLineDiff compute(IntraLineDiffKey key, Budget budget)
+      throws Exception {
     List<Edit> edits = new ArrayList<Edit>(key.getEdits());
     Text aContent = key.getTextA();
     Text bContent = key.getTextB();
-    combineLineEdits(edits, aContent, bContent);
+    combineLineEdits(edits, aContent, bContent, budget);
 
     for (int i = 0; i < edits.size(); i++) {
+      budget.check();
       Edit e = edits.get(i);
 
       if (e.getType() == Edit.Type.REPLACE) {
         CharText a = new CharText(aContent, e.getBeginA(), e.getEndA());
         CharText b = new CharText(bContent, e.getBeginB(), e.getEndB());
-        CharTextComparator cmp = new CharTextComparator();
+        CharTextComparator cmp = new BudgetComparator(budget);
 
         List<Edit> wordEdits = MyersDiff.INSTANCE.diff(cmp, a, b);
 
@@ -403,8 +423,10 @@ class IntraLineLoader extends CacheLoader<IntraLineDiffKey, IntraLineDiff> {
     return new IntraLineDiff(edits);
   }
 
-  private static void combineLineEdits(List<Edit> edits, Text a, Text b) {
+  private static void combineLineEdits(List<Edit> edits, Text a, Text b,
+      Budget budget) {
     for (int j = 0; j < edits.size() - 1;) {
+      budget.check();
       Edit c = edits.get(j);
       Edit n = edits.get(j + 1);
 
@@ -0,0 +1,69 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.patch;
+
+import com.google.inject.Singleton;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** Histogram of the time taken to compute intraline differences of a file. */
+@Singleton
+public class IntraLineStats {
+  /** Upper bounds of the histogram buckets, in milliseconds. */
+  private static final long[] BOUNDS = {10, 100, 1000, 10000};
+
+  private final AtomicLongArray counts;
+  private final AtomicLong timeouts;
+
+  IntraLineStats() {
+    counts = new AtomicLongArray(BOUNDS.length + 1);
+    timeouts = new AtomicLong();
+  }
+
+  void record(long millis) {
+    int i = 0;
+    while (i < BOUNDS.length && BOUNDS[i] <= millis) {
+      i++;
+    }
+    counts.incrementAndGet(i);
+  }
+
+  void recordTimeout() {
+    timeouts.incrementAndGet();
+  }
+
+  /**
+   * @return upper bound in milliseconds of each bucket but the last, which
+   *         holds all longer computations.
+   */
+  public long[] getBounds() {
+    return BOUNDS.clone();
+  }
+
+  /** @return number of files computed in each bucket. */
+  public long[] getCounts() {
+    long[] r = new long[counts.length()];
+    for (int i = 0; i < r.length; i++) {
+      r[i] = counts.get(i);
+    }
+    return r;
+  }
+
+  /** @return number of files that reached the timeout. */
+  public long getTimeouts() {
+    return timeouts.get();
+  }
+}
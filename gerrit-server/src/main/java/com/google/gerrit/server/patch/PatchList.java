@@ -26,6 +26,7 @@ import static org.eclipse.jgit.lib.ObjectIdSerialization.writeNotNull;
 
 import com.google.gerrit.reviewdb.client.Patch;
 import com.google.gerrit.reviewdb.client.PatchSet;
+import com.google.gerrit.server.cache.StreamCacheSerializer;
 
 import org.eclipse.jgit.lib.AnyObjectId;
 import org.eclipse.jgit.lib.ObjectId;
@@ -33,8 +34,10 @@ import org.eclipse.jgit.lib.ObjectId;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -64,6 +67,9 @@ public class PatchList implements Serializable {
   private transient int deletions;
   private transient PatchListEntry[] patches;
 
+  private PatchList() {
+  }
+
   PatchList(@Nullable final AnyObjectId oldId, final AnyObjectId newId,
       final boolean againstParent, final PatchListEntry[] patches) {
     this.oldId = oldId != null ? oldId.copy() : null;
@@ -165,15 +171,7 @@ public class PatchList implements Serializable {
     final ByteArrayOutputStream buf = new ByteArrayOutputStream();
     final DeflaterOutputStream out = new DeflaterOutputStream(buf);
     try {
-      writeCanBeNull(out, oldId);
-      writeNotNull(out, newId);
-      writeVarInt32(out, againstParent ? 1 : 0);
-      writeVarInt32(out, insertions);
-      writeVarInt32(out, deletions);
-      writeVarInt32(out, patches.length);
-      for (PatchListEntry p : patches) {
-        p.writeTo(out);
-      }
+      writeTo(out);
     } finally {
       out.close();
     }
@@ -184,19 +182,53 @@ public class PatchList implements Serializable {
     final ByteArrayInputStream buf = new ByteArrayInputStream(readBytes(input));
     final InflaterInputStream in = new InflaterInputStream(buf);
     try {
-      oldId = readCanBeNull(in);
-      newId = readNotNull(in);
-      againstParent = readVarInt32(in) != 0;
-      insertions = readVarInt32(in);
-      deletions = readVarInt32(in);
-      final int cnt = readVarInt32(in);
-      final PatchListEntry[] all = new PatchListEntry[cnt];
-      for (int i = 0; i < all.length; i++) {
-        all[i] = PatchListEntry.readFrom(in);
-      }
-      patches = all;
+      readFrom(in);
     } finally {
       in.close();
     }
   }
+
+  private void writeTo(OutputStream out) throws IOException {
+    writeCanBeNull(out, oldId);
+    writeNotNull(out, newId);
+    writeVarInt32(out, againstParent ? 1 : 0);
+    writeVarInt32(out, insertions);
+    writeVarInt32(out, deletions);
+    writeVarInt32(out, patches.length);
+    for (PatchListEntry p : patches) {
+      p.writeTo(out);
+    }
+  }
+
+  private void readFrom(InputStream in) throws IOException {
+    oldId = readCanBeNull(in);
+    newId = readNotNull(in);
+    againstParent = readVarInt32(in) != 0;
+    insertions = readVarInt32(in);
+    deletions = readVarInt32(in);
+    final int cnt = readVarInt32(in);
+    final PatchListEntry[] all = new PatchListEntry[cnt];
+    for (int i = 0; i < all.length; i++) {
+      all[i] = PatchListEntry.readFrom(in);
+    }
+    patches = all;
+  }
+
+  /**
+   * Writes the list without compression; the disk cache compresses large
+   * values itself.
+   */
+  static class Serializer extends StreamCacheSerializer<PatchList> {
+    @Override
+    protected void write(OutputStream out, PatchList list) throws IOException {
+      list.writeTo(out);
+    }
+
+    @Override
+    protected PatchList read(InputStream in) throws IOException {
+      PatchList list = new PatchList();
+      list.readFrom(in);
+      return list;
+    }
+  }
 }
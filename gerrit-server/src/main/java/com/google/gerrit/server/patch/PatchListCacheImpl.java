@@ -31,6 +31,7 @@ import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.ObjectId;
 
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
 
 /** Provides a cached list of {@link PatchListEntry}. */
 @Singleton
@@ -43,11 +44,17 @@ public class PatchListCacheImpl implements PatchListCache {
       @Override
       protected void configure() {
         persist(FILE_NAME, PatchListKey.class, PatchList.class)
+            .version(1)
+            .keySerializer(new PatchListKey.Serializer())
+            .valueSerializer(new PatchList.Serializer())
             .maximumWeight(10 << 20)
             .loader(PatchListLoader.class)
             .weigher(PatchListWeigher.class);
 
         persist(INTRA_NAME, IntraLineDiffKey.class, IntraLineDiff.class)
+            .version(1)
+            .keySerializer(new IntraLineDiffKey.Serializer())
+            .valueSerializer(new IntraLineDiff.Serializer())
             .maximumWeight(10 << 20)
             .loader(IntraLineLoader.class)
             .weigher(IntraLineWeigher.class);
@@ -101,6 +108,10 @@ public class PatchListCacheImpl implements PatchListCache {
       try {
         return intraCache.get(key);
       } catch (ExecutionException e) {
+        if (e.getCause() instanceof TimeoutException) {
+          IntraLineLoader.log.warn(e.getCause().getMessage());
+          return new IntraLineDiff(IntraLineDiff.Status.TIMEOUT);
+        }
         IntraLineLoader.log.warn("Error computing " + key, e);
         return new IntraLineDiff(IntraLineDiff.Status.ERROR);
       }
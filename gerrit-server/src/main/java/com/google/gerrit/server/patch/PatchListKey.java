@@ -23,13 +23,16 @@ import static org.eclipse.jgit.lib.ObjectIdSerialization.writeNotNull;
 
 import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.reviewdb.client.AccountDiffPreference.Whitespace;
+import com.google.gerrit.server.cache.StreamCacheSerializer;
 
 import org.eclipse.jgit.lib.AnyObjectId;
 import org.eclipse.jgit.lib.ObjectId;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 
 import javax.annotation.Nullable;
@@ -43,6 +46,9 @@ public class PatchListKey implements Serializable {
 
   transient Project.NameKey projectKey; // not required to form the key
 
+  private PatchListKey() {
+  }
+
   public PatchListKey(final Project.NameKey pk, final AnyObjectId a,
       final AnyObjectId b, final Whitespace ws) {
     projectKey = pk;
@@ -116,14 +122,37 @@ public class PatchListKey implements Serializable {
   }
 
   private void writeObject(final ObjectOutputStream out) throws IOException {
+    writeTo(out);
+  }
+
+  private void readObject(final ObjectInputStream in) throws IOException {
+    readFrom(in);
+  }
+
+  private void writeTo(OutputStream out) throws IOException {
     writeCanBeNull(out, oldId);
     writeNotNull(out, newId);
     writeEnum(out, whitespace);
   }
 
-  private void readObject(final ObjectInputStream in) throws IOException {
+  private void readFrom(InputStream in) throws IOException {
     oldId = readCanBeNull(in);
     newId = readNotNull(in);
     whitespace = readEnum(in, Whitespace.values());
   }
+
+  static class Serializer extends StreamCacheSerializer<PatchListKey> {
+    @Override
+    protected void write(OutputStream out, PatchListKey key)
+        throws IOException {
+      key.writeTo(out);
+    }
+
+    @Override
+    protected PatchListKey read(InputStream in) throws IOException {
+      PatchListKey key = new PatchListKey();
+      key.readFrom(in);
+      return key;
+    }
+  }
 }
@@ -28,32 +28,15 @@ import com.google.inject.Scopes;
 import com.google.inject.TypeLiteral;
 import com.google.inject.internal.UniqueAnnotations;
 
-import org.eclipse.jgit.util.IO;
-import org.objectweb.asm.AnnotationVisitor;
-import org.objectweb.asm.Attribute;
-import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassVisitor;
-import org.objectweb.asm.FieldVisitor;
-import org.objectweb.asm.MethodVisitor;
-import org.objectweb.asm.Opcodes;
-import org.objectweb.asm.Type;
-
-import java.io.IOException;
-import java.io.InputStream;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.ParameterizedType;
-import java.util.Enumeration;
 import java.util.Map;
 import java.util.Set;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
 
 class AutoRegisterModules {
-  private static final int SKIP_ALL = ClassReader.SKIP_CODE
-      | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES;
   private final String pluginName;
   private final PluginGuiceEnvironment env;
-  private final JarFile jarFile;
+  private final ExtensionIndex index;
   private final ClassLoader classLoader;
   private final ModuleGenerator sshGen;
   private final ModuleGenerator httpGen;
@@ -67,11 +50,11 @@ class AutoRegisterModules {
 
   AutoRegisterModules(String pluginName,
       PluginGuiceEnvironment env,
-      JarFile jarFile,
+      ExtensionIndex index,
       ClassLoader classLoader) {
     this.pluginName = pluginName;
     this.env = env;
-    this.jarFile = jarFile;
+    this.index = index;
     this.classLoader = classLoader;
     this.sshGen = env.hasSshModule() ? env.newSshModuleGenerator() : null;
     this.httpGen = env.hasHttpModule() ? env.newHttpModuleGenerator() : null;
@@ -133,46 +116,16 @@ class AutoRegisterModules {
   }
 
   private void scan() throws InvalidPluginException {
-    Enumeration<JarEntry> e = jarFile.entries();
-    while (e.hasMoreElements()) {
-      JarEntry entry = e.nextElement();
-      if (skip(entry)) {
-        continue;
-      }
-
-      ClassData def = new ClassData();
-      try {
-        new ClassReader(read(entry)).accept(def, SKIP_ALL);
-      } catch (IOException err) {
-        throw new InvalidPluginException("Cannot auto-register", err);
-      } catch (RuntimeException err) {
-        PluginLoader.log.warn(String.format(
-            "Plugin %s has invaild class file %s inside of %s",
-            pluginName, entry.getName(), jarFile.getName()), err);
-        continue;
-      }
-
+    for (ExtensionIndex.Entry def : index.getEntries()) {
       if (def.exportedAsName != null) {
-        if (def.isConcrete()) {
-          export(def);
-        } else {
-          PluginLoader.log.warn(String.format(
-              "Plugin %s tries to @Export(\"%s\") abstract class %s",
-              pluginName, def.exportedAsName, def.className));
-        }
-      } else if (def.listen) {
-        if (def.isConcrete()) {
-          listen(def);
-        } else {
-          PluginLoader.log.warn(String.format(
-              "Plugin %s tries to @Listen abstract class %s",
-              pluginName, def.className));
-        }
+        export(def);
+      } else {
+        listen(def);
       }
     }
   }
 
-  private void export(ClassData def) throws InvalidPluginException {
+  private void export(ExtensionIndex.Entry def) throws InvalidPluginException {
     Class<?> clazz;
     try {
       clazz = Class.forName(def.className, false, classLoader);
@@ -211,7 +164,7 @@ class AutoRegisterModules {
     }
   }
 
-  private void listen(ClassData def) throws InvalidPluginException {
+  private void listen(ExtensionIndex.Entry def) throws InvalidPluginException {
     Class<?> clazz;
     try {
       clazz = Class.forName(def.className, false, classLoader);
@@ -274,120 +227,4 @@ class AutoRegisterModules {
       type = rawType.getGenericSuperclass();
     }
   }
-
-  private static boolean skip(JarEntry entry) {
-    if (!entry.getName().endsWith(".class")) {
-      return true; // Avoid non-class resources.
-    }
-    if (entry.getSize() <= 0) {
-      return true; // Directories have 0 size.
-    }
-    if (entry.getSize() >= 1024 * 1024) {
-      return true; // Do not scan huge class files.
-    }
-    return false;
-  }
-
-  private byte[] read(JarEntry entry) throws IOException {
-    byte[] data = new byte[(int) entry.getSize()];
-    InputStream in = jarFile.getInputStream(entry);
-    try {
-      IO.readFully(in, data, 0, data.length);
-    } finally {
-      in.close();
-    }
-    return data;
-  }
-
-  private static class ClassData implements ClassVisitor {
-    private static final String EXPORT = Type.getType(Export.class).getDescriptor();
-    private static final String LISTEN = Type.getType(Listen.class).getDescriptor();
-
-    String className;
-    int access;
-    String exportedAsName;
-    boolean listen;
-
-    boolean isConcrete() {
-      return (access & Opcodes.ACC_ABSTRACT) == 0
-          && (access & Opcodes.ACC_INTERFACE) == 0;
-    }
-
-    @Override
-    public void visit(int version, int access, String name, String signature,
-        String superName, String[] interfaces) {
-      this.className = Type.getObjectType(name).getClassName();
-      this.access = access;
-    }
-
-    @Override
-    public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
-      if (visible && EXPORT.equals(desc)) {
-        return new AbstractAnnotationVisitor() {
-          @Override
-          public void visit(String name, Object value) {
-            exportedAsName = (String) value;
-          }
-        };
-      }
-      if (visible && LISTEN.equals(desc)) {
-        listen = true;
-        return null;
-      }
-      return null;
-    }
-
-    @Override
-    public void visitSource(String arg0, String arg1) {
-    }
-
-    @Override
-    public void visitOuterClass(String arg0, String arg1, String arg2) {
-    }
-
-    @Override
-    public MethodVisitor visitMethod(int arg0, String arg1, String arg2,
-        String arg3, String[] arg4) {
-      return null;
-    }
-
-    @Override
-    public void visitInnerClass(String arg0, String arg1, String arg2, int arg3) {
-    }
-
-    @Override
-    public FieldVisitor visitField(int arg0, String arg1, String arg2,
-        String arg3, Object arg4) {
-      return null;
-    }
-
-    @Override
-    public void visitEnd() {
-    }
-
-    @Override
-    public void visitAttribute(Attribute arg0) {
-    }
-  }
-
-  private static abstract class AbstractAnnotationVisitor implements
-      AnnotationVisitor {
-    @Override
-    public AnnotationVisitor visitAnnotation(String arg0, String arg1) {
-      return null;
-    }
-
-    @Override
-    public AnnotationVisitor visitArray(String arg0) {
-      return null;
-    }
-
-    @Override
-    public void visitEnum(String arg0, String arg1, String arg2) {
-    }
-
-    @Override
-    public void visitEnd() {
-    }
-  }
 }
@@ -0,0 +1,308 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.plugins;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.gerrit.extensions.annotations.Export;
+import com.google.gerrit.extensions.annotations.Listen;
+
+import org.eclipse.jgit.util.IO;
+import org.eclipse.jgit.util.RawParseUtils;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.Attribute;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Classes of a plugin annotated with {@link Export} or {@link Listen}.
+ * <p>
+ * Finding them requires parsing every class file of the plugin, so the
+ * result can be saved to a file and read back the next time the same JAR
+ * is loaded.
+ */
+class ExtensionIndex {
+  private static final int SKIP_ALL = ClassReader.SKIP_CODE
+      | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES;
+
+  /** First line of a saved index; changed if the format changes. */
+  private static final String HEADER = "# gerrit extension index v1";
+
+  static class Entry {
+    final String className;
+
+    /** Name given by {@code @Export}; null for a {@code @Listen} class. */
+    final String exportedAsName;
+
+    Entry(String className, String exportedAsName) {
+      this.className = className;
+      this.exportedAsName = exportedAsName;
+    }
+  }
+
+  /**
+   * Scan the class files of a plugin.
+   *
+   * @param pluginName name of the plugin, for error messages.
+   * @param jarFile the plugin's JAR.
+   * @return concrete classes with {@code @Export} or {@code @Listen}.
+   * @throws InvalidPluginException the JAR cannot be read.
+   */
+  static ExtensionIndex scan(String pluginName, JarFile jarFile)
+      throws InvalidPluginException {
+    List<Entry> entries = Lists.newArrayList();
+    Enumeration<JarEntry> e = jarFile.entries();
+    while (e.hasMoreElements()) {
+      JarEntry entry = e.nextElement();
+      if (skip(entry)) {
+        continue;
+      }
+
+      ClassData def = new ClassData();
+      try {
+        new ClassReader(read(jarFile, entry)).accept(def, SKIP_ALL);
+      } catch (IOException err) {
+        throw new InvalidPluginException("Cannot auto-register", err);
+      } catch (RuntimeException err) {
+        PluginLoader.log.warn(String.format(
+            "Plugin %s has invaild class file %s inside of %s",
+            pluginName, entry.getName(), jarFile.getName()), err);
+        continue;
+      }
+
+      if (def.exportedAsName != null) {
+        if (def.isConcrete()) {
+          entries.add(new Entry(def.className, def.exportedAsName));
+        } else {
+          PluginLoader.log.warn(String.format(
+              "Plugin %s tries to @Export(\"%s\") abstract class %s",
+              pluginName, def.exportedAsName, def.className));
+        }
+      } else if (def.listen) {
+        if (def.isConcrete()) {
+          entries.add(new Entry(def.className, null));
+        } else {
+          PluginLoader.log.warn(String.format(
+              "Plugin %s tries to @Listen abstract class %s",
+              pluginName, def.className));
+        }
+      }
+    }
+    return new ExtensionIndex(entries);
+  }
+
+  /**
+   * Read an index saved by {@link #write(File)}.
+   *
+   * @return the index; null if the file is not a valid index.
+   */
+  static ExtensionIndex read(File file) throws IOException {
+    String[] lines = RawParseUtils.decode(IO.readFully(file)).split("\n");
+    if (lines.length == 0 || !HEADER.equals(lines[0])) {
+      return null;
+    }
+
+    List<Entry> entries = Lists.newArrayListWithCapacity(lines.length - 1);
+    for (int i = 1; i < lines.length; i++) {
+      String[] f = lines[i].split("\t");
+      if (f.length == 2 && "listen".equals(f[0])) {
+        entries.add(new Entry(f[1], null));
+      } else if (f.length == 3 && "export".equals(f[0])) {
+        entries.add(new Entry(f[2], f[1]));
+      } else {
+        return null;
+      }
+    }
+    return new ExtensionIndex(entries);
+  }
+
+  private final List<Entry> entries;
+
+  private ExtensionIndex(List<Entry> entries) {
+    this.entries = ImmutableList.copyOf(entries);
+  }
+
+  List<Entry> getEntries() {
+    return entries;
+  }
+
+  /**
+   * Save the index.
+   * <p>
+   * The file is written under a temporary name and renamed into place, so
+   * readers never observe a partial index.
+   */
+  void write(File file) throws IOException {
+    StringBuilder b = new StringBuilder();
+    b.append(HEADER).append('\n');
+    for (Entry e : entries) {
+      if (e.exportedAsName != null) {
+        b.append("export\t").append(e.exportedAsName);
+      } else {
+        b.append("listen");
+      }
+      b.append('\t').append(e.className).append('\n');
+    }
+
+    File tmp = File.createTempFile(file.getName(), ".tmp",
+        file.getParentFile());
+    try {
+      FileOutputStream out = new FileOutputStream(tmp);
+      try {
+        out.write(b.toString().getBytes("UTF-8"));
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(file)) {
+        file.delete();
+        if (!tmp.renameTo(file)) {
+          throw new IOException("Cannot rename " + tmp + " to " + file);
+        }
+      }
+    } finally {
+      tmp.delete();
+    }
+  }
+
+  private static boolean skip(JarEntry entry) {
+    if (!entry.getName().endsWith(".class")) {
+      return true; // Avoid non-class resources.
+    }
+    if (entry.getSize() <= 0) {
+      return true; // Directories have 0 size.
+    }
+    if (entry.getSize() >= 1024 * 1024) {
+      return true; // Do not scan huge class files.
+    }
+    return false;
+  }
+
+  private static byte[] read(JarFile jarFile, JarEntry entry)
+      throws IOException {
+    byte[] data = new byte[(int) entry.getSize()];
+    InputStream in = jarFile.getInputStream(entry);
+    try {
+      IO.readFully(in, data, 0, data.length);
+    } finally {
+      in.close();
+    }
+    return data;
+  }
+
+  private static class ClassData implements ClassVisitor {
+    private static final String EXPORT = Type.getType(Export.class).getDescriptor();
+    private static final String LISTEN = Type.getType(Listen.class).getDescriptor();
+
+    String className;
+    int access;
+    String exportedAsName;
+    boolean listen;
+
+    boolean isConcrete() {
+      return (access & Opcodes.ACC_ABSTRACT) == 0
+          && (access & Opcodes.ACC_INTERFACE) == 0;
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature,
+        String superName, String[] interfaces) {
+      this.className = Type.getObjectType(name).getClassName();
+      this.access = access;
+    }
+
+    @Override
+    public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+      if (visible && EXPORT.equals(desc)) {
+        return new AbstractAnnotationVisitor() {
+          @Override
+          public void visit(String name, Object value) {
+            exportedAsName = (String) value;
+          }
+        };
+      }
+      if (visible && LISTEN.equals(desc)) {
+        listen = true;
+        return null;
+      }
+      return null;
+    }
+
+    @Override
+    public void visitSource(String arg0, String arg1) {
+    }
+
+    @Override
+    public void visitOuterClass(String arg0, String arg1, String arg2) {
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int arg0, String arg1, String arg2,
+        String arg3, String[] arg4) {
+      return null;
+    }
+
+    @Override
+    public void visitInnerClass(String arg0, String arg1, String arg2, int arg3) {
+    }
+
+    @Override
+    public FieldVisitor visitField(int arg0, String arg1, String arg2,
+        String arg3, Object arg4) {
+      return null;
+    }
+
+    @Override
+    public void visitEnd() {
+    }
+
+    @Override
+    public void visitAttribute(Attribute arg0) {
+    }
+  }
+
+  private static abstract class AbstractAnnotationVisitor implements
+      AnnotationVisitor {
+    @Override
+    public AnnotationVisitor visitAnnotation(String arg0, String arg1) {
+      return null;
+    }
+
+    @Override
+    public AnnotationVisitor visitArray(String arg0) {
+      return null;
+    }
+
+    @Override
+    public void visitEnum(String arg0, String arg1, String arg2) {
+    }
+
+    @Override
+    public void visitEnd() {
+    }
+  }
+}
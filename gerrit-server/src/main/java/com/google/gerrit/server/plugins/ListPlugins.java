@@ -76,7 +76,7 @@ public class ListPlugins {
     });
 
     if (!format.isJson()) {
-      stdout.format("%-30s %-10s\n", "Name", "Version");
+      stdout.format("%-30s %-10s %10s\n", "Name", "Version", "Load (ms)");
       stdout
           .print("----------------------------------------------------------------------\n");
     }
@@ -84,12 +84,13 @@ public class ListPlugins {
     for (Plugin p : plugins) {
       PluginInfo info = new PluginInfo();
       info.version = p.getVersion();
+      info.loadTime = p.getLoadTime();
 
       if (format.isJson()) {
         output.put(p.getName(), info);
       } else {
-        stdout.format("%-30s %-10s\n", p.getName(),
-            Strings.nullToEmpty(info.version));
+        stdout.format("%-30s %-10s %10d\n", p.getName(),
+            Strings.nullToEmpty(info.version), info.loadTime);
       }
     }
 
@@ -103,5 +104,6 @@ public class ListPlugins {
 
   private static class PluginInfo {
     String version;
+    long loadTime;
   }
 }
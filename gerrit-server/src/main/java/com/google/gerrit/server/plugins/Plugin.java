@@ -29,6 +29,7 @@ import com.google.inject.Module;
 import com.google.inject.Provider;
 import com.google.inject.ProvisionException;
 
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.storage.file.FileSnapshot;
 
 import java.io.File;
@@ -98,6 +99,9 @@ public class Plugin {
   private Injector httpInjector;
   private LifecycleManager manager;
   private List<ReloadableRegistrationHandle<?>> reloadableHandles;
+  private ExtensionIndex extensionIndex;
+  private ObjectId jarId;
+  private long loadTime;
 
   public Plugin(String name,
       File srcJar,
@@ -161,6 +165,30 @@ public class Plugin {
     }
   }
 
+  /** Supply the result of scanning the JAR, if already known. */
+  void setExtensionIndex(ExtensionIndex index) {
+    extensionIndex = index;
+  }
+
+  /** @return SHA-1 of the plugin's JAR, identifying its exact content. */
+  @Nullable
+  public ObjectId getJarId() {
+    return jarId;
+  }
+
+  void setJarId(ObjectId id) {
+    jarId = id;
+  }
+
+  /** @return milliseconds spent loading and starting this plugin. */
+  public long getLoadTime() {
+    return loadTime;
+  }
+
+  void addLoadTime(long ms) {
+    loadTime += ms;
+  }
+
   boolean isModified(File jar) {
     return snapshot.lastModified() != jar.lastModified();
   }
@@ -171,7 +199,10 @@ public class Plugin {
 
     AutoRegisterModules auto = null;
     if (sysModule == null && sshModule == null && httpModule == null) {
-      auto = new AutoRegisterModules(name, env, jarFile, classLoader);
+      if (extensionIndex == null) {
+        extensionIndex = ExtensionIndex.scan(name, jarFile);
+      }
+      auto = new AutoRegisterModules(name, env, extensionIndex, classLoader);
       auto.discover();
     }
 
@@ -19,6 +19,7 @@ import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gerrit.extensions.annotations.PluginName;
 import com.google.gerrit.extensions.events.LifecycleListener;
 import com.google.gerrit.extensions.systemstatus.ServerInformation;
@@ -31,6 +32,8 @@ import com.google.inject.Provider;
 import com.google.inject.Singleton;
 
 import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.storage.file.FileSnapshot;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,6 +47,8 @@ import java.io.InputStream;
 import java.lang.ref.ReferenceQueue;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Collections;
@@ -51,7 +56,12 @@ import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.jar.Attributes;
 import java.util.jar.JarFile;
@@ -64,6 +74,8 @@ public class PluginLoader implements LifecycleListener {
   private final File pluginsDir;
   private final File dataDir;
   private final File tmpDir;
+  private final File indexDir;
+  private final int loadThreads;
   private final PluginGuiceEnvironment env;
   private final ServerInformationImpl srvInfoImpl;
   private final ConcurrentMap<String, Plugin> running;
@@ -82,6 +94,7 @@ public class PluginLoader implements LifecycleListener {
     pluginsDir = sitePaths.plugins_dir;
     dataDir = sitePaths.data_dir;
     tmpDir = sitePaths.tmp_dir;
+    indexDir = new File(tmpDir, "plugin_index");
     env = pe;
     srvInfoImpl = sii;
     running = Maps.newConcurrentMap();
@@ -89,6 +102,8 @@ public class PluginLoader implements LifecycleListener {
     cleanupQueue = new ReferenceQueue<ClassLoader>();
     cleanupHandles = Maps.newConcurrentMap();
     cleaner = pct;
+    loadThreads = Math.max(1, cfg.getInt("plugins", null, "loadThreads",
+        Runtime.getRuntime().availableProcessors()));
 
     long checkFrequency = ConfigUtil.getTimeUnit(cfg,
         "plugins", null, "checkFrequency",
@@ -251,6 +266,7 @@ public class PluginLoader implements LifecycleListener {
     List<File> jars = scanJarsInPluginsDirectory();
     stopRemovedPlugins(jars);
 
+    Map<String, File> load = Maps.newTreeMap();
     for (File jar : jars) {
       String name = nameOf(jar);
       FileSnapshot brokenTime = broken.get(name);
@@ -262,19 +278,56 @@ public class PluginLoader implements LifecycleListener {
       if (active != null && !active.isModified(jar)) {
         continue;
       }
+      load.put(name, jar);
+    }
 
-      if (active != null) {
-        log.info(String.format("Reloading plugin %s", name));
-      }
-
+    if (!load.isEmpty()) {
+      // Copying and scanning JARs is independent for each plugin and is
+      // done in parallel. Plugins are then started one at a time, as
+      // starting updates the shared server environment.
+      //
+      ExecutorService pool = Executors.newFixedThreadPool(
+          Math.min(loadThreads, load.size()),
+          new ThreadFactoryBuilder()
+            .setNameFormat("PluginLoader-%d")
+            .build());
       try {
-        runPlugin(name, jar, active);
-        if (active == null) {
-          log.info(String.format("Loaded plugin %s", name));
+        Map<String, FileSnapshot> snapshots = Maps.newHashMap();
+        Map<String, Future<Plugin>> loading = Maps.newLinkedHashMap();
+        for (Map.Entry<String, File> e : load.entrySet()) {
+          final String name = e.getKey();
+          final File jar = e.getValue();
+          final FileSnapshot snapshot = FileSnapshot.save(jar);
+          snapshots.put(name, snapshot);
+          loading.put(name, pool.submit(new Callable<Plugin>() {
+            @Override
+            public Plugin call() throws Exception {
+              return loadPlugin(name, jar, snapshot);
+            }
+          }));
         }
-      } catch (PluginInstallException e) {
-        log.warn(String.format("Cannot load plugin %s", name), e.getCause());
+
+        for (Map.Entry<String, Future<Plugin>> e : loading.entrySet()) {
+          String name = e.getKey();
+          Plugin active = running.get(name);
+          if (active != null) {
+            log.info(String.format("Reloading plugin %s", name));
+          }
+
+          try {
+            runPlugin(name, snapshots.get(name), e.getValue(), active);
+            if (active == null) {
+              log.info(String.format("Loaded plugin %s", name));
+            }
+          } catch (PluginInstallException err) {
+            log.warn(String.format("Cannot load plugin %s", name),
+                err.getCause());
+          }
+        }
+      } finally {
+        pool.shutdown();
       }
+      pruneIndex();
     }
 
     cleanInBackground();
@@ -284,29 +337,49 @@ public class PluginLoader implements LifecycleListener {
       throws PluginInstallException {
     FileSnapshot snapshot = FileSnapshot.save(jar);
     try {
-      Plugin newPlugin = loadPlugin(name, jar, snapshot);
-      boolean reload = oldPlugin != null
-          && oldPlugin.canReload()
-          && newPlugin.canReload();
-      if (!reload && oldPlugin != null) {
-        oldPlugin.stop();
-        running.remove(name);
-      }
-      newPlugin.start(env);
-      if (reload) {
-        env.onReloadPlugin(oldPlugin, newPlugin);
-        oldPlugin.stop();
-      } else {
-        env.onStartPlugin(newPlugin);
-      }
-      running.put(name, newPlugin);
-      broken.remove(name);
+      startPlugin(name, loadPlugin(name, jar, snapshot), oldPlugin);
     } catch (Throwable err) {
       broken.put(name, snapshot);
       throw new PluginInstallException(err);
     }
   }
 
+  private void runPlugin(String name, FileSnapshot snapshot,
+      Future<Plugin> loading, Plugin oldPlugin)
+      throws PluginInstallException {
+    try {
+      startPlugin(name, loading.get(), oldPlugin);
+    } catch (ExecutionException err) {
+      broken.put(name, snapshot);
+      throw new PluginInstallException(err.getCause());
+    } catch (Throwable err) {
+      broken.put(name, snapshot);
+      throw new PluginInstallException(err);
+    }
+  }
+
+  private void startPlugin(String name, Plugin newPlugin, Plugin oldPlugin)
+      throws Exception {
+    long start = System.currentTimeMillis();
+    boolean reload = oldPlugin != null
+        && oldPlugin.canReload()
+        && newPlugin.canReload();
+    if (!reload && oldPlugin != null) {
+      oldPlugin.stop();
+      running.remove(name);
+    }
+    newPlugin.start(env);
+    if (reload) {
+      env.onReloadPlugin(oldPlugin, newPlugin);
+      oldPlugin.stop();
+    } else {
+      env.onStartPlugin(newPlugin);
+    }
+    newPlugin.addLoadTime(System.currentTimeMillis() - start);
+    running.put(name, newPlugin);
+    broken.remove(name);
+  }
+
   private void stopRemovedPlugins(List<File> jars) {
     Set<String> unload = Sets.newHashSet(running.keySet());
     for (File jar : jars) {
@@ -342,13 +415,16 @@ public class PluginLoader implements LifecycleListener {
 
   private Plugin loadPlugin(String name, File srcJar, FileSnapshot snapshot)
       throws IOException, ClassNotFoundException, InvalidPluginException {
+    long start = System.currentTimeMillis();
     File tmp;
-    FileInputStream in = new FileInputStream(srcJar);
+    MessageDigest md = Constants.newMessageDigest();
+    InputStream in = new DigestInputStream(new FileInputStream(srcJar), md);
     try {
       tmp = asTemp(in, tempNameFor(name), ".jar", tmpDir);
     } finally {
       in.close();
     }
+    ObjectId jarId = ObjectId.fromRaw(md.digest());
 
     JarFile jarFile = new JarFile(tmp);
     boolean keep = false;
@@ -376,12 +452,18 @@ public class PluginLoader implements LifecycleListener {
       Class<? extends Module> sysModule = load(sysName, pluginLoader);
       Class<? extends Module> sshModule = load(sshName, pluginLoader);
       Class<? extends Module> httpModule = load(httpName, pluginLoader);
-      keep = true;
-      return new Plugin(name,
+      Plugin plugin = new Plugin(name,
           srcJar, snapshot,
           jarFile, manifest,
           new File(dataDir, name), type, pluginLoader,
           sysModule, sshModule, httpModule);
+      plugin.setJarId(jarId);
+      if (sysModule == null && sshModule == null && httpModule == null) {
+        plugin.setExtensionIndex(extensionIndex(name, jarFile, jarId));
+      }
+      plugin.addLoadTime(System.currentTimeMillis() - start);
+      keep = true;
+      return plugin;
     } finally {
       if (!keep) {
         jarFile.close();
@@ -389,6 +471,51 @@ public class PluginLoader implements LifecycleListener {
     }
   }
 
+  /**
+   * Get the classes a plugin registers by annotation.
+   * <p>
+   * Scanning a plugin parses all of its class files, so the result is saved
+   * under the SHA-1 of the JAR and reused while the JAR is unchanged.
+   */
+  private ExtensionIndex extensionIndex(String name, JarFile jarFile,
+      ObjectId sha1) throws InvalidPluginException {
+    File file = new File(indexDir, sha1.name());
+    if (file.isFile()) {
+      try {
+        ExtensionIndex index = ExtensionIndex.read(file);
+        if (index != null) {
+          file.setLastModified(System.currentTimeMillis());
+          return index;
+        }
+      } catch (IOException e) {
+        log.warn("Cannot read " + file, e);
+      }
+    }
+
+    ExtensionIndex index = ExtensionIndex.scan(name, jarFile);
+    try {
+      if (indexDir.isDirectory() || indexDir.mkdirs()) {
+        index.write(file);
+      }
+    } catch (IOException e) {
+      log.warn("Cannot write " + file, e);
+    }
+    return index;
+  }
+
+  private void pruneIndex() {
+    // Indexes of JARs not loaded for 30 days are for old plugin versions.
+    File[] entries = indexDir.listFiles();
+    if (entries != null) {
+      long expired = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(30);
+      for (File entry : entries) {
+        if (entry.lastModified() < expired) {
+          entry.delete();
+        }
+      }
+    }
+  }
+
   private static ClassLoader parentFor(Plugin.ApiType type)
       throws InvalidPluginException {
     switch (type) {
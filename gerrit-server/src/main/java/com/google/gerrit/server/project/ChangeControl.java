@@ -332,6 +332,25 @@ public class ChangeControl {
       return logRuleError("Cannot read patch set " + patchSet.getId(), err);
     }
 
+    SubmitRecordCache cache =
+        getProjectControl().getProjectState().getSubmitRecordCache();
+    SubmitRecordCache.Key key;
+    try {
+      key = SubmitRecordCache.key(this, db, patchSet, cd, fastEvalLabels);
+    } catch (OrmException err) {
+      return logRuleError("Cannot read approvals of " + patchSet.getId(), err);
+    }
+
+    List<SubmitRecord> records = cache.get(key);
+    if (records == null) {
+      records = evaluateSubmitRule(db, patchSet, cd, fastEvalLabels);
+      cache.put(key, records);
+    }
+    return records;
+  }
+
+  private List<SubmitRecord> evaluateSubmitRule(ReviewDb db, PatchSet patchSet,
+      @Nullable ChangeData cd, boolean fastEvalLabels) {
     List<Term> results = new ArrayList<Term>();
     Term submitRule;
     ProjectState projectState = getProjectControl().getProjectState();
@@ -344,6 +363,7 @@ public class ChangeControl {
           + getProject().getName(), err);
     }
 
+    long start = System.nanoTime();
     try {
       env.set(StoredValues.REVIEW_DB, db);
       env.set(StoredValues.CHANGE, change);
@@ -429,6 +449,7 @@ public class ChangeControl {
       }
     } finally {
       env.close();
+      projectState.recordRulesEvaluation(System.nanoTime() - start);
     }
 
     if (results.isEmpty()) {
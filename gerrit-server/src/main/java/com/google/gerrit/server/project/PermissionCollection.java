@@ -66,11 +66,7 @@ public class PermissionCollection {
      */
     PermissionCollection filter(Iterable<SectionMatcher> matcherList,
         String ref, String username) {
-      if (isRE(ref)) {
-        ref = RefControl.shortestExample(ref);
-      } else if (ref.endsWith("/*")) {
-        ref = ref.substring(0, ref.length() - 1);
-      }
+      ref = normalize(ref);
 
       boolean perUser = false;
       List<AccessSection> sections = new ArrayList<AccessSection>();
@@ -97,7 +93,32 @@ public class PermissionCollection {
         }
       }
       sorter.sort(ref, sections);
+      return build(sections, perUser ? username : null);
+    }
+
+    /**
+     * Get all permissions that apply to a reference, using a precomputed
+     * index of the sections.
+     *
+     * @see #filter(Iterable, String, String)
+     */
+    PermissionCollection filter(SectionIndex index, String ref,
+        String username) {
+      return index.filter(this, normalize(ref), username);
+    }
+
+    void sort(String ref, List<AccessSection> sections) {
+      sorter.sort(ref, sections);
+    }
 
+    /**
+     * Combine the rules of sections, most specific section first.
+     *
+     * @param sections sections matching the reference, in sorted order.
+     * @param username user the collection is specific to; null if it may be
+     *        shared by all users.
+     */
+    PermissionCollection build(List<AccessSection> sections, String username) {
       Set<SeenRule> seen = new HashSet<SeenRule>();
       Set<SeenRule> seenBlockingRules = new HashSet<SeenRule>();
       Set<String> exclusiveGroupPermissions = new HashSet<String>();
@@ -133,7 +154,16 @@ public class PermissionCollection {
         }
       }
 
-      return new PermissionCollection(permissions, perUser ? username : null);
+      return new PermissionCollection(permissions, username);
+    }
+
+    private static String normalize(String ref) {
+      if (isRE(ref)) {
+        return RefControl.shortestExample(ref);
+      } else if (ref.endsWith("/*")) {
+        return ref.substring(0, ref.length() - 1);
+      }
+      return ref;
     }
   }
 
@@ -239,7 +239,9 @@ public class ProjectCacheImpl implements ProjectCache {
       try {
         ProjectConfig cfg = new ProjectConfig(key);
         cfg.load(git);
-        return projectStateFactory.create(cfg);
+        ProjectState state = projectStateFactory.create(cfg);
+        state.preloadRules();
+        return state;
       } finally {
         git.close();
       }
@@ -120,6 +120,7 @@ public class ProjectControl {
   private final Collection<ContributorAgreement> contributorAgreements;
 
   private List<SectionMatcher> allSections;
+  private SectionIndex sectionIndex;
   private Map<String, RefControl> refControls;
   private Boolean declaredOwner;
 
@@ -143,6 +144,7 @@ public class ProjectControl {
     ProjectControl r = state.controlFor(who);
     // Not per-user, and reusing saves lookup time.
     r.allSections = allSections;
+    r.sectionIndex = sectionIndex;
     return r;
   }
 
@@ -161,7 +163,7 @@ public class ProjectControl {
     RefControl ctl = refControls.get(refName);
     if (ctl == null) {
       PermissionCollection relevant =
-          permissionFilter.filter(access(), refName, user.getUserName());
+          permissionFilter.filter(index(), refName, user.getUserName());
       ctl = new RefControl(this, refName, relevant);
       refControls.put(refName, ctl);
     }
@@ -385,6 +387,13 @@ public class ProjectControl {
     return all;
   }
 
+  private SectionIndex index() {
+    if (sectionIndex == null) {
+      sectionIndex = state.getSectionIndex();
+    }
+    return sectionIndex;
+  }
+
   private List<SectionMatcher> access() {
     if (allSections == null) {
       allSections = state.getAllSections();
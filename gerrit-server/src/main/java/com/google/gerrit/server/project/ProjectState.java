@@ -35,6 +35,7 @@ import com.google.inject.assistedinject.Assisted;
 import com.googlecode.prolog_cafe.compiler.CompileException;
 import com.googlecode.prolog_cafe.lang.PrologMachineCopy;
 
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
 
@@ -59,6 +60,7 @@ public class ProjectState {
   private final PrologEnvironment.Factory envFactory;
   private final GitRepositoryManager gitMgr;
   private final RulesCache rulesCache;
+  private final SubmitRecordCache submitRecordCache;
 
   private final ProjectConfig config;
   private final Set<AccountGroup.UUID> localOwners;
@@ -72,6 +74,9 @@ public class ProjectState {
   /** Local access sections, wrapped in SectionMatchers for faster evaluation. */
   private volatile List<SectionMatcher> localAccessSections;
 
+  /** Local and inherited access sections, indexed by reference. */
+  private volatile SectionIndex sectionIndex;
+
   /** If this is all projects, the capabilities used by the server. */
   private final CapabilityCollection capabilities;
 
@@ -83,6 +88,7 @@ public class ProjectState {
       final PrologEnvironment.Factory envFactory,
       final GitRepositoryManager gitMgr,
       final RulesCache rulesCache,
+      final SubmitRecordCache submitRecordCache,
       @Assisted final ProjectConfig config) {
     this.projectCache = projectCache;
     this.isAllProjects = config.getProject().getNameKey().equals(allProjectsName);
@@ -91,6 +97,7 @@ public class ProjectState {
     this.envFactory = envFactory;
     this.gitMgr = gitMgr;
     this.rulesCache = rulesCache;
+    this.submitRecordCache = submitRecordCache;
     this.config = config;
     this.capabilities = isAllProjects
       ? new CapabilityCollection(config.getAccessSection(AccessSection.GLOBAL_CAPABILITIES))
@@ -153,6 +160,24 @@ public class ProjectState {
     return capabilities;
   }
 
+  /** Start loading the Prolog rules of this project in the background. */
+  void preloadRules() {
+    rulesCache.preload(getProject().getNameKey(), config.getRulesId());
+  }
+
+  /**
+   * Record the time taken to evaluate the submit rules of a change.
+   *
+   * @param elapsed nanoseconds spent evaluating the rules.
+   */
+  public void recordRulesEvaluation(long elapsed) {
+    rulesCache.recordEvaluation(getProject().getNameKey(), elapsed);
+  }
+
+  SubmitRecordCache getSubmitRecordCache() {
+    return submitRecordCache;
+  }
+
   /** @return Construct a new PrologEnvironment for the calling thread. */
   public PrologEnvironment newPrologEnvironment() throws CompileException {
     PrologMachineCopy pmc = rulesMachine;
@@ -230,6 +255,95 @@ public class ProjectState {
     return all;
   }
 
+  /**
+   * @return index of all local and inherited sections. The index is rebuilt
+   *         when the configuration of this project or a parent changes.
+   */
+  SectionIndex getSectionIndex() {
+    List<ObjectId> revs = getConfigRevisions();
+    SectionIndex idx = sectionIndex;
+    if (idx == null || !idx.isCurrent(revs)) {
+      idx = new SectionIndex(getAllSections(), revs);
+      sectionIndex = idx;
+    }
+    return idx;
+  }
+
+  /**
+   * @return true if any local or inherited access section uses a
+   *         {@code ${username}} parameter in its reference pattern.
+   */
+  public boolean hasUserParameters() {
+    for (SectionMatcher sm : getAllSections()) {
+      if (sm instanceof SectionMatcher.ExpandParameters) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return groups named by a local or inherited access rule, by the owners
+   *         of this project or of a parent, or by a global capability. What a
+   *         user may see in the project only depends on which of these groups
+   *         the user is a member of.
+   */
+  public Set<AccountGroup.UUID> getReferencedGroups() {
+    Set<AccountGroup.UUID> groups = new HashSet<AccountGroup.UUID>();
+    for (SectionMatcher sm : getAllSections()) {
+      addGroups(groups, sm.section);
+    }
+
+    Set<Project.NameKey> seen = new HashSet<Project.NameKey>();
+    seen.add(getProject().getNameKey());
+    ProjectState s = this;
+    do {
+      groups.addAll(s.localOwners);
+
+      Project.NameKey parent = s.getProject().getParent();
+      if (parent == null || !seen.add(parent)) {
+        break;
+      }
+      s = projectCache.get(parent);
+    } while (s != null);
+
+    ProjectState all = projectCache.getAllProjects();
+    addGroups(groups, all.getConfig().getAccessSection(
+        AccessSection.GLOBAL_CAPABILITIES));
+    return groups;
+  }
+
+  private static void addGroups(Set<AccountGroup.UUID> groups,
+      AccessSection section) {
+    if (section == null) {
+      return;
+    }
+    for (Permission permission : section.getPermissions()) {
+      for (PermissionRule rule : permission.getRules()) {
+        GroupReference group = rule.getGroup();
+        if (group != null && group.getUUID() != null) {
+          groups.add(group.getUUID());
+        }
+      }
+    }
+  }
+
+  /**
+   * @return revisions of the configuration of this project and of every
+   *         parent up to All-Projects. Two equal lists imply the same
+   *         access rules apply to the project.
+   */
+  public List<ObjectId> getConfigRevisions() {
+    List<ObjectId> r = new ArrayList<ObjectId>();
+    Set<Project.NameKey> seen = new HashSet<Project.NameKey>();
+    ProjectState s = this;
+    while (s != null && seen.add(s.getProject().getNameKey())) {
+      r.add(s.getConfig().getRevision());
+      s = s.getParentState();
+    }
+    return r;
+  }
+
   /**
    * @return all {@link AccountGroup}'s to which the owner privilege for
    *         'refs/*' is assigned for this project (the local owners), if there
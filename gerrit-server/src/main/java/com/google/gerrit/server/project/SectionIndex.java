@@ -0,0 +1,239 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.project;
+
+import static com.google.gerrit.server.project.RefControl.isRE;
+
+import com.google.gerrit.common.data.AccessSection;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Local and inherited access sections of a project, indexed by the
+ * references they apply to.
+ * <p>
+ * Sections naming a single reference are found with one hash lookup, and
+ * sections ending in {@code /*} with one lookup per directory of the
+ * reference. Regular expressions are only evaluated if the reference starts
+ * with their literal prefix, and sections using {@code ${username}} are
+ * checked one by one.
+ * <p>
+ * If only plain and {@code /*} sections match, their order does not depend
+ * on the reference itself: the section naming the reference comes first,
+ * followed by longer prefixes before shorter ones, as
+ * {@link com.google.gerrit.server.util.MostSpecificComparator} would sort
+ * them. The combined rules are then shared by all references matching the
+ * same sections, and checking another branch or change costs a few lookups.
+ */
+class SectionIndex {
+  /** Maximum number of shared collections kept by one index. */
+  private static final int MAX_SHARED = 1024;
+
+  private final List<ObjectId> revisions;
+  private final List<SectionMatcher> matchers;
+  private final Map<String, int[]> exact;
+  private final Map<String, int[]> prefix;
+  private final int[] regex;
+  private final String[] regexPrefix;
+  private final int[] user;
+  private final ConcurrentMap<String, PermissionCollection> shared;
+
+  /**
+   * @param matchers all sections, in priority order.
+   * @param revisions configuration revisions the sections were read from.
+   */
+  SectionIndex(List<SectionMatcher> matchers, List<ObjectId> revisions) {
+    this.revisions = revisions;
+    this.matchers = matchers;
+
+    Map<String, List<Integer>> ex = new HashMap<String, List<Integer>>();
+    Map<String, List<Integer>> px = new HashMap<String, List<Integer>>();
+    List<Integer> re = new ArrayList<Integer>();
+    List<String> rePrefix = new ArrayList<String>();
+    List<Integer> us = new ArrayList<Integer>();
+    for (int i = 0; i < matchers.size(); i++) {
+      SectionMatcher m = matchers.get(i);
+      String name = m.section.getName();
+      if (m instanceof SectionMatcher.ExpandParameters) {
+        us.add(i);
+      } else if (isRE(name)) {
+        re.add(i);
+        rePrefix.add(literalPrefix(name));
+      } else if (name.endsWith("/*")) {
+        add(px, name.substring(0, name.length() - 1), i);
+      } else {
+        add(ex, name, i);
+      }
+    }
+
+    exact = toArrays(ex);
+    prefix = toArrays(px);
+    regex = toArray(re);
+    regexPrefix = rePrefix.toArray(new String[rePrefix.size()]);
+    user = toArray(us);
+    shared = new ConcurrentHashMap<String, PermissionCollection>();
+  }
+
+  /** @return true if the index was built from these revisions. */
+  boolean isCurrent(List<ObjectId> revs) {
+    return revisions.equals(revs);
+  }
+
+  PermissionCollection filter(PermissionCollection.Factory factory,
+      String ref, String username) {
+    BitSet found = new BitSet(matchers.size());
+    mark(found, exact.get(ref));
+    for (int i = ref.indexOf('/'); 0 <= i; i = ref.indexOf('/', i + 1)) {
+      mark(found, prefix.get(ref.substring(0, i + 1)));
+    }
+
+    // Names ending in '/' only come from patterns; their order may
+    // differ from the general rule, so leave them to the sorter.
+    boolean shareable = !ref.endsWith("/");
+    for (int j = 0; j < regex.length; j++) {
+      if (ref.startsWith(regexPrefix[j])
+          && matchers.get(regex[j]).match(ref, username)) {
+        found.set(regex[j]);
+        shareable = false;
+      }
+    }
+
+    boolean perUser = false;
+    for (int i : user) {
+      SectionMatcher.ExpandParameters m =
+          (SectionMatcher.ExpandParameters) matchers.get(i);
+      if (username != null && !perUser) {
+        perUser = m.matchPrefix(ref);
+      }
+      if (m.match(ref, username)) {
+        found.set(i);
+        shareable = false;
+      }
+    }
+
+    String key = null;
+    if (shareable && !perUser) {
+      key = found.toString();
+      PermissionCollection pc = shared.get(key);
+      if (pc != null) {
+        return pc;
+      }
+    }
+
+    List<AccessSection> sections =
+        new ArrayList<AccessSection>(found.cardinality());
+    for (int i = found.nextSetBit(0); 0 <= i; i = found.nextSetBit(i + 1)) {
+      sections.add(matchers.get(i).section);
+    }
+
+    if (key != null) {
+      Collections.sort(sections, MOST_SPECIFIC);
+      PermissionCollection pc = factory.build(sections, null);
+      if (shared.size() < MAX_SHARED) {
+        shared.putIfAbsent(key, pc);
+      }
+      return pc;
+    }
+
+    factory.sort(ref, sections);
+    return factory.build(sections, perUser ? username : null);
+  }
+
+  /** Orders plain and {@code /*} sections matching the same reference. */
+  private static final Comparator<AccessSection> MOST_SPECIFIC =
+      new Comparator<AccessSection>() {
+        @Override
+        public int compare(AccessSection a, AccessSection b) {
+          return rank(a.getName()) - rank(b.getName());
+        }
+
+        private int rank(String name) {
+          return name.endsWith("/*") ? Integer.MAX_VALUE - name.length() : 0;
+        }
+      };
+
+  /**
+   * Find the literal text every match of a regular expression starts with.
+   * <p>
+   * Sections are matched by {@link java.util.regex.Pattern}, so the prefix is
+   * read with its syntax, conservatively: scanning stops at the first escape
+   * or metacharacter, and any alternation disables the prefix entirely.
+   *
+   * @param re section name, including its leading {@code ^}.
+   * @return prefix every matching reference starts with; may be empty.
+   */
+  static String literalPrefix(String re) {
+    if (re.indexOf('|') >= 0) {
+      return "";
+    }
+    int i = re.startsWith("^") ? 1 : 0;
+    StringBuilder r = new StringBuilder();
+    for (; i < re.length(); i++) {
+      char c = re.charAt(i);
+      if ("\\[](){}.*+?^$".indexOf(c) >= 0) {
+        break;
+      }
+      r.append(c);
+    }
+    if (0 < r.length() && i < re.length() && "?*{".indexOf(re.charAt(i)) >= 0) {
+      // The last literal is optional.
+      r.setLength(r.length() - 1);
+    }
+    return r.toString();
+  }
+
+  private static void mark(BitSet found, int[] idx) {
+    if (idx != null) {
+      for (int i : idx) {
+        found.set(i);
+      }
+    }
+  }
+
+  private static void add(Map<String, List<Integer>> m, String k, int i) {
+    List<Integer> l = m.get(k);
+    if (l == null) {
+      l = new ArrayList<Integer>(2);
+      m.put(k, l);
+    }
+    l.add(i);
+  }
+
+  private static Map<String, int[]> toArrays(Map<String, List<Integer>> m) {
+    Map<String, int[]> r = new HashMap<String, int[]>(m.size() * 2);
+    for (Map.Entry<String, List<Integer>> e : m.entrySet()) {
+      r.put(e.getKey(), toArray(e.getValue()));
+    }
+    return r;
+  }
+
+  private static int[] toArray(List<Integer> l) {
+    int[] r = new int[l.size()];
+    for (int i = 0; i < r.length; i++) {
+      r[i] = l.get(i);
+    }
+    return r;
+  }
+}
@@ -0,0 +1,226 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.project;
+
+import com.google.common.cache.Cache;
+import com.google.gerrit.common.data.SubmitRecord;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.PatchSet;
+import com.google.gerrit.reviewdb.client.PatchSetApproval;
+import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.IdentifiedUser;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gwtorm.server.OrmException;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.google.inject.util.Providers;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches the result of evaluating the submit rules of a patch set.
+ * <p>
+ * The records only depend on the inputs of the rules: the patch set and its
+ * approvals, the state of the change, the configuration (and so the rules)
+ * of the project and its parents, and the user the rules are evaluated for.
+ * All of these are part of the key, so writing an approval or updating the
+ * configuration makes later lookups miss without explicit invalidation.
+ * Entries expire after an hour, bounding how long a change in the group
+ * membership of a voter goes unnoticed.
+ */
+@Singleton
+public class SubmitRecordCache {
+  private static final String CACHE_NAME = "submit_records";
+
+  public static Module module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        cache(CACHE_NAME, Key.class, Records.class)
+          .expireAfterWrite(1, TimeUnit.HOURS);
+        bind(SubmitRecordCache.class);
+      }
+    };
+  }
+
+  private final Cache<Key, Records> cache;
+
+  @Inject
+  SubmitRecordCache(@Named(CACHE_NAME) Cache<Key, Records> cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * @return copy of the cached records for the key, which the caller may
+   *         modify or serialize; null if not cached.
+   */
+  List<SubmitRecord> get(Key key) {
+    Records r = cache.getIfPresent(key);
+    return r != null ? copy(r.records) : null;
+  }
+
+  /** Cache records, unless they report an error in the rules. */
+  void put(Key key, List<SubmitRecord> records) {
+    for (SubmitRecord r : records) {
+      if (r.status == SubmitRecord.Status.RULE_ERROR) {
+        return;
+      }
+    }
+    cache.put(key, new Records(records));
+  }
+
+  /**
+   * Create the key identifying an evaluation of the submit rules.
+   *
+   * @param ctl change and user the rules are evaluated for.
+   * @param db open database handle, used if {@code cd} is null.
+   * @param patchSet current patch set of the change.
+   * @param cd cached data of the change; may be null.
+   * @param fastEvalLabels true if label ranges of the user are assumed.
+   * @return key of the evaluation.
+   * @throws OrmException the approvals cannot be read.
+   */
+  static Key key(ChangeControl ctl, ReviewDb db, PatchSet patchSet,
+      ChangeData cd, boolean fastEvalLabels) throws OrmException {
+    Iterable<PatchSetApproval> approvals;
+    if (cd != null) {
+      approvals = cd.currentApprovals(Providers.of(db));
+    } else {
+      approvals = db.patchSetApprovals().byPatchSet(patchSet.getId());
+    }
+
+    List<String> votes = new ArrayList<String>();
+    for (PatchSetApproval a : approvals) {
+      if (a.getValue() != 0) {
+        votes.add(a.getAccountId().get() + " "
+            + a.getCategoryId().get() + " " + a.getValue());
+      }
+    }
+    Collections.sort(votes);
+
+    Change change = ctl.getChange();
+    ProjectState state = ctl.getProjectControl().getProjectState();
+    return new Key(
+        patchSet.getId(),
+        patchSet.getRevision() != null ? patchSet.getRevision().get() : null,
+        change.getStatus(),
+        change.getLastUpdatedOn(),
+        state.getConfigRevisions(),
+        votes,
+        user(ctl.getCurrentUser()),
+        fastEvalLabels);
+  }
+
+  private static String user(CurrentUser user) {
+    if (user instanceof IdentifiedUser) {
+      return "account " + ((IdentifiedUser) user).getAccountId().get();
+    }
+    return user.getClass().getName();
+  }
+
+  static class Key {
+    private final PatchSet.Id patchSet;
+    private final String revision;
+    private final Change.Status status;
+    private final Timestamp lastUpdatedOn;
+    private final List<ObjectId> config;
+    private final List<String> votes;
+    private final String user;
+    private final boolean fastEvalLabels;
+    private final int hashCode;
+
+    Key(PatchSet.Id patchSet, String revision, Change.Status status,
+        Timestamp lastUpdatedOn, List<ObjectId> config, List<String> votes,
+        String user, boolean fastEvalLabels) {
+      this.patchSet = patchSet;
+      this.revision = revision;
+      this.status = status;
+      this.lastUpdatedOn = lastUpdatedOn;
+      this.config = config;
+      this.votes = votes;
+      this.user = user;
+      this.fastEvalLabels = fastEvalLabels;
+      this.hashCode = Arrays.hashCode(new Object[] {
+          patchSet, revision, status, lastUpdatedOn, config, votes, user,
+          fastEvalLabels});
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (o instanceof Key) {
+        Key k = (Key) o;
+        return hashCode == k.hashCode
+            && fastEvalLabels == k.fastEvalLabels
+            && patchSet.equals(k.patchSet)
+            && eq(revision, k.revision)
+            && status == k.status
+            && eq(lastUpdatedOn, k.lastUpdatedOn)
+            && config.equals(k.config)
+            && votes.equals(k.votes)
+            && user.equals(k.user);
+      }
+      return false;
+    }
+
+    private static boolean eq(Object a, Object b) {
+      return a != null ? a.equals(b) : b == null;
+    }
+  }
+
+  private static List<SubmitRecord> copy(List<SubmitRecord> records) {
+    List<SubmitRecord> r = new ArrayList<SubmitRecord>(records.size());
+    for (SubmitRecord rec : records) {
+      SubmitRecord c = new SubmitRecord();
+      c.status = rec.status;
+      c.errorMessage = rec.errorMessage;
+      if (rec.labels != null) {
+        c.labels = new ArrayList<SubmitRecord.Label>(rec.labels.size());
+        for (SubmitRecord.Label label : rec.labels) {
+          SubmitRecord.Label l = new SubmitRecord.Label();
+          l.label = label.label;
+          l.status = label.status;
+          l.appliedBy = label.appliedBy;
+          c.labels.add(l);
+        }
+      }
+      r.add(c);
+    }
+    return r;
+  }
+
+  static class Records {
+    private final List<SubmitRecord> records;
+
+    Records(List<SubmitRecord> records) {
+      this.records = copy(records);
+    }
+  }
+}
@@ -15,16 +15,19 @@
 package com.google.gerrit.server.query.change;
 
 import com.google.gerrit.server.query.AndPredicate;
+import com.google.gerrit.server.query.IntPredicate;
 import com.google.gerrit.server.query.Predicate;
-import com.google.gwtorm.server.ListResultSet;
 import com.google.gwtorm.server.OrmException;
+import com.google.gwtorm.server.OrmRuntimeException;
 import com.google.gwtorm.server.ResultSet;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 class AndSource extends AndPredicate<ChangeData> implements ChangeDataSource {
   private static final Comparator<Predicate<ChangeData>> CMP =
@@ -85,46 +88,10 @@ class AndSource extends AndPredicate<ChangeData> implements ChangeDataSource {
     if (source == null) {
       throw new OrmException("No ChangeDataSource: " + this);
     }
-
-    // TODO(spearce) This probably should be more lazy.
-    //
-    ArrayList<ChangeData> r = new ArrayList<ChangeData>();
-    ChangeData last = null;
-    boolean skipped = false;
-    for (ChangeData data : source.read()) {
-      if (match(data)) {
-        r.add(data);
-      } else {
-        skipped = true;
-      }
-      last = data;
-    }
-
-    if (skipped && last != null && source instanceof Paginated) {
-      // If we our source is a paginated source and we skipped at
-      // least one of its results, we may not have filled the full
-      // limit the caller wants.  Restart the source and continue.
-      //
-      Paginated p = (Paginated) source;
-      while (skipped && r.size() < p.limit()) {
-        ChangeData lastBeforeRestart = last;
-        skipped = false;
-        last = null;
-        for (ChangeData data : p.restart(lastBeforeRestart)) {
-          if (match(data)) {
-            r.add(data);
-          } else {
-            skipped = true;
-          }
-          last = data;
-        }
-      }
-    }
-
-    return new ListResultSet<ChangeData>(r);
+    return new MatchResultSet(source, source.read());
   }
 
-  private ChangeDataSource source() {
+  ChangeDataSource source() {
     for (Predicate<ChangeData> p : getChildren()) {
       if (p instanceof ChangeDataSource) {
         return (ChangeDataSource) p;
@@ -133,6 +100,28 @@ class AndSource extends AndPredicate<ChangeData> implements ChangeDataSource {
     return null;
   }
 
+  /**
+   * @return number of results needed by the caller, if {@link #read()} may
+   *         stop once it has found that many. Only a source read in sort key
+   *         order can stop early, otherwise the caller must see every match
+   *         to pick the first ones by sort key.
+   */
+  private int limit(ChangeDataSource source) {
+    if (SortOrder.of(this) == SortOrder.NONE) {
+      return Integer.MAX_VALUE;
+    }
+    if (source instanceof Paginated) {
+      return ((Paginated) source).limit();
+    }
+    for (Predicate<ChangeData> p : getChildren()) {
+      if (p instanceof IntPredicate && ChangeQueryBuilder.FIELD_LIMIT.equals(
+          ((IntPredicate<?>) p).getOperator())) {
+        return ((IntPredicate<?>) p).intValue();
+      }
+    }
+    return Integer.MAX_VALUE;
+  }
+
   @Override
   public int getCardinality() {
     if (cardinality < 0) {
@@ -146,4 +135,94 @@ class AndSource extends AndPredicate<ChangeData> implements ChangeDataSource {
     }
     return cardinality;
   }
+
+  /**
+   * Filters the results of the source as they are read.
+   * <p>
+   * Rows are pulled from the source only when the caller asks for the next
+   * match, and reading stops once the limit has been returned. A paginated
+   * source is restarted after its last row only if the current page ran out
+   * before enough matches were found.
+   */
+  private class MatchResultSet extends AbstractResultSet<ChangeData> {
+    private final ChangeDataSource source;
+    private final int limit;
+    private ResultSet<ChangeData> rs;
+
+    MatchResultSet(ChangeDataSource source, ResultSet<ChangeData> rs) {
+      this.source = source;
+      this.limit = limit(source);
+      this.rs = rs;
+    }
+
+    @Override
+    public Iterator<ChangeData> iterator() {
+      return new Iterator<ChangeData>() {
+        private Iterator<ChangeData> itr = rs.iterator();
+        private ChangeData next;
+        private ChangeData last;
+        private boolean skipped;
+        private int returned;
+
+        @Override
+        public boolean hasNext() {
+          if (next != null) {
+            return true;
+          }
+          if (returned >= limit) {
+            return false;
+          }
+          try {
+            for (;;) {
+              while (itr.hasNext()) {
+                ChangeData data = itr.next();
+                last = data;
+                if (match(data)) {
+                  next = data;
+                  return true;
+                }
+                skipped = true;
+              }
+
+              // If our source is a paginated source and we skipped at
+              // least one of its results, we may not have filled the full
+              // limit the caller wants.  Restart the source and continue.
+              //
+              if (!skipped || last == null || !(source instanceof Paginated)) {
+                return false;
+              }
+              rs.close();
+              rs = ((Paginated) source).restart(last);
+              itr = rs.iterator();
+              skipped = false;
+              last = null;
+            }
+          } catch (OrmException e) {
+            throw new OrmRuntimeException(e);
+          }
+        }
+
+        @Override
+        public ChangeData next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          ChangeData r = next;
+          next = null;
+          returned++;
+          return r;
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    @Override
+    public void close() {
+      rs.close();
+    }
+  }
 }
@@ -69,40 +69,220 @@ public class ChangeData {
 
   public static void ensureCurrentPatchSetLoaded(
       Provider<ReviewDb> db, List<ChangeData> changes) throws OrmException {
+    ensureChangeLoaded(db, changes);
     Map<PatchSet.Id, ChangeData> missing = Maps.newHashMap();
     for (ChangeData cd : changes) {
-      if (cd.currentPatchSet == null && cd.patches == null) {
-        missing.put(cd.change(db).currentPatchSetId(), cd);
+      if (cd.currentPatchSet == null && cd.patches == null
+          && cd.change != null && cd.change.currentPatchSetId() != null) {
+        missing.put(cd.change.currentPatchSetId(), cd);
       }
     }
     if (!missing.isEmpty()) {
       for (PatchSet ps : db.get().patchSets().get(missing.keySet())) {
-        ChangeData cd = missing.get(ps.getId());
-        cd.currentPatchSet = ps;
-        cd.patches = Lists.newArrayList(ps);
+        missing.get(ps.getId()).currentPatchSet = ps;
       }
     }
   }
 
-  public static void ensureCurrentApprovalsLoaded(
+  /**
+   * Load every patch set of the changes with a single lookup. Patch sets
+   * are numbered from 1 up to the change's patch set count; numbers left
+   * unused by deleted drafts are simply not found.
+   */
+  public static void ensureAllPatchSetsLoaded(
       Provider<ReviewDb> db, List<ChangeData> changes) throws OrmException {
-    List<ResultSet<PatchSetApproval>> pending = Lists.newArrayList();
+    ensureChangeLoaded(db, changes);
+    List<PatchSet.Id> ids = Lists.newArrayList();
     for (ChangeData cd : changes) {
-      if (cd.currentApprovals == null && cd.approvals == null) {
-        pending.add(db.get().patchSetApprovals()
-            .byPatchSet(cd.change(db).currentPatchSetId()));
+      if (cd.patches == null && cd.change != null) {
+        ids.addAll(patchSetIds(cd.change));
       }
     }
-    if (!pending.isEmpty()) {
-      int idx = 0;
-      for (ChangeData cd : changes) {
-        if (cd.currentApprovals == null && cd.approvals == null) {
-          cd.currentApprovals = pending.get(idx++).toList();
+    if (ids.isEmpty()) {
+      return;
+    }
+
+    Map<PatchSet.Id, PatchSet> found = Maps.newHashMap();
+    for (PatchSet ps : db.get().patchSets().get(ids)) {
+      found.put(ps.getId(), ps);
+    }
+    for (ChangeData cd : changes) {
+      if (cd.patches == null && cd.change != null) {
+        List<PatchSet> r = Lists.newArrayList();
+        for (PatchSet.Id id : patchSetIds(cd.change)) {
+          PatchSet ps = found.get(id);
+          if (ps != null) {
+            r.add(ps);
+          }
         }
+        cd.patches = r;
       }
     }
   }
 
+  private static List<PatchSet.Id> patchSetIds(Change c) {
+    PatchSet.Id current = c.currentPatchSetId();
+    int n = Math.max(c.getNumberOfPatchSets(),
+        current != null ? current.get() : 0);
+    List<PatchSet.Id> r = Lists.newArrayListWithCapacity(n);
+    for (int i = 1; i <= n; i++) {
+      r.add(new PatchSet.Id(c.getId(), i));
+    }
+    return r;
+  }
+
+  public static void ensureCurrentApprovalsLoaded(
+      Provider<ReviewDb> db, List<ChangeData> changes) throws OrmException {
+    ensureLoaded(db, changes, CURRENT_APPROVALS);
+  }
+
+  public static void ensureAllApprovalsLoaded(
+      Provider<ReviewDb> db, List<ChangeData> changes) throws OrmException {
+    ensureLoaded(db, changes, ALL_APPROVALS);
+  }
+
+  public static void ensureMessagesLoaded(
+      Provider<ReviewDb> db, List<ChangeData> changes) throws OrmException {
+    ensureLoaded(db, changes, MESSAGES);
+  }
+
+  public static void ensureCommentsLoaded(
+      Provider<ReviewDb> db, List<ChangeData> changes) throws OrmException {
+    ensureLoaded(db, changes, COMMENTS);
+  }
+
+  public static void ensureTrackingIdsLoaded(
+      Provider<ReviewDb> db, List<ChangeData> changes) throws OrmException {
+    ensureLoaded(db, changes, TRACKING_IDS);
+  }
+
+  /**
+   * Load a relation for every change that does not have it yet.
+   * <p>
+   * ReviewDb can only look these rows up one change at a time, so all of
+   * the queries are issued before any result is read, letting the database
+   * work on the whole page at once.
+   */
+  private static <T> void ensureLoaded(Provider<ReviewDb> db,
+      List<ChangeData> changes, Relation<T> rel) throws OrmException {
+    ensureChangeLoaded(db, changes);
+    List<ChangeData> missing = Lists.newArrayList();
+    List<ResultSet<T>> pending = Lists.newArrayList();
+    for (ChangeData cd : changes) {
+      if (cd.change != null && !rel.isLoaded(cd)) {
+        missing.add(cd);
+        pending.add(rel.query(db.get(), cd.change));
+      }
+    }
+    for (int i = 0; i < missing.size(); i++) {
+      rel.set(missing.get(i), pending.get(i).toList());
+    }
+  }
+
+  /** Rows of one table that belong to a change. */
+  private abstract static class Relation<T> {
+    abstract boolean isLoaded(ChangeData cd);
+
+    abstract ResultSet<T> query(ReviewDb db, Change c) throws OrmException;
+
+    abstract void set(ChangeData cd, List<T> rows);
+  }
+
+  private static final Relation<PatchSetApproval> CURRENT_APPROVALS =
+      new Relation<PatchSetApproval>() {
+        @Override
+        boolean isLoaded(ChangeData cd) {
+          return cd.currentApprovals != null || cd.approvals != null;
+        }
+
+        @Override
+        ResultSet<PatchSetApproval> query(ReviewDb db, Change c)
+            throws OrmException {
+          return db.patchSetApprovals().byPatchSet(c.currentPatchSetId());
+        }
+
+        @Override
+        void set(ChangeData cd, List<PatchSetApproval> rows) {
+          cd.currentApprovals = rows;
+        }
+      };
+
+  private static final Relation<PatchSetApproval> ALL_APPROVALS =
+      new Relation<PatchSetApproval>() {
+        @Override
+        boolean isLoaded(ChangeData cd) {
+          return cd.approvals != null;
+        }
+
+        @Override
+        ResultSet<PatchSetApproval> query(ReviewDb db, Change c)
+            throws OrmException {
+          return db.patchSetApprovals().byChange(c.getId());
+        }
+
+        @Override
+        void set(ChangeData cd, List<PatchSetApproval> rows) {
+          cd.approvals = rows;
+        }
+      };
+
+  private static final Relation<ChangeMessage> MESSAGES =
+      new Relation<ChangeMessage>() {
+        @Override
+        boolean isLoaded(ChangeData cd) {
+          return cd.messages != null;
+        }
+
+        @Override
+        ResultSet<ChangeMessage> query(ReviewDb db, Change c)
+            throws OrmException {
+          return db.changeMessages().byChange(c.getId());
+        }
+
+        @Override
+        void set(ChangeData cd, List<ChangeMessage> rows) {
+          cd.messages = rows;
+        }
+      };
+
+  private static final Relation<PatchLineComment> COMMENTS =
+      new Relation<PatchLineComment>() {
+        @Override
+        boolean isLoaded(ChangeData cd) {
+          return cd.comments != null;
+        }
+
+        @Override
+        ResultSet<PatchLineComment> query(ReviewDb db, Change c)
+            throws OrmException {
+          return db.patchComments().byChange(c.getId());
+        }
+
+        @Override
+        void set(ChangeData cd, List<PatchLineComment> rows) {
+          cd.comments = rows;
+        }
+      };
+
+  private static final Relation<TrackingId> TRACKING_IDS =
+      new Relation<TrackingId>() {
+        @Override
+        boolean isLoaded(ChangeData cd) {
+          return cd.trackingIds != null;
+        }
+
+        @Override
+        ResultSet<TrackingId> query(ReviewDb db, Change c)
+            throws OrmException {
+          return db.trackingIds().byChange(c.getId());
+        }
+
+        @Override
+        void set(ChangeData cd, List<TrackingId> rows) {
+          cd.trackingIds = rows;
+        }
+      };
+
   private final Change.Id legacyId;
   private Change change;
   private String commitMessage;
@@ -247,8 +427,11 @@ public class ChangeData {
   public String commitMessage(GitRepositoryManager repoManager,
       Provider<ReviewDb> db) throws IOException, OrmException {
     if (commitMessage == null) {
-      PatchSet.Id psId = change(db).currentPatchSetId();
-      String sha1 = db.get().patchSets().get(psId).getRevision().get();
+      PatchSet ps = currentPatchSet;
+      if (ps == null) {
+        ps = db.get().patchSets().get(change(db).currentPatchSetId());
+      }
+      String sha1 = ps.getRevision().get();
       Project.NameKey name = change.getProject();
       Repository repo = repoManager.openRepository(name);
       try {
@@ -43,11 +43,13 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
                   null, null, null, null), null));
 
   private final Provider<ReviewDb> dbProvider;
+  private final ChangeStatistics stats;
 
   @Inject
-  ChangeQueryRewriter(Provider<ReviewDb> dbProvider) {
+  ChangeQueryRewriter(Provider<ReviewDb> dbProvider, ChangeStatistics stats) {
     super(mydef);
     this.dbProvider = dbProvider;
+    this.stats = stats;
   }
 
   @Override
@@ -123,7 +125,13 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
   public Predicate<ChangeData> r05_byBranchOpen(
       @Named("P") final ProjectPredicate p,
       @Named("B") final BranchPredicate b) {
-    return new ChangeSource(500) {
+    int card = Math.min(500,
+        stats.project(p.getValueKey(), ChangeStatistics.OPEN, 500));
+    return new ChangeSource(card) {
+      {
+        init("r05_byBranchOpen", p, b);
+      }
+
       @Override
       ResultSet<Change> scan(ChangeAccess a)
           throws OrmException {
@@ -146,7 +154,13 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
       @Named("B") final BranchPredicate b,
       @Named("S") final SortKeyPredicate.After s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(40000, s.getValue(), l.intValue()) {
+    int card = Math.min(40000,
+        stats.project(p.getValueKey(), ChangeStatistics.MERGED, 40000));
+    return new PaginatedSource(card, s, l.intValue()) {
+      {
+        init("r05_byBranchMergedPrev", p, b, s, l);
+      }
+
       @Override
       ResultSet<Change> scan(ChangeAccess a, String key, int limit)
           throws OrmException {
@@ -170,7 +184,13 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
       @Named("B") final BranchPredicate b,
       @Named("S") final SortKeyPredicate.Before s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(40000, s.getValue(), l.intValue()) {
+    int card = Math.min(40000,
+        stats.project(p.getValueKey(), ChangeStatistics.MERGED, 40000));
+    return new PaginatedSource(card, s, l.intValue()) {
+      {
+        init("r05_byBranchMergedNext", p, b, s, l);
+      }
+
       @Override
       ResultSet<Change> scan(ChangeAccess a, String key, int limit)
           throws OrmException {
@@ -193,7 +213,12 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
       @Named("P") final ProjectPredicate p,
       @Named("S") final SortKeyPredicate.After s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(500, s.getValue(), l.intValue()) {
+    int card = stats.project(p.getValueKey(), ChangeStatistics.OPEN, 500);
+    return new PaginatedSource(card, s, l.intValue()) {
+      {
+        init("r10_byProjectOpenPrev", p, s, l);
+      }
+
       @Override
       ResultSet<Change> scan(ChangeAccess a, String key, int limit)
           throws OrmException {
@@ -214,7 +239,12 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
       @Named("P") final ProjectPredicate p,
       @Named("S") final SortKeyPredicate.Before s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(500, s.getValue(), l.intValue()) {
+    int card = stats.project(p.getValueKey(), ChangeStatistics.OPEN, 500);
+    return new PaginatedSource(card, s, l.intValue()) {
+      {
+        init("r10_byProjectOpenNext", p, s, l);
+      }
+
       @Override
       ResultSet<Change> scan(ChangeAccess a, String key, int limit)
           throws OrmException {
@@ -235,7 +265,12 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
       @Named("P") final ProjectPredicate p,
       @Named("S") final SortKeyPredicate.After s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(40000, s.getValue(), l.intValue()) {
+    int card = stats.project(p.getValueKey(), ChangeStatistics.MERGED, 40000);
+    return new PaginatedSource(card, s, l.intValue()) {
+      {
+        init("r10_byProjectMergedPrev", p, s, l);
+      }
+
       @Override
       ResultSet<Change> scan(ChangeAccess a, String key, int limit)
           throws OrmException {
@@ -257,7 +292,12 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
       @Named("P") final ProjectPredicate p,
       @Named("S") final SortKeyPredicate.Before s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(40000, s.getValue(), l.intValue()) {
+    int card = stats.project(p.getValueKey(), ChangeStatistics.MERGED, 40000);
+    return new PaginatedSource(card, s, l.intValue()) {
+      {
+        init("r10_byProjectMergedNext", p, s, l);
+      }
+
       @Override
       ResultSet<Change> scan(ChangeAccess a, String key, int limit)
           throws OrmException {
@@ -279,7 +319,13 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
       @Named("P") final ProjectPredicate p,
       @Named("S") final SortKeyPredicate.After s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(40000, s.getValue(), l.intValue()) {
+    int card = stats.project(p.getValueKey(),
+        ChangeStatistics.ABANDONED, 40000);
+    return new PaginatedSource(card, s, l.intValue()) {
+      {
+        init("r10_byProjectAbandonedPrev", p, s, l);
+      }
+
       @Override
       ResultSet<Change> scan(ChangeAccess a, String key, int limit)
           throws OrmException {
@@ -301,7 +347,13 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
       @Named("P") final ProjectPredicate p,
       @Named("S") final SortKeyPredicate.Before s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(40000, s.getValue(), l.intValue()) {
+    int card = stats.project(p.getValueKey(),
+        ChangeStatistics.ABANDONED, 40000);
+    return new PaginatedSource(card, s, l.intValue()) {
+      {
+        init("r10_byProjectAbandonedNext", p, s, l);
+      }
+
       @Override
       ResultSet<Change> scan(ChangeAccess a, String key, int limit)
           throws OrmException {
@@ -322,7 +374,12 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
   public Predicate<ChangeData> r20_byOpenPrev(
       @Named("S") final SortKeyPredicate.After s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(2000, s.getValue(), l.intValue()) {
+    int card = stats.status(ChangeStatistics.OPEN, 2000);
+    return new PaginatedSource(card, s, l.intValue()) {
+      {
+        init("r20_byOpenPrev", s, l);
+      }
+
       @Override
       ResultSet<Change> scan(ChangeAccess a, String key, int limit)
           throws OrmException {
@@ -340,7 +397,12 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
   public Predicate<ChangeData> r20_byOpenNext(
       @Named("S") final SortKeyPredicate.Before s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(2000, s.getValue(), l.intValue()) {
+    int card = stats.status(ChangeStatistics.OPEN, 2000);
+    return new PaginatedSource(card, s, l.intValue()) {
+      {
+        init("r20_byOpenNext", s, l);
+      }
+
       @Override
       ResultSet<Change> scan(ChangeAccess a, String key, int limit)
           throws OrmException {
@@ -359,7 +421,8 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
   public Predicate<ChangeData> r20_byMergedPrev(
       @Named("S") final SortKeyPredicate.After s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(50000, s.getValue(), l.intValue()) {
+    int card = stats.status(ChangeStatistics.MERGED, 50000);
+    return new PaginatedSource(card, s, l.intValue()) {
       {
         init("r20_byMergedPrev", s, l);
       }
@@ -383,7 +446,8 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
   public Predicate<ChangeData> r20_byMergedNext(
       @Named("S") final SortKeyPredicate.Before s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(50000, s.getValue(), l.intValue()) {
+    int card = stats.status(ChangeStatistics.MERGED, 50000);
+    return new PaginatedSource(card, s, l.intValue()) {
       {
         init("r20_byMergedNext", s, l);
       }
@@ -407,7 +471,8 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
   public Predicate<ChangeData> r20_byAbandonedPrev(
       @Named("S") final SortKeyPredicate.After s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(50000, s.getValue(), l.intValue()) {
+    int card = stats.status(ChangeStatistics.ABANDONED, 50000);
+    return new PaginatedSource(card, s, l.intValue()) {
       {
         init("r20_byAbandonedPrev", s, l);
       }
@@ -431,7 +496,8 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
   public Predicate<ChangeData> r20_byAbandonedNext(
       @Named("S") final SortKeyPredicate.Before s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(50000, s.getValue(), l.intValue()) {
+    int card = stats.status(ChangeStatistics.ABANDONED, 50000);
+    return new PaginatedSource(card, s, l.intValue()) {
       {
         init("r20_byAbandonedNext", s, l);
       }
@@ -470,7 +536,8 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
   @Rewrite("status:open O=(owner:*)")
   public Predicate<ChangeData> r25_byOwnerOpen(
       @Named("O") final OwnerPredicate o) {
-    return new ChangeSource(50) {
+    int card = stats.owner(o.getAccountId(), ChangeStatistics.OPEN, 50);
+    return new ChangeSource(card) {
       {
         init("r25_byOwnerOpen", o);
       }
@@ -491,7 +558,8 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
   @Rewrite("status:closed O=(owner:*)")
   public Predicate<ChangeData> r25_byOwnerClosed(
       @Named("O") final OwnerPredicate o) {
-    return new ChangeSource(5000) {
+    int card = stats.owner(o.getAccountId(), ChangeStatistics.CLOSED, 5000);
+    return new ChangeSource(card) {
       {
         init("r25_byOwnerClosed", o);
       }
@@ -590,6 +658,10 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
   @Rewrite("status:submitted")
   public Predicate<ChangeData> r99_allSubmitted() {
     return new ChangeSource(50) {
+      {
+        init("r99_allSubmitted");
+      }
+
       @Override
       ResultSet<Change> scan(ChangeAccess a) throws OrmException {
         return a.allSubmitted();
@@ -605,7 +677,12 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
   @Rewrite("P=(project:*)")
   public Predicate<ChangeData> r99_byProject(
       @Named("P") final ProjectPredicate p) {
-    return new ChangeSource(1000000) {
+    int card = stats.project(p.getValueKey(), ChangeStatistics.ALL, 1000000);
+    return new ChangeSource(card) {
+      {
+        init("r99_byProject", p);
+      }
+
       @Override
       ResultSet<Change> scan(ChangeAccess a) throws OrmException {
         return a.byProject(p.getValueKey());
@@ -668,11 +745,13 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
   private abstract class PaginatedSource extends ChangeSource implements
       Paginated {
     private final String startKey;
+    private final boolean ascending;
     private final int limit;
 
-    PaginatedSource(int card, String start, int lim) {
+    PaginatedSource(int card, SortKeyPredicate start, int lim) {
       super(card);
-      this.startKey = start;
+      this.startKey = start.getValue();
+      this.ascending = start instanceof SortKeyPredicate.After;
       this.limit = lim;
     }
 
@@ -681,6 +760,11 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
       return limit;
     }
 
+    @Override
+    public boolean isAscending() {
+      return ascending;
+    }
+
     @Override
     ResultSet<Change> scan(ChangeAccess a) throws OrmException {
       return scan(a, startKey, limit);
@@ -0,0 +1,307 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.query.change;
+
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.lifecycle.LifecycleModule;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gwtorm.server.OrmException;
+import com.google.gwtorm.server.SchemaFactory;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.eclipse.jgit.lib.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Approximate number of changes by project, owner and status.
+ * <p>
+ * Counts are read from the database once in the background after the
+ * server starts, and are then adjusted as changes are created, merged,
+ * abandoned, restored, published and deleted. Adjustments made while the
+ * initial scan runs are kept aside and added once it completes. Until
+ * then, or if the scan is disabled by {@code query.statistics}, every
+ * estimate returns the caller's default.
+ */
+@Singleton
+public class ChangeStatistics {
+  private static final Logger log =
+      LoggerFactory.getLogger(ChangeStatistics.class);
+
+  public static class Module extends LifecycleModule {
+    @Override
+    protected void configure() {
+      listener().to(Loader.class);
+    }
+  }
+
+  /** Groups of status counted separately. */
+  public static enum State {
+    OPEN, MERGED, ABANDONED;
+
+    public static State of(Change.Status status) {
+      switch (status) {
+        case MERGED:
+          return MERGED;
+        case ABANDONED:
+          return ABANDONED;
+        default:
+          return OPEN;
+      }
+    }
+  }
+
+  static final EnumSet<State> OPEN = EnumSet.of(State.OPEN);
+  static final EnumSet<State> MERGED = EnumSet.of(State.MERGED);
+  static final EnumSet<State> ABANDONED = EnumSet.of(State.ABANDONED);
+  static final EnumSet<State> CLOSED = EnumSet.of(State.MERGED, State.ABANDONED);
+  static final EnumSet<State> ALL = EnumSet.allOf(State.class);
+
+  private final SchemaFactory<ReviewDb> schema;
+  private volatile Counters counters;
+
+  /** Adjustments made during {@link #load()}; guarded by {@code this}. */
+  private Counters loading;
+
+  @Inject
+  ChangeStatistics(SchemaFactory<ReviewDb> schema) {
+    this.schema = schema;
+  }
+
+  /** @return true once the initial counts have been loaded. */
+  public boolean isLoaded() {
+    return counters != null;
+  }
+
+  /** Record a new change, which is always open. */
+  public void created(Change change) {
+    update(change, null, State.OPEN);
+  }
+
+  /**
+   * Record a change moving between states.
+   *
+   * @param change the change.
+   * @param from status before the update.
+   * @param to status after the update.
+   */
+  public void moved(Change change, State from, State to) {
+    if (from != to) {
+      update(change, from, to);
+    }
+  }
+
+  /**
+   * Record a change removed from the database.
+   *
+   * @param change the change.
+   * @param from status before it was removed.
+   */
+  public void deleted(Change change, State from) {
+    update(change, from, null);
+  }
+
+  private void update(Change change, State from, State to) {
+    Counters c = counters;
+    if (c == null) {
+      synchronized (this) {
+        c = counters;
+        if (c == null) {
+          if (loading != null) {
+            loading.move(change, from, to);
+          }
+          return;
+        }
+      }
+    }
+    c.move(change, from, to);
+  }
+
+  /** @return estimated changes in any of the states; {@code def} if unknown. */
+  int status(EnumSet<State> states, int def) {
+    Counters c = counters;
+    return c != null ? c.total.sum(states) : def;
+  }
+
+  /** @return estimated changes of the project; {@code def} if unknown. */
+  int project(Project.NameKey project, EnumSet<State> states, int def) {
+    Counters c = counters;
+    if (c == null) {
+      return def;
+    }
+    Counts n = c.byProject.get(project);
+    return n != null ? n.sum(states) : 0;
+  }
+
+  /** @return estimated changes of the owner; {@code def} if unknown. */
+  int owner(Account.Id owner, EnumSet<State> states, int def) {
+    Counters c = counters;
+    if (c == null) {
+      return def;
+    }
+    Counts n = c.byOwner.get(owner);
+    return n != null ? n.sum(states) : 0;
+  }
+
+  void load() throws OrmException {
+    long start = System.currentTimeMillis();
+    Counters c = new Counters();
+    int cnt = 0;
+    synchronized (this) {
+      loading = new Counters();
+    }
+    try {
+      ReviewDb db = schema.open();
+      try {
+        for (Change change : db.changes().all()) {
+          c.add(change, State.of(change.getStatus()), 1);
+          cnt++;
+        }
+      } finally {
+        db.close();
+      }
+      synchronized (this) {
+        c.addAll(loading);
+        counters = c;
+      }
+    } finally {
+      synchronized (this) {
+        loading = null;
+      }
+    }
+    log.info(String.format("Loaded statistics for %d changes in %d ms",
+        cnt, System.currentTimeMillis() - start));
+  }
+
+  private static class Counters {
+    final Counts total = new Counts();
+    final ConcurrentMap<Project.NameKey, Counts> byProject =
+        new ConcurrentHashMap<Project.NameKey, Counts>();
+    final ConcurrentMap<Account.Id, Counts> byOwner =
+        new ConcurrentHashMap<Account.Id, Counts>();
+
+    void add(Change change, State state, int delta) {
+      total.add(state, delta);
+      get(byProject, change.getProject()).add(state, delta);
+      get(byOwner, change.getOwner()).add(state, delta);
+    }
+
+    void move(Change change, State from, State to) {
+      if (from != null) {
+        add(change, from, -1);
+      }
+      if (to != null) {
+        add(change, to, 1);
+      }
+    }
+
+    void addAll(Counters other) {
+      total.addAll(other.total);
+      for (Map.Entry<Project.NameKey, Counts> e : other.byProject.entrySet()) {
+        get(byProject, e.getKey()).addAll(e.getValue());
+      }
+      for (Map.Entry<Account.Id, Counts> e : other.byOwner.entrySet()) {
+        get(byOwner, e.getKey()).addAll(e.getValue());
+      }
+    }
+
+    private static <K> Counts get(ConcurrentMap<K, Counts> map, K key) {
+      Counts c = map.get(key);
+      if (c == null) {
+        c = new Counts();
+        Counts old = map.putIfAbsent(key, c);
+        if (old != null) {
+          c = old;
+        }
+      }
+      return c;
+    }
+  }
+
+  private static class Counts {
+    private final AtomicIntegerArray counts =
+        new AtomicIntegerArray(State.values().length);
+
+    void add(State state, int delta) {
+      counts.addAndGet(state.ordinal(), delta);
+    }
+
+    void addAll(Counts other) {
+      for (int i = 0; i < counts.length(); i++) {
+        counts.addAndGet(i, other.counts.get(i));
+      }
+    }
+
+    int sum(EnumSet<State> states) {
+      int n = 0;
+      for (State s : states) {
+        n += Math.max(0, counts.get(s.ordinal()));
+      }
+      return n;
+    }
+  }
+
+  static class Loader implements LifecycleListener {
+    private final ChangeStatistics stats;
+    private final WorkQueue queue;
+    private final boolean enabled;
+
+    @Inject
+    Loader(ChangeStatistics stats, WorkQueue queue,
+        @GerritServerConfig Config cfg) {
+      this.stats = stats;
+      this.queue = queue;
+      this.enabled = cfg.getBoolean("query", "statistics", true);
+    }
+
+    @Override
+    public void start() {
+      if (!enabled) {
+        return;
+      }
+      queue.getDefaultQueue().execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            stats.load();
+          } catch (OrmException e) {
+            log.error("Cannot load change statistics", e);
+          }
+        }
+
+        @Override
+        public String toString() {
+          return "load change statistics";
+        }
+      });
+    }
+
+    @Override
+    public void stop() {
+    }
+  }
+}
@@ -0,0 +1,99 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.query.change;
+
+import com.google.common.collect.Lists;
+import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.index.ChangeIndex;
+import com.google.gerrit.server.query.AndPredicate;
+import com.google.gerrit.server.query.IntPredicate;
+import com.google.gerrit.server.query.Predicate;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+
+import java.util.List;
+
+/**
+ * Rewrites a query to read from the {@link ChangeIndex}.
+ * <p>
+ * Terms of the top level conjunction that the index can evaluate are
+ * combined into a single {@link IndexedChangeSource}. The remaining terms,
+ * such as visibility, are applied to its results by an {@link AndSource}.
+ */
+class IndexRewriter {
+  private final ChangeIndex index;
+  private final Provider<ReviewDb> db;
+
+  @Inject
+  IndexRewriter(ChangeIndex index, Provider<ReviewDb> db) {
+    this.index = index;
+    this.db = db;
+  }
+
+  /**
+   * @param in fully built query, including its limit and sort key.
+   * @return a {@link ChangeDataSource} reading from the index; null if the
+   *         index cannot narrow the query and ReviewDb should be used.
+   */
+  Predicate<ChangeData> rewrite(Predicate<ChangeData> in) {
+    List<Predicate<ChangeData>> indexed = Lists.newArrayList();
+    List<Predicate<ChangeData>> rest = Lists.newArrayList();
+    int limit = 0;
+    boolean filters = false;
+
+    for (Predicate<ChangeData> p : flatten(in)) {
+      if (isLimit(p)) {
+        limit = ((IntPredicate<ChangeData>) p).intValue();
+        rest.add(p);
+      } else if (index.canQuery(p)) {
+        indexed.add(p);
+        filters |= !(p instanceof SortKeyPredicate);
+      } else {
+        rest.add(p);
+      }
+    }
+
+    if (!filters) {
+      return null;
+    }
+
+    Predicate<ChangeData> q =
+        indexed.size() == 1 ? indexed.get(0) : Predicate.and(indexed);
+    IndexedChangeSource source = new IndexedChangeSource(index, db, q, limit);
+    if (rest.isEmpty()) {
+      return source;
+    }
+    rest.add(0, source);
+    return new AndSource(rest);
+  }
+
+  private static List<Predicate<ChangeData>> flatten(Predicate<ChangeData> p) {
+    List<Predicate<ChangeData>> r = Lists.newArrayList();
+    if (p.getClass() == AndPredicate.class) {
+      for (Predicate<ChangeData> c : p.getChildren()) {
+        r.addAll(flatten(c));
+      }
+    } else {
+      r.add(p);
+    }
+    return r;
+  }
+
+  private static boolean isLimit(Predicate<ChangeData> p) {
+    return p instanceof IntPredicate
+        && ChangeQueryBuilder.FIELD_LIMIT.equals(
+            ((IntPredicate<ChangeData>) p).getOperator());
+  }
+}
@@ -0,0 +1,160 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.query.change;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.index.ChangeIndex;
+import com.google.gerrit.server.query.Predicate;
+import com.google.gerrit.server.query.QueryParseException;
+import com.google.gerrit.server.query.RewritePredicate;
+import com.google.gwtorm.server.ListResultSet;
+import com.google.gwtorm.server.OrmException;
+import com.google.gwtorm.server.ResultSet;
+import com.google.inject.Provider;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the changes matching a predicate from the {@link ChangeIndex}.
+ * <p>
+ * If the index only approximates the predicate, every change it returns is
+ * checked again with the original predicate. Pages reduced by this check are
+ * topped up from the next page of the index.
+ */
+class IndexedChangeSource extends RewritePredicate<ChangeData> implements
+    ChangeDataSource, Paginated {
+  private final ChangeIndex index;
+  private final Provider<ReviewDb> db;
+  private final Predicate<ChangeData> pred;
+  private final boolean exact;
+  private final int limit;
+
+  @SuppressWarnings("unchecked")
+  IndexedChangeSource(ChangeIndex index, Provider<ReviewDb> db,
+      Predicate<ChangeData> pred, int limit) {
+    this.index = index;
+    this.db = db;
+    this.pred = pred;
+    this.exact = index.isExact(pred);
+    this.limit = limit;
+    init("index", pred);
+  }
+
+  @Override
+  public int limit() {
+    return limit;
+  }
+
+  @Override
+  public boolean isAscending() {
+    return hasSortKeyAfter(pred);
+  }
+
+  @Override
+  public ResultSet<ChangeData> read() throws OrmException {
+    return read(pred);
+  }
+
+  @Override
+  public ResultSet<ChangeData> restart(ChangeData last) throws OrmException {
+    return read(after(last));
+  }
+
+  @SuppressWarnings("unchecked")
+  private Predicate<ChangeData> after(ChangeData last) throws OrmException {
+    String key = last.change(db).getSortKey();
+    if (isAscending()) {
+      return Predicate.and(pred, new SortKeyPredicate.After(db, key));
+    } else {
+      return Predicate.and(pred, new SortKeyPredicate.Before(db, key));
+    }
+  }
+
+  private ResultSet<ChangeData> read(Predicate<ChangeData> p)
+      throws OrmException {
+    List<ChangeData> r = Lists.newArrayList();
+    for (;;) {
+      List<Change.Id> ids;
+      try {
+        ids = index.query(p, limit);
+      } catch (QueryParseException e) {
+        throw new OrmException("Cannot query index: " + p, e);
+      } catch (IOException e) {
+        throw new OrmException("Cannot query index: " + p, e);
+      }
+
+      // Load the changes in one batch, preserving the order of the index.
+      //
+      Map<Change.Id, Change> byId = Maps.newHashMapWithExpectedSize(ids.size());
+      for (Change c : db.get().changes().get(ids)) {
+        byId.put(c.getId(), c);
+      }
+      ChangeData last = null;
+      for (Change.Id id : ids) {
+        Change c = byId.get(id);
+        if (c != null) {
+          ChangeData cd = new ChangeData(c);
+          last = cd;
+          if (exact || p.match(cd)) {
+            r.add(cd);
+          }
+        }
+      }
+
+      if (limit <= 0 || ids.size() < limit || limit <= r.size()
+          || last == null) {
+        return new ListResultSet<ChangeData>(r);
+      }
+      p = after(last);
+    }
+  }
+
+  private static boolean hasSortKeyAfter(Predicate<ChangeData> p) {
+    if (p instanceof SortKeyPredicate.After) {
+      return true;
+    }
+    for (Predicate<ChangeData> c : p.getChildren()) {
+      if (c instanceof SortKeyPredicate.After) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public boolean match(ChangeData cd) throws OrmException {
+    return pred.match(cd);
+  }
+
+  @Override
+  public boolean hasChange() {
+    return true;
+  }
+
+  @Override
+  public int getCardinality() {
+    return limit;
+  }
+
+  @Override
+  public int getCost() {
+    return ChangeCosts.cost(ChangeCosts.IDS_MEMORY, getCardinality());
+  }
+}
@@ -21,6 +21,7 @@ import com.google.gerrit.reviewdb.client.ApprovalCategory;
 import com.google.gerrit.reviewdb.client.PatchSetApproval;
 import com.google.gerrit.reviewdb.server.ReviewDb;
 import com.google.gerrit.server.IdentifiedUser;
+import com.google.gerrit.server.index.LabelVotePredicate;
 import com.google.gerrit.server.project.ChangeControl;
 import com.google.gerrit.server.project.NoSuchChangeException;
 import com.google.gerrit.server.query.OperatorPredicate;
@@ -30,7 +31,8 @@ import com.google.inject.Provider;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-class LabelPredicate extends OperatorPredicate<ChangeData> {
+class LabelPredicate extends OperatorPredicate<ChangeData> implements
+    LabelVotePredicate {
   private static enum Test {
     EQ {
       @Override
@@ -143,6 +145,21 @@ class LabelPredicate extends OperatorPredicate<ChangeData> {
     this.permissionName = Permission.forLabel(category.getLabelName());
   }
 
+  @Override
+  public ApprovalCategory.Id getCategoryId() {
+    return category.getId();
+  }
+
+  @Override
+  public int getMinValue() {
+    return test == Test.LT_EQ ? Short.MIN_VALUE : expVal;
+  }
+
+  @Override
+  public int getMaxValue() {
+    return test == Test.GT_EQ ? Short.MAX_VALUE : expVal;
+  }
+
   @Override
   public boolean match(final ChangeData object) throws OrmException {
     for (PatchSetApproval p : object.currentApprovals(dbProvider)) {
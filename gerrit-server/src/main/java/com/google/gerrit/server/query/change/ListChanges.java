@@ -137,6 +137,9 @@ public class ListChanges {
       ChangeData.ensureChangeLoaded(db, changes);
       ChangeData.ensureCurrentPatchSetLoaded(db, changes);
       ChangeData.ensureCurrentApprovalsLoaded(db, changes);
+      if (user instanceof IdentifiedUser) {
+        ChangeData.ensureMessagesLoaded(db, open(changes));
+      }
 
       List<ChangeInfo> info = Lists.newArrayListWithCapacity(changes.size());
       for (ChangeData cd : changes) {
@@ -188,6 +191,17 @@ public class ListChanges {
     }
   }
 
+  private List<ChangeData> open(List<ChangeData> changes)
+      throws OrmException {
+    List<ChangeData> r = Lists.newArrayListWithCapacity(changes.size());
+    for (ChangeData cd : changes) {
+      if (cd.change(db).getStatus().isOpen()) {
+        r.add(cd);
+      }
+    }
+    return r;
+  }
+
   private ChangeInfo toChangeInfo(ChangeData cd) throws OrmException {
     ChangeInfo out = new ChangeInfo();
     Change in = cd.change(db);
@@ -302,8 +316,12 @@ public class ListChanges {
         return false;
       }
 
-      List<ChangeMessage> messages =
-          db.get().changeMessages().byPatchSet(currentPatchSet.getId()).toList();
+      List<ChangeMessage> messages = Lists.newArrayList();
+      for (ChangeMessage cm : cd.messages(db)) {
+        if (currentPatchSet.getId().equals(cm.getPatchSetId())) {
+          messages.add(cm);
+        }
+      }
 
       if (messages.isEmpty()) {
         return false;
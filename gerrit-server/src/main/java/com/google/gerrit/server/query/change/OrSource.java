@@ -17,13 +17,18 @@ package com.google.gerrit.server.query.change;
 import com.google.gerrit.reviewdb.client.Change;
 import com.google.gerrit.server.query.OrPredicate;
 import com.google.gerrit.server.query.Predicate;
-import com.google.gwtorm.server.ListResultSet;
 import com.google.gwtorm.server.OrmException;
 import com.google.gwtorm.server.ResultSet;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 
 class OrSource extends OrPredicate<ChangeData> implements ChangeDataSource {
   private int cardinality = -1;
@@ -34,22 +39,36 @@ class OrSource extends OrPredicate<ChangeData> implements ChangeDataSource {
 
   @Override
   public ResultSet<ChangeData> read() throws OrmException {
-    // TODO(spearce) This probably should be more lazy.
-    //
-    ArrayList<ChangeData> r = new ArrayList<ChangeData>();
-    HashSet<Change.Id> have = new HashSet<Change.Id>();
-    for (Predicate<ChangeData> p : getChildren()) {
-      if (p instanceof ChangeDataSource) {
-        for (ChangeData cd : ((ChangeDataSource) p).read()) {
-          if (have.add(cd.getId())) {
-            r.add(cd);
-          }
+    final List<ResultSet<ChangeData>> results =
+        new ArrayList<ResultSet<ChangeData>>(getChildCount());
+    try {
+      for (Predicate<ChangeData> p : getChildren()) {
+        if (p instanceof ChangeDataSource) {
+          results.add(((ChangeDataSource) p).read());
+        } else {
+          throw new OrmException("No ChangeDataSource: " + p);
         }
-      } else {
-        throw new OrmException("No ChangeDataSource: " + p);
       }
+    } catch (OrmException e) {
+      close(results);
+      throw e;
     }
-    return new ListResultSet<ChangeData>(r);
+
+    final SortOrder order = SortOrder.of(this);
+    return new AbstractResultSet<ChangeData>() {
+      @Override
+      public Iterator<ChangeData> iterator() {
+        if (order == SortOrder.NONE) {
+          return new ConcatIterator(results);
+        }
+        return new MergeIterator(results, order.comparator());
+      }
+
+      @Override
+      public void close() {
+        OrSource.close(results);
+      }
+    };
   }
 
   @Override
@@ -75,4 +94,131 @@ class OrSource extends OrPredicate<ChangeData> implements ChangeDataSource {
     }
     return cardinality;
   }
+
+  private static void close(List<ResultSet<ChangeData>> results) {
+    for (ResultSet<ChangeData> rs : results) {
+      rs.close();
+    }
+  }
+
+  /** Returns each distinct change once, reading children one at a time. */
+  private static class ConcatIterator implements Iterator<ChangeData> {
+    private final Iterator<ResultSet<ChangeData>> sources;
+    private final HashSet<Change.Id> have = new HashSet<Change.Id>();
+    private Iterator<ChangeData> itr =
+        Collections.<ChangeData> emptyList().iterator();
+    private ChangeData next;
+
+    ConcatIterator(List<ResultSet<ChangeData>> results) {
+      sources = results.iterator();
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (next == null) {
+        if (itr.hasNext()) {
+          ChangeData cd = itr.next();
+          if (have.add(cd.getId())) {
+            next = cd;
+          }
+        } else if (sources.hasNext()) {
+          itr = sources.next().iterator();
+        } else {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public ChangeData next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      ChangeData r = next;
+      next = null;
+      return r;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * Merges children already sorted by sort key.
+   * <p>
+   * Only the head of each child is held in memory, so reading stops early
+   * once the caller has taken enough results.
+   */
+  private static class MergeIterator implements Iterator<ChangeData> {
+    private final PriorityQueue<Head> heads;
+    private final HashSet<Change.Id> have = new HashSet<Change.Id>();
+    private ChangeData next;
+
+    MergeIterator(List<ResultSet<ChangeData>> results,
+        final Comparator<ChangeData> cmp) {
+      heads = new PriorityQueue<Head>(Math.max(1, results.size()),
+          new Comparator<Head>() {
+            @Override
+            public int compare(Head a, Head b) {
+              return cmp.compare(a.cd, b.cd);
+            }
+          });
+      for (ResultSet<ChangeData> rs : results) {
+        Head h = new Head(rs.iterator());
+        if (h.advance()) {
+          heads.add(h);
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (next == null && !heads.isEmpty()) {
+        Head h = heads.poll();
+        if (have.add(h.cd.getId())) {
+          next = h.cd;
+        }
+        if (h.advance()) {
+          heads.add(h);
+        }
+      }
+      return next != null;
+    }
+
+    @Override
+    public ChangeData next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      ChangeData r = next;
+      next = null;
+      return r;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private static class Head {
+    private final Iterator<ChangeData> itr;
+    ChangeData cd;
+
+    Head(Iterator<ChangeData> itr) {
+      this.itr = itr;
+    }
+
+    boolean advance() {
+      if (itr.hasNext()) {
+        cd = itr.next();
+        return true;
+      }
+      cd = null;
+      return false;
+    }
+  }
 }
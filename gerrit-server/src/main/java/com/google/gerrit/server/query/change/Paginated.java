@@ -17,8 +17,12 @@ package com.google.gerrit.server.query.change;
 import com.google.gwtorm.server.OrmException;
 import com.google.gwtorm.server.ResultSet;
 
+/** Source reading its results in sort key order, one page at a time. */
 interface Paginated {
   int limit();
 
+  /** @return true if results are in increasing sort key order. */
+  boolean isAscending();
+
   ResultSet<ChangeData> restart(ChangeData last) throws OrmException;
 }
@@ -22,12 +22,15 @@ import com.google.gerrit.server.CurrentUser;
 import com.google.gerrit.server.events.ChangeAttribute;
 import com.google.gerrit.server.events.EventFactory;
 import com.google.gerrit.server.events.PatchSetAttribute;
+import com.google.gerrit.server.events.QueryPlan;
 import com.google.gerrit.server.events.QueryStats;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.query.Predicate;
 import com.google.gerrit.server.query.QueryParseException;
 import com.google.gson.Gson;
 import com.google.gwtorm.server.OrmException;
+import com.google.gwtorm.server.OrmRuntimeException;
+import com.google.gwtorm.server.ResultSet;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 
@@ -49,6 +52,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 
 public class QueryProcessor {
@@ -90,8 +94,10 @@ public class QueryProcessor {
   private final EventFactory eventFactory;
   private final ChangeQueryBuilder queryBuilder;
   private final ChangeQueryRewriter queryRewriter;
+  private final IndexRewriter indexRewriter;
   private final Provider<ReviewDb> db;
   private final GitRepositoryManager repoManager;
+  private final ChangeStatistics statistics;
   private final int maxLimit;
 
   private OutputFormat outputFormat = OutputFormat.TEXT;
@@ -105,6 +111,7 @@ public class QueryProcessor {
   private boolean includeFiles;
   private boolean includeCommitMessage;
   private boolean includeDependencies;
+  private boolean explain;
 
   private OutputStream outputStream = DisabledOutputStream.INSTANCE;
   private PrintWriter out;
@@ -112,13 +119,16 @@ public class QueryProcessor {
   @Inject
   QueryProcessor(EventFactory eventFactory,
       ChangeQueryBuilder.Factory queryBuilder, CurrentUser currentUser,
-      ChangeQueryRewriter queryRewriter, Provider<ReviewDb> db,
-      GitRepositoryManager repoManager) {
+      ChangeQueryRewriter queryRewriter, IndexRewriter indexRewriter,
+      Provider<ReviewDb> db, GitRepositoryManager repoManager,
+      ChangeStatistics statistics) {
     this.eventFactory = eventFactory;
     this.queryBuilder = queryBuilder.create(currentUser);
     this.queryRewriter = queryRewriter;
+    this.indexRewriter = indexRewriter;
     this.db = db;
     this.repoManager = repoManager;
+    this.statistics = statistics;
     this.maxLimit = currentUser.getCapabilities()
       .getRange(GlobalCapability.QUERY_LIMIT)
       .getMax();
@@ -184,6 +194,10 @@ public class QueryProcessor {
     includeCommitMessage = on;
   }
 
+  public void setExplain(boolean on) {
+    explain = on;
+  }
+
   public void setOutput(OutputStream out, OutputFormat fmt) {
     this.outputStream = out;
     this.outputFormat = fmt;
@@ -199,8 +213,28 @@ public class QueryProcessor {
    */
   public List<ChangeData> queryChanges(final String queryString)
       throws OrmException, QueryParseException {
+    try {
+      return read(queryString);
+    } catch (OrmRuntimeException e) {
+      // Sources read lazily cannot throw OrmException from their iterators.
+      //
+      if (e.getCause() instanceof OrmException) {
+        throw (OrmException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  private List<ChangeData> read(final String queryString)
+      throws OrmException, QueryParseException {
     final Predicate<ChangeData> visibleToMe = queryBuilder.is_visible();
     Predicate<ChangeData> s = compileQuery(queryString, visibleToMe);
+    int limit = limit(s);
+    SortOrder order = SortOrder.of(s);
+    if (order != SortOrder.NONE) {
+      return readSorted(s, visibleToMe, limit, order);
+    }
+
     List<ChangeData> results = new ArrayList<ChangeData>();
     HashSet<Change.Id> want = new HashSet<Change.Id>();
     for (ChangeData d : ((ChangeDataSource) s).read()) {
@@ -227,7 +261,6 @@ public class QueryProcessor {
     }
 
     Collections.sort(results, sortkeyAfter != null ? cmpAfter : cmpBefore);
-    int limit = limit(s);
     if (limit < results.size()) {
       results = results.subList(0, limit);
     }
@@ -237,6 +270,38 @@ public class QueryProcessor {
     return results;
   }
 
+  /**
+   * Read a source that already returns changes in sort key order.
+   * <p>
+   * Results are pulled only until {@code limit} visible changes have been
+   * found, so the cost of the query does not grow with the number of
+   * changes matching it.
+   */
+  private List<ChangeData> readSorted(Predicate<ChangeData> s,
+      Predicate<ChangeData> visibleToMe, int limit, SortOrder order)
+      throws OrmException {
+    List<ChangeData> results = new ArrayList<ChangeData>();
+    ResultSet<ChangeData> rs = ((ChangeDataSource) s).read();
+    try {
+      Iterator<ChangeData> i = rs.iterator();
+      while (results.size() < limit && i.hasNext()) {
+        ChangeData d = i.next();
+        if (visibleToMe.match(d)) {
+          results.add(d);
+        }
+      }
+    } finally {
+      rs.close();
+    }
+
+    // Results are always shown newest first, even when paging backwards.
+    //
+    if (order == SortOrder.ASCENDING) {
+      Collections.reverse(results);
+    }
+    return results;
+  }
+
   public void query(String queryString) throws IOException {
     out = new PrintWriter( //
         new BufferedWriter( //
@@ -250,10 +315,16 @@ public class QueryProcessor {
       }
 
       try {
+        if (explain) {
+          show(explain(queryString));
+          return;
+        }
+
         final QueryStats stats = new QueryStats();
         stats.runTimeMilliseconds = System.currentTimeMillis();
 
         List<ChangeData> results = queryChanges(queryString);
+        loadAll(results);
         for (ChangeData d : results) {
           ChangeAttribute c = eventFactory.asChangeAttribute(d.getChange());
           eventFactory.extend(c, d.getChange());
@@ -329,6 +400,48 @@ public class QueryProcessor {
     }
   }
 
+  /**
+   * Load the data shown for each change before formatting the results, so
+   * the relations of the whole page are read in a few batches rather than
+   * one change at a time.
+   */
+  private void loadAll(List<ChangeData> results) throws OrmException {
+    ChangeData.ensureChangeLoaded(db, results);
+    ChangeData.ensureTrackingIdsLoaded(db, results);
+
+    if (includePatchSets) {
+      ChangeData.ensureAllPatchSetsLoaded(db, results);
+      if (includeApprovals) {
+        ChangeData.ensureAllApprovalsLoaded(db, results);
+      }
+    }
+
+    if (includeCurrentPatchSet || includeCommitMessage) {
+      ChangeData.ensureCurrentPatchSetLoaded(db, results);
+    }
+    if (includeCurrentPatchSet) {
+      ChangeData.ensureCurrentApprovalsLoaded(db, results);
+    }
+
+    if (includeComments) {
+      ChangeData.ensureMessagesLoaded(db, results);
+      if (includePatchSets) {
+        ChangeData.ensureCommentsLoaded(db, results);
+      }
+    }
+  }
+
+  private QueryPlan explain(String queryString) throws QueryParseException {
+    Predicate<ChangeData> s =
+        compileQuery(queryString, queryBuilder.is_visible());
+    QueryPlan plan = new QueryPlan();
+    plan.plan = s.toString();
+    plan.cost = s.getCost();
+    plan.cardinality = ((ChangeDataSource) s).getCardinality();
+    plan.statistics = statistics.isLoaded();
+    return plan;
+  }
+
   boolean isDisabled() {
     return maxLimit <= 0;
   }
@@ -356,9 +469,12 @@ public class QueryProcessor {
         queryBuilder.limit(limit > 0 ? Math.min(limit, maxLimit) + 1 : maxLimit),
         visibleToMe);
 
-    Predicate<ChangeData> s = queryRewriter.rewrite(q);
-    if (!(s instanceof ChangeDataSource)) {
-      s = queryRewriter.rewrite(Predicate.and(queryBuilder.status_open(), q));
+    Predicate<ChangeData> s = indexRewriter.rewrite(q);
+    if (s == null) {
+      s = queryRewriter.rewrite(q);
+      if (!(s instanceof ChangeDataSource)) {
+        s = queryRewriter.rewrite(Predicate.and(queryBuilder.status_open(), q));
+      }
     }
 
     if (!(s instanceof ChangeDataSource)) {
@@ -0,0 +1,100 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.query.change;
+
+import com.google.gerrit.server.query.Predicate;
+
+import java.util.Comparator;
+
+/** Order in which a {@link ChangeDataSource} returns its results. */
+enum SortOrder {
+  /** No particular order; results must be sorted by the caller. */
+  NONE,
+
+  /** Increasing sort key, as read by {@code sortkey_after}. */
+  ASCENDING,
+
+  /** Decreasing sort key, as read by {@code sortkey_before}. */
+  DESCENDING;
+
+  /**
+   * Determine the order of a source's results.
+   * <p>
+   * Only {@link Paginated} sources read their rows in sort key order. An
+   * {@link AndSource} preserves the order of its source, and an
+   * {@link OrSource} can merge its children if they all share one order.
+   *
+   * @param p the source to examine.
+   * @return order of {@code p.read()}; {@link #NONE} if unknown.
+   */
+  static SortOrder of(Predicate<ChangeData> p) {
+    if (p instanceof Paginated) {
+      return ((Paginated) p).isAscending() ? ASCENDING : DESCENDING;
+
+    } else if (p instanceof AndSource) {
+      ChangeDataSource s = ((AndSource) p).source();
+      return s instanceof Predicate ? of(asPredicate(s)) : NONE;
+
+    } else if (p instanceof OrSource) {
+      SortOrder r = null;
+      for (Predicate<ChangeData> c : p.getChildren()) {
+        SortOrder o = of(c);
+        if (o == NONE || (r != null && r != o)) {
+          return NONE;
+        }
+        r = o;
+      }
+      return r != null ? r : NONE;
+    }
+    return NONE;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Predicate<ChangeData> asPredicate(ChangeDataSource s) {
+    return (Predicate<ChangeData>) s;
+  }
+
+  /**
+   * @return comparator putting results in this order. Only valid for
+   *         results whose {@link ChangeData#hasChange()} is true.
+   */
+  Comparator<ChangeData> comparator() {
+    switch (this) {
+      case ASCENDING:
+        return new Comparator<ChangeData>() {
+          @Override
+          public int compare(ChangeData a, ChangeData b) {
+            return sortKey(a).compareTo(sortKey(b));
+          }
+        };
+
+      case DESCENDING:
+        return new Comparator<ChangeData>() {
+          @Override
+          public int compare(ChangeData a, ChangeData b) {
+            return sortKey(b).compareTo(sortKey(a));
+          }
+        };
+
+      case NONE:
+      default:
+        throw new IllegalStateException("Results are not sorted");
+    }
+  }
+
+  private static String sortKey(ChangeData cd) {
+    return cd.getChange().getSortKey();
+  }
+}
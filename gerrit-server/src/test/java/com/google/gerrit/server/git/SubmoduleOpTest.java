@@ -18,6 +18,9 @@ import static org.easymock.EasyMock.createStrictMock;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 import com.google.gerrit.reviewdb.client.Account;
 import com.google.gerrit.reviewdb.client.Branch;
@@ -32,6 +35,7 @@ import com.google.gwtorm.server.ListResultSet;
 import com.google.gwtorm.server.ResultSet;
 import com.google.gwtorm.server.SchemaFactory;
 import com.google.gwtorm.server.StandardKeyEncoder;
+import com.google.inject.Guice;
 import com.google.inject.Provider;
 
 import org.eclipse.jgit.api.Git;
@@ -39,13 +43,16 @@ import org.eclipse.jgit.dircache.DirCacheBuilder;
 import org.eclipse.jgit.dircache.DirCacheEntry;
 import org.eclipse.jgit.junit.LocalDiskRepositoryTestCase;
 import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectInserter;
 import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -73,6 +80,7 @@ public class SubmoduleOpTest extends LocalDiskRepositoryTestCase {
   private Provider<String> urlProvider;
   private GitRepositoryManager repoManager;
   private GitReferenceUpdated replication;
+  private SuperprojectUpdateQueue updateQueue;
 
   @SuppressWarnings("unchecked")
   @Override
@@ -86,6 +94,10 @@ public class SubmoduleOpTest extends LocalDiskRepositoryTestCase {
     urlProvider = createStrictMock(Provider.class);
     repoManager = createStrictMock(GitRepositoryManager.class);
     replication = createStrictMock(GitReferenceUpdated.class);
+
+    // Without submodule.batchDelay superprojects are updated directly.
+    updateQueue = new SuperprojectUpdateQueue(new Config(), null, repoManager,
+        schemaFactory, null, replication);
   }
 
   private void doReplay() {
@@ -132,7 +144,7 @@ public class SubmoduleOpTest extends LocalDiskRepositoryTestCase {
     final SubmoduleOp submoduleOp =
         new SubmoduleOp(branchNameKey, mergeTip, new RevWalk(realDb), urlProvider,
             schemaFactory, realDb, null, new ArrayList<Change>(), null, null,
-            null, null);
+            null, null, updateQueue);
 
     submoduleOp.update();
 
@@ -659,7 +671,7 @@ public class SubmoduleOpTest extends LocalDiskRepositoryTestCase {
         new SubmoduleOp(sourceBranchNameKey, sourceMergeTip, new RevWalk(
             sourceRepository), urlProvider, schemaFactory, sourceRepository,
             new Project(sourceBranchNameKey.getParentKey()), submited,
-            mergedCommits, myIdent, repoManager, replication);
+            mergedCommits, myIdent, repoManager, replication, updateQueue);
 
     submoduleOp.update();
 
@@ -762,7 +774,7 @@ public class SubmoduleOpTest extends LocalDiskRepositoryTestCase {
         new SubmoduleOp(sourceBranchNameKey, sourceMergeTip, new RevWalk(
             sourceRepository), urlProvider, schemaFactory, sourceRepository,
             new Project(sourceBranchNameKey.getParentKey()), submited,
-            mergedCommits, myIdent, repoManager, replication);
+            mergedCommits, myIdent, repoManager, replication, updateQueue);
 
     submoduleOp.update();
 
@@ -917,11 +929,166 @@ public class SubmoduleOpTest extends LocalDiskRepositoryTestCase {
         new SubmoduleOp(mergedBranch, mergeTip, new RevWalk(realDb),
             urlProvider, schemaFactory, realDb, new Project(mergedBranch
                 .getParentKey()), new ArrayList<Change>(), null, null,
-            repoManager, null);
+            repoManager, null, updateQueue);
 
     submoduleOp.update();
   }
 
+  /**
+   * It tests SubmoduleOp.writeGitlinks with gitlinks in nested directories.
+   * <p>
+   * Existing directories must keep their other entries, an existing gitlink
+   * must be replaced, and missing directories must be created.
+   * </p>
+   *
+   * @throws Exception If an exception occurs.
+   */
+  @Test
+  public void testWriteGitlinksInNestedTrees() throws Exception {
+    final Repository targetRepository = createWorkRepository();
+    final Git targetGit = new Git(targetRepository);
+
+    final ObjectId oldLink =
+        ObjectId.fromString("1111111111111111111111111111111111111111");
+    final ObjectId newLink =
+        ObjectId.fromString("2222222222222222222222222222222222222222");
+    final ObjectId addedLink =
+        ObjectId.fromString("3333333333333333333333333333333333333333");
+    final ObjectId deepLink =
+        ObjectId.fromString("4444444444444444444444444444444444444444");
+
+    final ObjectInserter oi = targetRepository.newObjectInserter();
+    final ObjectId readme =
+        oi.insert(Constants.OBJ_BLOB, Constants.encode("test content"));
+    oi.flush();
+    oi.release();
+
+    final DirCacheBuilder builder = targetRepository.lockDirCache().builder();
+    builder.add(indexEntry("README", FileMode.REGULAR_FILE, readme));
+    builder.add(indexEntry("modules/docs/README", FileMode.REGULAR_FILE,
+        readme));
+    builder.add(indexEntry("modules/old", FileMode.GITLINK, oldLink));
+    builder.commit();
+    final RevCommit base = targetGit.commit().setMessage("test").call();
+
+    final Branch.NameKey targetBranchNameKey =
+        new Branch.NameKey(new Project.NameKey("target-project"),
+            "refs/heads/master");
+
+    replication.fire(targetBranchNameKey.getParentKey(),
+        targetBranchNameKey.get());
+
+    doReplay();
+
+    final Map<String, ObjectId> gitlinks = new HashMap<String, ObjectId>();
+    gitlinks.put("modules/old", newLink);
+    gitlinks.put("modules/added", addedLink);
+    gitlinks.put("deep/er/link", deepLink);
+
+    final PersonIdent myIdent =
+        new PersonIdent("test-user", "test-user@email.com");
+    final ObjectId commitId =
+        SubmoduleOp.writeGitlinks(targetRepository, targetBranchNameKey,
+            gitlinks, myIdent, myIdent, "Update gitlinks", replication);
+
+    doVerify();
+
+    assertEquals(commitId, targetRepository.getRef(targetBranchNameKey.get())
+        .getObjectId());
+    final RevCommit c = new RevWalk(targetRepository).parseCommit(commitId);
+    assertEquals(base, c.getParent(0));
+    assertTreeEntry(targetRepository, c, "README", FileMode.REGULAR_FILE,
+        readme);
+    assertTreeEntry(targetRepository, c, "modules/docs/README",
+        FileMode.REGULAR_FILE, readme);
+    assertTreeEntry(targetRepository, c, "modules/old", FileMode.GITLINK,
+        newLink);
+    assertTreeEntry(targetRepository, c, "modules/added", FileMode.GITLINK,
+        addedLink);
+    assertTreeEntry(targetRepository, c, "deep/er/link", FileMode.GITLINK,
+        deepLink);
+  }
+
+  /**
+   * It tests SuperprojectUpdateQueue combining the updates of two submodules
+   * into one superproject commit.
+   * <p>
+   * The batch delay is long enough that the updates are only written when the
+   * queue is stopped, as happens when the server shuts down.
+   * </p>
+   *
+   * @throws Exception If an exception occurs.
+   */
+  @Test
+  public void testBatchedUpdatesAreWrittenOnStop() throws Exception {
+    final Repository targetRepository = createWorkRepository();
+    final Git targetGit = new Git(targetRepository);
+
+    addRegularFileToIndex("README", "test content", targetRepository);
+    final RevCommit base = targetGit.commit().setMessage("test").call();
+
+    final Branch.NameKey targetBranchNameKey =
+        new Branch.NameKey(new Project.NameKey("target-project"),
+            "refs/heads/master");
+    final Branch.NameKey moduleA =
+        new Branch.NameKey(new Project.NameKey("module-a"),
+            "refs/heads/master");
+    final Branch.NameKey moduleB =
+        new Branch.NameKey(new Project.NameKey("module-b"),
+            "refs/heads/master");
+    final ObjectId linkA =
+        ObjectId.fromString("1111111111111111111111111111111111111111");
+    final ObjectId linkB =
+        ObjectId.fromString("2222222222222222222222222222222222222222");
+
+    expect(repoManager.openRepository(targetBranchNameKey.getParentKey()))
+        .andReturn(targetRepository);
+
+    replication.fire(targetBranchNameKey.getParentKey(),
+        targetBranchNameKey.get());
+
+    expect(schemaFactory.open()).andReturn(schema);
+    expect(schema.submoduleSubscriptions()).andReturn(subscriptions);
+    expect(subscriptions.bySubmodule(targetBranchNameKey)).andReturn(
+        new ListResultSet<SubmoduleSubscription>(new ArrayList<SubmoduleSubscription>()));
+    schema.close();
+
+    doReplay();
+
+    final Config cfg = new Config();
+    cfg.setString("submodule", null, "batchDelay", "1 h");
+    final WorkQueue workQueue =
+        Guice.createInjector().getInstance(WorkQueue.class);
+    final PersonIdent myIdent =
+        new PersonIdent("test-user", "test-user@email.com");
+    final SuperprojectUpdateQueue batchQueue =
+        new SuperprojectUpdateQueue(cfg, workQueue, repoManager,
+            schemaFactory, myIdent, replication);
+    try {
+      assertTrue(batchQueue.isEnabled());
+      batchQueue.add(targetBranchNameKey, "a", moduleA, linkA, myIdent,
+          "Change in A", null, new HashSet<Branch.NameKey>());
+      batchQueue.add(targetBranchNameKey, "lib/b", moduleB, linkB, myIdent,
+          "Change in B", null, new HashSet<Branch.NameKey>());
+      assertEquals(base, targetRepository.getRef(targetBranchNameKey.get())
+          .getObjectId());
+
+      batchQueue.stop();
+    } finally {
+      new WorkQueue.Lifecycle(workQueue).stop();
+    }
+
+    doVerify();
+
+    final RevCommit c = new RevWalk(targetRepository).parseCommit(
+        targetRepository.getRef(targetBranchNameKey.get()).getObjectId());
+    assertEquals(base, c.getParent(0));
+    assertTreeEntry(targetRepository, c, "a", FileMode.GITLINK, linkA);
+    assertTreeEntry(targetRepository, c, "lib/b", FileMode.GITLINK, linkB);
+    assertTrue(c.getFullMessage().contains("Change in A"));
+    assertTrue(c.getFullMessage().contains("Change in B"));
+  }
+
   /**
    * It creates and adds a regular file to git index of a repository.
    *
@@ -974,6 +1141,25 @@ public class SubmoduleOpTest extends LocalDiskRepositoryTestCase {
     dirCacheBuilder.commit();
   }
 
+  private static DirCacheEntry indexEntry(final String path,
+      final FileMode fileMode, final AnyObjectId objectId) {
+    final DirCacheEntry e = new DirCacheEntry(path);
+    e.setFileMode(fileMode);
+    e.setObjectId(objectId);
+    return e;
+  }
+
+  private static void assertTreeEntry(final Repository repository,
+      final RevCommit commit, final String path, final FileMode fileMode,
+      final AnyObjectId objectId) throws IOException {
+    final TreeWalk tw =
+        TreeWalk.forPath(repository, path, commit.getTree());
+    assertNotNull(path, tw);
+    assertEquals(path, fileMode, tw.getFileMode(0));
+    assertEquals(path, objectId, tw.getObjectId(0));
+    tw.release();
+  }
+
   private static StringBuilder buildSubmoduleSection(final String name,
       final String path, final String url, final String branch) {
     final StringBuilder sb = new StringBuilder();
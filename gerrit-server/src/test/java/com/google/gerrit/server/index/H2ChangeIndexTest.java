@@ -0,0 +1,231 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.index;
+
+import static com.google.gerrit.server.query.change.ChangeQueryBuilder.FIELD_FILE;
+import static com.google.gerrit.server.query.change.ChangeQueryBuilder.FIELD_PROJECT;
+import static com.google.gerrit.server.query.change.ChangeQueryBuilder.FIELD_TOPIC;
+
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.ApprovalCategory;
+import com.google.gerrit.reviewdb.client.Branch;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.PatchSet;
+import com.google.gerrit.reviewdb.client.PatchSetApproval;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.config.SitePaths;
+import com.google.gerrit.server.query.OperatorPredicate;
+import com.google.gerrit.server.query.Predicate;
+import com.google.gerrit.server.query.change.ChangeData;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jgit.lib.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+public class H2ChangeIndexTest extends TestCase {
+  private static final ApprovalCategory.Id CRVW =
+      new ApprovalCategory.Id("CRVW");
+
+  private File site;
+  private H2ChangeIndex index;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    site = File.createTempFile("gerrit_", "_site");
+    assertTrue(site.delete());
+    assertTrue(site.mkdir());
+    index = new H2ChangeIndex(new SitePaths(site), new Config());
+    index.start();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    index.stop();
+    delete(site);
+    super.tearDown();
+  }
+
+  public void testNegatedTopicIncludesChangesWithoutTopic() throws Exception {
+    index(change(1, null), 0, new String[0]);
+    index(change(2, "x"), 0, new String[0]);
+    index(change(3, "y"), 0, new String[0]);
+
+    Predicate<ChangeData> p = Predicate.not(op(FIELD_TOPIC, "x"));
+    assertTrue(index.canQuery(p));
+    assertEquals(ids(3, 1), index.query(p, 0));
+    assertEquals(ids(2), index.query(op(FIELD_TOPIC, "x"), 0));
+  }
+
+  public void testLabelSelectsVotesAtLeastAsStrong() throws Exception {
+    index(change(1, null), 2, new String[0]);
+    index(change(2, null), 1, new String[0]);
+    index(change(3, null), -1, new String[0]);
+
+    // A +2 may be squashed to +1, so it is a candidate for =+1.
+    assertEquals(ids(2, 1), index.query(label(1, 1), 0));
+    assertEquals(ids(1), index.query(label(2, Short.MAX_VALUE), 0));
+    assertEquals(ids(3), index.query(label(Short.MIN_VALUE, -1), 0));
+
+    assertFalse(index.canQuery(label(0, 0)));
+    assertFalse(index.canQuery(label(-1, Short.MAX_VALUE)));
+    assertFalse(index.canQuery(Predicate.not(label(1, 1))));
+  }
+
+  public void testFileUsesLiteralPrefix() throws Exception {
+    index(change(1, null), 0, new String[] {"src/Main.java"});
+    index(change(2, null), 0, new String[] {"doc/index.txt"});
+
+    assertEquals(ids(1), index.query(op(FIELD_FILE, "^src/.*"), 0));
+    assertEquals(ids(1), index.query(op(FIELD_FILE, "^src/[A-Z]\\w+"), 0));
+
+    assertFalse(index.canQuery(op(FIELD_FILE, "^.*\\.java")));
+    assertFalse(index.canQuery(Predicate.not(op(FIELD_FILE, "^src/.*"))));
+  }
+
+  public void testFileWithRegexSyntaxInPath() throws Exception {
+    String path = "src/a(b) \"c\" <d>~e&f#g@h.txt";
+    index(change(1, null), 0, new String[] {path});
+    index(change(2, null), 0, new String[] {"src/a.txt"});
+
+    assertTrue(index.canQuery(op(FIELD_FILE, path)));
+    assertEquals(ids(1), index.query(op(FIELD_FILE, path), 0));
+
+    assertFalse(index.canQuery(op(FIELD_FILE, "^src/a(b")));
+  }
+
+  public void testOnlyApproximatedPredicatesAreInexact() {
+    assertTrue(index.isExact(op(FIELD_PROJECT, "p")));
+    assertTrue(index.isExact(Predicate.not(op(FIELD_TOPIC, "x"))));
+    assertFalse(index.isExact(label(1, 1)));
+    assertFalse(index.isExact(Predicate.and(
+        op(FIELD_PROJECT, "p"), op(FIELD_FILE, "^src/.*"))));
+  }
+
+  public void testDeleteAll() throws Exception {
+    index(change(1, null), 0, new String[] {"src/Main.java"});
+    index(change(2, "x"), 0, new String[0]);
+
+    index.deleteAll();
+    assertEquals(ids(), index.query(op(FIELD_PROJECT, "p"), 0));
+    assertEquals(ids(), index.query(op(FIELD_FILE, "^src/.*"), 0));
+  }
+
+  public void testRegexOperatorsAreNotIndexed() {
+    assertTrue(index.canQuery(op(FIELD_PROJECT, "p")));
+    assertFalse(index.canQuery(op(FIELD_PROJECT, "^p.*")));
+    assertFalse(index.canQuery(op(FIELD_TOPIC, "^x.*")));
+  }
+
+  private Change change(int id, String topic) {
+    Change c = new Change(new Change.Key("I" + id), new Change.Id(id),
+        new Account.Id(100),
+        new Branch.NameKey(new Project.NameKey("p"), "refs/heads/master"));
+    c.setTopic(topic);
+    c.setSortKey(String.format("%016x", id));
+    return c;
+  }
+
+  private void index(Change c, int vote, String[] files) throws Exception {
+    List<PatchSetApproval> approvals = new ArrayList<PatchSetApproval>();
+    if (vote != 0) {
+      PatchSet.Id ps = new PatchSet.Id(c.getId(), 1);
+      approvals.add(new PatchSetApproval(
+          new PatchSetApproval.Key(ps, new Account.Id(200), CRVW),
+          (short) vote));
+    }
+    index.replace(new IndexedChange(c, new HashSet<Account.Id>(), approvals,
+        files));
+  }
+
+  private static List<Change.Id> ids(int... ids) {
+    Change.Id[] r = new Change.Id[ids.length];
+    for (int i = 0; i < ids.length; i++) {
+      r[i] = new Change.Id(ids[i]);
+    }
+    return Arrays.asList(r);
+  }
+
+  private static Predicate<ChangeData> op(String name, String value) {
+    return new OperatorPredicate<ChangeData>(name, value) {
+      @Override
+      public boolean match(ChangeData object) {
+        return false;
+      }
+
+      @Override
+      public int getCost() {
+        return 1;
+      }
+    };
+  }
+
+  private static Predicate<ChangeData> label(final int min, final int max) {
+    return new Label(min, max);
+  }
+
+  private static class Label extends OperatorPredicate<ChangeData> implements
+      LabelVotePredicate {
+    private final int min;
+    private final int max;
+
+    Label(int min, int max) {
+      super("label", "Code-Review:" + min + ".." + max);
+      this.min = min;
+      this.max = max;
+    }
+
+    @Override
+    public ApprovalCategory.Id getCategoryId() {
+      return CRVW;
+    }
+
+    @Override
+    public int getMinValue() {
+      return min;
+    }
+
+    @Override
+    public int getMaxValue() {
+      return max;
+    }
+
+    @Override
+    public boolean match(ChangeData object) {
+      return false;
+    }
+
+    @Override
+    public int getCost() {
+      return 1;
+    }
+  }
+
+  private static void delete(File f) {
+    File[] children = f.listFiles();
+    if (children != null) {
+      for (File c : children) {
+        delete(c);
+      }
+    }
+    f.delete();
+  }
+}
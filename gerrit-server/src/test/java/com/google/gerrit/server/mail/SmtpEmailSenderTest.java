@@ -0,0 +1,273 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.mail;
+
+import com.google.gerrit.server.config.SitePaths;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jgit.lib.Config;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SmtpEmailSenderTest extends TestCase {
+  private File site;
+  private StubServer server;
+  private List<WorkQueue.Lifecycle> queues;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    site = File.createTempFile("gerrit_", "_site");
+    assertTrue(site.delete());
+    server = new StubServer();
+    queues = new ArrayList<WorkQueue.Lifecycle>();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    for (WorkQueue.Lifecycle q : queues) {
+      q.stop();
+    }
+    server.close();
+    delete(site);
+    super.tearDown();
+  }
+
+  public void testConnectionIsReused() throws Exception {
+    Config cfg = config(server.getPort());
+    cfg.setBoolean("sendemail", null, "async", false);
+    SmtpEmailSender sender = sender(cfg, Guice.createInjector());
+
+    send(sender, "a@example.com");
+    send(sender, "b@example.com");
+
+    assertEquals(Arrays.asList("a@example.com"), server.next());
+    assertEquals(Arrays.asList("b@example.com"), server.next());
+    assertEquals(1, server.connections.get());
+  }
+
+  public void testDeferredRecipientIsRetried() throws Exception {
+    server.deferOnce.add("b@example.com");
+    SmtpEmailSender sender =
+        sender(config(server.getPort()), Guice.createInjector());
+
+    send(sender, "a@example.com", "b@example.com");
+
+    assertEquals(Arrays.asList("a@example.com"), server.next());
+    assertEquals(Arrays.asList("b@example.com"), server.next());
+    assertSpoolEmptied();
+  }
+
+  public void testSpooledMessageIsSentAfterRestart() throws Exception {
+    ServerSocket closed = new ServerSocket(0);
+    int unused = closed.getLocalPort();
+    closed.close();
+
+    Config down = config(unused);
+    down.setString("sendemail", null, "retryDelay", "1 h");
+    Injector first = Guice.createInjector();
+    send(sender(down, first), "a@example.com");
+    stop(first);
+    assertEquals(1, spooled().length);
+
+    SmtpEmailSender sender =
+        sender(config(server.getPort()), Guice.createInjector());
+    sender.start();
+    assertEquals(Arrays.asList("a@example.com"), server.next());
+    assertSpoolEmptied();
+  }
+
+  private static Config config(int port) {
+    Config cfg = new Config();
+    cfg.setString("sendemail", null, "smtpserver", "127.0.0.1");
+    cfg.setInt("sendemail", null, "smtpserverport", port);
+    cfg.setString("sendemail", null, "retryDelay", "1 s");
+    return cfg;
+  }
+
+  private SmtpEmailSender sender(Config cfg, Injector injector)
+      throws IOException {
+    queues.add(injector.getInstance(WorkQueue.Lifecycle.class));
+    return new SmtpEmailSender(cfg, new SitePaths(site),
+        injector.getInstance(WorkQueue.class));
+  }
+
+  private void stop(Injector injector) {
+    WorkQueue.Lifecycle q = injector.getInstance(WorkQueue.Lifecycle.class);
+    q.stop();
+    queues.remove(q);
+  }
+
+  private static void send(SmtpEmailSender sender, String... rcpt)
+      throws EmailException {
+    List<Address> to = new ArrayList<Address>();
+    for (String addr : rcpt) {
+      to.add(new Address(addr));
+    }
+    sender.send(new Address("gerrit@example.com"), to,
+        new HashMap<String, EmailHeader>(), "body\n");
+  }
+
+  private File[] spooled() {
+    File[] files = new File(site, "data/mail-queue").listFiles();
+    return files != null ? files : new File[0];
+  }
+
+  private void assertSpoolEmptied() throws InterruptedException {
+    for (int i = 0; i < 100 && spooled().length != 0; i++) {
+      Thread.sleep(50);
+    }
+    assertEquals(0, spooled().length);
+  }
+
+  private static void delete(File f) {
+    File[] children = f.listFiles();
+    if (children != null) {
+      for (File c : children) {
+        delete(c);
+      }
+    }
+    f.delete();
+  }
+
+  /**
+   * Minimal SMTP server accepting every message. Recipients in
+   * {@link #deferOnce} are refused with a 4xx reply the first time.
+   */
+  private static class StubServer extends Thread {
+    final ServerSocket socket;
+    final AtomicInteger connections = new AtomicInteger();
+    final Set<String> deferOnce =
+        Collections.synchronizedSet(new HashSet<String>());
+    final BlockingQueue<List<String>> received =
+        new LinkedBlockingQueue<List<String>>();
+
+    StubServer() throws IOException {
+      socket = new ServerSocket(0);
+      setDaemon(true);
+      start();
+    }
+
+    int getPort() {
+      return socket.getLocalPort();
+    }
+
+    /** @return recipients of the next message received. */
+    List<String> next() throws InterruptedException {
+      List<String> rcpt = received.poll(10, TimeUnit.SECONDS);
+      assertNotNull("no message received", rcpt);
+      return rcpt;
+    }
+
+    void close() throws IOException {
+      socket.close();
+    }
+
+    @Override
+    public void run() {
+      for (;;) {
+        final Socket s;
+        try {
+          s = socket.accept();
+        } catch (IOException e) {
+          return;
+        }
+        connections.incrementAndGet();
+        Thread t = new Thread() {
+          @Override
+          public void run() {
+            try {
+              try {
+                serve(s);
+              } finally {
+                s.close();
+              }
+            } catch (IOException e) {
+              // Client went away.
+            }
+          }
+        };
+        t.setDaemon(true);
+        t.start();
+      }
+    }
+
+    private void serve(Socket s) throws IOException {
+      BufferedReader in = new BufferedReader(
+          new InputStreamReader(s.getInputStream(), "UTF-8"));
+      Writer out = new OutputStreamWriter(s.getOutputStream(), "UTF-8");
+      List<String> rcpt = new ArrayList<String>();
+      reply(out, "220 stub");
+
+      String line;
+      while ((line = in.readLine()) != null) {
+        String cmd = line.toUpperCase();
+        if (cmd.startsWith("RCPT TO:")) {
+          String addr = line.substring(line.indexOf('<') + 1,
+              line.lastIndexOf('>'));
+          if (deferOnce.remove(addr)) {
+            reply(out, "450 try again later");
+          } else {
+            rcpt.add(addr);
+            reply(out, "250 ok");
+          }
+        } else if (cmd.startsWith("DATA")) {
+          reply(out, "354 go ahead");
+          while ((line = in.readLine()) != null && !line.equals(".")) {
+          }
+          received.add(new ArrayList<String>(rcpt));
+          rcpt.clear();
+          reply(out, "250 ok");
+        } else if (cmd.startsWith("RSET") || cmd.startsWith("MAIL FROM:")) {
+          rcpt.clear();
+          reply(out, "250 ok");
+        } else if (cmd.startsWith("QUIT")) {
+          reply(out, "221 bye");
+          return;
+        } else {
+          reply(out, "250 ok");
+        }
+      }
+    }
+
+    private static void reply(Writer out, String msg) throws IOException {
+      out.write(msg);
+      out.write("\r\n");
+      out.flush();
+    }
+  }
+}
@@ -230,6 +230,29 @@ public class RefControlTest extends TestCase {
     assertFalse("u can't force update tag", u.controlForRef("refs/tags/V10").canForceUpdate());
   }
 
+  public void testBlockRule_ParentRegexBlocksChild() {
+    grant(local, PUSH, devs, "refs/heads/*");
+    grant(parent, PUSH, anonymous, "^refs/heads/\\d+").setBlock();
+    grant(parent, PUSH, anonymous, "^refs/heads/rel-[0-9]+").setBlock();
+
+    ProjectControl u = user(devs);
+    assertFalse("u can't push 123",
+        u.controlForRef("refs/heads/123").canUpdate());
+    assertFalse("u can't push rel-1",
+        u.controlForRef("refs/heads/rel-1").canUpdate());
+    assertTrue("u can push master",
+        u.controlForRef("refs/heads/master").canUpdate());
+  }
+
+  public void testRegexLiteralPrefix() {
+    assertEquals("refs/heads/", SectionIndex.literalPrefix("^refs/heads/\\d+"));
+    assertEquals("refs/heads/rel-",
+        SectionIndex.literalPrefix("^refs/heads/rel-[0-9]+"));
+    assertEquals("refs/heads/",
+        SectionIndex.literalPrefix("^refs/heads/x?"));
+    assertEquals("", SectionIndex.literalPrefix("^refs/heads/a|refs/tags/b"));
+  }
+
   public void testBlockLabelRange_ParentBlocksChild() {
     grant(local, LABEL + "Code-Review", -2, +2, devs, "refs/heads/*");
     grant(parent, LABEL + "Code-Review", -2, +2, devs, "refs/heads/*").setBlock();
@@ -390,12 +413,13 @@ public class RefControlTest extends TestCase {
     GitRepositoryManager mgr = null;
     ProjectControl.AssistedFactory projectControlFactory = null;
     RulesCache rulesCache = null;
+    SubmitRecordCache submitRecordCache = null;
     all.put(local.getProject().getNameKey(), new ProjectState(
         projectCache, allProjectsName, projectControlFactory,
-        envFactory, mgr, rulesCache, local));
+        envFactory, mgr, rulesCache, submitRecordCache, local));
     all.put(parent.getProject().getNameKey(), new ProjectState(
         projectCache, allProjectsName, projectControlFactory,
-        envFactory, mgr, rulesCache, parent));
+        envFactory, mgr, rulesCache, submitRecordCache, parent));
     return all.get(local.getProject().getNameKey());
   }
 
@@ -0,0 +1,93 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.query.change;
+
+import static com.google.gerrit.server.query.change.TestSource.change;
+import static com.google.gerrit.server.query.change.TestSource.ids;
+
+import com.google.gerrit.server.query.OperatorPredicate;
+import com.google.gerrit.server.query.Predicate;
+import com.google.gwtorm.server.OrmException;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+public class AndSourceTest extends TestCase {
+  private static final class Matching extends OperatorPredicate<ChangeData> {
+    private final Set<Integer> ids;
+
+    Matching(Integer... ids) {
+      super("matching", Arrays.toString(ids));
+      this.ids = new HashSet<Integer>(Arrays.asList(ids));
+    }
+
+    @Override
+    public boolean match(ChangeData cd) {
+      return ids.contains(cd.getId().get());
+    }
+
+    @Override
+    public int getCost() {
+      return 1;
+    }
+  }
+
+  private TestSource source;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    source = new TestSource(true, 2,
+        change(1, "01"), change(2, "02"), change(3, "03"),
+        change(4, "04"), change(5, "05"));
+  }
+
+  public void testReadsOnlyUntilNextMatch() throws OrmException {
+    Iterator<ChangeData> i = and(new Matching(3, 4)).read().iterator();
+    assertEquals(3, i.next().getId().get());
+    assertEquals(1, source.restarts);
+    assertEquals(3, source.pulled);
+  }
+
+  public void testStopsAtLimit() throws OrmException {
+    List<ChangeData> r = and(new Matching(1, 2, 3, 4, 5)).read().toList();
+    assertEquals(Arrays.asList(1, 2), ids(r));
+    assertEquals(2, source.pulled);
+    assertEquals(0, source.restarts);
+  }
+
+  public void testRestartsWhenRowsAreSkipped() throws OrmException {
+    List<ChangeData> r = and(new Matching(2, 3, 5)).read().toList();
+    assertEquals(Arrays.asList(2, 3), ids(r));
+    assertEquals(1, source.restarts);
+    assertEquals(3, source.pulled);
+  }
+
+  public void testStopsWhenSourceIsExhausted() throws OrmException {
+    List<ChangeData> r = and(new Matching(5)).read().toList();
+    assertEquals(Arrays.asList(5), ids(r));
+    assertEquals(2, source.restarts);
+    assertEquals(5, source.pulled);
+  }
+
+  private AndSource and(Predicate<ChangeData> filter) {
+    return new AndSource(Arrays.<Predicate<ChangeData>> asList(filter, source));
+  }
+}
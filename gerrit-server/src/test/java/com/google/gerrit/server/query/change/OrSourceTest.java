@@ -0,0 +1,76 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.query.change;
+
+import static com.google.gerrit.server.query.change.TestSource.change;
+import static com.google.gerrit.server.query.change.TestSource.ids;
+
+import com.google.gwtorm.server.OrmException;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+public class OrSourceTest extends TestCase {
+  public void testMergesAscendingChildren() throws OrmException {
+    OrSource or = or(
+        new TestSource(true, 100,
+            change(1, "01"), change(3, "03"), change(5, "05")),
+        new TestSource(true, 100,
+            change(2, "02"), change(3, "03"), change(4, "04")));
+    assertEquals(SortOrder.ASCENDING, SortOrder.of(or));
+    assertEquals(Arrays.asList(1, 2, 3, 4, 5), ids(or.read()));
+  }
+
+  public void testMergesDescendingChildren() throws OrmException {
+    OrSource or = or(
+        new TestSource(false, 100,
+            change(5, "05"), change(3, "03"), change(1, "01")),
+        new TestSource(false, 100,
+            change(4, "04"), change(3, "03"), change(2, "02")));
+    assertEquals(SortOrder.DESCENDING, SortOrder.of(or));
+    assertEquals(Arrays.asList(5, 4, 3, 2, 1), ids(or.read()));
+  }
+
+  public void testMergeReadsOnlyHeads() throws OrmException {
+    TestSource a = new TestSource(true, 100,
+        change(1, "01"), change(3, "03"), change(5, "05"), change(7, "07"));
+    TestSource b = new TestSource(true, 100,
+        change(2, "02"), change(4, "04"), change(6, "06"), change(8, "08"));
+    Iterator<ChangeData> i = or(a, b).read().iterator();
+
+    assertEquals(1, i.next().getId().get());
+    assertEquals(2, a.pulled);
+    assertEquals(1, b.pulled);
+
+    assertEquals(2, i.next().getId().get());
+    assertEquals(2, a.pulled);
+    assertEquals(2, b.pulled);
+  }
+
+  public void testMixedOrderIsConcatenated() throws OrmException {
+    OrSource or = or(
+        new TestSource(true, 100, change(1, "01"), change(3, "03")),
+        new TestSource(false, 100,
+            change(4, "04"), change(2, "02"), change(1, "01")));
+    assertEquals(SortOrder.NONE, SortOrder.of(or));
+    assertEquals(Arrays.asList(1, 3, 4, 2), ids(or.read()));
+  }
+
+  private static OrSource or(TestSource... children) {
+    return new OrSource(Arrays.asList(children));
+  }
+}
@@ -0,0 +1,145 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.query.change;
+
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.Branch;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.query.OperatorPredicate;
+import com.google.gwtorm.server.ResultSet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Paginated source returning fixed rows, counting how many were read.
+ * <p>
+ * The rows must already be in the order given by {@code ascending}.
+ */
+class TestSource extends OperatorPredicate<ChangeData>
+    implements ChangeDataSource, Paginated {
+  private final boolean ascending;
+  private final int limit;
+  private final List<ChangeData> rows;
+
+  /** Number of rows returned to readers so far. */
+  int pulled;
+
+  /** Number of times the source was restarted after a page. */
+  int restarts;
+
+  TestSource(boolean ascending, int limit, ChangeData... rows) {
+    super("test", ids(Arrays.asList(rows)).toString());
+    this.ascending = ascending;
+    this.limit = limit;
+    this.rows = Arrays.asList(rows);
+  }
+
+  static ChangeData change(int id, String sortKey) {
+    Change c = new Change(new Change.Key("I" + id), new Change.Id(id),
+        new Account.Id(1),
+        new Branch.NameKey(new Project.NameKey("p"), "refs/heads/master"));
+    c.setSortKey(sortKey);
+    return new ChangeData(c);
+  }
+
+  static List<Integer> ids(Iterable<ChangeData> changes) {
+    List<Integer> r = new ArrayList<Integer>();
+    for (ChangeData cd : changes) {
+      r.add(cd.getId().get());
+    }
+    return r;
+  }
+
+  @Override
+  public ResultSet<ChangeData> read() {
+    return page(0);
+  }
+
+  @Override
+  public ResultSet<ChangeData> restart(ChangeData last) {
+    restarts++;
+    return page(rows.indexOf(last) + 1);
+  }
+
+  private ResultSet<ChangeData> page(final int start) {
+    final int end = Math.min(start + limit, rows.size());
+    return new AbstractResultSet<ChangeData>() {
+      @Override
+      public Iterator<ChangeData> iterator() {
+        return new Iterator<ChangeData>() {
+          private int idx = start;
+
+          @Override
+          public boolean hasNext() {
+            return idx < end;
+          }
+
+          @Override
+          public ChangeData next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            pulled++;
+            return rows.get(idx++);
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+  }
+
+  @Override
+  public int limit() {
+    return limit;
+  }
+
+  @Override
+  public boolean isAscending() {
+    return ascending;
+  }
+
+  @Override
+  public int getCardinality() {
+    return rows.size();
+  }
+
+  @Override
+  public boolean hasChange() {
+    return true;
+  }
+
+  @Override
+  public boolean match(ChangeData object) {
+    return rows.contains(object);
+  }
+
+  @Override
+  public int getCost() {
+    return 0;
+  }
+}
@@ -70,6 +70,11 @@ class Query extends SshCommand {
     processor.setIncludeDependencies(on);
   }
 
+  @Option(name = "--explain", usage = "Show the query plan instead of executing the query")
+  void setExplain(boolean on) {
+    processor.setExplain(on);
+  }
+
   @Argument(index = 0, required = true, multiValued = true, metaVar = "QUERY", usage = "Query to execute")
   private List<String> query;
 
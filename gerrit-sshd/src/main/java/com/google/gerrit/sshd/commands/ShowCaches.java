@@ -16,15 +16,19 @@ package com.google.gerrit.sshd.commands;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheStats;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.gerrit.common.Version;
 import com.google.gerrit.common.data.GlobalCapability;
 import com.google.gerrit.extensions.annotations.RequiresCapability;
 import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.rules.RulesCache;
 import com.google.gerrit.server.cache.h2.H2CacheImpl;
 import com.google.gerrit.server.config.SitePath;
 import com.google.gerrit.server.git.WorkQueue;
 import com.google.gerrit.server.git.WorkQueue.Task;
+import com.google.gerrit.server.patch.IntraLineStats;
 import com.google.gerrit.sshd.SshDaemon;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
@@ -44,7 +48,10 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.text.SimpleDateFormat;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
 
@@ -76,6 +83,12 @@ final class ShowCaches extends CacheCommand {
   @Inject
   private SshDaemon daemon;
 
+  @Inject
+  private RulesCache rulesCache;
+
+  @Inject
+  private IntraLineStats intraLineStats;
+
   @Inject
   @SitePath
   private File sitePath;
@@ -140,10 +153,18 @@ final class ShowCaches extends CacheCommand {
     Map<String, H2CacheImpl<?, ?>> disks = Maps.newTreeMap();
     printMemoryCaches(disks, sortedCoreCaches());
     printMemoryCaches(disks, sortedPluginCaches());
+    int pendingWrites = 0;
+    String busiest = null;
+    int busiestWrites = 0;
     for (Map.Entry<String, H2CacheImpl<?, ?>> entry : disks.entrySet()) {
       H2CacheImpl<?, ?> cache = entry.getValue();
       CacheStats stat = cache.stats();
       H2CacheImpl.DiskStats disk = cache.diskStats();
+      pendingWrites += disk.pendingWrites();
+      if (busiestWrites < disk.pendingWrites()) {
+        busiest = entry.getKey();
+        busiestWrites = disk.pendingWrites();
+      }
       stdout.print(String.format(
           "D %-"+nw+"s|%6s %6s %7s| %7s |%4s %4s|\n",
           entry.getKey(),
@@ -164,7 +185,12 @@ final class ShowCaches extends CacheCommand {
 
     sshSummary();
     taskSummary();
+    if (!disks.isEmpty()) {
+      diskSummary(pendingWrites, busiest, busiestWrites);
+    }
     memSummary();
+    rulesSummary();
+    intraLineSummary();
 
     if (showJVM) {
       jvmSummary();
@@ -260,6 +286,82 @@ final class ShowCaches extends CacheCommand {
         tasksSleeping);
   }
 
+  private void diskSummary(int pendingWrites, String busiest,
+      int busiestWrites) {
+    if (busiest != null) {
+      stdout.format(
+          "Disk:  %4d  writes queued, %d for %s\n",
+          pendingWrites,
+          busiestWrites,
+          busiest);
+    } else {
+      stdout.format("Disk:  %4d  writes queued\n", pendingWrites);
+    }
+  }
+
+  private void rulesSummary() {
+    List<Map.Entry<Project.NameKey, RulesCache.Stats>> stats =
+        Lists.newArrayList(rulesCache.getStats().entrySet());
+    if (stats.isEmpty()) {
+      return;
+    }
+    Collections.sort(stats,
+        new Comparator<Map.Entry<Project.NameKey, RulesCache.Stats>>() {
+          @Override
+          public int compare(Map.Entry<Project.NameKey, RulesCache.Stats> a,
+              Map.Entry<Project.NameKey, RulesCache.Stats> b) {
+            long x = a.getValue().getEvaluationTime();
+            long y = b.getValue().getEvaluationTime();
+            return x > y ? -1 : (x == y ? 0 : 1);
+          }
+        });
+
+    int w = Math.max(columns - 38, 10);
+    stdout.format("%-" + w + "s %6s %7s %8s %7s\n",
+        "Rules:", "Loads", "AvgLoad", "Evals", "AvgEval");
+    for (Map.Entry<Project.NameKey, RulesCache.Stats> e
+        : stats.subList(0, Math.min(5, stats.size()))) {
+      RulesCache.Stats s = e.getValue();
+      stdout.format("  %-" + (w - 2) + "s %6s %7s %8s %7s\n",
+          e.getKey().get(),
+          count(s.getLoadCount()),
+          duration(average(s.getLoadTime(), s.getLoadCount())),
+          count(s.getEvaluationCount()),
+          duration(average(s.getEvaluationTime(), s.getEvaluationCount())));
+    }
+    stdout.print('\n');
+  }
+
+  private void intraLineSummary() {
+    long[] bounds = intraLineStats.getBounds();
+    long[] counts = intraLineStats.getCounts();
+    long timeouts = intraLineStats.getTimeouts();
+    long total = timeouts;
+    for (long n : counts) {
+      total += n;
+    }
+    if (total == 0) {
+      return;
+    }
+
+    stdout.print("Intraline diffs:");
+    for (long b : bounds) {
+      stdout.format(" %8s", "<" + b + "ms");
+    }
+    stdout.format(" %8s %8s\n",
+        ">=" + bounds[bounds.length - 1] + "ms", "Timeout");
+    stdout.print("                ");
+    for (long n : counts) {
+      stdout.format(" %8d", n);
+    }
+    stdout.format(" %8d\n", timeouts);
+    stdout.print('\n');
+  }
+
+  private static double average(long total, long count) {
+    return 0 < count ? ((double) total) / count : 0;
+  }
+
   private void sshSummary() {
     IoAcceptor acceptor = daemon.getIoAcceptor();
     if (acceptor == null) {
@@ -14,11 +14,13 @@
 
 package com.google.gerrit.sshd.commands;
 
+import com.google.gerrit.common.ChangeEventDispatcher;
 import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.server.IdentifiedUser;
 import com.google.gerrit.server.git.WorkQueue;
 import com.google.gerrit.server.git.WorkQueue.ProjectTask;
 import com.google.gerrit.server.git.WorkQueue.Task;
+import com.google.gerrit.server.patch.DiffPrecomputer;
 import com.google.gerrit.server.project.ProjectCache;
 import com.google.gerrit.server.project.ProjectState;
 import com.google.gerrit.server.util.IdGenerator;
@@ -52,6 +54,12 @@ final class ShowQueue extends SshCommand {
   @Inject
   private IdentifiedUser currentUser;
 
+  @Inject
+  private ChangeEventDispatcher events;
+
+  @Inject
+  private DiffPrecomputer diffPrecomputer;
+
   private int columns = 80;
   private int taskNameWidth;
 
@@ -170,6 +178,20 @@ final class ShowQueue extends SshCommand {
     }
 
     stdout.print("  " + numberOfPendingTasks + " tasks\n");
+
+    if (viewAll) {
+      stdout.print(String.format(
+          "  %d events dispatched, %d ms average delay, %d ms maximum,"
+          + " %d dropped\n",
+          events.getDispatchedCount(), events.getAverageDelay(),
+          events.getMaximumDelay(), events.getDroppedCount()));
+      if (diffPrecomputer.isEnabled()) {
+        stdout.print(String.format(
+            "  %d diffs to precompute, %d computed, %d skipped\n",
+            diffPrecomputer.getQueued(), diffPrecomputer.getCompleted(),
+            diffPrecomputer.getSkipped()));
+      }
+    }
   }
 
   private static String id(final int id) {
@@ -18,6 +18,8 @@ import com.google.gerrit.common.ChangeHooks;
 import com.google.gerrit.common.ChangeListener;
 import com.google.gerrit.server.IdentifiedUser;
 import com.google.gerrit.server.events.ChangeEvent;
+import com.google.gerrit.server.events.DroppedOutputEvent;
+import com.google.gerrit.server.events.EventJournal;
 import com.google.gerrit.server.git.WorkQueue;
 import com.google.gerrit.server.git.WorkQueue.CancelableRunnable;
 import com.google.gerrit.sshd.BaseCommand;
@@ -26,6 +28,7 @@ import com.google.gson.Gson;
 import com.google.inject.Inject;
 
 import org.apache.sshd.server.Environment;
+import org.kohsuke.args4j.Option;
 
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -39,12 +42,19 @@ final class StreamEvents extends BaseCommand {
   /** Number of events to write before yielding off the thread. */
   private static final int BATCH_SIZE = 32;
 
+  @Option(name = "--resume-from", metaVar = "SEQ",
+      usage = "send recorded events starting at this sequence number")
+  private long resumeFrom;
+
   @Inject
   private IdentifiedUser currentUser;
 
   @Inject
   private ChangeHooks hooks;
 
+  @Inject
+  private EventJournal journal;
+
   @Inject
   @StreamCommandExecutor
   private WorkQueue.Executor pool;
@@ -80,15 +90,36 @@ final class StreamEvents extends BaseCommand {
     }
   };
 
+  private final CancelableRunnable replay = new CancelableRunnable() {
+    @Override
+    public void run() {
+      replayEvents();
+    }
+
+    @Override
+    public void cancel() {
+      onExit(0);
+    }
+  };
+
   /** True if {@link #droppedOutputEvent} needs to be sent. */
   private volatile boolean dropped;
 
-  /** Lock to protect {@link #queue}, {@link #task}, {@link #done}. */
+  /** Sequence number of the last event sent from the journal. */
+  private volatile long replayed;
+
+  /**
+   * Lock to protect {@link #queue}, {@link #task}, {@link #done},
+   * {@link #replaying}.
+   */
   private final Object taskLock = new Object();
 
   /** True if no more messages should be sent to the output. */
   private boolean done;
 
+  /** True while recorded events are sent; new events wait in the queue. */
+  private boolean replaying;
+
   /**
    * Currently scheduled task to spin out {@link #queue}.
    * <p>
@@ -116,7 +147,17 @@ final class StreamEvents extends BaseCommand {
     }
 
     stdout = toPrintWriter(out);
-    hooks.addChangeListener(listener, currentUser);
+    if (0 < resumeFrom) {
+      // Listen before reading the journal, so no event falls in between.
+      // Events also found in the journal are skipped by writeEvents().
+      synchronized (taskLock) {
+        replaying = true;
+        hooks.addChangeListener(listener, currentUser);
+        task = pool.submit(replay);
+      }
+    } else {
+      hooks.addChangeListener(listener, currentUser);
+    }
   }
 
   @Override
@@ -151,11 +192,47 @@ final class StreamEvents extends BaseCommand {
 
   private void offer(final ChangeEvent event) {
     synchronized (taskLock) {
-      if (!queue.offer(event)) {
+      if (event instanceof DroppedOutputEvent || !queue.offer(event)) {
+        // Events were lost before reaching the queue, or are lost now.
         dropped = true;
       }
 
-      if (task == null && !done) {
+      if (task == null && !done && !replaying) {
+        task = pool.submit(writer);
+      }
+    }
+  }
+
+  private void replayEvents() {
+    if (resumeFrom < journal.getFirstSequence()) {
+      write(droppedOutputEvent);
+    }
+
+    replayed = journal.replay(resumeFrom, currentUser,
+        new EventJournal.Receiver() {
+          @Override
+          public boolean onEvent(String json) {
+            if (Thread.interrupted() || stdout.checkError()) {
+              return false;
+            }
+            synchronized (stdout) {
+              stdout.print(json + "\n");
+            }
+            return true;
+          }
+        });
+    flush();
+
+    if (stdout.checkError()) {
+      hooks.removeChangeListener(listener);
+      onExit(0);
+      return;
+    }
+
+    synchronized (taskLock) {
+      replaying = false;
+      task = null;
+      if ((dropped || !queue.isEmpty()) && !done) {
         task = pool.submit(writer);
       }
     }
@@ -194,6 +271,8 @@ final class StreamEvents extends BaseCommand {
       final ChangeEvent event = poll();
       if (event == null) {
         break;
+      } else if (event.seq <= replayed) {
+        continue;
       }
 
       write(event);
@@ -15,6 +15,8 @@
 package com.google.gerrit.sshd.commands;
 
 import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.git.AdvertisedRefsCache;
+import com.google.gerrit.server.git.ChangeBranchCache;
 import com.google.gerrit.server.git.TagCache;
 import com.google.gerrit.server.git.TransferConfig;
 import com.google.gerrit.server.git.VisibleRefFilter;
@@ -37,6 +39,12 @@ final class Upload extends AbstractGitCommand {
   @Inject
   private TagCache tagCache;
 
+  @Inject
+  private ChangeBranchCache changeBranchCache;
+
+  @Inject
+  private AdvertisedRefsCache advertisedRefsCache;
+
   @Override
   protected void runImpl() throws IOException, Failure {
     if (!projectControl.canRunUploadPack()) {
@@ -45,8 +53,8 @@ final class Upload extends AbstractGitCommand {
 
     final UploadPack up = new UploadPack(repo);
     if (!projectControl.allRefsAreVisible()) {
-      up.setAdvertiseRefsHook(new VisibleRefFilter(tagCache, repo,
-          projectControl, db.get(), true));
+      up.setAdvertiseRefsHook(new VisibleRefFilter(tagCache, changeBranchCache,
+          advertisedRefsCache, repo, projectControl, db.get(), true));
     }
     up.setPackConfig(config.getPackConfig());
     up.setTimeout(config.getTimeout());